@@ -0,0 +1,91 @@
+package eu.bavenir.ogwapi.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.configuration2.XMLConfiguration;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import eu.bavenir.ogwapi.commons.connectors.http.RestAgentConnector;
+import eu.bavenir.ogwapi.loadtest.LatencyRecorder;
+import eu.bavenir.ogwapi.loadtest.MockAgent;
+
+/**
+ * A property read from a local mock Agent through the {@link RestAgentConnector RestAgentConnector}, up to the string
+ * that goes to the network - reading the Agent response and serialising the response message. Run it with the gc
+ * profiler (-prof gc), gc.alloc.rate.norm is the heap a single response takes on its way through the gateway, in
+ * bytes. Divided by the body size it tells how many copies of the body are made.
+ *
+ * @author sulfo
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class AgentResponseBenchmark {
+
+	/**
+	 * Port of the mock Agent.
+	 */
+	private static final int AGENT_PORT = 18190;
+
+	/**
+	 * Property whose reads are answered with the body.
+	 */
+	private static final String LARGE_PROPERTY_ID = "snapshot";
+
+	/**
+	 * Size of the body the Agent answers with, in bytes.
+	 */
+	@Param({"1024", "1048576", "8388608"})
+	public int bodySize;
+
+	private MockAgent agent;
+
+	private RestAgentConnector connector;
+
+
+	@Setup
+	public void setup() throws IOException {
+
+		agent = new MockAgent(AGENT_PORT, 0, 0, new LatencyRecorder("unused"));
+		agent.addRule("GET", MockAgent.AGENT_PATH + "/objects/[^/]+/properties/" + LARGE_PROPERTY_ID, 200, 0, 0,
+				BenchmarkSupport.body(bodySize));
+		agent.start();
+
+		XMLConfiguration config = BenchmarkSupport.config(null);
+		config.addProperty("connector.restAgentConnector.agent", "localhost");
+		config.addProperty("connector.restAgentConnector.agentPort", AGENT_PORT);
+		config.addProperty("connector.restAgentConnector.healthCheckInterval", 0);
+
+		connector = new RestAgentConnector(config, BenchmarkSupport.silentLogger());
+	}
+
+
+	@TearDown
+	public void tearDown() {
+		agent.stop();
+	}
+
+
+	@Benchmark
+	public String readProperty() {
+
+		return connector.getObjectProperty(BenchmarkSupport.SOURCE_OID, BenchmarkSupport.DESTINATION_OID,
+				LARGE_PROPERTY_ID, null, BenchmarkSupport.parameters()).buildMessageString();
+	}
+}
@@ -0,0 +1,180 @@
+package eu.bavenir.ogwapi.benchmarks;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.json.JsonArray;
+import javax.json.JsonNumber;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+import javax.json.JsonString;
+import javax.json.JsonValue;
+
+import eu.bavenir.ogwapi.commons.JsonCodec;
+
+/*
+ * STRUCTURE:
+ * - constants
+ * - public methods
+ * - private methods
+ */
+
+/**
+ * Compares results of a benchmark run with a baseline - both are JMH JSON result files (-rf json). Prints every
+ * benchmark found in both files with its change and ends with status 1 if any of them got worse by more than the
+ * threshold and by more than the score errors of both runs together. A change within the errors is noise, whatever
+ * its size - the errors of a busy or small machine easily reach 20 %. Benchmarks measured in throughput get worse
+ * when the score drops, the rest (average time etc.) when it grows.
+ *
+ * Usage: java -cp target/benchmarks.jar eu.bavenir.ogwapi.benchmarks.BaselineComparison baseline.json results.json
+ * [threshold in %]
+ *
+ * The scores are only comparable if both runs were made on the same machine with the same JVM.
+ *
+ * @author sulfo
+ *
+ */
+public class BaselineComparison {
+
+	/* === CONSTANTS === */
+
+	/**
+	 * Default allowed regression, in percent, for changes larger than the score errors.
+	 */
+	private static final double DEFAULT_THRESHOLD = 10.0;
+
+	/**
+	 * JMH mode where the higher score is better.
+	 */
+	private static final String MODE_THROUGHPUT = "thrpt";
+
+
+	/* === PUBLIC METHODS === */
+
+	/**
+	 * Entry point.
+	 *
+	 * @param args Baseline file, results file and optionally the threshold.
+	 * @throws IOException If a file could not be read.
+	 */
+	public static void main(String[] args) throws IOException {
+
+		if (args.length < 2) {
+			System.err.println("Usage: BaselineComparison <baseline.json> <results.json> [threshold %]");
+			System.exit(2);
+		}
+
+		double threshold = args.length > 2 ? Double.parseDouble(args[2]) : DEFAULT_THRESHOLD;
+
+		Map<String, JsonObject> baseline = readResults(args[0]);
+		Map<String, JsonObject> results = readResults(args[1]);
+
+		int regressions = 0;
+
+		for (Map.Entry<String, JsonObject> entry : results.entrySet()) {
+
+			JsonObject before = baseline.get(entry.getKey());
+			if (before == null) {
+				System.out.println(String.format("%-100s %s", entry.getKey(), "no baseline"));
+				continue;
+			}
+
+			JsonObject after = entry.getValue();
+
+			double beforeScore = before.getJsonObject("primaryMetric").getJsonNumber("score").doubleValue();
+			double afterScore = after.getJsonObject("primaryMetric").getJsonNumber("score").doubleValue();
+			String unit = after.getJsonObject("primaryMetric").getString("scoreUnit");
+
+			double change = (afterScore - beforeScore) / beforeScore * 100;
+
+			// the confidence intervals of the two runs, relative to the baseline
+			double error = (scoreError(before) + scoreError(after)) / beforeScore * 100;
+
+			// positive is worse
+			double regression = MODE_THROUGHPUT.equals(after.getString("mode")) ? -change : change;
+
+			String verdict = "";
+			if (Math.abs(change) > error) {
+				if (regression > threshold) {
+					verdict = "REGRESSION";
+					regressions++;
+				} else if (regression < -threshold) {
+					verdict = "improvement";
+				}
+			}
+
+			System.out.println(String.format("%-100s %12.3f -> %12.3f %-10s %+7.1f %% (+- %.1f %%) %s",
+					entry.getKey(), beforeScore, afterScore, unit, change, error, verdict));
+		}
+
+		System.out.println(regressions + " regressions over " + threshold + " % and the score errors.");
+
+		System.exit(regressions > 0 ? 1 : 0);
+	}
+
+
+	/* === PRIVATE METHODS === */
+
+	/**
+	 * Returns the score error of a result (half of its 99.9 % confidence interval). JMH writes NaN when there were
+	 * too few iterations to tell, which counts as no error.
+	 *
+	 * @param result Result of a benchmark.
+	 * @return The score error.
+	 */
+	private static double scoreError(JsonObject result) {
+
+		JsonValue error = result.getJsonObject("primaryMetric").get("scoreError");
+
+		if (error == null || error.getValueType() != JsonValue.ValueType.NUMBER) {
+			return 0;
+		}
+
+		return ((JsonNumber) error).doubleValue();
+	}
+
+
+	/**
+	 * Reads a JMH result file into a map keyed by the benchmark name, mode, number of threads and parameters.
+	 *
+	 * @param path Path to the file.
+	 * @return Results.
+	 * @throws IOException If the file could not be read.
+	 */
+	private static Map<String, JsonObject> readResults(String path) throws IOException {
+
+		Map<String, JsonObject> results = new LinkedHashMap<String, JsonObject>();
+
+		JsonArray array;
+		try (Reader reader = Files.newBufferedReader(Paths.get(path), StandardCharsets.UTF_8);
+				JsonReader jsonReader = JsonCodec.createReader(reader)) {
+			array = jsonReader.readArray();
+		}
+
+		for (JsonValue value : array) {
+			JsonObject result = (JsonObject) value;
+
+			StringBuilder key = new StringBuilder(result.getString("benchmark"));
+			key.append(" ").append(result.getString("mode"));
+			key.append(" t=").append(result.getInt("threads"));
+
+			JsonObject params = result.getJsonObject("params");
+			if (params != null) {
+				// sorted, so the key does not depend on the order in the file
+				Map<String, String> sorted = new TreeMap<String, String>();
+				params.forEach((name, param) -> sorted.put(name, ((JsonString) param).getString()));
+				sorted.forEach((name, param) -> key.append(" ").append(name).append("=").append(param));
+			}
+
+			results.put(key.toString(), result);
+		}
+
+		return results;
+	}
+}
@@ -0,0 +1,174 @@
+package eu.bavenir.ogwapi.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+import org.apache.commons.configuration2.XMLConfiguration;
+
+/*
+ * STRUCTURE:
+ * - constants
+ * - public methods
+ */
+
+/**
+ * Things the benchmarks share - configuration, a logger that stays silent and typical message contents. The
+ * configuration is built in memory, so the benchmarks don't depend on the GatewayConfig.xml of the machine they run
+ * on. Anything that would reach for the network (Neighbourhood Manager) is pointed to a closed local port.
+ *
+ * @author sulfo
+ *
+ */
+public class BenchmarkSupport {
+
+	/* === CONSTANTS === */
+
+	/**
+	 * Object ID of the local object.
+	 */
+	public static final String SOURCE_OID = "4d9e0d8a-6a1d-4b46-9d2c-0b4e1a7a3f21";
+
+	/**
+	 * Object ID of the remote object.
+	 */
+	public static final String DESTINATION_OID = "a1c6f3b2-2f4e-4c8b-8e1a-7d5b9c3e6f10";
+
+	/**
+	 * Property ID used in the requests.
+	 */
+	public static final String PROPERTY_ID = "temperature";
+
+	/**
+	 * Event ID used in the events.
+	 */
+	public static final String EVENT_ID = "overheating";
+
+	/**
+	 * Typical small body of a property value, as returned by an Agent.
+	 */
+	public static final String PROPERTY_VALUE = "{\"value\":21.5,\"unit\":\"Cel\",\"timestamp\":1602000000000}";
+
+	/**
+	 * Port nobody listens on.
+	 */
+	private static final int CLOSED_PORT = 1;
+
+
+	/* === PUBLIC METHODS === */
+
+	/**
+	 * Builds a configuration with default values, apart from the Neighbourhood Manager, which is pointed to a closed
+	 * local port, and the data directory.
+	 *
+	 * @param dataDirectory Directory for the files the gateway writes (counter spools etc.), may be null.
+	 * @return Configuration.
+	 */
+	public static XMLConfiguration config(File dataDirectory) {
+
+		XMLConfiguration config = new XMLConfiguration();
+
+		config.addProperty("general.neighbourhoodManagerServer", "localhost");
+		config.addProperty("general.neighourhoodManagerPort", CLOSED_PORT);
+		config.addProperty("general.sessionRecovery", "none");
+
+		if (dataDirectory != null) {
+			config.addProperty("general.dataDirectory", dataDirectory.getAbsolutePath() + File.separator);
+		}
+
+		return config;
+	}
+
+
+	/**
+	 * Returns a logger that does not log anything, so the benchmarks measure the gateway and not the console.
+	 *
+	 * @return Logger.
+	 */
+	public static Logger silentLogger() {
+
+		Logger logger = Logger.getLogger("ogwapi-benchmarks");
+		logger.setUseParentHandlers(false);
+		logger.setLevel(Level.OFF);
+
+		return logger;
+	}
+
+
+	/**
+	 * Creates a temporary directory for the files the gateway writes.
+	 *
+	 * @return The directory.
+	 */
+	public static File createDataDirectory() {
+
+		try {
+			return Files.createTempDirectory("ogwapi-benchmarks").toFile();
+		} catch (IOException e) {
+			throw new IllegalStateException("Temporary directory could not be created.", e);
+		}
+	}
+
+
+	/**
+	 * Deletes a directory created by {@link #createDataDirectory() createDataDirectory} with all its content.
+	 *
+	 * @param directory The directory, may be null.
+	 */
+	public static void deleteDataDirectory(File directory) {
+
+		if (directory == null) {
+			return;
+		}
+
+		try (Stream<Path> paths = Files.walk(directory.toPath())) {
+			paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+		} catch (IOException e) {
+			// it is a temporary directory after all
+		}
+	}
+
+
+	/**
+	 * Builds a body of given size, a JSON object with a single string attribute.
+	 *
+	 * @param size Approximate size in bytes.
+	 * @return The body.
+	 */
+	public static String body(int size) {
+
+		if (size <= PROPERTY_VALUE.length()) {
+			return PROPERTY_VALUE;
+		}
+
+		StringBuilder body = new StringBuilder(size);
+		body.append("{\"value\":\"");
+
+		for (int i = body.length(); i < size - 2; i++) {
+			body.append((char) ('a' + i % 26));
+		}
+
+		return body.append("\"}").toString();
+	}
+
+
+	/**
+	 * Parameters sent alongside the request and event bodies.
+	 *
+	 * @return Parameters.
+	 */
+	public static Map<String, String> parameters() {
+
+		Map<String, String> parameters = new HashMap<String, String>();
+		parameters.put("unit", "Cel");
+
+		return parameters;
+	}
+}
@@ -0,0 +1,118 @@
+package eu.bavenir.ogwapi.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import org.apache.commons.configuration2.XMLConfiguration;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import eu.bavenir.ogwapi.commons.messages.BinaryEnvelopeCodec;
+import eu.bavenir.ogwapi.commons.messages.CodesAndReasons;
+import eu.bavenir.ogwapi.commons.messages.MessageResolver;
+import eu.bavenir.ogwapi.commons.messages.NetworkMessage;
+import eu.bavenir.ogwapi.commons.messages.NetworkMessageResponse;
+import eu.bavenir.ogwapi.commons.messages.PayloadCompression;
+import eu.bavenir.ogwapi.commons.messages.StatusMessage;
+
+/**
+ * A response encoded into and decoded from the {@link BinaryEnvelopeCodec binary envelope}, next to the same response
+ * built as and resolved from JSON. Encoding starts from a new response object, because the envelope is kept in the
+ * message once built. Responses above the compression threshold (2048 bytes by default) are deflated, and the bodies
+ * of {@link BenchmarkSupport#body(int) BenchmarkSupport} compress very well, so the binary figures of the larger sizes
+ * are mostly the deflater and inflater.
+ *
+ * @author sulfo
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class BinaryEnvelopeBenchmark {
+
+	/**
+	 * Size of the response body, in bytes.
+	 */
+	@Param({"64", "4096", "65536"})
+	public int bodySize;
+
+	private XMLConfiguration config;
+
+	private Logger logger;
+
+	private String body;
+
+	private BinaryEnvelopeCodec codec;
+
+	private MessageResolver resolver;
+
+	private String json;
+
+	private String envelope;
+
+
+	@Setup
+	public void setup() {
+
+		config = BenchmarkSupport.config(null);
+		logger = BenchmarkSupport.silentLogger();
+
+		body = BenchmarkSupport.body(bodySize);
+
+		codec = new BinaryEnvelopeCodec(config, logger, new PayloadCompression(config, logger));
+		resolver = new MessageResolver(config, logger);
+
+		json = encodeJson();
+		envelope = encodeBinary();
+	}
+
+
+	@Benchmark
+	public String encodeJson() {
+		return response().buildMessageString();
+	}
+
+
+	@Benchmark
+	public String encodeBinary() {
+		return codec.encode(response());
+	}
+
+
+	@Benchmark
+	public NetworkMessage decodeJson() {
+		return resolver.resolveNetworkMessage(json);
+	}
+
+
+	@Benchmark
+	public NetworkMessage decodeBinary() {
+		return codec.decode(BenchmarkSupport.DESTINATION_OID, envelope);
+	}
+
+
+	private NetworkMessageResponse response() {
+
+		NetworkMessageResponse response = new NetworkMessageResponse(config, logger, false,
+				CodesAndReasons.CODE_200_OK, CodesAndReasons.REASON_200_OK, StatusMessage.CONTENTTYPE_APPLICATIONJSON,
+				body);
+
+		response.setRequestId(1);
+		response.setSourceOid(BenchmarkSupport.DESTINATION_OID);
+		response.setDestinationOid(BenchmarkSupport.SOURCE_OID);
+
+		return response;
+	}
+}
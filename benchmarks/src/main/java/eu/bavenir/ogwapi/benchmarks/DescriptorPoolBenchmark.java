@@ -0,0 +1,111 @@
+package eu.bavenir.ogwapi.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import eu.bavenir.ogwapi.commons.CommunicationManager;
+
+/**
+ * Look ups in the descriptor pool of the {@link CommunicationManager CommunicationManager}, which happen at least
+ * twice for every REST call - authentication verifies the password and the operation itself finds the descriptor of
+ * the caller. The pool is guarded by a single lock, so the look ups are done from many threads at once, as the REST
+ * server does it.
+ *
+ * The object IDs are not logged in (that would need a network to log them into), so the look ups miss. That is the
+ * same path up to the lock and the map. {@link #lookup() lookup} measures just these, the other two the whole calls,
+ * including the message about the object not being connected. Run with -t to change the number of threads. The
+ * 'Alone' variants make the same calls from a single thread, the uncontended cost that a machine with few cores can
+ * compare against a baseline.
+ *
+ * @author sulfo
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@Threads(8)
+public class DescriptorPoolBenchmark {
+
+	/**
+	 * Number of different object IDs looked up.
+	 */
+	private static final int OBJECTS = 256;
+
+	private CommunicationManager communicationManager;
+
+	private String[] objectIds;
+
+
+	@Setup
+	public void setup() {
+
+		// the counter is only used when messages are sent
+		communicationManager = new CommunicationManager(BenchmarkSupport.config(null),
+				BenchmarkSupport.silentLogger(), null);
+
+		objectIds = new String[OBJECTS];
+		for (int i = 0; i < OBJECTS; i++) {
+			objectIds[i] = "object-" + i;
+		}
+	}
+
+
+	@Benchmark
+	public boolean lookup() {
+
+		// the key set shares the lock of the pool
+		return communicationManager.getConnectionList().contains(
+				objectIds[ThreadLocalRandom.current().nextInt(OBJECTS)]);
+	}
+
+
+	@Benchmark
+	public boolean isConnected() {
+
+		return communicationManager.isConnected(objectIds[ThreadLocalRandom.current().nextInt(OBJECTS)]);
+	}
+
+
+	@Benchmark
+	public boolean verifyPassword() {
+
+		return communicationManager.verifyPassword(objectIds[ThreadLocalRandom.current().nextInt(OBJECTS)],
+				"password");
+	}
+
+
+	@Benchmark
+	@Threads(1)
+	public boolean lookupAlone() {
+		return lookup();
+	}
+
+
+	@Benchmark
+	@Threads(1)
+	public boolean isConnectedAlone() {
+		return isConnected();
+	}
+
+
+	@Benchmark
+	@Threads(1)
+	public boolean verifyPasswordAlone() {
+		return verifyPassword();
+	}
+}
@@ -0,0 +1,105 @@
+package eu.bavenir.ogwapi.benchmarks;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import eu.bavenir.ogwapi.commons.EventChannel;
+
+/**
+ * Iteration over the subscribers of an {@link EventChannel EventChannel}, done for every event published. Measured
+ * alone, and while other objects keep subscribing and unsubscribing - the set of subscribers is synchronised, so
+ * the two compete for its lock. The concurrent case iterates over the array snapshot, iterating the set itself while
+ * it changes is not safe.
+ *
+ * @author sulfo
+ *
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class EventChannelBenchmark {
+
+	/**
+	 * Number of subscribers of the channel.
+	 */
+	@Param({"10", "1000"})
+	public int subscribers;
+
+	private EventChannel eventChannel;
+
+	private String churningSubscriber;
+
+	private boolean subscribed;
+
+
+	@Setup
+	public void setup() {
+
+		Set<String> subscriberSet = new HashSet<String>();
+		for (int i = 0; i < subscribers; i++) {
+			subscriberSet.add("subscriber-" + i);
+		}
+
+		eventChannel = new EventChannel(BenchmarkSupport.SOURCE_OID, BenchmarkSupport.EVENT_ID, true, 1,
+				subscriberSet);
+
+		churningSubscriber = "subscriber-" + subscribers;
+		subscribed = false;
+	}
+
+
+	@Benchmark
+	@Group("alone")
+	public void iterateSubscribers(Blackhole blackhole) {
+
+		for (String destinationOid : eventChannel.getSubscribersSet()) {
+			blackhole.consume(destinationOid);
+		}
+	}
+
+
+	@Benchmark
+	@Group("withChurn")
+	@GroupThreads(3)
+	public void iterateSnapshot(Blackhole blackhole) {
+
+		for (String destinationOid : eventChannel.getSubscribersArray()) {
+			blackhole.consume(destinationOid);
+		}
+	}
+
+
+	@Benchmark
+	@Group("withChurn")
+	@GroupThreads(1)
+	public void churn() {
+
+		// only this thread touches the flag
+		if (subscribed) {
+			eventChannel.removeFromSubscribers(churningSubscriber);
+		} else {
+			eventChannel.addToSubscribers(churningSubscriber);
+		}
+
+		subscribed = !subscribed;
+	}
+}
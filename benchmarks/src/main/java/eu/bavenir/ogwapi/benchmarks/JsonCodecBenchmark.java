@@ -0,0 +1,124 @@
+package eu.bavenir.ogwapi.benchmarks;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.concurrent.TimeUnit;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+import javax.json.stream.JsonGenerator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import eu.bavenir.ogwapi.commons.JsonCodec;
+
+/**
+ * The shared factories of {@link JsonCodec JsonCodec} against the static Json.create* methods, which look the provider
+ * up for every call. Each pair does the same work on a small object the size of a status message: building it,
+ * reading it from a string and writing it with a generator.
+ *
+ * @author sulfo
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class JsonCodecBenchmark {
+
+	private String json;
+
+
+	@Setup
+	public void setup() {
+		json = buildCodec().toString();
+	}
+
+
+	@Benchmark
+	public JsonObject buildJson() {
+
+		return Json.createObjectBuilder()
+				.add("error", false)
+				.add("statusCode", 200)
+				.add("statusCodeReason", "OK")
+				.add("contentType", "application/json")
+				.add("message", Json.createArrayBuilder().add(BenchmarkSupport.PROPERTY_VALUE))
+				.build();
+	}
+
+
+	@Benchmark
+	public JsonObject buildCodec() {
+
+		return JsonCodec.createObjectBuilder()
+				.add("error", false)
+				.add("statusCode", 200)
+				.add("statusCodeReason", "OK")
+				.add("contentType", "application/json")
+				.add("message", JsonCodec.createArrayBuilder().add(BenchmarkSupport.PROPERTY_VALUE))
+				.build();
+	}
+
+
+	@Benchmark
+	public JsonObject readJson() {
+
+		try (JsonReader reader = Json.createReader(new StringReader(json))) {
+			return reader.readObject();
+		}
+	}
+
+
+	@Benchmark
+	public JsonObject readCodec() {
+		return JsonCodec.readObject(json);
+	}
+
+
+	@Benchmark
+	public String generateJson() {
+
+		StringWriter writer = new StringWriter(256);
+		generate(Json.createGenerator(writer));
+
+		return writer.toString();
+	}
+
+
+	@Benchmark
+	public String generateCodec() {
+
+		StringWriter writer = new StringWriter(256);
+		generate(JsonCodec.createGenerator(writer));
+
+		return writer.toString();
+	}
+
+
+	private void generate(JsonGenerator generator) {
+
+		generator.writeStartObject()
+				.write("error", false)
+				.write("statusCode", 200)
+				.write("statusCodeReason", "OK")
+				.write("contentType", "application/json")
+				.writeStartArray("message")
+				.write(BenchmarkSupport.PROPERTY_VALUE)
+				.writeEnd()
+				.writeEnd()
+				.close();
+	}
+}
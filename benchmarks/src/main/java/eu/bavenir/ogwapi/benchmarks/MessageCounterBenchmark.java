@@ -0,0 +1,145 @@
+package eu.bavenir.ogwapi.benchmarks;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.configuration2.XMLConfiguration;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import eu.bavenir.ogwapi.commons.GatewayScheduler;
+import eu.bavenir.ogwapi.commons.monitoring.CounterRingBuffer;
+import eu.bavenir.ogwapi.commons.monitoring.MessageCounter;
+
+/**
+ * {@link MessageCounter#addMessage(int, int, String, String, Boolean, String, int) MessageCounter.addMessage}, called
+ * for every message sent or received, from many threads at once.
+ *
+ * The counter is drained by its drainer thread once a second, much slower than the threads here write into it, so
+ * after the first milliseconds of each run {@link #addMessage() addMessage} measures the overload path - the default
+ * 'drop' policy counting the records that did not fit. The 'block' policy would measure the spooling instead. The
+ * spooling runs meanwhile as it would in the gateway, the uploads fail right away, the Neighbourhood Manager is
+ * pointed to a closed port.
+ *
+ * The path of the records that do fit is measured on the {@link CounterRingBuffer CounterRingBuffer} alone, with a
+ * reader draining it continuously.
+ *
+ * Both are measured from a single thread too ('counterAlone' and 'ringBufferAlone', where the writer drains its own
+ * record), which is what a machine with few cores can compare against a baseline - the other groups need a core per
+ * thread.
+ *
+ * @author sulfo
+ *
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+public class MessageCounterBenchmark {
+
+	/**
+	 * Mode of the counter, a record per message or aggregated statistics.
+	 */
+	@Param({"records", "aggregated"})
+	public String mode;
+
+	private File dataDirectory;
+
+	private MessageCounter messageCounter;
+
+	private CounterRingBuffer buffer;
+
+	private CounterRingBuffer.RecordVisitor discard;
+
+
+	@Setup
+	public void setup() {
+
+		dataDirectory = BenchmarkSupport.createDataDirectory();
+
+		XMLConfiguration config = BenchmarkSupport.config(dataDirectory);
+		config.addProperty("messageCounter.mode", mode);
+
+		GatewayScheduler.initialize(config, BenchmarkSupport.silentLogger());
+
+		messageCounter = new MessageCounter(config, BenchmarkSupport.silentLogger());
+
+		buffer = new CounterRingBuffer(65536);
+		discard = (requestId, recordType, sourceOid, destinationOid, reqInitiator, messageType, messageSize,
+				timestamp, latency) -> {};
+	}
+
+
+	@TearDown
+	public void tearDown() {
+
+		messageCounter.saveCounters();
+
+		BenchmarkSupport.deleteDataDirectory(dataDirectory);
+	}
+
+
+	@Benchmark
+	@Group("counter")
+	@GroupThreads(4)
+	public void addMessage() {
+
+		messageCounter.addMessage(1, MessageCounter.RECORDTYPE_INT_OK, BenchmarkSupport.SOURCE_OID,
+				BenchmarkSupport.DESTINATION_OID, true, "GETPROPERTYVALUE", 512, 3);
+	}
+
+
+	@Benchmark
+	@Group("counterAlone")
+	@GroupThreads(1)
+	public void addMessageAlone() {
+
+		messageCounter.addMessage(1, MessageCounter.RECORDTYPE_INT_OK, BenchmarkSupport.SOURCE_OID,
+				BenchmarkSupport.DESTINATION_OID, true, "GETPROPERTYVALUE", 512, 3);
+	}
+
+
+	@Benchmark
+	@Group("ringBuffer")
+	@GroupThreads(4)
+	public boolean offer() {
+
+		return buffer.offer(1, MessageCounter.RECORDTYPE_INT_OK, BenchmarkSupport.SOURCE_OID,
+				BenchmarkSupport.DESTINATION_OID, true, "GETPROPERTYVALUE", 512, 0, 3);
+	}
+
+
+	@Benchmark
+	@Group("ringBuffer")
+	@GroupThreads(1)
+	public int drain() {
+
+		return buffer.drain(discard, Integer.MAX_VALUE);
+	}
+
+
+	@Benchmark
+	@Group("ringBufferAlone")
+	@GroupThreads(1)
+	public int offerAndDrain() {
+
+		buffer.offer(1, MessageCounter.RECORDTYPE_INT_OK, BenchmarkSupport.SOURCE_OID, BenchmarkSupport.DESTINATION_OID,
+				true, "GETPROPERTYVALUE", 512, 0, 3);
+
+		return buffer.drain(discard, Integer.MAX_VALUE);
+	}
+}
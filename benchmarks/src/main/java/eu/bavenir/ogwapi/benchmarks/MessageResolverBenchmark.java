@@ -0,0 +1,125 @@
+package eu.bavenir.ogwapi.benchmarks;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.configuration2.XMLConfiguration;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import eu.bavenir.ogwapi.commons.messages.CodesAndReasons;
+import eu.bavenir.ogwapi.commons.messages.MessageResolver;
+import eu.bavenir.ogwapi.commons.messages.NetworkMessage;
+import eu.bavenir.ogwapi.commons.messages.NetworkMessageEvent;
+import eu.bavenir.ogwapi.commons.messages.NetworkMessageRequest;
+import eu.bavenir.ogwapi.commons.messages.NetworkMessageResponse;
+import eu.bavenir.ogwapi.commons.messages.StatusMessage;
+
+/**
+ * {@link MessageResolver#resolveNetworkMessage(String) resolveNetworkMessage} - the first thing that happens with
+ * every message arriving from the network. Measured with all the messages read, and with the responses nobody waits
+ * for rejected by a {@link MessageResolver.HeaderFilter HeaderFilter}, the way the
+ * {@link eu.bavenir.ogwapi.commons.ConnectionDescriptor ConnectionDescriptor} drops them.
+ *
+ * @author sulfo
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class MessageResolverBenchmark {
+
+	/**
+	 * Kind of the message resolved.
+	 */
+	@Param({"request", "response", "event"})
+	public String messageType;
+
+	/**
+	 * Size of the message body, in bytes.
+	 */
+	@Param({"64", "4096", "65536"})
+	public int bodySize;
+
+	private MessageResolver resolver;
+
+	private String message;
+
+	private MessageResolver.HeaderFilter rejectResponses;
+
+
+	@Setup
+	public void setup() {
+
+		XMLConfiguration config = BenchmarkSupport.config(null);
+
+		resolver = new MessageResolver(config, BenchmarkSupport.silentLogger());
+
+		String body = BenchmarkSupport.body(bodySize);
+
+		switch (messageType) {
+
+		case "request":
+			NetworkMessageRequest request = new NetworkMessageRequest(config, BenchmarkSupport.silentLogger());
+			Map<String, String> attributes = new HashMap<String, String>();
+			attributes.put(NetworkMessageRequest.ATTR_PID, BenchmarkSupport.PROPERTY_ID);
+			request.setRequestOperation(NetworkMessageRequest.OPERATION_SETPROPERTYVALUE);
+			request.setSourceOid(BenchmarkSupport.SOURCE_OID);
+			request.setDestinationOid(BenchmarkSupport.DESTINATION_OID);
+			request.setAttributes(attributes);
+			request.setParameters(BenchmarkSupport.parameters());
+			request.setRequestBody(body);
+			message = request.buildMessageString();
+			break;
+
+		case "response":
+			NetworkMessageResponse response = new NetworkMessageResponse(config, BenchmarkSupport.silentLogger(),
+					false, CodesAndReasons.CODE_200_OK, CodesAndReasons.REASON_200_OK,
+					StatusMessage.CONTENTTYPE_APPLICATIONJSON, body);
+			response.setRequestId(1);
+			response.setSourceOid(BenchmarkSupport.DESTINATION_OID);
+			response.setDestinationOid(BenchmarkSupport.SOURCE_OID);
+			message = response.buildMessageString();
+			break;
+
+		case "event":
+			NetworkMessageEvent event = new NetworkMessageEvent(config, BenchmarkSupport.SOURCE_OID,
+					BenchmarkSupport.EVENT_ID, body, BenchmarkSupport.parameters(), BenchmarkSupport.silentLogger());
+			event.generateRequestId();
+			message = event.buildMessageString();
+			break;
+
+			default:
+				throw new IllegalArgumentException("Unknown message type: " + messageType);
+		}
+
+		rejectResponses = (type, requestId, sourceOid) -> type != NetworkMessageResponse.MESSAGE_TYPE;
+	}
+
+
+	@Benchmark
+	public NetworkMessage resolve() {
+
+		return resolver.resolveNetworkMessage(message);
+	}
+
+
+	@Benchmark
+	public NetworkMessage resolveFiltered() {
+
+		return resolver.resolveNetworkMessage(message, rejectResponses);
+	}
+}
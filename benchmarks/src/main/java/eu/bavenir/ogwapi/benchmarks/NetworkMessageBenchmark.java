@@ -0,0 +1,153 @@
+package eu.bavenir.ogwapi.benchmarks;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import javax.json.JsonObject;
+
+import org.apache.commons.configuration2.XMLConfiguration;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import eu.bavenir.ogwapi.commons.messages.CodesAndReasons;
+import eu.bavenir.ogwapi.commons.messages.MessageResolver;
+import eu.bavenir.ogwapi.commons.messages.NetworkMessageEvent;
+import eu.bavenir.ogwapi.commons.messages.NetworkMessageRequest;
+import eu.bavenir.ogwapi.commons.messages.NetworkMessageResponse;
+import eu.bavenir.ogwapi.commons.messages.StatusMessage;
+
+/**
+ * Building (object to string) and parsing (JSON to object) of the three kinds of network messages. Building includes
+ * the construction of the message object, the way the {@link eu.bavenir.ogwapi.commons.ConnectionDescriptor
+ * ConnectionDescriptor} does it for every message sent. Parsing starts from an already read JSON, the reading itself
+ * is measured by {@link MessageResolverBenchmark MessageResolverBenchmark}.
+ *
+ * @author sulfo
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class NetworkMessageBenchmark {
+
+	/**
+	 * Size of the request, response and event bodies, in bytes.
+	 */
+	@Param({"64", "4096", "65536"})
+	public int bodySize;
+
+	private XMLConfiguration config;
+
+	private Logger logger;
+
+	private String body;
+
+	private Map<String, String> attributes;
+
+	private Map<String, String> parameters;
+
+	private JsonObject requestJson;
+
+	private JsonObject responseJson;
+
+	private JsonObject eventJson;
+
+
+	@Setup
+	public void setup() {
+
+		config = BenchmarkSupport.config(null);
+		logger = BenchmarkSupport.silentLogger();
+
+		body = BenchmarkSupport.body(bodySize);
+
+		attributes = new HashMap<String, String>();
+		attributes.put(NetworkMessageRequest.ATTR_PID, BenchmarkSupport.PROPERTY_ID);
+
+		parameters = BenchmarkSupport.parameters();
+
+		MessageResolver resolver = new MessageResolver(config, logger);
+
+		requestJson = resolver.readJsonObject(buildRequest());
+		responseJson = resolver.readJsonObject(buildResponse());
+		eventJson = resolver.readJsonObject(buildEvent());
+	}
+
+
+	@Benchmark
+	public String buildRequest() {
+
+		NetworkMessageRequest request = new NetworkMessageRequest(config, logger);
+
+		request.setRequestOperation(NetworkMessageRequest.OPERATION_SETPROPERTYVALUE);
+		request.setSourceOid(BenchmarkSupport.SOURCE_OID);
+		request.setDestinationOid(BenchmarkSupport.DESTINATION_OID);
+		request.setAttributes(attributes);
+		request.setParameters(parameters);
+		request.setRequestBody(body);
+
+		return request.buildMessageString();
+	}
+
+
+	@Benchmark
+	public String buildResponse() {
+
+		NetworkMessageResponse response = new NetworkMessageResponse(config, logger, false,
+				CodesAndReasons.CODE_200_OK, CodesAndReasons.REASON_200_OK, StatusMessage.CONTENTTYPE_APPLICATIONJSON,
+				body);
+
+		response.setRequestId(1);
+		response.setSourceOid(BenchmarkSupport.DESTINATION_OID);
+		response.setDestinationOid(BenchmarkSupport.SOURCE_OID);
+
+		return response.buildMessageString();
+	}
+
+
+	@Benchmark
+	public String buildEvent() {
+
+		NetworkMessageEvent event = new NetworkMessageEvent(config, BenchmarkSupport.SOURCE_OID,
+				BenchmarkSupport.EVENT_ID, body, parameters, logger);
+
+		event.generateRequestId();
+
+		return event.buildMessageString();
+	}
+
+
+	@Benchmark
+	public NetworkMessageRequest parseRequest() {
+
+		return new NetworkMessageRequest(requestJson, config, logger);
+	}
+
+
+	@Benchmark
+	public NetworkMessageResponse parseResponse() {
+
+		return new NetworkMessageResponse(responseJson, config, logger);
+	}
+
+
+	@Benchmark
+	public NetworkMessageEvent parseEvent() {
+
+		return new NetworkMessageEvent(eventJson, config, logger);
+	}
+}
@@ -0,0 +1,102 @@
+package eu.bavenir.ogwapi.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import eu.bavenir.ogwapi.commons.messages.AcceptedEncodings;
+import eu.bavenir.ogwapi.commons.messages.PayloadCompression;
+
+/**
+ * Compression and decompression of a message by {@link PayloadCompression PayloadCompression}. The message is an
+ * array of readings with random values, which compresses about as well as real property values and thing
+ * descriptions do - unlike the bodies of {@link BenchmarkSupport#body(int) BenchmarkSupport}, which are a repeated
+ * alphabet. Messages below the threshold (2048 characters by default) pass through untouched, so the smallest size
+ * measures only the check.
+ *
+ * @author sulfo
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class PayloadCompressionBenchmark {
+
+	/**
+	 * Size of the message, in characters.
+	 */
+	@Param({"1024", "16384", "262144"})
+	public int messageSize;
+
+	private PayloadCompression compression;
+
+	private String message;
+
+	private String compressed;
+
+
+	@Setup
+	public void setup() {
+
+		compression = new PayloadCompression(BenchmarkSupport.config(null), BenchmarkSupport.silentLogger());
+
+		// the destination announced it accepts compressed messages, and so did the source
+		AcceptedEncodings.record(BenchmarkSupport.DESTINATION_OID, PayloadCompression.ENCODING_DEFLATE);
+		AcceptedEncodings.record(BenchmarkSupport.SOURCE_OID, PayloadCompression.ENCODING_DEFLATE);
+
+		message = readings(messageSize);
+		compressed = compress();
+	}
+
+
+	@Benchmark
+	public String compress() {
+		return compression.compress(BenchmarkSupport.DESTINATION_OID, message);
+	}
+
+
+	@Benchmark
+	public String decompress() {
+		return compression.decompress(BenchmarkSupport.SOURCE_OID, compressed);
+	}
+
+
+	/**
+	 * Builds a JSON array of timestamped readings with random values.
+	 */
+	private static String readings(int size) {
+
+		Random random = new Random(42);
+		StringBuilder readings = new StringBuilder(size + 64);
+		long timestamp = 1602000000000L;
+
+		readings.append("{\"values\":[");
+
+		while (readings.length() < size - 2) {
+			if (readings.charAt(readings.length() - 1) != '[') {
+				readings.append(',');
+			}
+
+			timestamp += 1000 + random.nextInt(100);
+			readings.append("{\"t\":").append(timestamp)
+					.append(",\"value\":").append(random.nextInt(100000) / 100.0)
+					.append(",\"unit\":\"Cel\"}");
+		}
+
+		return readings.append("]}").toString();
+	}
+}
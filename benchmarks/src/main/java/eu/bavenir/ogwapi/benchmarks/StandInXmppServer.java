@@ -0,0 +1,242 @@
+package eu.bavenir.ogwapi.benchmarks;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/*
+ * STRUCTURE:
+ * - constants
+ * - fields
+ * - public methods
+ * - private methods
+ */
+
+/**
+ * Stand-in for the client port of an XMPP server, just enough for a Smack client to log in without encryption - SASL
+ * PLAIN with any password, resource binding and a roster that holds one contact. After that it only counts the
+ * messages it receives, they are not delivered anywhere. Every connection is served by a thread of its own.
+ *
+ * @author sulfo
+ *
+ */
+public class StandInXmppServer {
+
+	/* === CONSTANTS === */
+
+	private static final String STREAM_HEADER = "<?xml version='1.0'?><stream:stream "
+			+ "xmlns='jabber:client' xmlns:stream='http://etherx.jabber.org/streams' version='1.0' ";
+
+	private static final String SASL_FEATURES = "<stream:features><mechanisms "
+			+ "xmlns='urn:ietf:params:xml:ns:xmpp-sasl'><mechanism>PLAIN</mechanism></mechanisms></stream:features>";
+
+	private static final String BIND_FEATURES = "<stream:features><bind xmlns='urn:ietf:params:xml:ns:xmpp-bind'/>"
+			+ "</stream:features>";
+
+	private static final Pattern ATTRIBUTE_ID = Pattern.compile("\\sid=['\"]([^'\"]*)['\"]");
+
+	private static final Pattern ELEMENT_RESOURCE = Pattern.compile("<resource>([^<]*)</resource>");
+
+
+	/* === FIELDS === */
+
+	private final String domain;
+
+	private final String contact;
+
+	private final ServerSocket serverSocket;
+
+	private final AtomicLong messages;
+
+
+	/* === PUBLIC METHODS === */
+
+	/**
+	 * Starts listening on a free local port.
+	 *
+	 * @param domain XMPP domain of the server.
+	 * @param contact Bare JID of the only contact in every roster.
+	 * @throws IOException If the port can't be opened.
+	 */
+	public StandInXmppServer(String domain, String contact) throws IOException {
+
+		this.domain = domain;
+		this.contact = contact;
+
+		serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+		messages = new AtomicLong(0);
+
+		Thread acceptor = new Thread(() -> acceptClients(), "standin-xmpp-server");
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+
+	public int getPort() {
+		return serverSocket.getLocalPort();
+	}
+
+
+	/**
+	 * Number of message stanzas received so far, from all connections.
+	 */
+	public long getMessages() {
+		return messages.get();
+	}
+
+
+	public void close() throws IOException {
+		serverSocket.close();
+	}
+
+
+	/* === PRIVATE METHODS === */
+
+	private void acceptClients() {
+
+		while (!serverSocket.isClosed()) {
+			try {
+				Socket socket = serverSocket.accept();
+
+				Thread session = new Thread(() -> serve(socket), "standin-xmpp-session");
+				session.setDaemon(true);
+				session.start();
+
+			} catch (IOException e) {
+				// closed
+			}
+		}
+	}
+
+
+	private void serve(Socket socket) {
+
+		try (Socket client = socket) {
+
+			Reader reader = new BufferedReader(new InputStreamReader(client.getInputStream(), StandardCharsets.UTF_8));
+			OutputStream out = client.getOutputStream();
+
+			String user = "user";
+			int streamId = 0;
+			boolean authenticated = false;
+			String element;
+
+			while ((element = nextElement(reader)) != null) {
+
+				if (element.startsWith("<stream:stream")) {
+					write(out, STREAM_HEADER + "from='" + domain + "' id='s" + streamId++ + "'>"
+							+ (authenticated ? BIND_FEATURES : SASL_FEATURES));
+
+				} else if (element.startsWith("<auth")) {
+					authenticated = true;
+					write(out, "<success xmlns='urn:ietf:params:xml:ns:xmpp-sasl'/>");
+
+				} else if (element.startsWith("<message")) {
+					messages.incrementAndGet();
+
+				} else if (element.startsWith("<iq")) {
+					String id = find(ATTRIBUTE_ID, element, "");
+
+					if (element.contains("urn:ietf:params:xml:ns:xmpp-bind")) {
+						String jid = user + "@" + domain + "/" + find(ELEMENT_RESOURCE, element, "r");
+						write(out, "<iq type='result' id='" + id + "' to='" + jid + "'><bind "
+								+ "xmlns='urn:ietf:params:xml:ns:xmpp-bind'><jid>" + jid + "</jid></bind></iq>");
+
+					} else if (element.contains("jabber:iq:roster") && element.contains("type='get'")
+							|| element.contains("jabber:iq:roster") && element.contains("type=\"get\"")) {
+						write(out, "<iq type='result' id='" + id + "'><query xmlns='jabber:iq:roster'><item jid='"
+								+ contact + "' subscription='both'/></query></iq>");
+
+					} else if (!element.contains("type='result'") && !element.contains("type=\"result\"")) {
+						write(out, "<iq type='result' id='" + id + "'/>");
+					}
+
+				} else if (element.startsWith("</stream:stream")) {
+					write(out, "</stream:stream>");
+					return;
+				}
+			}
+
+		} catch (IOException e) {
+			// the client went away
+		}
+	}
+
+
+	/**
+	 * Reads the next top level element of the stream, or the opening or closing tag of the stream itself. Attribute
+	 * values and texts written by Smack never hold an unescaped angle bracket, so counting the tags is enough.
+	 */
+	private String nextElement(Reader reader) throws IOException {
+
+		StringBuilder element = new StringBuilder(256);
+		int depth = 0;
+		int c;
+
+		while ((c = reader.read()) >= 0) {
+
+			if (c != '<') {
+				if (depth > 0) {
+					element.append((char) c);
+				}
+				continue;
+			}
+
+			int tagStart = element.length();
+			element.append('<');
+			while ((c = reader.read()) >= 0 && c != '>') {
+				element.append((char) c);
+			}
+			if (c < 0) {
+				return null;
+			}
+			element.append('>');
+
+			String tag = element.substring(tagStart);
+
+			if (tag.startsWith("<?")) {
+				element.setLength(tagStart);
+				continue;
+			}
+
+			if (depth == 0 && (tag.startsWith("<stream:stream") || tag.startsWith("</stream:stream"))) {
+				return tag;
+			}
+
+			if (tag.startsWith("</")) {
+				depth--;
+			} else if (!tag.endsWith("/>")) {
+				depth++;
+			}
+
+			if (depth == 0) {
+				return element.toString();
+			}
+		}
+
+		return null;
+	}
+
+
+	private String find(Pattern pattern, String element, String defaultValue) {
+
+		Matcher matcher = pattern.matcher(element);
+		return matcher.find() ? matcher.group(1) : defaultValue;
+	}
+
+
+	private void write(OutputStream out, String data) throws IOException {
+
+		out.write(data.getBytes(StandardCharsets.UTF_8));
+		out.flush();
+	}
+}
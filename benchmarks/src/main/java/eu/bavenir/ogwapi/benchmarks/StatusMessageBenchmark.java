@@ -0,0 +1,67 @@
+package eu.bavenir.ogwapi.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.json.JsonObject;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import eu.bavenir.ogwapi.commons.JsonCodec;
+import eu.bavenir.ogwapi.commons.messages.CodesAndReasons;
+import eu.bavenir.ogwapi.commons.messages.StatusMessage;
+
+/**
+ * {@link StatusMessage#buildMessage() StatusMessage.buildMessage} - every REST call ends with one. The status message
+ * carries the value returned by the remote object, or several of them for the listings, and is serialised for the
+ * response right away.
+ *
+ * @author sulfo
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class StatusMessageBenchmark {
+
+	/**
+	 * Number of JSONs in the message array.
+	 */
+	@Param({"1", "20"})
+	public int messages;
+
+	private JsonObject value;
+
+
+	@Setup
+	public void setup() {
+
+		value = JsonCodec.readObject(BenchmarkSupport.PROPERTY_VALUE);
+	}
+
+
+	@Benchmark
+	public String buildMessage() {
+
+		StatusMessage statusMessage = new StatusMessage(false, CodesAndReasons.CODE_200_OK,
+				CodesAndReasons.REASON_200_OK, StatusMessage.CONTENTTYPE_APPLICATIONJSON);
+
+		for (int i = 0; i < messages; i++) {
+			statusMessage.addMessageJson(value);
+		}
+
+		return statusMessage.buildMessage().toString();
+	}
+}
@@ -0,0 +1,108 @@
+package eu.bavenir.ogwapi.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.configuration2.XMLConfiguration;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import eu.bavenir.ogwapi.commons.engines.xmpp.XmppMessageEngine;
+
+/**
+ * Messages per second an object sends through the {@link XmppMessageEngine XmppMessageEngine} - the chat look up, the
+ * roster check and Smack serialising the stanza and writing it to the socket. The server is a
+ * {@link StandInXmppServer stand-in} on the loopback interface that only reads and counts the messages, so the figure
+ * is the upper bound of what the gateway can push into a connection, not what a real XMPP server accepts. The send
+ * queue of Smack is bounded, so a server that can't keep up slows the benchmark down as it would slow the gateway.
+ *
+ * @author sulfo
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class XmppSendBenchmark {
+
+	/**
+	 * XMPP domain of the stand-in server.
+	 */
+	private static final String DOMAIN = "benchmark.example";
+
+	/**
+	 * How long to wait for the roster after the login, in milliseconds.
+	 */
+	private static final long ROSTER_TIMEOUT = 5000;
+
+	/**
+	 * Size of the message body, in bytes.
+	 */
+	@Param({"64", "4096"})
+	public int bodySize;
+
+	private StandInXmppServer server;
+
+	private XmppMessageEngine engine;
+
+	private String body;
+
+
+	@Setup
+	public void setup() throws IOException, InterruptedException {
+
+		server = new StandInXmppServer(DOMAIN, BenchmarkSupport.DESTINATION_OID + "@" + DOMAIN);
+
+		XMLConfiguration config = BenchmarkSupport.config(null);
+		config.addProperty("general.server", "localhost");
+		config.addProperty("general.port", server.getPort());
+		config.addProperty("general.encryption", false);
+		config.addProperty("xmpp.domain", DOMAIN);
+
+		engine = new XmppMessageEngine(BenchmarkSupport.SOURCE_OID, "password", config,
+				BenchmarkSupport.silentLogger(), null);
+
+		if (!engine.connect()) {
+			throw new IllegalStateException("Could not log in to the stand-in XMPP server.");
+		}
+
+		body = BenchmarkSupport.body(bodySize);
+
+		// the roster arrives right after the login, messages sent before that would only be queued
+		long deadline = System.currentTimeMillis() + ROSTER_TIMEOUT;
+		while (!engine.getRoster().contains(BenchmarkSupport.DESTINATION_OID)) {
+
+			if (System.currentTimeMillis() > deadline) {
+				throw new IllegalStateException("The contact is not in the roster.");
+			}
+
+			Thread.sleep(10);
+		}
+	}
+
+
+	@TearDown
+	public void tearDown() throws IOException {
+
+		engine.destroy();
+		server.close();
+	}
+
+
+	@Benchmark
+	public boolean send() {
+		return engine.sendMessage(BenchmarkSupport.DESTINATION_OID, body);
+	}
+}
@@ -0,0 +1,91 @@
+package eu.bavenir.ogwapi.loadtest;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Base64;
+
+/*
+ * STRUCTURE:
+ * - constants
+ * - fields
+ * - public methods
+ */
+
+/**
+ * Client of the REST APIs of the gateways in a load test, calling them the way an Agent would - as one of the objects,
+ * with HTTP basic authentication. Thread safe, one client is shared by all load generating threads.
+ *
+ * @author sulfo
+ *
+ */
+public class ApiClient {
+
+	/* === CONSTANTS === */
+
+	/**
+	 * Password of all objects, the loopback broker in its test mode remembers it from their first login.
+	 */
+	public static final String PASSWORD = "loadtest";
+
+	/**
+	 * Timeout of a call.
+	 */
+	private static final Duration TIMEOUT = Duration.ofSeconds(60);
+
+
+	/* === FIELDS === */
+
+	/**
+	 * The HTTP client.
+	 */
+	private final HttpClient httpClient;
+
+
+	/* === PUBLIC METHODS === */
+
+	/**
+	 * Constructor.
+	 */
+	public ApiClient() {
+
+		httpClient = HttpClient.newBuilder()
+				.version(HttpClient.Version.HTTP_1_1)
+				.connectTimeout(TIMEOUT)
+				.build();
+	}
+
+
+	/**
+	 * Calls the REST API of a gateway.
+	 *
+	 * @param apiPort Port of the REST API of the gateway.
+	 * @param objectId ID of the calling object, logged in at that gateway.
+	 * @param method HTTP method.
+	 * @param path Path after /api, e.g. /objects/login.
+	 * @param body Body of the call, null for none.
+	 * @return Status code of the response.
+	 * @throws IOException If the call fails.
+	 * @throws InterruptedException If interrupted while waiting for the response.
+	 */
+	public int call(int apiPort, String objectId, String method, String path, String body)
+			throws IOException, InterruptedException {
+
+		String credentials = Base64.getEncoder().encodeToString(
+				(objectId + ":" + PASSWORD).getBytes(StandardCharsets.UTF_8));
+
+		HttpRequest request = HttpRequest.newBuilder(URI.create("http://localhost:" + apiPort + "/api" + path))
+				.timeout(TIMEOUT)
+				.header("Authorization", "Basic " + credentials)
+				.header("Content-Type", "application/json")
+				.method(method, body == null ? HttpRequest.BodyPublishers.noBody()
+						: HttpRequest.BodyPublishers.ofString(body, StandardCharsets.UTF_8))
+				.build();
+
+		return httpClient.send(request, HttpResponse.BodyHandlers.discarding()).statusCode();
+	}
+}
@@ -0,0 +1,172 @@
+package eu.bavenir.ogwapi.loadtest;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.logging.Logger;
+
+import org.apache.commons.configuration2.XMLConfiguration;
+
+import eu.bavenir.ogwapi.benchmarks.BenchmarkSupport;
+import eu.bavenir.ogwapi.commons.monitoring.MessageCounter;
+import eu.bavenir.ogwapi.restapi.RestletThread;
+
+/*
+ * STRUCTURE:
+ * - constants
+ * - fields
+ * - public methods
+ * - private methods
+ */
+
+/**
+ * One gateway of a load test, started the way App starts it - a {@link MessageCounter MessageCounter} and the REST API
+ * in a {@link RestletThread RestletThread}, with its own port and data directory. The objects are connected through
+ * the loopback engine, so all gateways in the JVM can reach each other's objects, and call the shared mock Agent.
+ *
+ * @author sulfo
+ *
+ */
+public class GatewayInstance {
+
+	/* === CONSTANTS === */
+
+	/**
+	 * How long to wait for the REST API to start listening, in milliseconds.
+	 */
+	private static final long START_TIMEOUT = 30000;
+
+
+	/* === FIELDS === */
+
+	/**
+	 * Port of the REST API.
+	 */
+	private final int apiPort;
+
+	/**
+	 * Data directory of the gateway.
+	 */
+	private final File dataDirectory;
+
+	/**
+	 * Message counter of the gateway.
+	 */
+	private final MessageCounter messageCounter;
+
+	/**
+	 * The REST API.
+	 */
+	private final RestletThread restletThread;
+
+
+	/* === PUBLIC METHODS === */
+
+	/**
+	 * Constructor, creates the configuration of the gateway. The network parameters are given to the loopback broker
+	 * by the first gateway started.
+	 *
+	 * @param apiPort Port of the REST API.
+	 * @param agentPort Port of the mock Agent.
+	 * @param latency Latency of the network in milliseconds.
+	 * @param jitter Jitter of the network in milliseconds.
+	 * @param loss Share of messages lost by the network in percent.
+	 * @param logger Logger of the gateway.
+	 */
+	public GatewayInstance(int apiPort, int agentPort, long latency, long jitter, double loss, Logger logger) {
+
+		this.apiPort = apiPort;
+
+		dataDirectory = BenchmarkSupport.createDataDirectory();
+
+		XMLConfiguration config = BenchmarkSupport.config(dataDirectory);
+		config.addProperty("general.communicationEngine", "loopback");
+		// the objects of a load test are not configured, they get their passwords on the first login
+		config.addProperty("loopback.testMode", true);
+		config.addProperty("loopback.roster", "open");
+		config.addProperty("loopback.latency", latency);
+		config.addProperty("loopback.jitter", jitter);
+		config.addProperty("loopback.loss", loss);
+		config.addProperty("api.port", apiPort);
+		config.addProperty("connector.restAgentConnector.agent", "localhost");
+		config.addProperty("connector.restAgentConnector.agentPort", agentPort);
+		config.addProperty("connector.restAgentConnector.healthCheckInterval", 0);
+
+		messageCounter = new MessageCounter(config, logger);
+		restletThread = new RestletThread(config, logger, messageCounter);
+	}
+
+
+	/**
+	 * Starts the REST API and waits until it listens.
+	 *
+	 * @throws IOException If it does not start listening in time.
+	 */
+	public void start() throws IOException {
+
+		restletThread.start();
+
+		long deadline = System.currentTimeMillis() + START_TIMEOUT;
+
+		while (!isListening()) {
+			if (System.currentTimeMillis() > deadline) {
+				throw new IOException("REST API of the gateway on port " + apiPort + " did not start.");
+			}
+
+			try {
+				Thread.sleep(100);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while starting the gateway on port " + apiPort + ".");
+			}
+		}
+	}
+
+
+	/**
+	 * Stops the REST API, saves the counters and deletes the data directory.
+	 */
+	public void stop() {
+
+		restletThread.terminateThread();
+
+		try {
+			restletThread.join(START_TIMEOUT);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		messageCounter.saveCounters();
+
+		BenchmarkSupport.deleteDataDirectory(dataDirectory);
+	}
+
+
+	/**
+	 * Returns the port of the REST API.
+	 *
+	 * @return The port.
+	 */
+	public int getApiPort() {
+		return apiPort;
+	}
+
+
+	/* === PRIVATE METHODS === */
+
+	/**
+	 * Checks whether the REST API accepts connections.
+	 *
+	 * @return True if it does.
+	 */
+	private boolean isListening() {
+
+		try (Socket socket = new Socket()) {
+			socket.connect(new InetSocketAddress("localhost", apiPort), 1000);
+			return true;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+}
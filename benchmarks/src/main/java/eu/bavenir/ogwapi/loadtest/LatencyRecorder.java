@@ -0,0 +1,162 @@
+package eu.bavenir.ogwapi.loadtest;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * STRUCTURE:
+ * - fields
+ * - public methods
+ * - private methods
+ */
+
+/**
+ * Collects latencies of one kind of operation from many threads and reports their percentiles and the throughput.
+ * Every sample is kept, a load test of a few minutes produces at most millions of them.
+ *
+ * @author sulfo
+ *
+ */
+public class LatencyRecorder {
+
+	/* === FIELDS === */
+
+	/**
+	 * Name of the operation, used in the report.
+	 */
+	private final String name;
+
+	/**
+	 * Latencies of successful operations in nanoseconds, the first {@link #count count} are valid.
+	 */
+	private long[] samples;
+
+	/**
+	 * Number of recorded samples.
+	 */
+	private int count;
+
+	/**
+	 * Number of failed operations.
+	 */
+	private final AtomicLong errors;
+
+	/**
+	 * Whether the recorder accepts samples.
+	 */
+	private volatile boolean recording;
+
+
+	/* === PUBLIC METHODS === */
+
+	/**
+	 * Constructor.
+	 *
+	 * @param name Name of the operation.
+	 */
+	public LatencyRecorder(String name) {
+
+		this.name = name;
+
+		samples = new long[1024];
+		count = 0;
+		errors = new AtomicLong(0);
+		recording = false;
+	}
+
+
+	/**
+	 * Starts accepting samples, the ones recorded before (during the warm up) are discarded.
+	 */
+	public synchronized void start() {
+
+		count = 0;
+		errors.set(0);
+		recording = true;
+	}
+
+
+	/**
+	 * Stops accepting samples.
+	 */
+	public void stop() {
+		recording = false;
+	}
+
+
+	/**
+	 * Records a successful operation.
+	 *
+	 * @param nanos Its latency in nanoseconds.
+	 */
+	public synchronized void record(long nanos) {
+
+		if (!recording) {
+			return;
+		}
+
+		if (count == samples.length) {
+			samples = Arrays.copyOf(samples, samples.length * 2);
+		}
+
+		samples[count++] = nanos;
+	}
+
+
+	/**
+	 * Records a failed operation.
+	 */
+	public void recordError() {
+
+		if (recording) {
+			errors.incrementAndGet();
+		}
+	}
+
+
+	/**
+	 * Returns the number of successful operations recorded.
+	 * @return The number.
+	 */
+	public synchronized int getCount() {
+		return count;
+	}
+
+
+	/**
+	 * Returns a line with the number of operations, throughput and latency percentiles in milliseconds.
+	 *
+	 * @param durationSeconds How long the samples were recorded.
+	 * @return The report line.
+	 */
+	public synchronized String report(double durationSeconds) {
+
+		long[] sorted = Arrays.copyOf(samples, count);
+		Arrays.sort(sorted);
+
+		return String.format("%-18s %9d ok %7d failed %10.1f ops/s   p50 %8.2f   p90 %8.2f   p99 %8.2f   max %8.2f ms",
+				name, count, errors.get(), count / durationSeconds, percentile(sorted, 50), percentile(sorted, 90),
+				percentile(sorted, 99), count == 0 ? 0.0 : sorted[count - 1] / 1e6);
+	}
+
+
+	/* === PRIVATE METHODS === */
+
+	/**
+	 * Nearest rank percentile.
+	 *
+	 * @param sorted Sorted samples in nanoseconds.
+	 * @param percent The percentile.
+	 * @return The value in milliseconds, 0 if there are no samples.
+	 */
+	private static double percentile(long[] sorted, double percent) {
+
+		if (sorted.length == 0) {
+			return 0.0;
+		}
+
+		int rank = (int) Math.ceil(percent / 100 * sorted.length);
+
+		return sorted[Math.max(rank, 1) - 1] / 1e6;
+	}
+}
@@ -0,0 +1,502 @@
+package eu.bavenir.ogwapi.loadtest;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import eu.bavenir.ogwapi.benchmarks.BenchmarkSupport;
+import eu.bavenir.ogwapi.commons.GatewayScheduler;
+
+/*
+ * STRUCTURE:
+ * - constants
+ * - fields
+ * - public methods
+ * - private methods
+ */
+
+/**
+ * Load test of several gateways running in one JVM. The gateways talk to each other through the loopback engine,
+ * whose latency, jitter and loss can be set, and call a shared {@link MockAgent MockAgent}. The load is driven through
+ * their real REST APIs by a number of threads, each calling as a random object:
+ *
+ * properties	- reads a property of a random object on another gateway
+ * actions		- starts an action of a random object on another gateway
+ * events		- publishes an event from an object on the first gateway, to which all objects on the other gateways
+ * 				  are subscribed (fan-out), the delivery to the Agent is measured too
+ *
+ * Each scenario runs for the warm up period and then for the measured period. Latency percentiles and throughput of
+ * the REST calls (and of the event deliveries) are printed at the end.
+ *
+ * Usage: java -cp target/benchmarks.jar eu.bavenir.ogwapi.loadtest.LoadTest [name=value ...], see {@link #DEFAULTS
+ * DEFAULTS} for the parameters and their default values.
+ *
+ * @author sulfo
+ *
+ */
+public class LoadTest {
+
+	/* === CONSTANTS === */
+
+	/**
+	 * Parameters and their default values. Durations are in seconds, delays in milliseconds and loss in percent.
+	 */
+	private static final String[][] DEFAULTS = {
+			{"gateways", "2"},			// number of gateways, at least 2
+			{"objects", "4"},			// objects per gateway
+			{"threads", "16"},			// threads calling the REST APIs
+			{"warmup", "10"},			// warm up period of each scenario
+			{"duration", "30"},			// measured period of each scenario
+			{"scenarios", "properties,actions,events"},
+			{"latency", "0"},			// latency of the network
+			{"jitter", "0"},			// jitter of the network
+			{"loss", "0"},				// messages lost by the network
+			{"agentDelay", "0"},		// delay of the Agent answers
+			{"agentJitter", "0"},		// jitter of the Agent answers
+			{"agentScript", ""},		// file with additional Agent rules, see MockAgent
+			{"apiPort", "18181"},		// port of the first gateway, the others follow
+			{"agentPort", "18180"},		// port of the mock Agent
+	};
+
+	/**
+	 * Property read by the properties scenario.
+	 */
+	private static final String PROPERTY_ID = BenchmarkSupport.PROPERTY_ID;
+
+	/**
+	 * Action started by the actions scenario.
+	 */
+	private static final String ACTION_ID = "switch";
+
+	/**
+	 * Event published by the events scenario.
+	 */
+	private static final String EVENT_ID = BenchmarkSupport.EVENT_ID;
+
+
+	/* === FIELDS === */
+
+	/**
+	 * The parameters.
+	 */
+	private final Map<String, String> parameters;
+
+	/**
+	 * The REST client.
+	 */
+	private final ApiClient client;
+
+	/**
+	 * The gateways.
+	 */
+	private final List<GatewayInstance> gateways;
+
+	/**
+	 * Object IDs per gateway.
+	 */
+	private final List<List<String>> objects;
+
+	/**
+	 * Recorder of event deliveries, filled by the Agent.
+	 */
+	private final LatencyRecorder eventDeliveries;
+
+
+	/* === PUBLIC METHODS === */
+
+	/**
+	 * Entry point.
+	 *
+	 * @param args Parameters as name=value.
+	 * @throws Exception If the test can not be set up.
+	 */
+	public static void main(String[] args) throws Exception {
+
+		Map<String, String> parameters = new LinkedHashMap<String, String>();
+		for (String[] parameter : DEFAULTS) {
+			parameters.put(parameter[0], parameter[1]);
+		}
+
+		for (String arg : args) {
+			int separator = arg.indexOf('=');
+			if (separator < 0 || !parameters.containsKey(arg.substring(0, separator))) {
+				System.err.println("Unknown parameter '" + arg + "'. Parameters and defaults: " + parameters);
+				System.exit(2);
+			}
+			parameters.put(arg.substring(0, separator), arg.substring(separator + 1));
+		}
+
+		if (Integer.parseInt(parameters.get("gateways")) < 2) {
+			System.err.println("At least 2 gateways are needed.");
+			System.exit(2);
+		}
+
+		System.out.println("Load test " + parameters);
+
+		new LoadTest(parameters).run();
+
+		// the REST servers do not always let the JVM end
+		System.exit(0);
+	}
+
+
+	/**
+	 * Constructor.
+	 *
+	 * @param parameters The parameters.
+	 */
+	public LoadTest(Map<String, String> parameters) {
+
+		this.parameters = parameters;
+
+		client = new ApiClient();
+		gateways = new ArrayList<GatewayInstance>();
+		objects = new ArrayList<List<String>>();
+		eventDeliveries = new LatencyRecorder("event delivery");
+	}
+
+
+	/**
+	 * Starts the Agent and the gateways, logs the objects in, runs the scenarios and shuts everything down.
+	 *
+	 * @throws Exception If the test can not be set up.
+	 */
+	public void run() throws Exception {
+
+		Logger logger = BenchmarkSupport.silentLogger();
+
+		GatewayScheduler.initialize(BenchmarkSupport.config(null), logger);
+
+		MockAgent agent = new MockAgent(intParameter("agentPort"), longParameter("agentDelay"),
+				longParameter("agentJitter"), eventDeliveries);
+		if (!parameters.get("agentScript").isEmpty()) {
+			agent.loadScript(Paths.get(parameters.get("agentScript")));
+		}
+		agent.start();
+
+		try {
+			startGateways(logger);
+			logIn();
+
+			for (String scenario : parameters.get("scenarios").split(",")) {
+				switch (scenario.trim()) {
+				case "properties":
+					runScenario(new LatencyRecorder("property read"), this::readProperty, false);
+					break;
+
+				case "actions":
+					runScenario(new LatencyRecorder("action start"), this::startAction, false);
+					break;
+
+				case "events":
+					subscribe();
+					runScenario(new LatencyRecorder("event publish"), this::publishEvent, true);
+					break;
+
+				default:
+					System.err.println("Unknown scenario '" + scenario + "', skipped.");
+				}
+			}
+
+			logOut();
+
+		} finally {
+			for (GatewayInstance gateway : gateways) {
+				gateway.stop();
+			}
+			agent.stop();
+			GatewayScheduler.shutdown();
+		}
+	}
+
+
+	/* === PRIVATE METHODS === */
+
+	/**
+	 * Starts the gateways and names their objects.
+	 *
+	 * @param logger Logger of the gateways.
+	 * @throws IOException If a gateway does not start.
+	 */
+	private void startGateways(Logger logger) throws IOException {
+
+		for (int g = 0; g < intParameter("gateways"); g++) {
+
+			GatewayInstance gateway = new GatewayInstance(intParameter("apiPort") + g, intParameter("agentPort"),
+					longParameter("latency"), longParameter("jitter"), Double.parseDouble(parameters.get("loss")),
+					logger);
+			gateway.start();
+			gateways.add(gateway);
+
+			List<String> gatewayObjects = new ArrayList<String>();
+			for (int i = 0; i < intParameter("objects"); i++) {
+				gatewayObjects.add("gateway" + g + "-object" + i);
+			}
+			objects.add(gatewayObjects);
+		}
+	}
+
+
+	/**
+	 * Logs all objects in at their gateways.
+	 *
+	 * @throws Exception If an object can not be logged in.
+	 */
+	private void logIn() throws Exception {
+
+		for (int g = 0; g < gateways.size(); g++) {
+			for (String objectId : objects.get(g)) {
+				expectSuccess(client.call(gateways.get(g).getApiPort(), objectId, "GET", "/objects/login", null),
+						"Login of " + objectId);
+			}
+		}
+	}
+
+
+	/**
+	 * Logs all objects out.
+	 *
+	 * @throws Exception If the call fails.
+	 */
+	private void logOut() throws Exception {
+
+		for (int g = 0; g < gateways.size(); g++) {
+			for (String objectId : objects.get(g)) {
+				client.call(gateways.get(g).getApiPort(), objectId, "GET", "/objects/logout", null);
+			}
+		}
+	}
+
+
+	/**
+	 * Opens the event channels of the objects on the first gateway and subscribes all other objects to them.
+	 *
+	 * @throws Exception If it can not be done.
+	 */
+	private void subscribe() throws Exception {
+
+		for (String publisher : objects.get(0)) {
+			expectSuccess(client.call(gateways.get(0).getApiPort(), publisher, "POST", "/events/" + EVENT_ID, null),
+					"Activation of the event channel of " + publisher);
+		}
+
+		for (int g = 1; g < gateways.size(); g++) {
+			for (String subscriber : objects.get(g)) {
+				for (String publisher : objects.get(0)) {
+					expectSuccess(client.call(gateways.get(g).getApiPort(), subscriber, "POST",
+							"/objects/" + publisher + "/events/" + EVENT_ID, null),
+							"Subscription of " + subscriber + " to " + publisher);
+				}
+			}
+		}
+	}
+
+
+	/**
+	 * Runs a scenario - the threads call the operation over and over for the warm up and the measured period, then
+	 * the results are printed.
+	 *
+	 * @param recorder Recorder of the operation.
+	 * @param operation The operation.
+	 * @param eventScenario Whether the operation publishes events, so their deliveries are reported too.
+	 * @throws InterruptedException If interrupted while waiting for the threads.
+	 */
+	private void runScenario(LatencyRecorder recorder, Operation operation, boolean eventScenario)
+			throws InterruptedException {
+
+		int threads = intParameter("threads");
+		long warmupMillis = longParameter("warmup") * 1000;
+		long durationMillis = longParameter("duration") * 1000;
+
+		long start = System.currentTimeMillis();
+		long end = start + warmupMillis + durationMillis;
+
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+
+		for (int t = 0; t < threads; t++) {
+			executor.execute(() -> {
+				while (System.currentTimeMillis() < end) {
+
+					long callStart = System.nanoTime();
+					boolean success;
+					try {
+						success = operation.call();
+					} catch (IOException e) {
+						success = false;
+					} catch (InterruptedException e) {
+						return;
+					}
+
+					if (success) {
+						recorder.record(System.nanoTime() - callStart);
+					} else {
+						recorder.recordError();
+					}
+				}
+			});
+		}
+
+		Thread.sleep(warmupMillis);
+		recorder.start();
+		eventDeliveries.start();
+
+		Thread.sleep(durationMillis);
+		recorder.stop();
+		eventDeliveries.stop();
+
+		executor.shutdown();
+		executor.awaitTermination(1, TimeUnit.MINUTES);
+
+		System.out.println(recorder.report(durationMillis / 1000.0));
+
+		if (eventScenario) {
+			System.out.println(eventDeliveries.report(durationMillis / 1000.0));
+		}
+	}
+
+
+	/**
+	 * Reads a property of a random object on another gateway.
+	 *
+	 * @return True if the call succeeded.
+	 * @throws IOException If the call fails.
+	 * @throws InterruptedException If interrupted.
+	 */
+	private boolean readProperty() throws IOException, InterruptedException {
+
+		int consumerGateway = ThreadLocalRandom.current().nextInt(gateways.size());
+
+		return isSuccess(client.call(gateways.get(consumerGateway).getApiPort(), randomObject(consumerGateway), "GET",
+				"/objects/" + randomObject(otherGateway(consumerGateway)) + "/properties/" + PROPERTY_ID, null));
+	}
+
+
+	/**
+	 * Starts an action of a random object on another gateway.
+	 *
+	 * @return True if the call succeeded.
+	 * @throws IOException If the call fails.
+	 * @throws InterruptedException If interrupted.
+	 */
+	private boolean startAction() throws IOException, InterruptedException {
+
+		int consumerGateway = ThreadLocalRandom.current().nextInt(gateways.size());
+
+		return isSuccess(client.call(gateways.get(consumerGateway).getApiPort(), randomObject(consumerGateway), "POST",
+				"/objects/" + randomObject(otherGateway(consumerGateway)) + "/actions/" + ACTION_ID, "{}"));
+	}
+
+
+	/**
+	 * Publishes an event of a random object on the first gateway, with the time it was published.
+	 *
+	 * @return True if the call succeeded.
+	 * @throws IOException If the call fails.
+	 * @throws InterruptedException If interrupted.
+	 */
+	private boolean publishEvent() throws IOException, InterruptedException {
+
+		return isSuccess(client.call(gateways.get(0).getApiPort(), randomObject(0), "PUT", "/events/" + EVENT_ID,
+				"{\"sentAt\":" + System.nanoTime() + "}"));
+	}
+
+
+	/**
+	 * Picks a random object of a gateway.
+	 *
+	 * @param gateway Index of the gateway.
+	 * @return Object ID.
+	 */
+	private String randomObject(int gateway) {
+
+		List<String> gatewayObjects = objects.get(gateway);
+
+		return gatewayObjects.get(ThreadLocalRandom.current().nextInt(gatewayObjects.size()));
+	}
+
+
+	/**
+	 * Picks a random gateway other than the given one.
+	 *
+	 * @param gateway Index of the gateway to avoid.
+	 * @return Index of another gateway.
+	 */
+	private int otherGateway(int gateway) {
+
+		int other = ThreadLocalRandom.current().nextInt(gateways.size() - 1);
+
+		return other >= gateway ? other + 1 : other;
+	}
+
+
+	/**
+	 * Fails if the status code is not a success.
+	 *
+	 * @param status Status code.
+	 * @param what Description of the call.
+	 * @throws IOException If it is not a success.
+	 */
+	private static void expectSuccess(int status, String what) throws IOException {
+
+		if (!isSuccess(status)) {
+			throw new IOException(what + " failed with status " + status + ".");
+		}
+	}
+
+
+	/**
+	 * Checks whether the status code is a success.
+	 *
+	 * @param status Status code.
+	 * @return True for 2xx.
+	 */
+	private static boolean isSuccess(int status) {
+		return status >= 200 && status < 300;
+	}
+
+
+	/**
+	 * Returns an integer parameter.
+	 *
+	 * @param name Name of the parameter.
+	 * @return Its value.
+	 */
+	private int intParameter(String name) {
+		return Integer.parseInt(parameters.get(name));
+	}
+
+
+	/**
+	 * Returns a long parameter.
+	 *
+	 * @param name Name of the parameter.
+	 * @return Its value.
+	 */
+	private long longParameter(String name) {
+		return Long.parseLong(parameters.get(name));
+	}
+
+
+	/**
+	 * An operation of a scenario.
+	 */
+	private interface Operation {
+
+		/**
+		 * Performs the operation once.
+		 *
+		 * @return True if it succeeded.
+		 * @throws IOException If the call failed.
+		 * @throws InterruptedException If interrupted.
+		 */
+		boolean call() throws IOException, InterruptedException;
+	}
+}
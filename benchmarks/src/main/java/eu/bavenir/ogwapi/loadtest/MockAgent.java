@@ -0,0 +1,301 @@
+package eu.bavenir.ogwapi.loadtest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/*
+ * STRUCTURE:
+ * - constants
+ * - fields
+ * - public methods
+ * - private methods
+ */
+
+/**
+ * Agent answering the calls of all gateways of a load test. Every call is answered by the first rule whose method and
+ * path match - with its status and body, after its delay (plus or minus its jitter). Rules added later are tried first,
+ * so a script can override the defaults, which answer every property, action and event call with 200.
+ *
+ * A script is a text file with a rule per line, empty lines and lines starting with # are skipped:
+ *
+ * METHOD PATH-REGEX STATUS DELAY[+-JITTER] [BODY]
+ *
+ * e.g. "GET /agent/objects/.+/properties/humidity 200 50+-20 {"value":40}" answers the reads of humidity in 30 to 70 ms
+ * and "PUT .*&#47;properties/.* 503 0" makes all writes fail. Delays are in milliseconds, the body is the rest of the line.
+ *
+ * Events delivered to the Agent that carry the time they were published ("sentAt" attribute in nanoseconds, as
+ * {@link LoadTest LoadTest} publishes them) are recorded in the event delivery recorder.
+ *
+ * @author sulfo
+ *
+ */
+public class MockAgent {
+
+	/* === CONSTANTS === */
+
+	/**
+	 * Path the gateways call the Agent at, followed by /objects/...
+	 */
+	public static final String AGENT_PATH = "/agent";
+
+	/**
+	 * Pattern of the publishing time in events.
+	 */
+	private static final Pattern SENTAT_PATTERN = Pattern.compile("\"sentAt\"\\s*:\\s*(\\d+)");
+
+	/**
+	 * Pattern of a rule in a script.
+	 */
+	private static final Pattern RULE_PATTERN =
+			Pattern.compile("(\\S+)\\s+(\\S+)\\s+(\\d{3})\\s+(\\d+)(?:\\+-(\\d+))?(?:\\s+(.*))?");
+
+	/**
+	 * Pattern of the event calls.
+	 */
+	private static final Pattern EVENT_PATH_PATTERN = Pattern.compile(AGENT_PATH + "/objects/[^/]+/events/[^/]+");
+
+
+	/* === FIELDS === */
+
+	/**
+	 * The HTTP server.
+	 */
+	private final HttpServer server;
+
+	/**
+	 * Threads serving the calls. Calls being delayed occupy a thread.
+	 */
+	private final ExecutorService executor;
+
+	/**
+	 * The rules, the first matching one applies.
+	 */
+	private final List<Rule> rules;
+
+	/**
+	 * Recorder of the time between publishing an event and its delivery here.
+	 */
+	private final LatencyRecorder eventDeliveries;
+
+
+	/* === PUBLIC METHODS === */
+
+	/**
+	 * Constructor, binds the port and installs the default rules. The Agent answers after {@link #start() start}.
+	 *
+	 * @param port Port to listen on.
+	 * @param delayMillis Delay of the default rules, in milliseconds.
+	 * @param jitterMillis Jitter of the default rules, in milliseconds.
+	 * @param eventDeliveries Recorder of event deliveries.
+	 * @throws IOException If the port can not be bound.
+	 */
+	public MockAgent(int port, long delayMillis, long jitterMillis, LatencyRecorder eventDeliveries)
+			throws IOException {
+
+		this.eventDeliveries = eventDeliveries;
+
+		rules = new CopyOnWriteArrayList<Rule>();
+
+		addRule("GET", AGENT_PATH + "/objects/[^/]+/properties/[^/]+", 200, delayMillis, jitterMillis,
+				"{\"value\":21.5,\"unit\":\"Cel\"}");
+		addRule("PUT", AGENT_PATH + "/objects/[^/]+/properties/[^/]+", 200, delayMillis, jitterMillis, "{}");
+		addRule("POST", AGENT_PATH + "/objects/[^/]+/actions/[^/]+", 200, delayMillis, jitterMillis, "{}");
+		addRule("DELETE", AGENT_PATH + "/objects/[^/]+/actions/[^/]+", 200, delayMillis, jitterMillis, "{}");
+		addRule("PUT", EVENT_PATH_PATTERN.pattern(), 200, delayMillis, jitterMillis, "{}");
+
+		executor = Executors.newCachedThreadPool(runnable -> {
+			Thread thread = new Thread(runnable, "mock-agent");
+			thread.setDaemon(true);
+			return thread;
+		});
+
+		// otherwise headers and body go out in separate segments and delayed ACKs add 40 ms to every answer
+		System.setProperty("sun.net.httpserver.nodelay", "true");
+
+		server = HttpServer.create(new InetSocketAddress("localhost", port), 1024);
+		server.setExecutor(executor);
+		server.createContext(AGENT_PATH, this::handle);
+	}
+
+
+	/**
+	 * Adds a rule, it is tried before the rules added earlier.
+	 *
+	 * @param method HTTP method, or * for any.
+	 * @param pathRegex Regular expression the whole path has to match.
+	 * @param status Status code of the answer.
+	 * @param delayMillis Delay of the answer, in milliseconds.
+	 * @param jitterMillis Random variation of the delay, in milliseconds.
+	 * @param body Body of the answer.
+	 */
+	public void addRule(String method, String pathRegex, int status, long delayMillis, long jitterMillis, String body) {
+		rules.add(0, new Rule(method, Pattern.compile(pathRegex), status, delayMillis, jitterMillis, body));
+	}
+
+
+	/**
+	 * Loads rules from a script, see the description of the class for its format.
+	 *
+	 * @param script Path to the script.
+	 * @throws IOException If the script can not be read.
+	 * @throws IllegalArgumentException If a line is not a valid rule.
+	 */
+	public void loadScript(Path script) throws IOException {
+
+		for (String line : Files.readAllLines(script, StandardCharsets.UTF_8)) {
+
+			line = line.trim();
+			if (line.isEmpty() || line.startsWith("#")) {
+				continue;
+			}
+
+			Matcher matcher = RULE_PATTERN.matcher(line);
+			if (!matcher.matches()) {
+				throw new IllegalArgumentException("Invalid Agent rule: " + line);
+			}
+
+			addRule(matcher.group(1), matcher.group(2), Integer.parseInt(matcher.group(3)),
+					Long.parseLong(matcher.group(4)), matcher.group(5) == null ? 0 : Long.parseLong(matcher.group(5)),
+					matcher.group(6) == null ? "" : matcher.group(6));
+		}
+	}
+
+
+	/**
+	 * Starts answering.
+	 */
+	public void start() {
+		server.start();
+	}
+
+
+	/**
+	 * Stops answering.
+	 */
+	public void stop() {
+
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+
+	/* === PRIVATE METHODS === */
+
+	/**
+	 * Answers a call.
+	 *
+	 * @param exchange The call.
+	 * @throws IOException If the answer can not be written.
+	 */
+	private void handle(HttpExchange exchange) throws IOException {
+
+		String method = exchange.getRequestMethod();
+		String path = exchange.getRequestURI().getPath();
+
+		String requestBody;
+		try (InputStream input = exchange.getRequestBody()) {
+			requestBody = new String(input.readAllBytes(), StandardCharsets.UTF_8);
+		}
+
+		if (method.equals("PUT") && EVENT_PATH_PATTERN.matcher(path).matches()) {
+			Matcher matcher = SENTAT_PATTERN.matcher(requestBody);
+			if (matcher.find()) {
+				eventDeliveries.record(System.nanoTime() - Long.parseLong(matcher.group(1)));
+			}
+		}
+
+		Rule rule = null;
+		for (Rule candidate : rules) {
+			if (candidate.matches(method, path)) {
+				rule = candidate;
+				break;
+			}
+		}
+
+		int status = 404;
+		byte[] body = new byte[0];
+
+		if (rule != null) {
+			rule.sleep();
+			status = rule.status;
+			body = rule.body;
+		}
+
+		exchange.getResponseHeaders().set("Content-Type", "application/json");
+		exchange.sendResponseHeaders(status, body.length == 0 ? -1 : body.length);
+
+		try (OutputStream output = exchange.getResponseBody()) {
+			output.write(body);
+		}
+	}
+
+
+	/**
+	 * A rule of the Agent.
+	 */
+	private static class Rule {
+
+		private final String method;
+
+		private final Pattern path;
+
+		private final int status;
+
+		private final long delayMillis;
+
+		private final long jitterMillis;
+
+		private final byte[] body;
+
+
+		Rule(String method, Pattern path, int status, long delayMillis, long jitterMillis, String body) {
+
+			this.method = method;
+			this.path = path;
+			this.status = status;
+			this.delayMillis = delayMillis;
+			this.jitterMillis = jitterMillis;
+			this.body = body.getBytes(StandardCharsets.UTF_8);
+		}
+
+
+		boolean matches(String requestMethod, String requestPath) {
+			return (method.equals("*") || method.equalsIgnoreCase(requestMethod))
+					&& path.matcher(requestPath).matches();
+		}
+
+
+		void sleep() {
+
+			long delay = delayMillis;
+			if (jitterMillis > 0) {
+				delay += ThreadLocalRandom.current().nextLong(-jitterMillis, jitterMillis + 1);
+			}
+
+			if (delay <= 0) {
+				return;
+			}
+
+			try {
+				Thread.sleep(delay);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+}
@@ -0,0 +1,163 @@
+package eu.bavenir.ogwapi.loadtest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.HashMap;
+import java.util.logging.Logger;
+
+import org.apache.commons.configuration2.XMLConfiguration;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import eu.bavenir.ogwapi.benchmarks.BenchmarkSupport;
+import eu.bavenir.ogwapi.commons.CommunicationManager;
+import eu.bavenir.ogwapi.commons.messages.StatusMessage;
+import eu.bavenir.ogwapi.commons.monitoring.MessageCounter;
+
+/**
+ * The parts of the load test that run without the REST API - two gateways connected by the loopback engine and the
+ * {@link MockAgent MockAgent} behind them. The gateways are driven through their {@link CommunicationManager
+ * CommunicationManager}, which is what the REST resources call.
+ */
+public class LoopbackSmokeTest {
+
+	private static final String OBJECT_A = "smoke-test-a";
+
+	private static final String OBJECT_B = "smoke-test-b";
+
+	private static final long TIMEOUT = 5000;
+
+	private static LatencyRecorder eventDeliveries;
+
+	private static MockAgent agent;
+
+	private static int agentPort;
+
+	private File dataDirectoryA;
+
+	private File dataDirectoryB;
+
+	private CommunicationManager gatewayA;
+
+	private CommunicationManager gatewayB;
+
+
+	/**
+	 * The Agent outlives the single tests, as the Agent endpoint is resolved once per JVM.
+	 */
+	@BeforeClass
+	public static void startAgent() throws IOException {
+
+		try (ServerSocket socket = new ServerSocket(0)) {
+			agentPort = socket.getLocalPort();
+		}
+
+		eventDeliveries = new LatencyRecorder("events");
+
+		agent = new MockAgent(agentPort, 0, 0, eventDeliveries);
+		agent.start();
+	}
+
+
+	@AfterClass
+	public static void stopAgent() {
+		agent.stop();
+	}
+
+
+	@Before
+	public void setUp() {
+
+		eventDeliveries.start();
+
+		dataDirectoryA = BenchmarkSupport.createDataDirectory();
+		dataDirectoryB = BenchmarkSupport.createDataDirectory();
+
+		gatewayA = gateway(dataDirectoryA, agentPort);
+		gatewayB = gateway(dataDirectoryB, agentPort);
+
+		assertFalse(gatewayA.establishConnection(OBJECT_A, "password").isError());
+		assertFalse(gatewayB.establishConnection(OBJECT_B, "password").isError());
+	}
+
+
+	@After
+	public void tearDown() {
+
+		gatewayA.terminateAllConnections();
+		gatewayB.terminateAllConnections();
+
+		BenchmarkSupport.deleteDataDirectory(dataDirectoryA);
+		BenchmarkSupport.deleteDataDirectory(dataDirectoryB);
+	}
+
+
+	@Test
+	public void propertyIsReadFromTheOtherGateway() {
+
+		StatusMessage status = gatewayA.getPropertyOfRemoteObject(OBJECT_A, OBJECT_B, BenchmarkSupport.PROPERTY_ID,
+				null, new HashMap<String, String>());
+
+		assertFalse(status.getStatusCodeReason(), status.isError());
+
+		String message = status.buildMessage().toString();
+		assertTrue(message, message.contains("21.5"));
+	}
+
+
+	@Test
+	public void actionIsStartedOnTheOtherGateway() {
+
+		StatusMessage status = gatewayA.startAction(OBJECT_A, OBJECT_B, "switch", "{}",
+				new HashMap<String, String>());
+
+		assertFalse(status.getStatusCodeReason(), status.isError());
+	}
+
+
+	@Test
+	public void eventIsDeliveredToTheSubscriber() throws InterruptedException {
+
+		assertFalse(gatewayB.activateEventChannel(OBJECT_B, BenchmarkSupport.EVENT_ID,
+				new HashMap<String, String>(), null).isError());
+		assertFalse(gatewayA.subscribeToEventChannel(OBJECT_A, OBJECT_B, BenchmarkSupport.EVENT_ID,
+				new HashMap<String, String>(), null).isError());
+
+		assertFalse(gatewayB.sendEventToSubscribedObjects(OBJECT_B, BenchmarkSupport.EVENT_ID,
+				"{\"sentAt\":" + System.nanoTime() + "}", new HashMap<String, String>()).isError());
+
+		long deadline = System.currentTimeMillis() + TIMEOUT;
+		while (eventDeliveries.getCount() == 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(50);
+		}
+
+		assertEquals(1, eventDeliveries.getCount());
+	}
+
+
+	/**
+	 * Creates a gateway the way {@link GatewayInstance GatewayInstance} configures it, without the REST API.
+	 */
+	private CommunicationManager gateway(File dataDirectory, int agentPort) {
+
+		Logger logger = BenchmarkSupport.silentLogger();
+
+		XMLConfiguration config = BenchmarkSupport.config(dataDirectory);
+		config.addProperty("general.communicationEngine", "loopback");
+		config.addProperty("loopback.testMode", true);
+		config.addProperty("loopback.roster", "open");
+		config.addProperty("connector.restAgentConnector.agent", "localhost");
+		config.addProperty("connector.restAgentConnector.agentPort", agentPort);
+		config.addProperty("connector.restAgentConnector.healthCheckInterval", 0);
+
+		return new CommunicationManager(config, logger, new MessageCounter(config, logger));
+	}
+}
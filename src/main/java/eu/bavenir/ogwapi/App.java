@@ -17,6 +17,9 @@ import org.apache.commons.configuration2.ex.ConfigurationException;
 
 import com.mashape.unirest.http.Unirest;
 
+import eu.bavenir.ogwapi.commons.GatewayScheduler;
+import eu.bavenir.ogwapi.commons.logging.AsyncLogHandler;
+import eu.bavenir.ogwapi.commons.monitoring.GatewayMetrics;
 import eu.bavenir.ogwapi.commons.monitoring.MessageCounter;
 import eu.bavenir.ogwapi.restapi.RestletThread;
 import eu.bavenir.ogwapi.commons.connectors.NeighbourhoodManagerConnector;
@@ -69,6 +72,17 @@ public class App {
 	 */
 	private static final String CONFIG_PARAM_LOGGINGMAXFILES = "logging.maxNumFiles";
 
+	/**
+	 * Name of the configuration parameter for writing the log file on a separate thread.
+	 */
+	private static final String CONFIG_PARAM_LOGGINGASYNC = "logging.async";
+
+	/**
+	 * Name of the configuration parameter for the number of log records waiting to be written, when the log file is
+	 * written on a separate thread.
+	 */
+	private static final String CONFIG_PARAM_LOGGINGASYNCBUFFER = "logging.asyncBufferSize";
+
 	/**
 	 * Default value of {@link #CONFIG_PARAM_LOGGINGCONSOLEOUTPUT
 	 * CONFIG_PARAM_LOGGINGCONSOLEOUTPUT} configuration parameter. This value is
@@ -101,6 +115,18 @@ public class App {
 	 */
 	private static final Integer CONFIG_DEF_LOGGINGMAXFILES = 7;
 
+	/**
+	 * Default value of {@link #CONFIG_PARAM_LOGGINGASYNC} configuration parameter. 
+	 * This value is taken into account when no suitable value is found in the configuration file.
+	 */
+	private static final Boolean CONFIG_DEF_LOGGINGASYNC = true;
+
+	/**
+	 * Default value of {@link #CONFIG_PARAM_LOGGINGASYNCBUFFER} configuration parameter. 
+	 * This value is taken into account when no suitable value is found in the configuration file.
+	 */
+	private static final Integer CONFIG_DEF_LOGGINGASYNCBUFFER = 8192;
+
 	/**
 	 * Error message for configuration loading failure.
 	 */
@@ -240,16 +266,34 @@ public class App {
 			// put it together
 			logfileTxt.setFormatter(formatterTxt);
 			logfileTxt.setLevel(logLevel);
-			logger.addHandler(logfileTxt);
+
+			// the threads processing messages should not wait for the disk
+			final Boolean logAsync = config.getBoolean(CONFIG_PARAM_LOGGINGASYNC, CONFIG_DEF_LOGGINGASYNC);
+			if (logAsync) {
+				Integer logBuffer = config.getInt(CONFIG_PARAM_LOGGINGASYNCBUFFER, CONFIG_DEF_LOGGINGASYNCBUFFER);
+				if (logBuffer < 1) {
+					logBuffer = CONFIG_DEF_LOGGINGASYNCBUFFER;
+				}
+				AsyncLogHandler asyncHandler = new AsyncLogHandler(logfileTxt, logBuffer);
+				GatewayMetrics.registerQueue("logWriter", () -> asyncHandler.getBufferedRecords());
+				logger.addHandler(asyncHandler);
+			} else {
+				logger.addHandler(logfileTxt);
+			}
 
 			// now set the same log file for RESTLET - no kidding, this is from their site
 			System.setProperty("java.util.logging.config.file", logFileName);
 
 			// log message
 			logger.config("Log file: " + logFileName);
+			logger.config("Log file written asynchronously: " + logAsync);
 
 		}
 
+		// Shared scheduler for periodic tasks
+		GatewayScheduler.initialize(config, logger);
+		GatewayMetrics.registerQueue("scheduler", () -> GatewayScheduler.getNumberOfRegistrations());
+
 		// Generate the JWT and perform the handshake with the NM
 		nmConnector = new NeighbourhoodManagerConnector(config, logger);
 		nmConnector.handshake();
@@ -386,6 +430,9 @@ public class App {
 					// close the Unirest
 					Unirest.shutdown();
 
+					// stop the periodic tasks
+					GatewayScheduler.shutdown();
+
 				} catch (final InterruptedException e) {
 					// nothing else to do
 					e.printStackTrace();
@@ -10,11 +10,10 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Logger;
 
-import javax.json.Json;
 import javax.json.JsonBuilderFactory;
 import javax.json.JsonObject;
 import javax.json.JsonObjectBuilder;
@@ -206,7 +205,12 @@ public class Action {
 	/**
 	 * The running {@link eu.bavenir.ogwapi.commons.Task task}.
 	 */
-	private Task runningTask;
+	private volatile Task runningTask;
+	
+	/**
+	 * Whether an Agent thread is taking the next pending task and starting it.
+	 */
+	private AtomicBoolean startingTask;
 	
 	/**
 	 * The number obtained from the {@link #CONF_PARAM_TIMETOKEEPRETURNVALUES CONF_PARAM_TIMETOKEEPRETURNVALUES} 
@@ -240,6 +244,12 @@ public class Action {
 	 * Configuration of the OGWAPI. 
 	 */
 	private XMLConfiguration config;
+	
+	/**
+	 * Registration of the periodic task queue processing in the {@link eu.bavenir.ogwapi.commons.GatewayScheduler 
+	 * GatewayScheduler}.
+	 */
+	private ScheduledFuture<?> taskScheduling;
 
 	
 	
@@ -268,6 +278,8 @@ public class Action {
 		
 		runningTask = null;
 		
+		startingTask = new AtomicBoolean(false);
+		
 		// load configuration parameters
 		timeToKeepReturnValues = // turn into ms
 				config.getInt(CONF_PARAM_TIMETOKEEPRETURNVALUES, CONF_DEF_TIMETOKEEPRETURNVALUES) * MINUTE;
@@ -283,13 +295,26 @@ public class Action {
 		
 		logger.config("Action " + actionId + " max number of pending tasks set to: " + maxNumberOfPendingTasks);
 		
-		// schedule a timer for running tasks that are queueing
-		Timer timerForTaskScheduling = new Timer();
-		
-		timerForTaskScheduling.schedule(new TimerTask() {
+		// schedule running of tasks that are queueing
+		taskScheduling = GatewayScheduler.schedule(new Runnable() {
 			@Override
 			public void run() {
-				workThroughTasks();
+				printStatusOfAllTasks();
+				
+				// starting a task calls the Agent, that is left to an Agent thread
+				if (runningTask == null && !pendingTasks.isEmpty() && startingTask.compareAndSet(false, true)) {
+					GatewayScheduler.executeAgentCall(new Runnable() {
+						@Override
+						public void run() {
+							try {
+								workThroughTasks();
+							} finally {
+								startingTask.set(false);
+							}
+						}
+					});
+				}
+				
 				purgeOutdatedReturnValues();
 				purgeTimedOutPendingTasks();
 			}
@@ -584,7 +609,7 @@ public class Action {
 		DateFormat df = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
 		
 		// create the factory
-		JsonBuilderFactory jsonBuilderFactory = Json.createBuilderFactory(null);
+		JsonBuilderFactory jsonBuilderFactory = JsonCodec.getBuilderFactory();
 		JsonObjectBuilder mainBuilder = jsonBuilderFactory.createObjectBuilder();
 		
 		mainBuilder.add(ATTR_TASKID, taskId);
@@ -617,19 +642,27 @@ public class Action {
 		
 	}
 	
+	
+	/**
+	 * Stops the periodic processing of the task queue. Should be called when the owning object is destroyed, 
+	 * otherwise the action stays registered in the {@link eu.bavenir.ogwapi.commons.GatewayScheduler GatewayScheduler}
+	 * for as long as the OGWAPI runs. 
+	 */
+	public void destroy() {
+		GatewayScheduler.cancel(taskScheduling);
+	}
+	
 
 	
 	
 	/* === PRIVATE METHODS === */
 	
 	/**
-	 * This method is called by a timer every second, checking whether or not there is {@link eu.bavenir.ogwapi.commons.Task task}
-	 * running and if there is none, it takes the first one from the pending queue. 
+	 * This method is called on an Agent thread when the timer finds there is no {@link eu.bavenir.ogwapi.commons.Task task}
+	 * running, it takes the first one from the pending queue and starts it. 
 	 */
 	private void workThroughTasks() {
 		
-		printStatusOfAllTasks();
-		
 		// check whether or not a task is already running and if not, check if there are some tasks pending
 		if (runningTask == null && !pendingTasks.isEmpty()) {
 			
@@ -1,18 +1,14 @@
 package eu.bavenir.ogwapi.commons;
 
 import java.io.IOException;
-import java.io.StringReader;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
-import java.util.Timer;
-import java.util.TimerTask;
 import java.util.logging.Logger;
 
-import javax.json.Json;
 import javax.json.JsonArray;
 import javax.json.JsonArrayBuilder;
 import javax.json.JsonObject;
@@ -26,6 +22,7 @@ import org.restlet.representation.Representation;
 import eu.bavenir.ogwapi.commons.connectors.NeighbourhoodManagerConnector;
 import eu.bavenir.ogwapi.commons.messages.CodesAndReasons;
 import eu.bavenir.ogwapi.commons.messages.StatusMessage;
+import eu.bavenir.ogwapi.commons.monitoring.GatewayMetrics;
 import eu.bavenir.ogwapi.commons.monitoring.MessageCounter;
 
 /*
@@ -306,6 +303,10 @@ public class CommunicationManager {
 		this.logger = logger;
 		this.messageCounter = messageCounter;
 		
+		GatewayMetrics.registerGauge("connection_descriptors", "Number of objects logged in through this gateway.", 
+				() -> descriptorPool.size());
+		GatewayMetrics.registerQueue("responses", () -> countQueuedMessages());
+		
 		// load the configuration for the session recovery policy
 		String sessionRecoveryPolicyString = config.getString(CONFIG_PARAM_SESSIONRECOVERY, CONFIG_DEF_SESSIONRECOVERY);
 		
@@ -355,8 +356,8 @@ public class CommunicationManager {
 			}
 			
 			
-			Timer timerForSessionRecovery = new Timer();
-			timerForSessionRecovery.schedule(new TimerTask() {
+			// reconnecting waits for the network
+			GatewayScheduler.scheduleBlocking(new Runnable() {
 				@Override
 				public void run() {
 					recoverSessions();
@@ -448,7 +449,7 @@ public class CommunicationManager {
 		for (ConnectionDescriptor descriptor: descriptors){
 			if (descriptor != null){
 				
-				descriptor.disconnect();
+				descriptor.destroy();
 				
 			} else {
 				logger.warning("Null record in the connection descriptor pool.");
@@ -508,7 +509,7 @@ public class CommunicationManager {
 			descriptor = descriptorPoolRemove(objectId);
 			if (descriptor != null){
 		
-				descriptor.disconnect();
+				descriptor.destroy();
 				
 				logger.info("Reconnecting '" + objectId + "' to network.");
 			}
@@ -555,7 +556,11 @@ public class CommunicationManager {
 		ConnectionDescriptor descriptor = descriptorPoolGet(objectId); 
 		
 		if (descriptor != null){
-			descriptor.disconnect();
+			if (destroyConnectionDescriptor){
+				descriptor.destroy();
+			} else {
+				descriptor.disconnect();
+			}
 		} else {
 			logger.info("Attempting to terminate nonexisting connection. Object ID: '" + objectId + "'.");
 		}
@@ -1088,9 +1093,12 @@ public class CommunicationManager {
 		int min = pageNumber * pageSize;
 		int max = min + pageSize;
 			
-		if (min+1 <= entries.size()) {
-			for (int i = min; i < max && i < entries.size(); i++) {
-				set.add(entries.toArray()[i].toString());
+		// take a snapshot, the roster can change while we page through it
+		Object[] entriesArray = entries.toArray();
+		
+		if (min+1 <= entriesArray.length) {
+			for (int i = min; i < max && i < entriesArray.length; i++) {
+				set.add(entriesArray[i].toString());
 			}
 		} else {
 			logger.warning("There are no avaliable object for objectId: " + objectId + " and page number: " + pageNumber);
@@ -1618,12 +1626,12 @@ public class CommunicationManager {
 			return null;
 		}
 		
-		JsonObjectBuilder mainObjectBuilder = Json.createObjectBuilder();
-		JsonArrayBuilder mainArrayBuilder = Json.createArrayBuilder();
+		JsonObjectBuilder mainObjectBuilder = JsonCodec.createObjectBuilder();
+		JsonArrayBuilder mainArrayBuilder = JsonCodec.createArrayBuilder();
 		
 		rosterObjects.forEach(item -> {
 			mainArrayBuilder.add(
-					Json.createObjectBuilder().add(ATTR_OID, item)
+					JsonCodec.createObjectBuilder().add(ATTR_OID, item)
 				);
 		});
 		
@@ -1648,8 +1656,8 @@ public class CommunicationManager {
 			return null;
 		}
 		
-		JsonObjectBuilder mainObjectBuilder = Json.createObjectBuilder();
-		JsonArrayBuilder mainArrayBuilder = Json.createArrayBuilder();
+		JsonObjectBuilder mainObjectBuilder = JsonCodec.createObjectBuilder();
+		JsonArrayBuilder mainArrayBuilder = JsonCodec.createArrayBuilder();
 		
 		Representation r = null;
 		int i = 0;
@@ -1722,7 +1730,7 @@ public class CommunicationManager {
 		}
 		
 		// make a JSON from the incoming String - any string that is not a valid JSON will throw exception
-		JsonReader jsonReader = Json.createReader(new StringReader(jsonString));
+		JsonReader jsonReader = JsonCodec.createReader(jsonString);
 		
 		JsonObject json;
 		
@@ -1855,6 +1863,25 @@ public class CommunicationManager {
 	}
 	
 	
+	/**
+	 * Thread-safe method for summing up the incoming messages waiting in the queues of all connection descriptors, 
+	 * for monitoring.
+	 * 
+	 * @return Number of queued messages.
+	 */
+	private long countQueuedMessages(){
+		synchronized (descriptorPool){
+			
+			long queued = 0;
+			for (ConnectionDescriptor descriptor : descriptorPool.values()) {
+				queued += descriptor.getQueuedMessages();
+			}
+			
+			return queued;
+		}
+	}
+	
+	
 	/**
 	 * Translates the string value from configuration file into a valid code for the recovery policy. The recovery
 	 * policy is checked quite often, therefore it is a good idea to make it numerical value.
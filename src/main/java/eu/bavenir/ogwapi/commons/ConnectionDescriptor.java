@@ -5,30 +5,38 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.LinkedTransferQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import javax.json.Json;
 import javax.json.JsonBuilderFactory;
 import javax.json.JsonObject;
 import javax.json.JsonObjectBuilder;
 
 import org.apache.commons.configuration2.XMLConfiguration;
-import org.json.JSONObject;
 
 import eu.bavenir.ogwapi.commons.connectors.AgentConnector;
 import eu.bavenir.ogwapi.commons.connectors.http.RestAgentConnector;
 import eu.bavenir.ogwapi.commons.engines.CommunicationEngine;
-import eu.bavenir.ogwapi.commons.engines.xmpp.XmppMessageEngine;
+import eu.bavenir.ogwapi.commons.engines.CommunicationEngineFactory;
+import eu.bavenir.ogwapi.commons.logging.MessageLog;
+import eu.bavenir.ogwapi.commons.messages.AcceptedEncodings;
+import eu.bavenir.ogwapi.commons.messages.BinaryEnvelopeCodec;
 import eu.bavenir.ogwapi.commons.messages.CodesAndReasons;
 import eu.bavenir.ogwapi.commons.messages.MessageResolver;
 import eu.bavenir.ogwapi.commons.messages.NetworkMessage;
 import eu.bavenir.ogwapi.commons.messages.NetworkMessageEvent;
 import eu.bavenir.ogwapi.commons.messages.NetworkMessageRequest;
 import eu.bavenir.ogwapi.commons.messages.NetworkMessageResponse;
+import eu.bavenir.ogwapi.commons.messages.PayloadCompression;
 import eu.bavenir.ogwapi.commons.messages.StatusMessage;
+import eu.bavenir.ogwapi.commons.messages.TraceContext;
+import eu.bavenir.ogwapi.commons.monitoring.GatewayMetrics;
 import eu.bavenir.ogwapi.commons.monitoring.MessageCounter;
+import eu.bavenir.ogwapi.commons.monitoring.events.ResponseWaitEvent;
 import eu.bavenir.ogwapi.commons.persistence.Data;
 
 /*
@@ -118,6 +126,12 @@ public class ConnectionDescriptor {
 	 */
 	private BlockingQueue<NetworkMessage> messageQueue;
 	
+	/**
+	 * Request IDs of the requests (and events with QoS 2) that wait for responses. Other responses are discarded as 
+	 * soon as they arrive.
+	 */
+	private Set<Integer> awaitedResponses;
+	
 	/**
 	 * The communication engine to use.
 	 */
@@ -128,6 +142,26 @@ public class ConnectionDescriptor {
 	 */
 	private JsonBuilderFactory jsonBuilderFactory;
 	
+	/**
+	 * Compression of messages sent through the network.
+	 */
+	private PayloadCompression payloadCompression;
+	
+	/**
+	 * Binary envelope for messages sent through the network.
+	 */
+	private BinaryEnvelopeCodec binaryEnvelopeCodec;
+	
+	/**
+	 * Encodings announced in the requests of this object, null if there are none.
+	 */
+	private String acceptEncoding;
+	
+	/**
+	 * Logging of the messages sent and received.
+	 */
+	private MessageLog messageLog;
+	
 	/**
 	 * Data class
 	 */
@@ -138,6 +172,16 @@ public class ConnectionDescriptor {
 	 */
 	private MessageCounter messageCounter;
 	
+	/**
+	 * Whether or not the requests are {@link TraceContext traced}.
+	 */
+	private boolean tracing;
+	
+	/**
+	 * Whether or not the trace of a request is returned in its status message.
+	 */
+	private boolean traceBreakdown;
+	
 	/* === PUBLIC METHODS === */
 	
 	/**
@@ -168,13 +212,28 @@ public class ConnectionDescriptor {
 		
 		messageQueue = new LinkedTransferQueue<NetworkMessage>();
 		
+		awaitedResponses = ConcurrentHashMap.newKeySet();
+		
 		messageResolver = new MessageResolver(config, logger);
 		
-		jsonBuilderFactory = Json.createBuilderFactory(null);
+		payloadCompression = new PayloadCompression(config, logger);
+		
+		binaryEnvelopeCodec = new BinaryEnvelopeCodec(config, logger, payloadCompression);
+		
+		acceptEncoding = AcceptedEncodings.join(
+				payloadCompression.isEnabled() ? PayloadCompression.ENCODING_DEFLATE : null,
+				binaryEnvelopeCodec.isEnabled() ? BinaryEnvelopeCodec.ENCODING_BINARY : null);
+		
+		jsonBuilderFactory = JsonCodec.getBuilderFactory();
+		
+		messageLog = new MessageLog(config, logger);
+		
+		tracing = config.getBoolean(TraceContext.CONFIG_PARAM_TRACING, TraceContext.CONFIG_DEF_TRACING);
+		traceBreakdown = tracing 
+				&& config.getBoolean(TraceContext.CONFIG_PARAM_TRACEBREAKDOWN, TraceContext.CONFIG_DEF_TRACEBREAKDOWN);
 		
 		// build new connection
-		// TODO this is also the place, where it should decide what engine to use
-		commEngine = new XmppMessageEngine(objectId, password, config, logger, this);
+		commEngine = CommunicationEngineFactory.createEngine(objectId, password, config, logger, this);
 		
 		// load the event channels and actions - either from a file or server
 		data = new Data(objectId, config, logger);
@@ -220,6 +279,20 @@ public class ConnectionDescriptor {
 	public void disconnect(){
 		commEngine.disconnect();
 	}
+	
+	
+	/**
+	 * Disconnects the object from the network and releases the resources of the descriptor - the engine and the 
+	 * periodic processing of provided actions. The descriptor can't be used after this.
+	 */
+	public void destroy(){
+		
+		commEngine.destroy();
+		
+		for (Action action : data.getProvidedActions()) {
+			action.destroy();
+		}
+	}
 
 
 	/**
@@ -256,6 +329,16 @@ public class ConnectionDescriptor {
 	}
 	
 	
+	/**
+	 * Returns the number of incoming messages waiting in the message queue to be picked up, for monitoring.
+	 * 
+	 * @return Number of queued messages.
+	 */
+	public int getQueuedMessages() {
+		return messageQueue.size();
+	}
+	
+	
 
 	/**
 	 * Retrieves the contact list for this object.
@@ -559,7 +642,7 @@ public class ConnectionDescriptor {
 						StatusMessage.CONTENTTYPE_APPLICATIONJSON);
 				
 				// also include that we are not subscribed to our channel
-				JsonBuilderFactory jsonBuilderFactory = Json.createBuilderFactory(null);
+				JsonBuilderFactory jsonBuilderFactory = JsonCodec.getBuilderFactory();
 				JsonObjectBuilder jsonBuilder = jsonBuilderFactory.createObjectBuilder();
 				
 				jsonBuilder.add(EventChannel.ATTR_ACTIVE, eventChannel.isActive());
@@ -795,11 +878,13 @@ public class ConnectionDescriptor {
 		// set request ID
 		eventMessage.generateRequestId();
 		
-		String message = eventMessage.buildMessageString();
+		// message size, the message is serialised only once for all subscribers
+		int sizeInBytes = eventMessage.getMessageSize();
 		
-		// Calculate message size
-		byte[] byteArray = message.getBytes();
-		int sizeInBytes = byteArray.length;
+		// acknowledgements are awaited with QoS == 2 only, any other are discarded on arrival
+		if (eventChannel.getQoS() == 2) {
+			awaitedResponses.add(eventMessage.getRequestId());
+		}
 		
 		// keep track of number of sent messages
 		int sentMessages = 0;
@@ -807,7 +892,7 @@ public class ConnectionDescriptor {
 		// send them
 		Set<String> subscribers = eventChannel.getSubscribersSet();
 		for (String destinationOid : subscribers) {
-			if(sendMessage(this.objectId, destinationOid, message)) {
+			if(sendMessage(this.objectId, destinationOid, eventMessage)) {
 				sentMessages++;
 				// Count event
 				messageCounter.addMessage(eventMessage.getRequestId(), MessageCounter.RECORDTYPE_INT_OK, this.objectId, destinationOid, true, "EVENTMESSAGE", sizeInBytes);
@@ -827,6 +912,8 @@ public class ConnectionDescriptor {
 			// VIC-761
 			int ACKs = countOfArrivedACKsInTimeout(eventMessage.getRequestId(), sentMessages);
 			
+			awaitedResponses.remove(eventMessage.getRequestId());
+			
 			statusCodeReason += ACKs + " acknowledgements arrived.";
 		}
 		
@@ -1039,6 +1126,12 @@ public class ConnectionDescriptor {
 	 * c. A {@link eu.bavenir.ogwapi.commons.messages.NetworkMessageEvent NetworkMessageEvent} arrives and it is necessary
 	 * to process it and forward to respective object via an {@link eu.bavenir.ogwapi.commons.connectors.AgentConnector AgentConnector}.
 	 * 
+	 * Compressed messages and deflated binary envelopes are only inflated when their sender is in the roster - the
+	 * header with the message type is not readable before that, and any object on the network could otherwise make
+	 * the gateway inflate its messages. Requests from outside the roster would be discarded anyway, and this object
+	 * sends its own requests (and subscriptions) to objects in its roster only, so the responses and events that
+	 * arrive compressed come from there too.
+	 * 
 	 * NOTE: This method is to be called by the {@link CommunicationEngine engine } subclass instance.
 	 * 
 	 * @param sourceOid Object ID of the sender.
@@ -1046,40 +1139,98 @@ public class ConnectionDescriptor {
 	 */
 	public void processIncommingMessage(String sourceOid, String messageString){
 		
-		logger.info(this.objectId + ": New message from " + sourceOid);
+		long receivedAt = System.currentTimeMillis();
 		
-		logger.fine(this.objectId + ": Message string: \n" + messageString + "\n");
+		GatewayMetrics.countMessage(GatewayMetrics.DIRECTION_INBOUND);
 		
-		// let's resolve the message 
-		NetworkMessage networkMessage = messageResolver.resolveNetworkMessage(messageString);
+		if (messageLog.isLoggable(Level.INFO)) {
+			messageLog.log(Level.INFO, MessageLog.CATEGORY_RECEIVE, objectId, "message received", "source", sourceOid);
+		}
 		
-		if (networkMessage != null){
+		// inflating is not for strangers
+		if ((payloadCompression.isCompressed(messageString) || (binaryEnvelopeCodec.isEncoded(messageString) 
+				&& binaryEnvelopeCodec.isDeflated(messageString))) && !objectIsInMyRoster(sourceOid)) {
 			
-			// just a check whether or not somebody was tampering the message (and forgot to do it properly)
-			if (!sourceOid.equals(networkMessage.getSourceOid())) {
-				logger.warning(this.objectId + ": The source OID "
-						+ sourceOid + " returned by communication engine "
-						+ "does not match the internal source OID in the message " + networkMessage.getSourceOid() 
-						+ ". Possible message tampering! Discarding the message and aborting.");
-				
+			GatewayMetrics.countDroppedMessage("notInRoster");
+			logger.warning(this.objectId + ": Compressed message from " + sourceOid + " discarded, the sender is "
+					+ "not in the roster of this object.");
+			
+			return;
+		}
+		
+		// compressed messages are recognised by their prefix, the others pass untouched
+		messageString = payloadCompression.decompress(sourceOid, messageString);
+		
+		// effectively final copy, for the lambdas
+		String receivedString = messageString;
+		messageLog.log(Level.FINE, MessageLog.CATEGORY_RECEIVE, objectId, 
+				() -> "Message string: \n" + receivedString + "\n");
+		
+		// let's resolve the message, binary envelopes are also recognised by their prefix. the header decides whether 
+		// the rest of the message is worth reading
+		NetworkMessage networkMessage;
+		if (binaryEnvelopeCodec.isEncoded(messageString)) {
+			networkMessage = binaryEnvelopeCodec.decode(sourceOid, messageString);
+			
+			if (networkMessage != null && !acceptIncomingMessage(sourceOid, networkMessage.getMessageType(), 
+					networkMessage.getRequestId(), networkMessage.getSourceOid(), messageString)) {
 				return;
 			}
-
+		} else {
+			AtomicBoolean rejected = new AtomicBoolean(false);
+			
+			networkMessage = messageResolver.resolveNetworkMessage(messageString, 
+					(messageType, requestId, messageSourceOid) -> {
+						if (acceptIncomingMessage(sourceOid, messageType, requestId, messageSourceOid, 
+								receivedString)) {
+							return true;
+						}
+						rejected.set(true);
+						return false;
+					});
+			
+			if (rejected.get()) {
+				return;
+			}
+		}
+		
+		if (networkMessage != null){
+			
 			switch (networkMessage.getMessageType()){
 			
 			case NetworkMessageRequest.MESSAGE_TYPE:
-				logger.info(this.objectId + ": The message is a request. Processing...");
+				if (messageLog.isLoggable(Level.INFO)) {
+					messageLog.log(Level.INFO, MessageLog.CATEGORY_RECEIVE, objectId, "processing request", 
+							"requestId", networkMessage.getRequestId());
+				}
+				
+				AcceptedEncodings.record(sourceOid, ((NetworkMessageRequest) networkMessage).getAcceptEncoding());
+				
+				if (tracing && networkMessage.getTrace() != null) {
+					networkMessage.getTrace().record(TraceContext.STAGE_RECEIVE, receivedAt);
+				}
+				
 				processMessageRequest(networkMessage);
 				break;
 				
 			case NetworkMessageResponse.MESSAGE_TYPE:
-				logger.info(this.objectId + ": This message is a response. Adding to incoming queue - message count: " 
-						+ messageQueue.size());
+				if (messageLog.isLoggable(Level.INFO)) {
+					messageLog.log(Level.INFO, MessageLog.CATEGORY_RECEIVE, objectId, "queueing response", 
+							"requestId", networkMessage.getRequestId(), "queued", messageQueue.size());
+				}
+				
+				if (tracing && networkMessage.getTrace() != null) {
+					networkMessage.getTrace().record(TraceContext.STAGE_RESPONSERECEIVE, receivedAt);
+				}
+				
 				processMessageResponse(networkMessage);
 				break;
 				
 			case NetworkMessageEvent.MESSAGE_TYPE:
-				logger.info(this.objectId + ": This message is an event. Forwarding to agent...");
+				if (messageLog.isLoggable(Level.INFO)) {
+					messageLog.log(Level.INFO, MessageLog.CATEGORY_EVENT, objectId, "forwarding event", 
+							"source", networkMessage.getSourceOid());
+				}
 				processMessageEvent(networkMessage);
 			}
 		} else {
@@ -1088,9 +1239,129 @@ public class ConnectionDescriptor {
 		
 	}
 	
+	/**
+	 * Refuses an incoming message that the engine could not queue for processing. The message is counted as dropped
+	 * and, if it is a request from an object in the roster, answered right away with '503 Service unavailable', so the
+	 * requester does not have to wait for its timeout. Only the header of the message is read - compressed messages
+	 * and deflated binary envelopes would have to be inflated for that, they are dropped without an answer.
+	 * 
+	 * NOTE: This method is to be called by the {@link CommunicationEngine engine } subclass instance, it may be called
+	 * on the thread that reads the network.
+	 * 
+	 * @param sourceOid Object ID of the sender.
+	 * @param messageString Received message.
+	 * @param reason Why the message could not be processed, for the response and the log.
+	 */
+	public void refuseIncomingMessage(String sourceOid, String messageString, String reason) {
+		
+		GatewayMetrics.countMessage(GatewayMetrics.DIRECTION_INBOUND);
+		GatewayMetrics.countDroppedMessage("refused");
+		
+		logger.warning(this.objectId + ": A message from " + sourceOid + " was dropped. " + reason);
+		
+		if (messageString == null || payloadCompression.isCompressed(messageString)) {
+			return;
+		}
+		
+		int[] header = new int[2];
+		
+		if (binaryEnvelopeCodec.isEncoded(messageString)) {
+			
+			if (binaryEnvelopeCodec.isDeflated(messageString)) {
+				return;
+			}
+			
+			NetworkMessage networkMessage = binaryEnvelopeCodec.decode(sourceOid, messageString);
+			if (networkMessage == null || !sourceOid.equals(networkMessage.getSourceOid())) {
+				return;
+			}
+			
+			header[0] = networkMessage.getMessageType();
+			header[1] = networkMessage.getRequestId();
+		} else {
+			
+			// the filter gets the header and stops the reading right after it
+			messageResolver.resolveNetworkMessage(messageString, (messageType, requestId, messageSourceOid) -> {
+				if (sourceOid.equals(messageSourceOid)) {
+					header[0] = messageType;
+					header[1] = requestId;
+				}
+				return false;
+			});
+		}
+		
+		if (header[0] != NetworkMessageRequest.MESSAGE_TYPE || !objectIsInMyRoster(sourceOid)) {
+			return;
+		}
+		
+		NetworkMessageResponse response = new NetworkMessageResponse(config, logger, true, 
+				CodesAndReasons.CODE_503_SERVICEUNAVAILABLE, CodesAndReasons.REASON_503_SERVICENAVAILABLE + reason, 
+				"application/json", null);
+		response.setRequestId(header[1]);
+		response.setSourceOid(objectId);
+		response.setDestinationOid(sourceOid);
+		
+		sendMessage(this.objectId, sourceOid, response);
+	}
+	
+	
 	/* === PRIVATE METHODS === */
 	
 	
+	/**
+	 * Decides on the header of an incoming message, whether or not it should be processed. It is called before the
+	 * body of the message is read. Messages are discarded when:
+	 * a. the source OID in the message does not match the sender reported by the engine (tampering),
+	 * b. a request comes from an object that is not in the roster,
+	 * c. a response comes, that nobody is waiting for (anymore).
+	 * 
+	 * @param senderOid Object ID of the sender, as reported by the engine.
+	 * @param messageType Type of the message.
+	 * @param requestId Request ID of the message (0 for events, see {@link MessageResolver.HeaderFilter HeaderFilter}).
+	 * @param sourceOid Source object ID in the message.
+	 * @param messageString The message as it arrived, for monitoring.
+	 * @return True if the message is to be processed.
+	 */
+	private boolean acceptIncomingMessage(String senderOid, int messageType, int requestId, String sourceOid, 
+			String messageString) {
+		
+		// just a check whether or not somebody was tampering the message (and forgot to do it properly)
+		if (!senderOid.equals(sourceOid)) {
+			logger.warning(this.objectId + ": The source OID "
+					+ senderOid + " returned by communication engine "
+					+ "does not match the internal source OID in the message " + sourceOid 
+					+ ". Possible message tampering! Discarding the message and aborting.");
+			
+			return false;
+		}
+		
+		switch (messageType) {
+		
+		case NetworkMessageRequest.MESSAGE_TYPE:
+			if (!objectIsInMyRoster(sourceOid)) {
+				messageCounter.addMessage(requestId, MessageCounter.RECORDTYPE_INT_NOT_POSSIBLE_TO_SEND, sourceOid, 
+						this.objectId, false, "Unknown", NetworkMessage.utf8Length(messageString));
+				logger.warning(this.objectId + ": The source OID " + sourceOid + " of the request " 
+						+ requestId + " is not in the roster of this object.");
+				
+				return false;
+			}
+			break;
+			
+		case NetworkMessageResponse.MESSAGE_TYPE:
+			if (!awaitedResponses.contains(requestId)) {
+				logger.fine(this.objectId + ": Discarding response " + requestId + " from " + sourceOid 
+						+ ", nobody is waiting for it.");
+				
+				return false;
+			}
+			break;
+		}
+		
+		return true;
+	}
+	
+	
 	/**
 	 * Processing method for {@link NetworkMessageRequest request} type of {@link NetworkMessage NetworkMessage}.
 	 * 
@@ -1098,131 +1369,144 @@ public class ConnectionDescriptor {
 	 */
 	private void processMessageRequest(NetworkMessage networkMessage){
 		
+		long startTime = System.nanoTime();
+		
 		String typeOfMessage = "Unknown";
 		// cast it to request message first (it is safe and also necessary)
 		NetworkMessageRequest requestMessage = (NetworkMessageRequest) networkMessage;
 		
 		// Calculate message size
-		byte[] byteArray = requestMessage.buildMessageString().getBytes();
-		int sizeInBytes = byteArray.length;
+		int sizeInBytes = requestMessage.getMessageSize();
 		
 		NetworkMessageResponse response = null;
 		
-		if (objectIsInMyRoster(requestMessage.getSourceOid())) {
+		// the roster was checked by acceptIncomingMessage, before the body was read
+		
+		// the stamps are returned to the requester with the response
+		TraceContext trace = tracing ? requestMessage.getTrace() : null;
+		
+		if (trace != null) {
+			trace.record(TraceContext.STAGE_AGENTSTART);
+		}
+		
+		// create response and send it back
+		switch (requestMessage.getRequestOperation()){
+		
+		case NetworkMessageRequest.OPERATION_CANCELTASK:
 			
-			// create response and send it back
-			switch (requestMessage.getRequestOperation()){
+			logger.info(this.objectId + ": Request ID is " + requestMessage.getRequestId() + ", operation is CANCELTASK.");
+			typeOfMessage = "CANCELTASK";
+			response = respondToCancelRunningTask(requestMessage);
 			
-			case NetworkMessageRequest.OPERATION_CANCELTASK:
-				
-				logger.info(this.objectId + ": Request ID is " + requestMessage.getRequestId() + ", operation is CANCELTASK.");
-				typeOfMessage = "CANCELTASK";
-				response = respondToCancelRunningTask(requestMessage);
-				
-				break;
-				
-			case NetworkMessageRequest.OPERATION_GETEVENTCHANNELSTATUS:
-				
-				logger.info(this.objectId + ": Request ID is " + requestMessage.getRequestId() + ", operation is GETEVENTCHANNELSTATUS.");
-				typeOfMessage = "GETEVENTCHANNELSTATUS";
-				response = respondToEventChannelStatusQuery(requestMessage);
-				break;
-				
-			case NetworkMessageRequest.OPERATION_GETLISTOFACTIONS:
-				
-				logger.info(this.objectId + ": Request ID is " + requestMessage.getRequestId() + ", operation is GETLISTOFACTIONS.");
-				typeOfMessage = "GETLISTOFACTIONS";
-				response = respondToGetObjectActions(requestMessage);
-				break;
-				
-			case NetworkMessageRequest.OPERATION_GETLISTOFEVENTS:
-				
-				logger.info(this.objectId + ": Request ID is " + requestMessage.getRequestId() + ", operation is GETLISTOFEVENTS.");
-				typeOfMessage = "GETLISTOFEVENTS";
-				response = respondToGetObjectEvents(requestMessage);
-				break;
-				
-			case NetworkMessageRequest.OPERATION_GETLISTOFPROPERTIES:
-				
-				logger.info(this.objectId + ": Request ID is " + requestMessage.getRequestId() + ", operation is GETLISTOFPROPERTIES.");
-				typeOfMessage = "GETLISTOFPROPERTIES";
-				response = respondToGetObjectProperties(requestMessage);
-				break;
-				
-			case NetworkMessageRequest.OPERATION_GETPROPERTYVALUE:
-				
-				logger.info(this.objectId + ": Request ID is " + requestMessage.getRequestId() + ", operation is GETPROPERTYVALUE.");
-				typeOfMessage = "GETPROPERTYVALUE";
-				response = respondToGetObjectProperty(requestMessage);
-				break;
-				
-			case NetworkMessageRequest.OPERATION_GETTASKSTATUS:
-				
-				logger.info(this.objectId + ": Request ID is " + requestMessage.getRequestId() + ", operation is GETTASKSTATUS.");
-				typeOfMessage = "GETTASKSTATUS";
-				response = respondToGetTaskStatus(requestMessage);
-				break;
-				
-			case NetworkMessageRequest.OPERATION_SETPROPERTYVALUE:
-				
-				logger.info(this.objectId + ": Request ID is " + requestMessage.getRequestId() + ", operation is SETPROPERTYVALUE.");
-				typeOfMessage = "SETPROPERTYVALUE";
-				response = respondToSetObjectProperty(requestMessage);
-				break;
-				
-			case NetworkMessageRequest.OPERATION_STARTACTION:
-				
-				logger.info(this.objectId + ": Request ID is " + requestMessage.getRequestId() + ", operation is STARTACTION.");
-				typeOfMessage = "STARTACTION";
-				response = respondToStartActionRequest(requestMessage);
-				break;
-				
-			case NetworkMessageRequest.OPERATION_SUBSCRIBETOEVENTCHANNEL:
-				
-				logger.info(this.objectId + ": Request ID is " + requestMessage.getRequestId() + ", operation is SUBSCRIBETOEVENTCHANNEL.");
-				typeOfMessage = "SUBSCRIBETOEVENTCHANNEL";
-				response = respondToEventSubscriptionRequest(requestMessage);
-				break;
-				
-			case NetworkMessageRequest.OPERATION_UNSUBSCRIBEFROMEVENTCHANNEL:
-				
-				logger.info(this.objectId + ": Request ID is " + requestMessage.getRequestId() + ", operation is UNSUBSCRIBEFROMEVENTCHANNEL.");
-				typeOfMessage = "UNSUBSCRIBEFROMEVENTCHANNEL";
-				response = respondToCancelSubscriptionRequest(requestMessage);
-				break;
-				
-			case NetworkMessageRequest.OPERATION_GETTHINGDESCRIPTION:
-				
-				logger.info(this.objectId + ": Request ID is " + requestMessage.getRequestId() + ", operation is GETTHINGDESCRIPTION.");
-				typeOfMessage = "GETTHINGDESCRIPTION";
-				response = respondToGetObjectThingDescription(requestMessage);
-				break;
-
-			case NetworkMessageRequest.OPERATION_SENDNOTIFICATION:
-				
-				logger.info(this.objectId + ": Request ID is " + requestMessage.getRequestId() + ", operation is SENDNOTIFICATION.");
-				typeOfMessage = "SENDNOTIFICATION";
-				response = respondToSendNotification(requestMessage);
-				break;
-			}
-		
+			break;
 			
-			if (response != null) {
-				response.setSourceOid(objectId);
-				// don't get confused, our response destination is the request source ;) 
-				response.setDestinationOid(requestMessage.getSourceOid());
-			}
+		case NetworkMessageRequest.OPERATION_GETEVENTCHANNELSTATUS:
 			
-			messageCounter.addMessage(requestMessage.getRequestId(), MessageCounter.RECORDTYPE_INT_OK, requestMessage.getSourceOid(), this.objectId, false, typeOfMessage, sizeInBytes);
-			sendMessage(this.objectId, requestMessage.getSourceOid(), response.buildMessageString());
+			logger.info(this.objectId + ": Request ID is " + requestMessage.getRequestId() + ", operation is GETEVENTCHANNELSTATUS.");
+			typeOfMessage = "GETEVENTCHANNELSTATUS";
+			response = respondToEventChannelStatusQuery(requestMessage);
+			break;
 			
-		} else {
+		case NetworkMessageRequest.OPERATION_GETLISTOFACTIONS:
+			
+			logger.info(this.objectId + ": Request ID is " + requestMessage.getRequestId() + ", operation is GETLISTOFACTIONS.");
+			typeOfMessage = "GETLISTOFACTIONS";
+			response = respondToGetObjectActions(requestMessage);
+			break;
+			
+		case NetworkMessageRequest.OPERATION_GETLISTOFEVENTS:
+			
+			logger.info(this.objectId + ": Request ID is " + requestMessage.getRequestId() + ", operation is GETLISTOFEVENTS.");
+			typeOfMessage = "GETLISTOFEVENTS";
+			response = respondToGetObjectEvents(requestMessage);
+			break;
+			
+		case NetworkMessageRequest.OPERATION_GETLISTOFPROPERTIES:
+			
+			logger.info(this.objectId + ": Request ID is " + requestMessage.getRequestId() + ", operation is GETLISTOFPROPERTIES.");
+			typeOfMessage = "GETLISTOFPROPERTIES";
+			response = respondToGetObjectProperties(requestMessage);
+			break;
+			
+		case NetworkMessageRequest.OPERATION_GETPROPERTYVALUE:
+			
+			logger.info(this.objectId + ": Request ID is " + requestMessage.getRequestId() + ", operation is GETPROPERTYVALUE.");
+			typeOfMessage = "GETPROPERTYVALUE";
+			response = respondToGetObjectProperty(requestMessage);
+			break;
+			
+		case NetworkMessageRequest.OPERATION_GETTASKSTATUS:
 			
-			messageCounter.addMessage(requestMessage.getRequestId(), MessageCounter.RECORDTYPE_INT_NOT_POSSIBLE_TO_SEND, requestMessage.getSourceOid(), this.objectId, false, typeOfMessage, sizeInBytes);
-			logger.warning(this.objectId + ": The source OID " + requestMessage.getSourceOid() + " of the request " 
-					+ requestMessage.getRequestId() + " is not in the roster of this object.");
+			logger.info(this.objectId + ": Request ID is " + requestMessage.getRequestId() + ", operation is GETTASKSTATUS.");
+			typeOfMessage = "GETTASKSTATUS";
+			response = respondToGetTaskStatus(requestMessage);
+			break;
+			
+		case NetworkMessageRequest.OPERATION_SETPROPERTYVALUE:
+			
+			logger.info(this.objectId + ": Request ID is " + requestMessage.getRequestId() + ", operation is SETPROPERTYVALUE.");
+			typeOfMessage = "SETPROPERTYVALUE";
+			response = respondToSetObjectProperty(requestMessage);
+			break;
+			
+		case NetworkMessageRequest.OPERATION_STARTACTION:
+			
+			logger.info(this.objectId + ": Request ID is " + requestMessage.getRequestId() + ", operation is STARTACTION.");
+			typeOfMessage = "STARTACTION";
+			response = respondToStartActionRequest(requestMessage);
+			break;
+			
+		case NetworkMessageRequest.OPERATION_SUBSCRIBETOEVENTCHANNEL:
+			
+			logger.info(this.objectId + ": Request ID is " + requestMessage.getRequestId() + ", operation is SUBSCRIBETOEVENTCHANNEL.");
+			typeOfMessage = "SUBSCRIBETOEVENTCHANNEL";
+			response = respondToEventSubscriptionRequest(requestMessage);
+			break;
+			
+		case NetworkMessageRequest.OPERATION_UNSUBSCRIBEFROMEVENTCHANNEL:
+			
+			logger.info(this.objectId + ": Request ID is " + requestMessage.getRequestId() + ", operation is UNSUBSCRIBEFROMEVENTCHANNEL.");
+			typeOfMessage = "UNSUBSCRIBEFROMEVENTCHANNEL";
+			response = respondToCancelSubscriptionRequest(requestMessage);
+			break;
+			
+		case NetworkMessageRequest.OPERATION_GETTHINGDESCRIPTION:
+			
+			logger.info(this.objectId + ": Request ID is " + requestMessage.getRequestId() + ", operation is GETTHINGDESCRIPTION.");
+			typeOfMessage = "GETTHINGDESCRIPTION";
+			response = respondToGetObjectThingDescription(requestMessage);
+			break;
+
+		case NetworkMessageRequest.OPERATION_SENDNOTIFICATION:
+			
+			logger.info(this.objectId + ": Request ID is " + requestMessage.getRequestId() + ", operation is SENDNOTIFICATION.");
+			typeOfMessage = "SENDNOTIFICATION";
+			response = respondToSendNotification(requestMessage);
+			break;
+		}
+	
+		
+		if (trace != null) {
+			trace.record(TraceContext.STAGE_AGENTEND);
 		}
 		
+		if (response != null) {
+			response.setSourceOid(objectId);
+			// don't get confused, our response destination is the request source ;) 
+			response.setDestinationOid(requestMessage.getSourceOid());
+			
+			if (trace != null) {
+				trace.record(TraceContext.STAGE_RESPONSESEND);
+				response.setTrace(trace);
+			}
+		}
+		
+		messageCounter.addMessage(requestMessage.getRequestId(), MessageCounter.RECORDTYPE_INT_OK, requestMessage.getSourceOid(), this.objectId, false, typeOfMessage, sizeInBytes);
+		sendMessage(this.objectId, requestMessage.getSourceOid(), response);
+		
+		GatewayMetrics.recordRequest(typeOfMessage, GatewayMetrics.SIDE_RESPONDER, startTime);
+		
+		
 		
 		
 	}
@@ -1237,8 +1521,6 @@ public class ConnectionDescriptor {
 	 */
 	private void processMessageResponse(NetworkMessage networkMessage){
 		
-		logger.info(this.objectId + ": This is a response to request ID " + networkMessage.getRequestId());
-		
 		messageQueue.add(networkMessage);
 	}
 	
@@ -1255,8 +1537,12 @@ public class ConnectionDescriptor {
 		// cast it to event message first (it is safe and also necessary)
 		NetworkMessageEvent eventMessage = (NetworkMessageEvent) networkMessage;
 		
-		logger.info(this.objectId + ": Event " + eventMessage.getEventId() + " arrived from " + eventMessage.getSourceOid() 
-							+ ". Event body: " + eventMessage.getEventBody());
+		if (messageLog.isLoggable(Level.INFO)) {
+			messageLog.log(Level.INFO, MessageLog.CATEGORY_EVENT, objectId, "event arrived", 
+					"eventId", eventMessage.getEventId(), "source", eventMessage.getSourceOid());
+		}
+		messageLog.log(Level.FINE, MessageLog.CATEGORY_EVENT, objectId, 
+				() -> "Event body: " + eventMessage.getEventBody());
 		
 		
 		// don't process the event if we are not subscribed to it
@@ -1273,8 +1559,7 @@ public class ConnectionDescriptor {
 					);
 			
 			// Calculate message size
-			byte[] byteArray = eventMessage.buildMessageString().getBytes();
-			int sizeInBytes = byteArray.length;
+			int sizeInBytes = eventMessage.getMessageSize();
 			
 			// Count event
 			messageCounter.addMessage(eventMessage.getRequestId(), MessageCounter.RECORDTYPE_INT_OK, eventMessage.getSourceOid(), this.objectId, false, "EVENTMESSAGE", sizeInBytes);
@@ -1331,7 +1616,7 @@ public class ConnectionDescriptor {
 				// TODO Enable message counter for event ACK
 				//messageCounter.addMessage(eventMessage.getRequestId(), MessageCounter.RECORDTYPE_INT_OK, eventMessage.getSourceOid(), this.objectId, false, "eventAck");
 
-				sendMessage(this.objectId, eventMessage.getSourceOid(), responseToSender.buildMessageString());
+				sendMessage(this.objectId, eventMessage.getSourceOid(), responseToSender);
 				
 				logger.info(this.objectId + ": A respond (ACK) has been sent.");
 			}
@@ -1349,7 +1634,7 @@ public class ConnectionDescriptor {
 	 */
 	private NetworkMessageResponse respondToGetObjectEvents(NetworkMessageRequest requestMessage) {
 		
-		JSONObject events = data.getEvents();
+		JsonObject events = data.getEvents();
 		
 		NetworkMessageResponse response = new NetworkMessageResponse(config, logger);
 		response.setResponseBody(events.toString());
@@ -2191,11 +2476,28 @@ public class ConnectionDescriptor {
 		
 		request.setRequestBody(body);
 		
+		request.setAcceptEncoding(acceptEncoding);
+		
+		// the stamps recorded so far travel with the request, the remote gateway adds its own
+		TraceContext trace = null;
+		if (tracing) {
+			trace = TraceContext.start();
+			trace.record(TraceContext.STAGE_RESTENTRY, TraceContext.takeRestEntry());
+			trace.record(TraceContext.STAGE_SEND);
+			request.setTrace(trace);
+		}
+		
 		// Calculate message size
-		byte[] byteArray = request.buildMessageString().getBytes();
-		int sizeInBytes = byteArray.length;
+		int sizeInBytes = request.getMessageSize();
 		
-		if (!sendMessage(this.objectId, destinationOid, request.buildMessageString())){
+		// the response can come back before sendMessage returns
+		awaitedResponses.add(requestId);
+		
+		long sendTime = System.nanoTime();
+		
+		if (!sendMessage(this.objectId, destinationOid, request)){
+			
+			awaitedResponses.remove(requestId);
 			
 			// monitoring 
 			messageCounter.addMessage(requestId, MessageCounter.RECORDTYPE_INT_NOT_POSSIBLE_TO_SEND, this.objectId, destinationOid, true, typeOfMessage, sizeInBytes);
@@ -2216,13 +2518,26 @@ public class ConnectionDescriptor {
 		
 		
 		// this will wait for response
+		ResponseWaitEvent responseWaitEvent = new ResponseWaitEvent();
+		responseWaitEvent.begin();
+		
 		NetworkMessageResponse response = (NetworkMessageResponse) retrieveMessage(requestId);
 		
+		responseWaitEvent.complete(this.objectId, destinationOid, typeOfMessage, requestId, sizeInBytes, 
+				response != null);
+		
+		if (trace != null && response != null) {
+			trace.record(TraceContext.STAGE_RESPONSEMATCH);
+		}
+		
+		awaitedResponses.remove(requestId);
+		
 		// nothing came through
 		if (response == null){
 
 			// monitoring 
 			messageCounter.addMessage(requestId, MessageCounter.RECORDTYPE_INT_NO_RESPONSE_MESSAGE_RECEIVED, this.objectId, destinationOid, true, typeOfMessage, sizeInBytes);
+			GatewayMetrics.countTimeout(typeOfMessage);
 			
 			statusCodeReason = new String("No response message received. The message might have got lost. Source ID: " 
 					+ objectId + " Destination ID: " + destinationOid + " Request ID: " + requestId);
@@ -2239,7 +2554,17 @@ public class ConnectionDescriptor {
 		}
 		
 		// monitoring 
-		messageCounter.addMessage(requestId, MessageCounter.RECORDTYPE_INT_OK, this.objectId, destinationOid, true, typeOfMessage, sizeInBytes);
+		messageCounter.addMessage(requestId, MessageCounter.RECORDTYPE_INT_OK, this.objectId, destinationOid, true, typeOfMessage, sizeInBytes, 
+				TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - sendTime));
+		GatewayMetrics.recordRequest(typeOfMessage, GatewayMetrics.SIDE_REQUESTER, sendTime);
+		
+		if (trace != null) {
+			trace.merge(response.getTrace());
+			
+			for (Map.Entry<String, Long> part : trace.getBreakdown().entrySet()) {
+				GatewayMetrics.recordStage(typeOfMessage, part.getKey(), part.getValue());
+			}
+		}
 		
 		// response arrived
 		statusMessage = new StatusMessage(
@@ -2257,6 +2582,10 @@ public class ConnectionDescriptor {
 							+ response.getResponseBody());
 		}
 		
+		if (trace != null && traceBreakdown) {
+			statusMessage.setTrace(trace.toBreakdownJson());
+		}
+		
 		return statusMessage;
 		
 	}
@@ -2313,24 +2642,48 @@ public class ConnectionDescriptor {
 	 *  
 	 * @param sourceOid Source OID.
 	 * @param destinationOid Destination OID.
-	 * @param message Message to be sent.
+	 * @param networkMessage Message to be sent. It is serialised only once, even if sent to many destinations.
 	 * @return True if the message was successfully sent via either local routing or by network. False otherwise.
 	 */
-	private boolean sendMessage(String sourceOid, String destinationOid, String message) {
+	private boolean sendMessage(String sourceOid, String destinationOid, NetworkMessage networkMessage) {
+		
+		GatewayMetrics.countMessage(GatewayMetrics.DIRECTION_OUTBOUND);
 		
-		logger.info(this.objectId + ": Sending message: \n" + message);
+		// JSON of the message, for local routing and destinations that don't accept the binary envelope
+		String message = networkMessage.buildMessageString();
+		
+		if (messageLog.isLoggable(Level.INFO)) {
+			messageLog.log(Level.INFO, MessageLog.CATEGORY_SEND, objectId, "sending message", 
+					"destination", destinationOid, "type", describeMessageType(networkMessage.getMessageType()), 
+					"requestId", networkMessage.getRequestId(), "size", networkMessage.getMessageSize());
+		}
+		messageLog.log(Level.FINE, MessageLog.CATEGORY_SEND, objectId, () -> "Message string: \n" + message);
 		
 		// try internal routing first
 		if (commManager.tryToSendLocalMessage(sourceOid, destinationOid, message)) {
 			
-			logger.fine(this.objectId + ": Message was routed locally.");
+			if (messageLog.isLoggable(Level.FINE)) {
+				messageLog.log(Level.FINE, MessageLog.CATEGORY_SEND, objectId, "message routed locally", 
+						"destination", destinationOid);
+			}
 			return true;
 		}
 		
-		// if not successful, try it via network 
-		if (commEngine.sendMessage(destinationOid, message)) {
+		// if not successful, try it via network, in the most compact form the destination accepts
+		String networkForm = null;
+		if (binaryEnvelopeCodec.shouldEncode(destinationOid)) {
+			networkForm = binaryEnvelopeCodec.encode(networkMessage);
+		}
+		if (networkForm == null) {
+			networkForm = payloadCompression.compress(destinationOid, message);
+		}
+		
+		if (commEngine.sendMessage(destinationOid, networkForm)) {
 			
-			logger.fine(this.objectId + ": Message was sent through network.");
+			if (messageLog.isLoggable(Level.FINE)) {
+				messageLog.log(Level.FINE, MessageLog.CATEGORY_SEND, objectId, "message sent through network", 
+						"destination", destinationOid);
+			}
 			return true;
 		}
 		
@@ -2339,8 +2692,29 @@ public class ConnectionDescriptor {
 		// both failed
 		return false;
 	}
-	
-	
+
+
+	/**
+	 * Readable name of a message type, for logging.
+	 *
+	 * @param messageType Type of the message.
+	 * @return Name of the type.
+	 */
+	private static String describeMessageType(int messageType) {
+
+		switch (messageType) {
+		case NetworkMessageRequest.MESSAGE_TYPE:
+			return "request";
+		case NetworkMessageResponse.MESSAGE_TYPE:
+			return "response";
+		case NetworkMessageEvent.MESSAGE_TYPE:
+			return "event";
+		default:
+			return "unknown";
+		}
+	}
+
+
 	/**
 	 * Verifies that the destination is in our roster. This check is done to make sure the communication is performed
 	 * only between objects that know each other and have signed contracts. 
@@ -0,0 +1,471 @@
+package eu.bavenir.ogwapi.commons;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.configuration2.XMLConfiguration;
+
+/*
+ * STRUCTURE:
+ * - constants
+ * - fields
+ * - public methods
+ * - private methods
+ */
+
+/**
+ * Gateway wide scheduler for periodic house keeping - roster renewals, action task queues, session recovery, Agent
+ * health checks and the like. Previously each of these created its own {@link java.util.Timer Timer}, i.e. its own
+ * thread, which with thousands of objects and actions meant thousands of threads doing next to nothing. Now they all
+ * share a small pool of daemon threads.
+ *
+ * Every registration returns a {@link java.util.concurrent.ScheduledFuture ScheduledFuture}, that has to be cancelled
+ * by its owner when the owner is being destroyed. Cancelled registrations are removed from the queue right away, so
+ * they don't keep their owners in memory.
+ *
+ * The scheduler threads only keep time, the tasks registered by {@link #schedule(Runnable, long, long) schedule} and
+ * {@link #scheduleOnce(Runnable, long) scheduleOnce} must not block. Tasks that wait for the network run on one of two
+ * separate, bounded pools, so a few slow calls can not delay the timers of all the other objects:
+ *
+ * - I/O threads run the connection and house keeping work - reconnections and resumption of XMPP sessions, roster
+ * reloads, session recovery, counter uploads. These tasks are registered by {@link #scheduleBlocking(Runnable, long,
+ * long) scheduleBlocking} or {@link #scheduleOnceBlocking(Runnable, long) scheduleOnceBlocking}, or handed over by
+ * {@link #execute(Runnable) execute}.
+ *
+ * - Agent threads run the work that calls the Agent and may wait for it as long as the Agent timeout - starting of
+ * action tasks. These are handed over by {@link #executeAgentCall(Runnable) executeAgentCall}. A slow Agent can keep
+ * all of them busy, but it never delays the reconnections and roster reloads waiting for an I/O thread. Messages
+ * arriving through the XMPP component and the Agent health checks have threads of their own, see {@link
+ * eu.bavenir.ogwapi.commons.engines.xmpp.XmppComponentConnection XmppComponentConnection} and {@link
+ * eu.bavenir.ogwapi.commons.connectors.http.AgentRouter AgentRouter}.
+ *
+ * An exception thrown by a task is logged and the task keeps its schedule.
+ *
+ * @author sulfo
+ *
+ */
+public class GatewayScheduler {
+
+	/* === CONSTANTS === */
+
+	/**
+	 * Name of the configuration parameter for the number of scheduler threads.
+	 */
+	private static final String CONFIG_PARAM_SCHEDULERTHREADS = "general.schedulerThreads";
+
+	/**
+	 * Default value of {@link #CONFIG_PARAM_SCHEDULERTHREADS CONFIG_PARAM_SCHEDULERTHREADS} configuration parameter.
+	 * This value is taken into account when no suitable value is found in the configuration file.
+	 */
+	private static final int CONFIG_DEF_SCHEDULERTHREADS = 4;
+
+	/**
+	 * Prefix of the names of the scheduler threads.
+	 */
+	private static final String THREAD_NAME_PREFIX = "ogwapi-scheduler-";
+
+	/**
+	 * Name of the configuration parameter for the maximum number of threads running the blocking tasks.
+	 */
+	private static final String CONFIG_PARAM_IOTHREADS = "general.ioThreads";
+
+	/**
+	 * Default value of {@link #CONFIG_PARAM_IOTHREADS CONFIG_PARAM_IOTHREADS} configuration parameter. This value is
+	 * taken into account when no suitable value is found in the configuration file.
+	 */
+	private static final int CONFIG_DEF_IOTHREADS = 16;
+
+	/**
+	 * Prefix of the names of the threads running the blocking tasks.
+	 */
+	private static final String IO_THREAD_NAME_PREFIX = "ogwapi-io-";
+
+	/**
+	 * How long an idle I/O or Agent thread is kept, in seconds.
+	 */
+	private static final long IO_THREAD_KEEPALIVE = 60;
+
+	/**
+	 * Name of the configuration parameter for the maximum number of threads running the tasks that call the Agent.
+	 */
+	private static final String CONFIG_PARAM_AGENTTHREADS = "general.agentThreads";
+
+	/**
+	 * Default value of {@link #CONFIG_PARAM_AGENTTHREADS CONFIG_PARAM_AGENTTHREADS} configuration parameter. This value
+	 * is taken into account when no suitable value is found in the configuration file.
+	 */
+	private static final int CONFIG_DEF_AGENTTHREADS = 16;
+
+	/**
+	 * Prefix of the names of the threads running the tasks that call the Agent.
+	 */
+	private static final String AGENT_THREAD_NAME_PREFIX = "ogwapi-agent-";
+
+
+	/* === FIELDS === */
+
+	/**
+	 * The executor, shared by the whole gateway. Created on first use if {@link #initialize(XMLConfiguration, Logger)
+	 * initialize} was not called.
+	 */
+	private static ScheduledThreadPoolExecutor executor;
+
+	/**
+	 * The executor of blocking tasks, shared by the whole gateway. Created on first use if {@link
+	 * #initialize(XMLConfiguration, Logger) initialize} was not called.
+	 */
+	private static ThreadPoolExecutor ioExecutor;
+
+	/**
+	 * The executor of tasks that call the Agent, shared by the whole gateway. Created on first use if {@link
+	 * #initialize(XMLConfiguration, Logger) initialize} was not called.
+	 */
+	private static ThreadPoolExecutor agentExecutor;
+
+	/**
+	 * Logger of the OGWAPI.
+	 */
+	private static Logger logger;
+
+
+	/* === PUBLIC METHODS === */
+
+	/**
+	 * Creates the shared executor with parameters from configuration. Should be called once during start up, before
+	 * anything gets scheduled. Subsequent calls have no effect.
+	 *
+	 * @param config Configuration of the OGWAPI.
+	 * @param logger Logger of the OGWAPI.
+	 */
+	public static synchronized void initialize(XMLConfiguration config, Logger logger) {
+
+		GatewayScheduler.logger = logger;
+
+		if (ioExecutor == null) {
+
+			int ioThreads = config.getInt(CONFIG_PARAM_IOTHREADS, CONFIG_DEF_IOTHREADS);
+			if (ioThreads < 1) {
+				logger.warning("Wrong parameter entered for " + CONFIG_PARAM_IOTHREADS + " in the configuration file: "
+						+ ioThreads + ". Setting to default: " + CONFIG_DEF_IOTHREADS);
+				ioThreads = CONFIG_DEF_IOTHREADS;
+			}
+
+			logger.config("Gateway I/O threads: " + ioThreads);
+
+			ioExecutor = createIoExecutor(ioThreads, IO_THREAD_NAME_PREFIX);
+		}
+
+		if (agentExecutor == null) {
+
+			int agentThreads = config.getInt(CONFIG_PARAM_AGENTTHREADS, CONFIG_DEF_AGENTTHREADS);
+			if (agentThreads < 1) {
+				logger.warning("Wrong parameter entered for " + CONFIG_PARAM_AGENTTHREADS + " in the configuration "
+						+ "file: " + agentThreads + ". Setting to default: " + CONFIG_DEF_AGENTTHREADS);
+				agentThreads = CONFIG_DEF_AGENTTHREADS;
+			}
+
+			logger.config("Gateway Agent threads: " + agentThreads);
+
+			agentExecutor = createIoExecutor(agentThreads, AGENT_THREAD_NAME_PREFIX);
+		}
+
+		if (executor != null) {
+			return;
+		}
+
+		int threads = config.getInt(CONFIG_PARAM_SCHEDULERTHREADS, CONFIG_DEF_SCHEDULERTHREADS);
+		if (threads < 1) {
+			logger.warning("Wrong parameter entered for " + CONFIG_PARAM_SCHEDULERTHREADS + " in the configuration file: "
+					+ threads + ". Setting to default: " + CONFIG_DEF_SCHEDULERTHREADS);
+			threads = CONFIG_DEF_SCHEDULERTHREADS;
+		}
+
+		logger.config("Gateway scheduler threads: " + threads);
+
+		executor = createExecutor(threads);
+	}
+
+
+	/**
+	 * Registers a task to be executed repeatedly, with the given delay between the end of one execution and the start
+	 * of the next one (the same as {@link java.util.Timer#schedule(java.util.TimerTask, long, long) Timer.schedule}).
+	 *
+	 * @param task Task to be executed.
+	 * @param initialDelay Delay before the first execution, in milliseconds.
+	 * @param period Delay between executions, in milliseconds.
+	 * @return Handle of the registration, to be cancelled when the owner of the task is destroyed.
+	 */
+	public static ScheduledFuture<?> schedule(Runnable task, long initialDelay, long period) {
+
+		return getExecutor().scheduleWithFixedDelay(guard(task), initialDelay, period, TimeUnit.MILLISECONDS);
+	}
+
+
+	/**
+	 * Registers a task to be executed once, after the given delay.
+	 *
+	 * @param task Task to be executed.
+	 * @param delay Delay before the execution, in milliseconds.
+	 * @return Handle of the registration, can be used to cancel the task before it runs.
+	 */
+	public static ScheduledFuture<?> scheduleOnce(Runnable task, long delay) {
+
+		return getExecutor().schedule(guard(task), delay, TimeUnit.MILLISECONDS);
+	}
+
+
+	/**
+	 * Registers a task that blocks (waits for the network) to be executed repeatedly. The scheduler only keeps the time,
+	 * the task itself runs on an I/O thread. If the previous execution has not finished when the time comes, the turn
+	 * is skipped, so a slow task never runs twice at the same time.
+	 *
+	 * @param task Task to be executed.
+	 * @param initialDelay Delay before the first execution, in milliseconds.
+	 * @param period Delay between executions, in milliseconds.
+	 * @return Handle of the registration, to be cancelled when the owner of the task is destroyed.
+	 */
+	public static ScheduledFuture<?> scheduleBlocking(Runnable task, long initialDelay, long period) {
+
+		AtomicBoolean running = new AtomicBoolean(false);
+
+		return schedule(new Runnable() {
+			@Override
+			public void run() {
+				if (running.compareAndSet(false, true)) {
+					execute(() -> {
+						try {
+							task.run();
+						} finally {
+							running.set(false);
+						}
+					});
+				}
+			}
+		}, initialDelay, period);
+	}
+
+
+	/**
+	 * Registers a task that blocks (waits for the network) to be executed once on an I/O thread, after the given delay.
+	 *
+	 * @param task Task to be executed.
+	 * @param delay Delay before the execution, in milliseconds.
+	 * @return Handle of the registration, can be used to cancel the task before it is handed to an I/O thread.
+	 */
+	public static ScheduledFuture<?> scheduleOnceBlocking(Runnable task, long delay) {
+
+		return scheduleOnce(() -> execute(task), delay);
+	}
+
+
+	/**
+	 * Executes a task that blocks (waits for the network) on an I/O thread, as soon as one is free. Tasks that call the
+	 * Agent go to {@link #executeAgentCall(Runnable) executeAgentCall} instead.
+	 *
+	 * @param task Task to be executed.
+	 * @return Handle of the execution.
+	 */
+	public static Future<?> execute(Runnable task) {
+
+		return getIoExecutor().submit(guard(task));
+	}
+
+
+	/**
+	 * Executes a task that calls the Agent on an Agent thread, as soon as one is free.
+	 *
+	 * @param task Task to be executed.
+	 * @return Handle of the execution.
+	 */
+	public static Future<?> executeAgentCall(Runnable task) {
+
+		return getAgentExecutor().submit(guard(task));
+	}
+
+
+	/**
+	 * Cancels a registration, if there is one. Running executions are allowed to finish.
+	 *
+	 * @param registration Handle returned by {@link #schedule(Runnable, long, long) schedule}, may be null.
+	 */
+	public static void cancel(ScheduledFuture<?> registration) {
+		if (registration != null) {
+			registration.cancel(false);
+		}
+	}
+
+
+	/**
+	 * Returns the number of registrations that are waiting for their next execution.
+	 *
+	 * @return Number of registered tasks.
+	 */
+	public static int getNumberOfRegistrations() {
+		return getExecutor().getQueue().size();
+	}
+
+
+	/**
+	 * Stops the scheduler. Nothing gets executed after this.
+	 */
+	public static synchronized void shutdown() {
+		if (executor != null) {
+			executor.shutdownNow();
+		}
+
+		if (ioExecutor != null) {
+			ioExecutor.shutdownNow();
+		}
+
+		if (agentExecutor != null) {
+			agentExecutor.shutdownNow();
+		}
+	}
+
+
+	/* === PRIVATE METHODS === */
+
+	/**
+	 * Returns the shared executor, creating it with default parameters if necessary.
+	 *
+	 * @return The executor.
+	 */
+	private static synchronized ScheduledThreadPoolExecutor getExecutor() {
+
+		if (executor == null) {
+			executor = createExecutor(CONFIG_DEF_SCHEDULERTHREADS);
+		}
+
+		return executor;
+	}
+
+
+	/**
+	 * Returns the executor of blocking tasks, creating it with default parameters if necessary.
+	 *
+	 * @return The executor.
+	 */
+	private static synchronized ThreadPoolExecutor getIoExecutor() {
+
+		if (ioExecutor == null) {
+			ioExecutor = createIoExecutor(CONFIG_DEF_IOTHREADS, IO_THREAD_NAME_PREFIX);
+		}
+
+		return ioExecutor;
+	}
+
+
+	/**
+	 * Returns the executor of tasks that call the Agent, creating it with default parameters if necessary.
+	 *
+	 * @return The executor.
+	 */
+	private static synchronized ThreadPoolExecutor getAgentExecutor() {
+
+		if (agentExecutor == null) {
+			agentExecutor = createIoExecutor(CONFIG_DEF_AGENTTHREADS, AGENT_THREAD_NAME_PREFIX);
+		}
+
+		return agentExecutor;
+	}
+
+
+	/**
+	 * Wraps a task, so the exceptions it throws are logged instead of silently cancelling its schedule.
+	 *
+	 * @param task Task to be wrapped.
+	 * @return Wrapped task.
+	 */
+	private static Runnable guard(Runnable task) {
+
+		return new Runnable() {
+			@Override
+			public void run() {
+				try {
+					task.run();
+				} catch (RuntimeException e) {
+					getLogger().log(Level.WARNING, "Scheduled task failed: " + e.getMessage(), e);
+				}
+			}
+		};
+	}
+
+
+	/**
+	 * Returns the logger, falling back to the class logger if the scheduler was not initialised.
+	 *
+	 * @return The logger.
+	 */
+	private static Logger getLogger() {
+
+		if (logger == null) {
+			return Logger.getLogger(GatewayScheduler.class.getName());
+		}
+
+		return logger;
+	}
+
+
+	/**
+	 * Creates the executor with daemon threads, that drops cancelled tasks from its queue.
+	 *
+	 * @param threads Number of threads.
+	 * @return New executor.
+	 */
+	private static ScheduledThreadPoolExecutor createExecutor(int threads) {
+
+		AtomicInteger threadNumber = new AtomicInteger(0);
+
+		ScheduledThreadPoolExecutor newExecutor = new ScheduledThreadPoolExecutor(threads, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, THREAD_NAME_PREFIX + threadNumber.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		newExecutor.setRemoveOnCancelPolicy(true);
+		newExecutor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+
+		return newExecutor;
+	}
+
+
+	/**
+	 * Creates an executor of blocking tasks with daemon threads. Threads are started as tasks arrive, up to the given
+	 * number, further tasks wait in a queue. Idle threads end after a while.
+	 *
+	 * @param threads Maximum number of threads.
+	 * @param threadNamePrefix Prefix of the names of the threads.
+	 * @return New executor.
+	 */
+	private static ThreadPoolExecutor createIoExecutor(int threads, String threadNamePrefix) {
+
+		AtomicInteger threadNumber = new AtomicInteger(0);
+
+		ThreadPoolExecutor newExecutor = new ThreadPoolExecutor(threads, threads, IO_THREAD_KEEPALIVE, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable runnable) {
+						Thread thread = new Thread(runnable, threadNamePrefix + threadNumber.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+
+		newExecutor.allowCoreThreadTimeOut(true);
+
+		return newExecutor;
+	}
+
+}
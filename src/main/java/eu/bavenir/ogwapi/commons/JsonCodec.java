@@ -0,0 +1,231 @@
+package eu.bavenir.ogwapi.commons;
+
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.Writer;
+import java.util.NoSuchElementException;
+
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonBuilderFactory;
+import javax.json.JsonException;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+import javax.json.JsonReader;
+import javax.json.JsonReaderFactory;
+import javax.json.JsonWriter;
+import javax.json.JsonWriterFactory;
+import javax.json.spi.JsonProvider;
+import javax.json.stream.JsonGenerator;
+import javax.json.stream.JsonGeneratorFactory;
+import javax.json.stream.JsonParser;
+import javax.json.stream.JsonParserFactory;
+
+/*
+ * STRUCTURE:
+ * - constants
+ * - fields
+ * - public methods
+ * - private methods
+ */
+
+/**
+ * Gateway wide access to javax.json. Every static Json.create* method looks the JSON provider up through the
+ * {@link java.util.ServiceLoader ServiceLoader} and creates a new provider instance, with its own buffer pool - for
+ * every single message, status or record. This class looks the provider up once and keeps one factory of each kind,
+ * so the lookup is gone from the hot path and the buffers of readers, parsers, writers and generators are reused.
+ *
+ * The factories are thread safe, the readers, builders etc. they create are not and should not be shared.
+ *
+ * @author sulfo
+ *
+ */
+public class JsonCodec {
+
+	/* === CONSTANTS === */
+
+	/**
+	 * The JSON provider, looked up once.
+	 */
+	private static final JsonProvider PROVIDER = JsonProvider.provider();
+
+	/**
+	 * Factory for readers.
+	 */
+	private static final JsonReaderFactory READER_FACTORY = PROVIDER.createReaderFactory(null);
+
+	/**
+	 * Factory for writers.
+	 */
+	private static final JsonWriterFactory WRITER_FACTORY = PROVIDER.createWriterFactory(null);
+
+	/**
+	 * Factory for builders.
+	 */
+	private static final JsonBuilderFactory BUILDER_FACTORY = PROVIDER.createBuilderFactory(null);
+
+	/**
+	 * Factory for streaming parsers.
+	 */
+	private static final JsonParserFactory PARSER_FACTORY = PROVIDER.createParserFactory(null);
+
+	/**
+	 * Factory for streaming generators.
+	 */
+	private static final JsonGeneratorFactory GENERATOR_FACTORY = PROVIDER.createGeneratorFactory(null);
+
+
+	/* === FIELDS === */
+
+	/* === PUBLIC METHODS === */
+
+	/**
+	 * Returns the shared builder factory, for classes that keep one.
+	 *
+	 * @return Builder factory.
+	 */
+	public static JsonBuilderFactory getBuilderFactory() {
+		return BUILDER_FACTORY;
+	}
+
+
+	/**
+	 * Creates a JSON object builder.
+	 *
+	 * @return New builder.
+	 */
+	public static JsonObjectBuilder createObjectBuilder() {
+		return BUILDER_FACTORY.createObjectBuilder();
+	}
+
+
+	/**
+	 * Creates a JSON array builder.
+	 *
+	 * @return New builder.
+	 */
+	public static JsonArrayBuilder createArrayBuilder() {
+		return BUILDER_FACTORY.createArrayBuilder();
+	}
+
+
+	/**
+	 * Creates a JSON reader.
+	 *
+	 * @param reader Where to read from.
+	 * @return New reader, to be closed after use.
+	 */
+	public static JsonReader createReader(Reader reader) {
+		return READER_FACTORY.createReader(reader);
+	}
+
+
+	/**
+	 * Creates a JSON reader of a string.
+	 *
+	 * @param string String to read.
+	 * @return New reader, to be closed after use.
+	 */
+	public static JsonReader createReader(String string) {
+		return READER_FACTORY.createReader(new StringReader(string));
+	}
+
+
+	/**
+	 * Creates a JSON writer.
+	 *
+	 * @param writer Where to write.
+	 * @return New writer, to be closed after use.
+	 */
+	public static JsonWriter createWriter(Writer writer) {
+		return WRITER_FACTORY.createWriter(writer);
+	}
+
+
+	/**
+	 * Creates a streaming parser.
+	 *
+	 * @param reader Where to read from.
+	 * @return New parser, to be closed after use.
+	 */
+	public static JsonParser createParser(Reader reader) {
+		return PARSER_FACTORY.createParser(reader);
+	}
+
+
+	/**
+	 * Creates a streaming generator.
+	 *
+	 * @param writer Where to write.
+	 * @return New generator, to be closed after use.
+	 */
+	public static JsonGenerator createGenerator(Writer writer) {
+		return GENERATOR_FACTORY.createGenerator(writer);
+	}
+
+
+	/**
+	 * Reads a JSON object from a string. Any string that is not a valid JSON object throws an exception.
+	 *
+	 * @param string String to read.
+	 * @return The object.
+	 * @throws javax.json.JsonException If the string is not a JSON object.
+	 */
+	public static JsonObject readObject(String string) {
+
+		JsonReader reader = createReader(string);
+
+		try {
+			return reader.readObject();
+		} finally {
+			reader.close();
+		}
+	}
+
+
+	/**
+	 * Checks that a string is a single valid JSON object, without building it. The parser only walks through the
+	 * events, so a body that is going to be passed on as it is does not need to be turned into a tree and then back
+	 * into a string.
+	 *
+	 * @param string String to check.
+	 * @throws javax.json.JsonException If the string is not a JSON object.
+	 */
+	public static void validateObject(String string) {
+
+		JsonParser parser = createParser(new StringReader(string));
+
+		try {
+			if (!parser.hasNext() || parser.next() != JsonParser.Event.START_OBJECT) {
+				throw new JsonException("Expected a JSON object.");
+			}
+
+			int depth = 1;
+			while (depth > 0) {
+				switch (parser.next()) {
+				case START_OBJECT:
+				case START_ARRAY:
+					depth++;
+					break;
+				case END_OBJECT:
+				case END_ARRAY:
+					depth--;
+					break;
+				default:
+					break;
+				}
+			}
+
+			if (parser.hasNext()) {
+				throw new JsonException("Unexpected content after the JSON object.");
+			}
+		} catch (NoSuchElementException e) {
+			throw new JsonException("The JSON object is incomplete.", e);
+		} finally {
+			parser.close();
+		}
+	}
+
+
+	/* === PRIVATE METHODS === */
+
+}
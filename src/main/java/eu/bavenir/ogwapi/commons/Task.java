@@ -9,6 +9,7 @@ import org.apache.commons.configuration2.XMLConfiguration;
 import eu.bavenir.ogwapi.commons.connectors.AgentConnector;
 import eu.bavenir.ogwapi.commons.messages.CodesAndReasons;
 import eu.bavenir.ogwapi.commons.messages.NetworkMessageResponse;
+import eu.bavenir.ogwapi.commons.monitoring.events.TaskExecutionEvent;
 
 /*
  * STRUCTURE:
@@ -229,9 +230,15 @@ public class Task {
 			return false;
 		}
 		
+		TaskExecutionEvent event = new TaskExecutionEvent();
+		event.begin();
+		
 		NetworkMessageResponse response = connector.startObjectAction(sourceOid, destinationOid, actionId, body, 
 							parameters);
 		
+		event.complete(sourceOid, destinationOid, actionId, taskId, 
+				response != null && (response.getResponseCode() / 200) == 1);
+		
 		startTime = System.currentTimeMillis();
 		
 		if (response == null || (response.getResponseCode() / 200) != 1) {
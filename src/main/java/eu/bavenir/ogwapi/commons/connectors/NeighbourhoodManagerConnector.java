@@ -3,21 +3,24 @@ package eu.bavenir.ogwapi.commons.connectors;
 import java.io.IOException;
 import java.util.logging.Logger;
 
-import javax.json.Json;
 import javax.json.JsonArrayBuilder;
 import javax.json.JsonObject;
 import javax.json.JsonObjectBuilder;
 
 import org.apache.commons.configuration2.XMLConfiguration;
-import org.json.JSONObject;
 import org.restlet.data.ChallengeResponse;
 import org.restlet.data.ChallengeScheme;
+import org.restlet.data.Encoding;
 import org.restlet.data.MediaType;
+import org.restlet.engine.application.EncodeRepresentation;
 import org.restlet.ext.json.JsonRepresentation;
 import org.restlet.representation.Representation;
 import org.restlet.resource.ClientResource;
 
 import eu.bavenir.ogwapi.commons.ConnectionDescriptor;
+import eu.bavenir.ogwapi.commons.JsonCodec;
+import eu.bavenir.ogwapi.commons.monitoring.GatewayMetrics;
+import eu.bavenir.ogwapi.commons.monitoring.events.NeighbourhoodManagerCallEvent;
 import eu.bavenir.ogwapi.restapi.security.SecureServerComms;
 
 /*
@@ -307,7 +310,7 @@ public class NeighbourhoodManagerConnector {
 
 		ClientResource clientResource = createRequest(endpointUrl);
 
-		Representation representation = clientResource.get(MediaType.APPLICATION_JSON);
+		Representation representation = timedGet(clientResource, DISCOVERY_SERVICE_1 + "items");
 
 		return representation;
 
@@ -329,7 +332,7 @@ public class NeighbourhoodManagerConnector {
 
 		ClientResource clientResource = createRequest(endpointUrl);
 
-		Representation responseRepresentation = clientResource.post(json, MediaType.APPLICATION_JSON);
+		Representation responseRepresentation = timedPost(clientResource, json, REGISTRATION_SERVICE);
 
 		return responseRepresentation;
 	}
@@ -351,7 +354,7 @@ public class NeighbourhoodManagerConnector {
 
 		ClientResource clientResource = createRequest(endpointUrl);
 
-		Representation responseRepresentation = clientResource.put(json, MediaType.APPLICATION_JSON);
+		Representation responseRepresentation = timedPut(clientResource, json, HEAVYWEIGHTUPDATE_SERVICE);
 
 		return responseRepresentation;
 	}
@@ -373,7 +376,7 @@ public class NeighbourhoodManagerConnector {
 
 		ClientResource clientResource = createRequest(endpointUrl);
 
-		Representation responseRepresentation = clientResource.put(json, MediaType.APPLICATION_JSON);
+		Representation responseRepresentation = timedPut(clientResource, json, LIGHTWEIGHTUPDATE_SERVICE);
 
 		return responseRepresentation;
 	}
@@ -391,7 +394,7 @@ public class NeighbourhoodManagerConnector {
 
 		ClientResource clientResource = createRequest(endpointUrl);
 
-		Representation responseRepresentation = clientResource.post(json, MediaType.APPLICATION_JSON);
+		Representation responseRepresentation = timedPost(clientResource, json, DELETE_SERVICE);
 
 		return responseRepresentation;
 	}
@@ -409,7 +412,7 @@ public class NeighbourhoodManagerConnector {
 
 		ClientResource clientResource = createRequest(endpointUrl);
 
-		Representation responseRepresentation = clientResource.post(json, MediaType.APPLICATION_JSON);
+		Representation responseRepresentation = timedPost(clientResource, json, TD_SERVICE);
 
 		return responseRepresentation;
 	}
@@ -427,17 +430,17 @@ public class NeighbourhoodManagerConnector {
 
 		ClientResource clientResource = createRequest(endpointUrl);
 
-		JsonObjectBuilder mainObjectBuilder = Json.createObjectBuilder();
-		JsonArrayBuilder mainArrayBuilder = Json.createArrayBuilder();
+		JsonObjectBuilder mainObjectBuilder = JsonCodec.createObjectBuilder();
+		JsonArrayBuilder mainArrayBuilder = JsonCodec.createArrayBuilder();
 
-		mainArrayBuilder.add(Json.createObjectBuilder().add("oid", objectId));
+		mainArrayBuilder.add(JsonCodec.createObjectBuilder().add("oid", objectId));
 
 		mainObjectBuilder.add("objects", mainArrayBuilder);
 
 		JsonObject payload = mainObjectBuilder.build();
 
-		Representation responseRepresentation = clientResource.post(new JsonRepresentation(payload.toString()),
-				MediaType.APPLICATION_JSON);
+		Representation responseRepresentation = timedPost(clientResource, new JsonRepresentation(payload.toString()),
+				TD_SERVICE);
 
 		return responseRepresentation;
 
@@ -451,12 +454,41 @@ public class NeighbourhoodManagerConnector {
 	 */
 	public synchronized Representation sendCounters(JsonObject payload) {
 
+		return sendCounters(payload.toString());
+
+	}
+
+	/**
+	 * Sends counters that are already serialised.
+	 * 
+	 * @param payload JSON containing array records with all the messages
+	 * @return Server acknowledgment
+	 */
+	public synchronized Representation sendCounters(String payload) {
+
+		return sendCounters(payload, false);
+
+	}
+
+	/**
+	 * Sends counters that are already serialised, optionally gzip compressed.
+	 * 
+	 * @param payload JSON containing array records with all the messages
+	 * @param compress Whether or not to compress the body (Content-Encoding: gzip)
+	 * @return Server acknowledgment
+	 */
+	public synchronized Representation sendCounters(String payload, boolean compress) {
+
 		String endpointUrl = server_protocol + neighbourhoodManagerServer + ":" + port + api_base_uri + SEND_COUNTERS;
 
 		ClientResource clientResource = createRequest(endpointUrl);
 
-		Representation responseRepresentation = clientResource.post(new JsonRepresentation(payload.toString()),
-				MediaType.APPLICATION_JSON);
+		Representation body = new JsonRepresentation(payload);
+		if (compress) {
+			body = new EncodeRepresentation(Encoding.GZIP, body);
+		}
+
+		Representation responseRepresentation = timedPost(clientResource, body, SEND_COUNTERS);
 
 		return responseRepresentation;
 
@@ -474,7 +506,7 @@ public class NeighbourhoodManagerConnector {
 
 		ClientResource clientResource = createRequest(endpointUrl);
 
-		return clientResource.get(MediaType.APPLICATION_JSON);
+		return timedGet(clientResource, TD_DISCOVERY_CID);
 
 	}
 
@@ -489,7 +521,7 @@ public class NeighbourhoodManagerConnector {
 
 		ClientResource clientResource = createRequest(endpointUrl);
 
-		return clientResource.get(MediaType.APPLICATION_JSON);
+		return timedGet(clientResource, TD_DISCOVERY_PARTNERS);
 
 	}
 
@@ -504,7 +536,7 @@ public class NeighbourhoodManagerConnector {
 
 		ClientResource clientResource = createRequest(endpointUrl);
 
-		return clientResource.get(MediaType.APPLICATION_JSON);
+		return timedGet(clientResource, TD_DISCOVERY_COMMUNITIES);
 
 	}
 
@@ -520,7 +552,7 @@ public class NeighbourhoodManagerConnector {
 
 		ClientResource clientResource = createRequest(endpointUrl);
 
-		return clientResource.get(MediaType.APPLICATION_JSON);
+		return timedGet(clientResource, TD_DISCOVERY_PARTNER_INFO);
 
 	}
 
@@ -535,7 +567,7 @@ public class NeighbourhoodManagerConnector {
 
 		ClientResource clientResource = createRequest(endpointUrl);
 
-		return clientResource.get(MediaType.APPLICATION_JSON);
+		return timedGet(clientResource, TD_DISCOVERY_ORGANISATION_NODES);
 
 	}
 
@@ -551,7 +583,7 @@ public class NeighbourhoodManagerConnector {
 
 		ClientResource clientResource = createRequest(endpointUrl);
 
-		return clientResource.get(MediaType.APPLICATION_JSON);
+		return timedGet(clientResource, TD_DISCOVERY_ORGANISATION_NODES);
 
 	}
 	
@@ -567,7 +599,7 @@ public class NeighbourhoodManagerConnector {
 
 		ClientResource clientResource = createRequest(endpointUrl);
 
-		return clientResource.get(MediaType.APPLICATION_JSON);
+		return timedGet(clientResource, TD_DISCOVERY_COMMUNITY_NODES);
 
 	}
 
@@ -582,7 +614,7 @@ public class NeighbourhoodManagerConnector {
 
 		ClientResource clientResource = createRequest(endpointUrl);
 
-		return clientResource.get(MediaType.APPLICATION_JSON);
+		return timedGet(clientResource, TD_DISCOVERY_ORGANISATION_ITEMS);
 
 	}
 
@@ -598,7 +630,7 @@ public class NeighbourhoodManagerConnector {
 
 		ClientResource clientResource = createRequest(endpointUrl);
 
-		return clientResource.get(MediaType.APPLICATION_JSON);
+		return timedGet(clientResource, TD_DISCOVERY_CONTRACT_ITEMS);
 
 	}
 	
@@ -613,7 +645,7 @@ public class NeighbourhoodManagerConnector {
 
 		ClientResource clientResource = createRequest(endpointUrl);
 
-		return clientResource.get(MediaType.APPLICATION_JSON);
+		return timedGet(clientResource, TD_SECURITY_PRIVACY);
 
 	}
 
@@ -628,7 +660,7 @@ public class NeighbourhoodManagerConnector {
 
 		ClientResource clientResource = createRequest(endpointUrl);
 
-		return clientResource.get(MediaType.APPLICATION_JSON);
+		return timedGet(clientResource, TD_SECURITY_CONTRACTS);
 
 	}
 
@@ -643,8 +675,8 @@ public class NeighbourhoodManagerConnector {
 			logger.info("Connecting to NM in: " + neighbourhoodManagerServer + port + api_base_uri);
 			String endpointUrl = server_protocol + neighbourhoodManagerServer + ":" + port + api_base_uri + HANDSHAKE;
 			ClientResource clientResource = createRequest(endpointUrl);
-			Representation responseRepresentation = clientResource.get(MediaType.APPLICATION_JSON);
-			JSONObject jsonDocument = new JSONObject(responseRepresentation.getText());
+			Representation responseRepresentation = timedGet(clientResource, HANDSHAKE);
+			JsonObject jsonDocument = JsonCodec.readObject(responseRepresentation.getText());
 			logger.info(jsonDocument.getString("message"));
 		} catch (IOException i) {
 			i.printStackTrace();
@@ -666,6 +698,89 @@ public class NeighbourhoodManagerConnector {
 
 	// === PRIVATE METHODS ===
 
+	/**
+	 * Performs a GET request and records its latency and Flight Recorder event.
+	 * 
+	 * @param clientResource The request.
+	 * @param service The NM service, for monitoring.
+	 * @return Server response.
+	 */
+	private Representation timedGet(ClientResource clientResource, String service) {
+
+		NeighbourhoodManagerCallEvent event = new NeighbourhoodManagerCallEvent();
+		event.begin();
+
+		long startTime = System.nanoTime();
+
+		try {
+			return clientResource.get(MediaType.APPLICATION_JSON);
+		} finally {
+			finishCall(clientResource, event, "GET", service, startTime);
+		}
+	}
+
+	/**
+	 * Performs a POST request and records its latency and Flight Recorder event.
+	 * 
+	 * @param clientResource The request.
+	 * @param entity Body of the request.
+	 * @param service The NM service, for monitoring.
+	 * @return Server response.
+	 */
+	private Representation timedPost(ClientResource clientResource, Representation entity, String service) {
+
+		NeighbourhoodManagerCallEvent event = new NeighbourhoodManagerCallEvent();
+		event.begin();
+
+		long startTime = System.nanoTime();
+
+		try {
+			return clientResource.post(entity, MediaType.APPLICATION_JSON);
+		} finally {
+			finishCall(clientResource, event, "POST", service, startTime);
+		}
+	}
+
+	/**
+	 * Performs a PUT request and records its latency and Flight Recorder event.
+	 * 
+	 * @param clientResource The request.
+	 * @param entity Body of the request.
+	 * @param service The NM service, for monitoring.
+	 * @return Server response.
+	 */
+	private Representation timedPut(ClientResource clientResource, Representation entity, String service) {
+
+		NeighbourhoodManagerCallEvent event = new NeighbourhoodManagerCallEvent();
+		event.begin();
+
+		long startTime = System.nanoTime();
+
+		try {
+			return clientResource.put(entity, MediaType.APPLICATION_JSON);
+		} finally {
+			finishCall(clientResource, event, "PUT", service, startTime);
+		}
+	}
+
+	/**
+	 * Records the latency and the Flight Recorder event of a finished NM call.
+	 * 
+	 * @param clientResource The request.
+	 * @param event Event begun before the call.
+	 * @param method HTTP method.
+	 * @param service The NM service.
+	 * @param startTime {@link java.lang.System#nanoTime() System.nanoTime()} at the start of the call.
+	 */
+	private void finishCall(ClientResource clientResource, NeighbourhoodManagerCallEvent event, String method, 
+			String service, long startTime) {
+
+		GatewayMetrics.recordNeighbourhoodManagerCall(service, startTime);
+
+		event.complete(method, service, clientResource.getStatus() == null ? 0 : clientResource.getStatus().getCode());
+	}
+
+
 	private ClientResource createRequest(String endpointUrl) {
 		ClientResource clientResource = new ClientResource(endpointUrl);
 		// Add auth token if security enabled
@@ -0,0 +1,146 @@
+package eu.bavenir.ogwapi.commons.connectors.http;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * STRUCTURE:
+ * - constants
+ * - fields
+ * - public methods
+ * - private methods
+ */
+
+/**
+ * One running instance (replica) of an Agent, as seen by the {@link RestAgentConnector RestAgentConnector}. Besides
+ * the service URL it keeps track of the number of requests that are currently being processed by the Agent and
+ * whether the Agent was reachable the last time it was tried. Both are used by {@link AgentEndpointPool AgentEndpointPool}
+ * when choosing where to send a request.
+ *
+ * The instances are shared among threads, the state is therefore kept in atomic / volatile fields.
+ *
+ * @author sulfo
+ *
+ */
+public class AgentEndpoint {
+
+	/* === CONSTANTS === */
+
+	/* === FIELDS === */
+
+	/**
+	 * This is the agent service URL, without attributes (basically something like http://ip:port/apiname) .
+	 */
+	private String serviceUrl;
+
+	/**
+	 * Number of requests sent to this end point that did not return yet.
+	 */
+	private AtomicInteger outstandingRequests;
+
+	/**
+	 * Whether or not the end point was reachable during the last call or health check.
+	 */
+	private volatile boolean healthy;
+
+	/**
+	 * Whether or not the Agent is believed to serve batch property reads. Turns false once the Agent rejects one.
+	 */
+	private volatile boolean batchSupported;
+
+
+	/* === PUBLIC METHODS === */
+
+	/**
+	 * Constructor. The end point is considered healthy until proven otherwise.
+	 *
+	 * @param serviceUrl Agent service URL, without attributes.
+	 */
+	public AgentEndpoint(String serviceUrl) {
+		this.serviceUrl = serviceUrl;
+
+		outstandingRequests = new AtomicInteger(0);
+		healthy = true;
+		batchSupported = true;
+	}
+
+
+	/**
+	 * Returns the Agent service URL, without attributes.
+	 *
+	 * @return Service URL (e.g. http://localhost:9997/agent).
+	 */
+	public String getServiceUrl() {
+		return serviceUrl;
+	}
+
+
+	/**
+	 * Marks the beginning of a request sent to this end point. Every call has to be followed by
+	 * {@link #requestFinished() requestFinished}.
+	 */
+	public void requestStarted() {
+		outstandingRequests.incrementAndGet();
+	}
+
+
+	/**
+	 * Marks the end of a request sent to this end point.
+	 */
+	public void requestFinished() {
+		outstandingRequests.decrementAndGet();
+	}
+
+
+	/**
+	 * Returns the number of requests sent to this end point that did not return yet.
+	 *
+	 * @return Number of outstanding requests.
+	 */
+	public int getOutstandingRequests() {
+		return outstandingRequests.get();
+	}
+
+
+	/**
+	 * Whether or not the end point was reachable during the last call or health check.
+	 *
+	 * @return True if healthy.
+	 */
+	public boolean isHealthy() {
+		return healthy;
+	}
+
+
+	/**
+	 * Sets the health of the end point.
+	 *
+	 * @param healthy True if the end point is reachable.
+	 */
+	public void setHealthy(boolean healthy) {
+		this.healthy = healthy;
+	}
+
+
+	/**
+	 * Whether or not the Agent is believed to serve batch property reads.
+	 *
+	 * @return True if batch reads can be sent to this end point.
+	 */
+	public boolean isBatchSupported() {
+		return batchSupported;
+	}
+
+
+	/**
+	 * Sets whether or not the Agent serves batch property reads.
+	 *
+	 * @param batchSupported True if batch reads can be sent to this end point.
+	 */
+	public void setBatchSupported(boolean batchSupported) {
+		this.batchSupported = batchSupported;
+	}
+
+
+	/* === PRIVATE METHODS === */
+
+}
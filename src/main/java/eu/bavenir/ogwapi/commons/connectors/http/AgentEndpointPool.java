@@ -0,0 +1,179 @@
+package eu.bavenir.ogwapi.commons.connectors.http;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * STRUCTURE:
+ * - constants
+ * - fields
+ * - public methods
+ * - private methods
+ */
+
+/**
+ * Group of {@link AgentEndpoint end points} that are replicas of the same Agent, i.e. any of them can serve a request
+ * for the objects routed to this pool. The end point for each request is chosen by one of the balancing policies:
+ *
+ *   {@link #POLICY_ROUNDROBIN roundRobin} - end points take turns.
+ *   {@link #POLICY_LEASTOUTSTANDING leastOutstanding} - the end point with the fewest requests in progress is chosen.
+ *
+ * End points that failed the last call or health check are skipped. If none of them is healthy, they are all tried
+ * anyway, since failing on an Agent is better than failing without trying.
+ *
+ * @author sulfo
+ *
+ */
+public class AgentEndpointPool {
+
+	/* === CONSTANTS === */
+
+	/**
+	 * Name of the round robin balancing policy.
+	 */
+	public static final String POLICY_ROUNDROBIN = "roundRobin";
+
+	/**
+	 * Name of the least outstanding requests balancing policy.
+	 */
+	public static final String POLICY_LEASTOUTSTANDING = "leastOutstanding";
+
+
+	/* === FIELDS === */
+
+	/**
+	 * Replicas of the Agent.
+	 */
+	private List<AgentEndpoint> endpoints;
+
+	/**
+	 * Balancing policy, one of the POLICY constants.
+	 */
+	private String policy;
+
+	/**
+	 * Counter for the round robin policy.
+	 */
+	private AtomicInteger nextIndex;
+
+
+	/* === PUBLIC METHODS === */
+
+	/**
+	 * Constructor.
+	 *
+	 * @param endpoints Replicas of the Agent. Must not be empty.
+	 * @param policy Balancing policy, one of the POLICY constants. Unknown values are treated as round robin.
+	 */
+	public AgentEndpointPool(List<AgentEndpoint> endpoints, String policy) {
+		this.endpoints = endpoints;
+		this.policy = policy;
+
+		nextIndex = new AtomicInteger(0);
+	}
+
+
+	/**
+	 * Chooses the end point for the next request.
+	 *
+	 * @return The end point to be used.
+	 */
+	public AgentEndpoint selectEndpoint() {
+
+		// most deployments will have just one Agent
+		if (endpoints.size() == 1) {
+			return endpoints.get(0);
+		}
+
+		boolean anyHealthy = false;
+		for (AgentEndpoint endpoint : endpoints) {
+			if (endpoint.isHealthy()) {
+				anyHealthy = true;
+				break;
+			}
+		}
+
+		if (policy.equals(POLICY_LEASTOUTSTANDING)) {
+			return selectLeastOutstanding(anyHealthy);
+		}
+
+		return selectRoundRobin(anyHealthy);
+	}
+
+
+	/**
+	 * Checks whether any of the replicas accepts batch property reads, without choosing one.
+	 *
+	 * @return True if at least one of them was not found to refuse them.
+	 */
+	public boolean isBatchSupported() {
+
+		for (AgentEndpoint endpoint : endpoints) {
+			if (endpoint.isBatchSupported()) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+
+	/**
+	 * Returns all replicas in this pool.
+	 *
+	 * @return List of end points.
+	 */
+	public List<AgentEndpoint> getEndpoints() {
+		return endpoints;
+	}
+
+
+	/* === PRIVATE METHODS === */
+
+	/**
+	 * Goes around the end points, starting after the last one used.
+	 *
+	 * @param healthyOnly Whether to skip the unhealthy end points.
+	 * @return The end point to be used.
+	 */
+	private AgentEndpoint selectRoundRobin(boolean healthyOnly) {
+
+		int size = endpoints.size();
+
+		for (int i = 0; i < size; i++) {
+			AgentEndpoint endpoint = endpoints.get(Math.floorMod(nextIndex.getAndIncrement(), size));
+
+			if (!healthyOnly || endpoint.isHealthy()) {
+				return endpoint;
+			}
+		}
+
+		return endpoints.get(Math.floorMod(nextIndex.getAndIncrement(), size));
+	}
+
+
+	/**
+	 * Looks for the end point with the lowest number of requests in progress.
+	 *
+	 * @param healthyOnly Whether to skip the unhealthy end points.
+	 * @return The end point to be used.
+	 */
+	private AgentEndpoint selectLeastOutstanding(boolean healthyOnly) {
+
+		AgentEndpoint best = null;
+
+		for (AgentEndpoint endpoint : endpoints) {
+
+			if (healthyOnly && !endpoint.isHealthy()) {
+				continue;
+			}
+
+			if (best == null || endpoint.getOutstandingRequests() < best.getOutstandingRequests()) {
+				best = endpoint;
+			}
+		}
+
+		return best;
+	}
+
+}
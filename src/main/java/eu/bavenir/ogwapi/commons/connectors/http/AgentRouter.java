@@ -0,0 +1,519 @@
+package eu.bavenir.ogwapi.commons.connectors.http;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import org.apache.commons.configuration2.HierarchicalConfiguration;
+import org.apache.commons.configuration2.XMLConfiguration;
+import org.apache.commons.configuration2.tree.ImmutableNode;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
+
+import eu.bavenir.ogwapi.commons.GatewayScheduler;
+
+/*
+ * STRUCTURE:
+ * - constants
+ * - fields
+ * - public methods
+ * - private methods
+ */
+
+/**
+ * Routing table of the {@link RestAgentConnector RestAgentConnector}. It decides which Agent end point should be
+ * called for a given destination object (or AGID in case of notifications).
+ *
+ * By default, all objects are routed to a single Agent set by agent and agentPort configuration parameters, optionally
+ * with replicas listed under replicas. Larger sites can split the objects among several Agents by listing routes in
+ * the configuration file - each route consists of one or more identifier prefixes (a full OID is a prefix too) and one
+ * or more end points in host:port form. The longest matching prefix wins, destinations that don't match any route
+ * go to the default pool.
+ *
+ * When health checks are enabled, every end point is periodically called, all of them at the same time and with a
+ * short timeout. Those that are not reachable are marked unhealthy, so the {@link AgentEndpointPool pools} can skip
+ * them. The checks have their own threads and their own HTTP connections, one of each per end point - when the regular
+ * calls keep all Agent threads and pooled connections busy, the checks neither queue behind them nor wait for a
+ * connection, so a busy Agent is not mistaken for a dead one. End points are also marked unhealthy (or healthy again)
+ * by the connector itself, based on the outcome of regular calls.
+ *
+ * There is a single instance shared by all connectors.
+ *
+ * @author sulfo
+ *
+ */
+public class AgentRouter {
+
+	/* === CONSTANTS === */
+
+	/**
+	 * Name of the configuration parameter for Agent IP.
+	 */
+	private static final String CONFIG_PARAM_CONNECTORRESTIP = "connector.restAgentConnector.agent";
+
+	/**
+	 * Name of the configuration parameter for Agent port.
+	 */
+	private static final String CONFIG_PARAM_CONNECTORRESTPORT = "connector.restAgentConnector.agentPort";
+
+	/**
+	 * Name of the configuration parameter for the list of replicas of the default Agent.
+	 */
+	private static final String CONFIG_PARAM_REPLICAS = "connector.restAgentConnector.replicas.endpoint";
+
+	/**
+	 * Name of the configuration parameter for the list of routes.
+	 */
+	private static final String CONFIG_PARAM_ROUTES = "connector.restAgentConnector.routes.route";
+
+	/**
+	 * Name of the configuration parameter for balancing policy among replicas.
+	 */
+	private static final String CONFIG_PARAM_BALANCINGPOLICY = "connector.restAgentConnector.balancingPolicy";
+
+	/**
+	 * Name of the configuration parameter for the interval of health checks.
+	 */
+	private static final String CONFIG_PARAM_HEALTHCHECKINTERVAL = "connector.restAgentConnector.healthCheckInterval";
+
+	/**
+	 * Name of the configuration parameter for the timeout of a health check, in seconds.
+	 */
+	private static final String CONFIG_PARAM_HEALTHCHECKTIMEOUT = "connector.restAgentConnector.healthCheckTimeout";
+
+	/**
+	 * Default value of {@link #CONFIG_PARAM_CONNECTORRESTPORT CONFIG_PARAM_CONNECTORRESTPORT} configuration parameter.
+	 * This value is taken into account when no suitable value is found in the configuration file.
+	 */
+	private static final String CONFIG_DEF_CONNECTORRESTPORT = "9997";
+
+	/**
+	 * Default value of {@link #CONFIG_PARAM_CONNECTORRESTIP CONFIG_PARAM_CONNECTORRESTIP} configuration parameter.
+	 * This value is taken into account when no suitable value is found in the configuration file.
+	 */
+	private static final String CONFIG_DEF_CONNECTORRESTIP = "localhost";
+
+	/**
+	 * Default value of {@link #CONFIG_PARAM_BALANCINGPOLICY CONFIG_PARAM_BALANCINGPOLICY} configuration parameter.
+	 * This value is taken into account when no suitable value is found in the configuration file.
+	 */
+	private static final String CONFIG_DEF_BALANCINGPOLICY = AgentEndpointPool.POLICY_ROUNDROBIN;
+
+	/**
+	 * Default value of {@link #CONFIG_PARAM_HEALTHCHECKINTERVAL CONFIG_PARAM_HEALTHCHECKINTERVAL} configuration
+	 * parameter. This value is taken into account when no suitable value is found in the configuration file.
+	 */
+	private static final int CONFIG_DEF_HEALTHCHECKINTERVAL = 30;
+
+	/**
+	 * Default value of {@link #CONFIG_PARAM_HEALTHCHECKTIMEOUT CONFIG_PARAM_HEALTHCHECKTIMEOUT} configuration
+	 * parameter. This value is taken into account when no suitable value is found in the configuration file.
+	 */
+	private static final int CONFIG_DEF_HEALTHCHECKTIMEOUT = 2;
+
+	/**
+	 * Name of the element with identifier prefix in a route.
+	 */
+	private static final String ROUTE_MATCH = "match";
+
+	/**
+	 * Name of the element with end point in a route.
+	 */
+	private static final String ROUTE_ENDPOINT = "endpoint";
+
+	/**
+	 * The beginning of the Agent service URL when using HTTP protocol.
+	 */
+	private static final String HTTP_PROTOCOL = "http://";
+
+	/**
+	 * The beginning of the Agent service URL when using HTTPS protocol.
+	 */
+	private static final String HTTPS_PROTOCOL = "https://";
+
+	/**
+	 * The name of the Agent API, this string usually follows the IP and port. Like http://localhost:port/agent/stuff.
+	 */
+	private static final String AGENT_API_STRING = "/agent";
+
+	/**
+	 * Responses with status code at or above this value make the end point unhealthy.
+	 */
+	private static final int UNHEALTHY_STATUSCODE = 500;
+
+	/**
+	 * Prefix of the names of the threads running the health checks.
+	 */
+	private static final String HEALTHCHECK_THREAD_NAME_PREFIX = "ogwapi-agent-healthcheck-";
+
+	/**
+	 * How long an idle health check thread is kept, in seconds.
+	 */
+	private static final long HEALTHCHECK_THREAD_KEEPALIVE = 60;
+
+
+	/* === FIELDS === */
+
+	/**
+	 * Logger of the OGWAPI.
+	 */
+	private Logger logger;
+
+	/**
+	 * HTTP client used for the health checks, with a connection pool of its own.
+	 */
+	private CloseableHttpClient httpClient;
+
+	/**
+	 * Threads running the health checks, one per end point at most.
+	 */
+	private ThreadPoolExecutor healthCheckExecutor;
+
+	/**
+	 * Protocol part of the service URLs.
+	 */
+	private String protocol;
+
+	/**
+	 * Pool for destinations that don't match any route.
+	 */
+	private AgentEndpointPool defaultPool;
+
+	/**
+	 * Routes, identifier prefix to pool.
+	 */
+	private Map<String, AgentEndpointPool> routes;
+
+	/**
+	 * All end points from all pools, for health checks.
+	 */
+	private List<AgentEndpoint> allEndpoints;
+
+	/**
+	 * Registration of the health checks in the {@link GatewayScheduler GatewayScheduler}, null if they are disabled.
+	 */
+	private ScheduledFuture<?> healthCheck;
+
+	/**
+	 * Timeouts of the health checks.
+	 */
+	private RequestConfig healthCheckConfig;
+
+	/**
+	 * End points whose health check is in progress, they are not checked again until it finishes.
+	 */
+	private Set<AgentEndpoint> checksInProgress;
+
+
+	/* === PUBLIC METHODS === */
+
+	/**
+	 * Constructor, builds the routing table from configuration and starts the health checks.
+	 *
+	 * @param config Configuration of the OGWAPI.
+	 * @param logger Logger of the OGWAPI.
+	 * @param useHttps Whether the Agents use HTTPS.
+	 * @param sslSocketFactory Socket factory of the regular calls, to be used by the health checks too. Can be null,
+	 * then the default one is used.
+	 */
+	public AgentRouter(XMLConfiguration config, Logger logger, boolean useHttps,
+			SSLConnectionSocketFactory sslSocketFactory) {
+
+		this.logger = logger;
+
+		if (useHttps) {
+			protocol = HTTPS_PROTOCOL;
+		} else {
+			protocol = HTTP_PROTOCOL;
+		}
+
+		routes = new HashMap<String, AgentEndpointPool>();
+		allEndpoints = new ArrayList<AgentEndpoint>();
+
+		String policy = config.getString(CONFIG_PARAM_BALANCINGPOLICY, CONFIG_DEF_BALANCINGPOLICY);
+		logger.config("REST Agent Connector: Balancing policy among Agent replicas is " + policy);
+
+		// default pool
+		List<String> defaultEndpoints = new ArrayList<String>();
+		defaultEndpoints.add(config.getString(CONFIG_PARAM_CONNECTORRESTIP, CONFIG_DEF_CONNECTORRESTIP)
+				+ ":" + config.getString(CONFIG_PARAM_CONNECTORRESTPORT, CONFIG_DEF_CONNECTORRESTPORT));
+		defaultEndpoints.addAll(config.getList(String.class, CONFIG_PARAM_REPLICAS, new ArrayList<String>()));
+
+		defaultPool = createPool(defaultEndpoints, policy);
+		logger.config("REST Agent Connector: Default Agent end points: " + defaultEndpoints);
+
+		// routes
+		for (HierarchicalConfiguration<ImmutableNode> route : config.configurationsAt(CONFIG_PARAM_ROUTES)) {
+
+			List<String> prefixes = route.getList(String.class, ROUTE_MATCH, new ArrayList<String>());
+			List<String> endpoints = route.getList(String.class, ROUTE_ENDPOINT, new ArrayList<String>());
+
+			if (prefixes.isEmpty() || endpoints.isEmpty()) {
+				logger.warning("REST Agent Connector: A route without match or end point found in the configuration, "
+						+ "it will be ignored.");
+				continue;
+			}
+
+			AgentEndpointPool pool = createPool(endpoints, policy);
+
+			for (String prefix : prefixes) {
+				routes.put(prefix, pool);
+			}
+
+			logger.config("REST Agent Connector: Route " + prefixes + " -> " + endpoints);
+		}
+
+		// health checks
+		int healthCheckInterval = config.getInt(CONFIG_PARAM_HEALTHCHECKINTERVAL, CONFIG_DEF_HEALTHCHECKINTERVAL);
+
+		int healthCheckTimeout = config.getInt(CONFIG_PARAM_HEALTHCHECKTIMEOUT, CONFIG_DEF_HEALTHCHECKTIMEOUT);
+		if (healthCheckTimeout < 1) {
+			logger.warning("Wrong parameter entered for " + CONFIG_PARAM_HEALTHCHECKTIMEOUT + " in the configuration "
+					+ "file: " + healthCheckTimeout + ". Setting to default: " + CONFIG_DEF_HEALTHCHECKTIMEOUT);
+			healthCheckTimeout = CONFIG_DEF_HEALTHCHECKTIMEOUT;
+		}
+
+		healthCheckConfig = RequestConfig.custom()
+				.setConnectTimeout(healthCheckTimeout * 1000)
+				.setConnectionRequestTimeout(healthCheckTimeout * 1000)
+				.setSocketTimeout(healthCheckTimeout * 1000)
+				.build();
+
+		// a single check per end point is in progress at a time, so one connection and one thread each is enough
+		HttpClientBuilder clientBuilder = HttpClients.custom();
+		clientBuilder.setMaxConnTotal(allEndpoints.size());
+		clientBuilder.setMaxConnPerRoute(1);
+
+		if (sslSocketFactory != null) {
+			clientBuilder.setSSLSocketFactory(sslSocketFactory);
+		}
+
+		httpClient = clientBuilder.build();
+		healthCheckExecutor = createHealthCheckExecutor(allEndpoints.size());
+
+		checksInProgress = ConcurrentHashMap.newKeySet();
+
+		if (healthCheckInterval > 0) {
+			logger.config("REST Agent Connector: Agent health checks every " + healthCheckInterval + " seconds, "
+					+ "timeout " + healthCheckTimeout + " seconds.");
+
+			healthCheck = GatewayScheduler.schedule(new Runnable() {
+				@Override
+				public void run() {
+					checkHealth();
+				}
+			}, healthCheckInterval * 1000, healthCheckInterval * 1000);
+		} else {
+			logger.config("REST Agent Connector: Agent health checks disabled.");
+		}
+	}
+
+
+	/**
+	 * Chooses the Agent end point that is to serve a request for given destination.
+	 *
+	 * @param destinationId Object ID (or AGID) of the destination.
+	 * @return End point to be called.
+	 */
+	public AgentEndpoint selectEndpoint(String destinationId) {
+		return findPool(destinationId).selectEndpoint();
+	}
+
+
+	/**
+	 * Checks whether any of the Agent end points that serve given destination accepts batch property reads. Unlike
+	 * {@link #selectEndpoint(String) selectEndpoint}, it does not take a turn in the balancing.
+	 *
+	 * @param destinationId Object ID (or AGID) of the destination.
+	 * @return True if at least one end point was not found to refuse them.
+	 */
+	public boolean isBatchSupported(String destinationId) {
+		return findPool(destinationId).isBatchSupported();
+	}
+
+
+	/**
+	 * Stops the health checks and releases their threads and connections.
+	 */
+	public void stop() {
+
+		GatewayScheduler.cancel(healthCheck);
+
+		healthCheckExecutor.shutdownNow();
+
+		try {
+			httpClient.close();
+		} catch (IOException e) {
+			logger.warning("REST Agent Connector: Exception when closing the health check client: " + e.getMessage());
+		}
+	}
+
+
+	/* === PRIVATE METHODS === */
+
+	/**
+	 * Finds the pool that serves given destination, by the longest matching prefix.
+	 *
+	 * @param destinationId Object ID (or AGID) of the destination.
+	 * @return The pool, the default one if no route matches.
+	 */
+	private AgentEndpointPool findPool(String destinationId) {
+
+		if (routes.isEmpty() || destinationId == null) {
+			return defaultPool;
+		}
+
+		AgentEndpointPool pool = defaultPool;
+		int matchLength = -1;
+
+		for (Map.Entry<String, AgentEndpointPool> route : routes.entrySet()) {
+			String prefix = route.getKey();
+
+			if (prefix.length() > matchLength && destinationId.startsWith(prefix)) {
+				pool = route.getValue();
+				matchLength = prefix.length();
+			}
+		}
+
+		return pool;
+	}
+
+
+	/**
+	 * Creates a pool from a list of end points in host:port form.
+	 *
+	 * @param endpoints List of end points.
+	 * @param policy Balancing policy.
+	 * @return New pool.
+	 */
+	private AgentEndpointPool createPool(List<String> endpoints, String policy) {
+
+		List<AgentEndpoint> poolEndpoints = new ArrayList<AgentEndpoint>();
+
+		for (String endpoint : endpoints) {
+			AgentEndpoint agentEndpoint = new AgentEndpoint(protocol + endpoint.trim() + AGENT_API_STRING);
+
+			poolEndpoints.add(agentEndpoint);
+			allEndpoints.add(agentEndpoint);
+		}
+
+		return new AgentEndpointPool(poolEndpoints, policy);
+	}
+
+
+	/**
+	 * Starts the health checks of all end points on the health check threads, so a dead end point does not delay the
+	 * others. End points whose previous check has not finished yet are skipped.
+	 *
+	 * @return The checks started.
+	 */
+	List<Future<?>> checkHealth() {
+
+		List<Future<?>> checks = new ArrayList<Future<?>>();
+
+		for (AgentEndpoint endpoint : allEndpoints) {
+
+			if (!checksInProgress.add(endpoint)) {
+				continue;
+			}
+
+			checks.add(healthCheckExecutor.submit(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						checkHealth(endpoint);
+					} finally {
+						checksInProgress.remove(endpoint);
+					}
+				}
+			}));
+		}
+
+		return checks;
+	}
+
+
+	/**
+	 * Calls an end point and updates its health. Any response below {@link #UNHEALTHY_STATUSCODE UNHEALTHY_STATUSCODE}
+	 * means the Agent is alive, even a 404 - the Agents are not required to serve anything on the root of their API.
+	 * When no connection could be leased, the check says nothing about the Agent and its health is left as it is.
+	 *
+	 * @param endpoint The end point.
+	 */
+	private void checkHealth(AgentEndpoint endpoint) {
+
+		boolean healthy;
+
+		HttpGet request = new HttpGet(endpoint.getServiceUrl());
+		request.setConfig(healthCheckConfig);
+
+		try (CloseableHttpResponse response = httpClient.execute(request)) {
+			healthy = response.getStatusLine().getStatusCode() < UNHEALTHY_STATUSCODE;
+			EntityUtils.consume(response.getEntity());
+		} catch (ConnectionPoolTimeoutException e) {
+			logger.fine("REST Agent Connector: No connection for the health check of " + endpoint.getServiceUrl()
+					+ ", the check is skipped.");
+			return;
+		} catch (IOException e) {
+			healthy = false;
+		}
+
+		if (healthy != endpoint.isHealthy()) {
+			if (healthy) {
+				logger.info("REST Agent Connector: Agent " + endpoint.getServiceUrl() + " is reachable again.");
+			} else {
+				logger.warning("REST Agent Connector: Agent " + endpoint.getServiceUrl() + " failed health check.");
+			}
+		}
+
+		endpoint.setHealthy(healthy);
+	}
+
+
+	/**
+	 * Creates the pool of health check threads. Idle threads are stopped after {@link #HEALTHCHECK_THREAD_KEEPALIVE
+	 * HEALTHCHECK_THREAD_KEEPALIVE}, so they don't linger between the checks when the interval is long.
+	 *
+	 * @param threads Number of threads, i.e. the number of end points.
+	 * @return New executor.
+	 */
+	private static ThreadPoolExecutor createHealthCheckExecutor(int threads) {
+
+		AtomicInteger threadNumber = new AtomicInteger(0);
+
+		ThreadPoolExecutor newExecutor = new ThreadPoolExecutor(threads, threads, HEALTHCHECK_THREAD_KEEPALIVE,
+				TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable runnable) {
+						Thread thread = new Thread(runnable, HEALTHCHECK_THREAD_NAME_PREFIX
+								+ threadNumber.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+
+		newExecutor.allowCoreThreadTimeOut(true);
+
+		return newExecutor;
+	}
+
+}
@@ -0,0 +1,200 @@
+package eu.bavenir.ogwapi.commons.connectors.http;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
+import eu.bavenir.ogwapi.commons.messages.NetworkMessageResponse;
+
+/*
+ * STRUCTURE:
+ * - constants
+ * - fields
+ * - public methods
+ * - private methods
+ */
+
+/**
+ * Property reads of a single object, collected by the {@link RestAgentConnector RestAgentConnector} while another
+ * call for the same reads is in progress (see {@link PropertyReadLane PropertyReadLane}), so they can be sent to the
+ * Agent in one batch call. Only reads from the same source object with the same parameters and no body can share a
+ * batch.
+ *
+ * The thread that opens the batch is its leader - when it is its turn, it {@link #close() closes} the batch,
+ * performs the call and {@link #complete(String, Supplier) completes} the reads of all the other threads, which are
+ * waiting for their futures meanwhile. Every read has its own future and gets its own response message. A null result
+ * means the batch could not be served and the read has to be performed the usual way.
+ *
+ * @author sulfo
+ *
+ */
+public class PropertyReadBatch {
+
+	/* === CONSTANTS === */
+
+	/* === FIELDS === */
+
+	/**
+	 * Object ID of the source.
+	 */
+	private String sourceOid;
+
+	/**
+	 * Object ID of the destination.
+	 */
+	private String destinationOid;
+
+	/**
+	 * Parameters shared by all the reads.
+	 */
+	private Map<String, String> parameters;
+
+	/**
+	 * Pending reads, property ID to the futures of the responses, one for each read of the property.
+	 */
+	private Map<String, List<CompletableFuture<NetworkMessageResponse>>> pendingReads;
+
+	/**
+	 * Thread that opened the batch.
+	 */
+	private Thread leader;
+
+	/**
+	 * Once closed, no more reads can be added.
+	 */
+	private boolean closed;
+
+
+	/* === PUBLIC METHODS === */
+
+	/**
+	 * Constructor.
+	 *
+	 * @param sourceOid Object ID of the source.
+	 * @param destinationOid Object ID of the destination.
+	 * @param parameters Parameters shared by all the reads.
+	 */
+	public PropertyReadBatch(String sourceOid, String destinationOid, Map<String, String> parameters) {
+		this.sourceOid = sourceOid;
+		this.destinationOid = destinationOid;
+		this.parameters = parameters;
+
+		pendingReads = new LinkedHashMap<String, List<CompletableFuture<NetworkMessageResponse>>>();
+		closed = false;
+		leader = Thread.currentThread();
+	}
+
+
+	/**
+	 * Adds a read of a property to the batch.
+	 *
+	 * @param propertyId Property ID.
+	 * @return Future of the response, or null if the batch is already closed.
+	 */
+	public synchronized CompletableFuture<NetworkMessageResponse> add(String propertyId) {
+
+		if (closed) {
+			return null;
+		}
+
+		CompletableFuture<NetworkMessageResponse> future = new CompletableFuture<NetworkMessageResponse>();
+
+		pendingReads.computeIfAbsent(propertyId, 
+				key -> new ArrayList<CompletableFuture<NetworkMessageResponse>>()).add(future);
+
+		return future;
+	}
+
+
+	/**
+	 * Whether the calling thread opened the batch and therefore has to perform it.
+	 *
+	 * @return True for the leader.
+	 */
+	public boolean isLeader() {
+		return Thread.currentThread() == leader;
+	}
+
+
+	/**
+	 * Closes the batch, after this no more reads can be added.
+	 *
+	 * @return IDs of all properties to be read.
+	 */
+	public synchronized List<String> close() {
+		closed = true;
+
+		return new ArrayList<String>(pendingReads.keySet());
+	}
+
+
+	/**
+	 * Completes the reads of a property, each with a response of its own - the readers fill in their own request IDs.
+	 *
+	 * @param propertyId Property ID.
+	 * @param responses Creates the response for each reader.
+	 */
+	public synchronized void complete(String propertyId, Supplier<NetworkMessageResponse> responses) {
+
+		List<CompletableFuture<NetworkMessageResponse>> futures = pendingReads.get(propertyId);
+
+		if (futures == null) {
+			return;
+		}
+
+		for (CompletableFuture<NetworkMessageResponse> future : futures) {
+			if (!future.isDone()) {
+				future.complete(responses.get());
+			}
+		}
+	}
+
+
+	/**
+	 * Completes all reads that were not completed yet with null, so their threads perform the read by themselves.
+	 */
+	public synchronized void completeRemaining() {
+		for (List<CompletableFuture<NetworkMessageResponse>> futures : pendingReads.values()) {
+			for (CompletableFuture<NetworkMessageResponse> future : futures) {
+				future.complete(null);
+			}
+		}
+	}
+
+
+	/**
+	 * Returns the object ID of the source.
+	 *
+	 * @return Object ID of the source.
+	 */
+	public String getSourceOid() {
+		return sourceOid;
+	}
+
+
+	/**
+	 * Returns the object ID of the destination.
+	 *
+	 * @return Object ID of the destination.
+	 */
+	public String getDestinationOid() {
+		return destinationOid;
+	}
+
+
+	/**
+	 * Returns the parameters shared by all the reads.
+	 *
+	 * @return Parameters.
+	 */
+	public Map<String, String> getParameters() {
+		return parameters;
+	}
+
+
+	/* === PRIVATE METHODS === */
+
+}
@@ -0,0 +1,158 @@
+package eu.bavenir.ogwapi.commons.connectors.http;
+
+import java.util.List;
+import java.util.Map;
+
+/*
+ * STRUCTURE:
+ * - constants
+ * - fields
+ * - public methods
+ * - private methods
+ */
+
+/**
+ * Property reads that could share a {@link PropertyReadBatch batch} - the same source, destination and parameters.
+ * The lane lets only one Agent call for them be in progress at a time, and only when one is, the reads that arrive
+ * meanwhile are collected into a batch, which is sent as soon as the call finishes. Reads that arrive one after
+ * another (e.g. all requests for an object coming over its single XMPP connection) therefore go to the Agent right
+ * away, without waiting for anything, and batches form only when the reads really are concurrent.
+ *
+ * The {@link RestAgentConnector RestAgentConnector} keeps a lane for as long as some thread uses it, see
+ * {@link #retain() retain} and {@link #release() release}.
+ *
+ * @author sulfo
+ *
+ */
+public class PropertyReadLane {
+
+	/* === CONSTANTS === */
+
+	/* === FIELDS === */
+
+	/**
+	 * Number of Agent calls in progress, 0 or 1.
+	 */
+	private int callsInProgress;
+
+	/**
+	 * Batch collecting the reads that arrived while a call is in progress, null if there is none.
+	 */
+	private PropertyReadBatch collectingBatch;
+
+	/**
+	 * Number of threads using the lane.
+	 */
+	private int users;
+
+
+	/* === PUBLIC METHODS === */
+
+	/**
+	 * Constructor.
+	 */
+	public PropertyReadLane() {
+		callsInProgress = 0;
+		collectingBatch = null;
+		users = 0;
+	}
+
+
+	/**
+	 * Enters the lane with a read. If no call is in progress, the read may call the Agent right away, and has to
+	 * {@link #callFinished() finish} the call afterwards. Otherwise it joins the batch collecting the reads, opening
+	 * it if there is none.
+	 *
+	 * @param sourceOid Object ID of the source.
+	 * @param destinationOid Object ID of the destination.
+	 * @param parameters Parameters of the read.
+	 * @return Null if the read may call the Agent right away, the batch to be joined otherwise.
+	 */
+	public synchronized PropertyReadBatch enter(String sourceOid, String destinationOid,
+			Map<String, String> parameters) {
+
+		if (callsInProgress == 0) {
+			callsInProgress++;
+			return null;
+		}
+
+		if (collectingBatch == null) {
+			collectingBatch = new PropertyReadBatch(sourceOid, destinationOid, parameters);
+		}
+
+		return collectingBatch;
+	}
+
+
+	/**
+	 * Called by the leader of a batch, waits until the call in progress finishes. The batch is then closed and its
+	 * call is in progress, it has to be {@link #callFinished() finished} afterwards. If the wait is interrupted, the
+	 * batch is closed all the same, but no call is started.
+	 *
+	 * @param batch The batch.
+	 * @return IDs of the properties to be read.
+	 * @throws InterruptedException If interrupted while waiting.
+	 */
+	public synchronized List<String> awaitTurn(PropertyReadBatch batch) throws InterruptedException {
+
+		try {
+			while (callsInProgress > 0) {
+				wait();
+			}
+		} catch (InterruptedException e) {
+			stopCollecting(batch);
+			throw e;
+		}
+
+		stopCollecting(batch);
+
+		callsInProgress++;
+
+		return batch.close();
+	}
+
+
+	/**
+	 * Marks the call in progress as finished, so the next batch can go.
+	 */
+	public synchronized void callFinished() {
+		callsInProgress--;
+		notifyAll();
+	}
+
+
+	/**
+	 * Counts a thread starting to use the lane. Has to be called atomically with the look up of the lane.
+	 */
+	public void retain() {
+		users++;
+	}
+
+
+	/**
+	 * Counts a thread that stopped using the lane. Has to be called atomically with the removal of the lane.
+	 *
+	 * @return True if nobody uses the lane anymore and it can be removed.
+	 */
+	public boolean release() {
+		return --users == 0;
+	}
+
+
+	/* === PRIVATE METHODS === */
+
+	/**
+	 * Closes the batch, so no more reads join it.
+	 *
+	 * @param batch The batch.
+	 */
+	private void stopCollecting(PropertyReadBatch batch) {
+
+		if (collectingBatch == batch) {
+			collectingBatch = null;
+		}
+
+		batch.close();
+	}
+
+}
@@ -1,38 +1,63 @@
 package eu.bavenir.ogwapi.commons.connectors.http;
 
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.io.PrintWriter;
+import java.io.Reader;
 import java.io.StringWriter;
-import java.util.Collections;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.logging.Logger;
 
-import javax.json.Json;
 import javax.json.JsonBuilderFactory;
+import javax.json.JsonException;
+import javax.json.JsonObject;
 import javax.json.JsonObjectBuilder;
+import javax.json.stream.JsonGenerator;
 import javax.net.ssl.SSLContext;
 
 import org.apache.commons.configuration2.XMLConfiguration;
+import org.apache.commons.io.input.CountingInputStream;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.StatusLine;
 import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpDelete;
+import org.apache.http.client.methods.HttpEntityEnclosingRequestBase;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.client.utils.URIBuilder;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
 import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
 import org.apache.http.conn.ssl.TrustSelfSignedStrategy;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClientBuilder;
 import org.apache.http.impl.client.HttpClients;
 import org.apache.http.ssl.SSLContexts;
-import org.json.JSONObject;
-
-import com.mashape.unirest.http.HttpResponse;
-import com.mashape.unirest.http.Unirest;
-import com.mashape.unirest.http.exceptions.UnirestException;
-import com.mashape.unirest.request.GetRequest;
-import com.mashape.unirest.request.HttpRequestWithBody;
 
+import eu.bavenir.ogwapi.commons.JsonCodec;
 import eu.bavenir.ogwapi.commons.connectors.AgentConnector;
 import eu.bavenir.ogwapi.commons.messages.CodesAndReasons;
 import eu.bavenir.ogwapi.commons.messages.NetworkMessageRequest;
 import eu.bavenir.ogwapi.commons.messages.NetworkMessageResponse;
+import eu.bavenir.ogwapi.commons.monitoring.GatewayMetrics;
+import eu.bavenir.ogwapi.commons.monitoring.events.AgentCallEvent;
 
 
 /*
@@ -102,14 +127,14 @@ public class RestAgentConnector extends AgentConnector {
 	private static final String CONFIG_PARAM_AGENTTIMEOUT = "connector.restAgentConnector.agentTimeout";
 
 	/**
-	 * Name of the configuration parameter for Agent IP.
+	 * Name of the configuration parameter for whether Agent serves batch property reads.
 	 */
-	private static final String CONFIG_PARAM_CONNECTORRESTIP = "connector.restAgentConnector.agent";
+	private static final String CONFIG_PARAM_BATCHPROPERTYREADS = "connector.restAgentConnector.batchPropertyReads";
 
 	/**
-	 * Name of the configuration parameter for Agent port.
+	 * Name of the configuration parameter for maximum size of an Agent response (in bytes).
 	 */
-	private static final String CONFIG_PARAM_CONNECTORRESTPORT = "connector.restAgentConnector.agentPort";
+	private static final String CONFIG_PARAM_MAXRESPONSESIZE = "connector.restAgentConnector.maxResponseSize";
 
 	/**
 	 * Default value of {@link #CONFIG_PARAM_AGENTTIMEOUT CONFIG_PARAM_AGENTTIMEOUT} configuration parameter.
@@ -117,6 +142,18 @@ public class RestAgentConnector extends AgentConnector {
 	 */
 	private static final int CONFIG_DEF_AGENTTIMEOUT = 60;
 
+	/**
+	 * Default value of {@link #CONFIG_PARAM_BATCHPROPERTYREADS CONFIG_PARAM_BATCHPROPERTYREADS} configuration parameter.
+	 * This value is taken into account when no suitable value is found in the configuration file.
+	 */
+	private static final boolean CONFIG_DEF_BATCHPROPERTYREADS = false;
+
+	/**
+	 * Default value of {@link #CONFIG_PARAM_MAXRESPONSESIZE CONFIG_PARAM_MAXRESPONSESIZE} configuration parameter.
+	 * This value is taken into account when no suitable value is found in the configuration file.
+	 */
+	private static final int CONFIG_DEF_MAXRESPONSESIZE = 10485760;
+
 	/**
 	 * Default value of {@link #CONFIG_PARAM_AGENTUSERNAME CONFIG_PARAM_AGENTUSERNAME} configuration parameter.
 	 * This value is taken into account when no suitable value is found in the configuration file.
@@ -153,33 +190,6 @@ public class RestAgentConnector extends AgentConnector {
 	 */
 	private static final boolean CONFIG_DEF_APIAGENTUSEHTTPS = false;
 
-	/**
-	 * Default value of {@link #CONFIG_PARAM_CONNECTORRESTIP CONFIG_PARAM_APIAGENTIP} configuration parameter. This value is
-	 * taken into account when no suitable value is found in the configuration file.
-	 */
-	private static final String CONFIG_DEF_APIRESTAGENTPORT = "9997";
-
-	/**
-	 * Default value of {@link #CONFIG_PARAM_CONNECTORRESTIP CONFIG_PARAM_APIAGENTIP} configuration parameter. This value is
-	 * taken into account when no suitable value is found in the configuration file.
-	 */
-	private static final String CONFIG_DEF_APIRESTAGENTIP = "localhost";
-
-	/**
-	 * The beginning of the Agent service URL when using HTTP protocol.
-	 */
-	private static final String HTTP_PROTOCOL = "http://";
-
-	/**
-	 * The beginning of the Agent service URL when using HTTPS protocol.
-	 */
-	private static final String HTTPS_PROTOCOL = "https://";
-
-	/**
-	 * The name of the Agent API, this string usually follows the IP and port. Like http://localhost:port/agent/stuff.
-	 */
-	private static final String AGENT_API_STRING = "/agent";
-
 	/**
 	 * Name of the 'objects' attribute in the final URL.
 	 */
@@ -205,6 +215,21 @@ public class RestAgentConnector extends AgentConnector {
 	 */
 	private static final String ATTR_URL_DISCOVERY = "/discovery";
 
+	/**
+	 * Name of the 'notifications' attribute in the final URL.
+	 */
+	private static final String ATTR_URL_NOTIFICATIONS = "/notifications";
+
+	/**
+	 * Type of the Agent's end points that are none of the above, for monitoring.
+	 */
+	private static final String ENDPOINT_OTHER = "other";
+
+	/**
+	 * Name of the attribute with the list of property IDs in the body of a batch read.
+	 */
+	private static final String ATTR_BATCH_PROPERTIES = "properties";
+
 	/**
 	 * Name of the 'dummy' attribute in the returned JSON.
 	 */
@@ -242,6 +267,42 @@ public class RestAgentConnector extends AgentConnector {
 	 */
 	private static final String CLIENT_ERR_STATUSREASON = "An error occured when connecting to Agent: ";
 
+	/**
+	 * Size of the buffer (in characters) used when the Agent response is being read.
+	 */
+	private static final int RESPONSE_BUFFER_SIZE = 8192;
+
+	/**
+	 * Largest buffer (in characters) allocated up front for an Agent response, whatever length the Agent announces.
+	 * Bodies that are larger make the buffer grow as they arrive.
+	 */
+	private static final int RESPONSE_PRESIZE_LIMIT = 1048576;
+
+	/**
+	 * Maximum number of pooled connections to Agent(s).
+	 */
+	private static final int MAX_CONNECTIONS_TOTAL = 200;
+
+	/**
+	 * Maximum number of pooled connections per Agent end point.
+	 */
+	private static final int MAX_CONNECTIONS_PERROUTE = 20;
+
+	/**
+	 * Status code of an Agent that does not know the batch end point.
+	 */
+	private static final int HTTP_NOTFOUND = 404;
+
+	/**
+	 * Status code of an Agent that does not allow POST on the batch end point.
+	 */
+	private static final int HTTP_METHODNOTALLOWED = 405;
+
+	/**
+	 * Status code of an Agent that does not implement the batch end point.
+	 */
+	private static final int HTTP_NOTIMPLEMENTED = 501;
+
 
 
 	/* === FIELDS === */
@@ -282,14 +343,29 @@ public class RestAgentConnector extends AgentConnector {
 	private boolean dummyCalls;
 
 	/**
-	 * This is the agent service URL, without attributes (basically something like http://ip:port/apiname) .
+	 * Configuration flag for batching of property reads.
 	 */
-	private String agentServiceUrl;
+	private boolean batchPropertyReads;
 
 	/**
-	 * CloseableHttpClient
+	 * Maximum size of an Agent response in bytes, zero or less means no limit.
 	 */
-	private CloseableHttpClient httpClient = null;
+	private int maxResponseSize;
+
+	/**
+	 * HTTP client shared by all instances of this connector, so the connections to Agent get pooled.
+	 */
+	private static CloseableHttpClient httpClient = null;
+
+	/**
+	 * Routing table shared by all instances of this connector, decides which Agent end point serves which object.
+	 */
+	private static AgentRouter agentRouter = null;
+
+	/**
+	 * Lanes of property reads that are in progress, shared by all instances of this connector.
+	 */
+	private static Map<String, PropertyReadLane> readLanes = new ConcurrentHashMap<String, PropertyReadLane>();
 
 	/* === PUBLIC METHODS === */
 
@@ -337,7 +413,14 @@ public class RestAgentConnector extends AgentConnector {
 		// load timeout
 		agentTimeout = config.getInt(CONFIG_PARAM_AGENTTIMEOUT, CONFIG_DEF_AGENTTIMEOUT);
 
-		agentServiceUrl = assembleAgentServiceUrl();
+		// load batching of property reads
+		batchPropertyReads = config.getBoolean(CONFIG_PARAM_BATCHPROPERTYREADS, CONFIG_DEF_BATCHPROPERTYREADS);
+		if (batchPropertyReads) {
+			logger.config("REST Agent Connector: Concurrent property reads will be batched.");
+		}
+
+		// load maximum response size
+		maxResponseSize = config.getInt(CONFIG_PARAM_MAXRESPONSESIZE, CONFIG_DEF_MAXRESPONSESIZE);
 
 		// initialize CloseableHttpClient
 		initialize();
@@ -351,28 +434,40 @@ public class RestAgentConnector extends AgentConnector {
 	public NetworkMessageResponse forwardEventToObject(String sourceOid, String destinationOid, String eventId,
 			String body, Map<String, String> parameters) {
 
-		String fullEndpointUrl = new String(agentServiceUrl);
-
-		fullEndpointUrl = fullEndpointUrl + ATTR_URL_OBJECTS + "/" + destinationOid + ATTR_URL_EVENTS + "/" + eventId;
+		String endpointPath = ATTR_URL_OBJECTS + "/" + destinationOid + ATTR_URL_EVENTS + "/" + eventId;
 
-		return performOperation(OPERATION_PUT, sourceOid, fullEndpointUrl, body, parameters);
+		return performOperation(OPERATION_PUT, sourceOid, destinationOid, endpointPath, body, parameters);
 	}
 
 
 	/**
 	 * This will make a call to GET http://<agent IP>:<agent port>/agent/objects/<destination OID>/properties/<property ID>
+	 * 
+	 * If batching of property reads is enabled, reads without body that arrive while another read of the same object
+	 * is being served are collected, and when it finishes the Agent gets a single call to 
+	 * POST http://<agent IP>:<agent port>/agent/objects/<destination OID>/properties with a body like 
+	 * {"properties": ["pid1", "pid2"]}. It is expected to answer with a JSON object, where the keys are property IDs 
+	 * and values are whatever it would return for the single property. Reads that do not overlap are not delayed.
 	 */
 	@Override
 	public NetworkMessageResponse getObjectProperty(String sourceOid, String destinationOid, String propertyId,
 			String body, Map<String, String> parameters) {
 
-		String fullEndpointUrl = new String(agentServiceUrl);
+		// don't delay the reads if the Agent already said it can't do batches. the end point is chosen only when the
+		// call is made, so every call takes exactly one turn among the replicas
+		if (batchPropertyReads && !dummyCalls && (body == null || body.isEmpty()) 
+				&& agentRouter.isBatchSupported(destinationOid)) {
 
-		fullEndpointUrl =
-				fullEndpointUrl + ATTR_URL_OBJECTS + "/" + destinationOid + ATTR_URL_PROPERTIES + "/" + propertyId;
+			NetworkMessageResponse response = readPropertyInBatch(sourceOid, destinationOid, propertyId, parameters);
 
+			if (response != null) {
+				return response;
+			}
+		}
 
-		return performOperation(OPERATION_GET, sourceOid, fullEndpointUrl, body, parameters);
+		String endpointPath = ATTR_URL_OBJECTS + "/" + destinationOid + ATTR_URL_PROPERTIES + "/" + propertyId;
+
+		return performOperation(OPERATION_GET, sourceOid, destinationOid, endpointPath, body, parameters);
 	}
 
 
@@ -383,12 +478,9 @@ public class RestAgentConnector extends AgentConnector {
 	public NetworkMessageResponse setObjectProperty(String sourceOid, String destinationOid, String propertyId,
 			String body, Map<String, String> parameters) {
 
-		String fullEndpointUrl = new String(agentServiceUrl);
-
-		fullEndpointUrl =
-				fullEndpointUrl + ATTR_URL_OBJECTS + "/" + destinationOid + ATTR_URL_PROPERTIES + "/" + propertyId;
+		String endpointPath = ATTR_URL_OBJECTS + "/" + destinationOid + ATTR_URL_PROPERTIES + "/" + propertyId;
 
-		return performOperation(OPERATION_PUT, sourceOid, fullEndpointUrl, body, parameters);
+		return performOperation(OPERATION_PUT, sourceOid, destinationOid, endpointPath, body, parameters);
 	}
 
 
@@ -399,11 +491,9 @@ public class RestAgentConnector extends AgentConnector {
 	public NetworkMessageResponse startObjectAction(String sourceOid, String destinationOid, String actionId,
 			String body, Map<String, String> parameters) {
 
-		String fullEndpointUrl = new String(agentServiceUrl);
+		String endpointPath = ATTR_URL_OBJECTS + "/" + destinationOid + ATTR_URL_ACTIONS + "/" + actionId;
 
-		fullEndpointUrl = fullEndpointUrl + ATTR_URL_OBJECTS + "/" + destinationOid + ATTR_URL_ACTIONS + "/" + actionId;
-
-		return performOperation(OPERATION_POST, sourceOid, fullEndpointUrl, body, parameters);
+		return performOperation(OPERATION_POST, sourceOid, destinationOid, endpointPath, body, parameters);
 	}
 
 
@@ -414,11 +504,9 @@ public class RestAgentConnector extends AgentConnector {
 	public NetworkMessageResponse stopObjectAction(String sourceOid, String destinationOid, String actionId, String body,
 			Map<String, String> parameters) {
 
-		String fullEndpointUrl = new String(agentServiceUrl);
-
-		fullEndpointUrl = fullEndpointUrl + ATTR_URL_OBJECTS + "/" + destinationOid + ATTR_URL_ACTIONS + "/" + actionId;
+		String endpointPath = ATTR_URL_OBJECTS + "/" + destinationOid + ATTR_URL_ACTIONS + "/" + actionId;
 
-		return performOperation(OPERATION_DELETE, sourceOid, fullEndpointUrl, body, parameters);
+		return performOperation(OPERATION_DELETE, sourceOid, destinationOid, endpointPath, body, parameters);
 	}
 
 	/**
@@ -429,11 +517,9 @@ public class RestAgentConnector extends AgentConnector {
 
 		logger.info("Building discovery message for agent...");
 
-		String fullEndpointUrl = new String(agentServiceUrl);
+		String endpointPath = ATTR_URL_OBJECTS + "/" + destinationOid + ATTR_URL_DISCOVERY;
 
-		fullEndpointUrl = fullEndpointUrl + ATTR_URL_OBJECTS + "/" + destinationOid + ATTR_URL_DISCOVERY;
-
-		return performOperation(OPERATION_POST, sourceOid, fullEndpointUrl, body, parameters);
+		return performOperation(OPERATION_POST, sourceOid, destinationOid, endpointPath, body, parameters);
 	}
 
 	/**
@@ -443,12 +529,9 @@ public class RestAgentConnector extends AgentConnector {
 	public NetworkMessageResponse sendNotificationMessage(String sourceOid, String destinationAgid, String notificationId,
 		String body, Map<String, String> parameters) {
 
-		String fullEndpointUrl = new String(agentServiceUrl);
-
-		fullEndpointUrl =
-				fullEndpointUrl + ATTR_URL_OBJECTS + "/" + destinationAgid + "/notifications/" + notificationId;
+		String endpointPath = ATTR_URL_OBJECTS + "/" + destinationAgid + ATTR_URL_NOTIFICATIONS + "/" + notificationId;
 
-		return performOperation(OPERATION_POST, sourceOid, fullEndpointUrl, body, parameters);
+		return performOperation(OPERATION_POST, sourceOid, destinationAgid, endpointPath, body, parameters);
 	}
 
 
@@ -456,97 +539,97 @@ public class RestAgentConnector extends AgentConnector {
 	/* === PRIVATE METHODS === */
 
 	/**
-	 * This method takes incoming {@link NetworkMessageRequest request} and parses it into URL of an Agent service.
-	 * See the main Javadoc section for the {@link NetworkMessageRequest request} class for more details.
-	 *
-	 */
-	private String assembleAgentServiceUrl(){
-
-		// resolve the protocol to use
-		String protocol;
-		if (useHttps){
-			protocol = HTTPS_PROTOCOL;
-		} else {
-			protocol = HTTP_PROTOCOL;
-		}
-
-		String agentServiceUrl = new String(
-				protocol
-				+ config.getString(CONFIG_PARAM_CONNECTORRESTIP, CONFIG_DEF_APIRESTAGENTIP)
-				+ ":"
-				+ config.getString(CONFIG_PARAM_CONNECTORRESTPORT, CONFIG_DEF_APIRESTAGENTPORT)
-				+ AGENT_API_STRING
-		);
-
-		return agentServiceUrl;
-	}
-
-	
-	/**
-	 * This method initialize CloseableHttpClient
+	 * This method initialises the CloseableHttpClient and the routing table. Both are shared among all instances of
+	 * this connector, therefore they are created only once.
 	 *
 	 */
 	private void initialize() {
 
-		// accept snake oil
-		boolean customClientInUse = false;
+		synchronized (RestAgentConnector.class) {
 
-		if (useHttps && acceptSelfSigned) {
-
-			SSLContext sslcontext = null;
-			try {
-				sslcontext = SSLContexts.custom().loadTrustMaterial(null, new TrustSelfSignedStrategy()).build();
-			} catch (Exception e) {
-				logger.warning("Exception during configuration of SSL for Agent Connector. Reverting to HTTP. "
-						+ "Exception message: " + e.getMessage());
+			if (httpClient != null) {
+				return;
 			}
 
-			if (sslcontext != null) {
-
-				SSLConnectionSocketFactory sslsf = new SSLConnectionSocketFactory(sslcontext); 
+			// create request config builder
+			RequestConfig.Builder requestBuilder = RequestConfig.custom();
+			requestBuilder = requestBuilder.setConnectTimeout(agentTimeout * 1000);
+			requestBuilder = requestBuilder.setSocketTimeout(agentTimeout * 1000);
 
-				// create request config builder
-				RequestConfig.Builder requestBuilder = RequestConfig.custom();
-				requestBuilder = requestBuilder.setConnectTimeout(agentTimeout * 1000);
+			// create client builder
+			HttpClientBuilder clientBuilder = HttpClients.custom();
 
-				// create client builder
-				HttpClientBuilder clientBuilder = HttpClients.custom(); 
+			// set request configuration
+			clientBuilder.setDefaultRequestConfig(requestBuilder.build());
+			clientBuilder.setMaxConnTotal(MAX_CONNECTIONS_TOTAL);
+			clientBuilder.setMaxConnPerRoute(MAX_CONNECTIONS_PERROUTE);
 
-				// set request configuration
-				clientBuilder.setDefaultRequestConfig(requestBuilder.build());
-				clientBuilder.setSSLSocketFactory(sslsf);
+			SSLConnectionSocketFactory sslSocketFactory = null;
 
-				httpClient = clientBuilder.build();
+			// accept snake oil
+			if (useHttps && acceptSelfSigned) {
 
-				Unirest.setHttpClient(httpClient);
+				SSLContext sslcontext = null;
+				try {
+					sslcontext = SSLContexts.custom().loadTrustMaterial(null, new TrustSelfSignedStrategy()).build();
+				} catch (Exception e) {
+					logger.warning("Exception during configuration of SSL for Agent Connector. Reverting to HTTP. "
+							+ "Exception message: " + e.getMessage());
+				}
 
-				customClientInUse = true;
+				if (sslcontext != null) {
+					sslSocketFactory = new SSLConnectionSocketFactory(sslcontext);
+					clientBuilder.setSSLSocketFactory(sslSocketFactory);
+				}
 			}
-		}
 
-		if (!customClientInUse) {
-			// set timeouts - we are not using custom client, we have to do it this way
-			Unirest.setTimeouts(agentTimeout * 1000, agentTimeout * 1000);
+			httpClient = clientBuilder.build();
+
+			agentRouter = new AgentRouter(config, logger, useHttps, sslSocketFactory);
 		}
 	}
 
 	/**
-	 * Processes the {@link NetworkMessageRequest request} that arrived from the network. After the URL of the
-	 * required Agent service is assembled, the URL is called with the necessary HTTP method and the result is returned.
+	 * Processes the {@link NetworkMessageRequest request} that arrived from the network. The Agent end point is chosen
+	 * by the {@link AgentRouter router}, and after the URL of the required Agent service is assembled, the URL is 
+	 * called with the necessary HTTP method and the result is returned.
+	 * 
+	 * The response entity is decoded as it arrives from the connection, its raw bytes are not buffered. Responses 
+	 * larger than {@link #CONFIG_PARAM_MAXRESPONSESIZE CONFIG_PARAM_MAXRESPONSESIZE} are dropped and an error is 
+	 * returned instead.
 	 *
 	 * @param operationCode Code of the HTTP operation, see the constants.
 	 * @param sourceOid The object ID of the source.
-	 * @param fullUrl Full URL of the Agent's end point to be reached.
+	 * @param destinationId The object ID (or AGID) of the destination, used for routing.
+	 * @param endpointPath Path of the Agent's service, relative to the Agent service URL.
 	 * @param body Body of the request.
 	 * @param parameters Parameters passed in the request.
 	 * @return Response message with the results.
 	 */
-	private NetworkMessageResponse performOperation(byte operationCode, String sourceOid, String fullUrl, String body,
-			Map<String, String> parameters){
+	private NetworkMessageResponse performOperation(byte operationCode, String sourceOid, String destinationId, 
+			String endpointPath, String body, Map<String, String> parameters){
+
+		return performOperation(operationCode, sourceOid, agentRouter.selectEndpoint(destinationId), endpointPath, 
+				body, parameters);
+	}
 
-		// prepare for error
-		boolean clientError = false;
-		String exceptionString = null;
+
+	/**
+	 * Same as {@link #performOperation(byte, String, String, String, String, Map) performOperation}, but the Agent
+	 * end point was already chosen.
+	 *
+	 * @param operationCode Code of the HTTP operation, see the constants.
+	 * @param sourceOid The object ID of the source.
+	 * @param endpoint The Agent end point to be called.
+	 * @param endpointPath Path of the Agent's service, relative to the Agent service URL.
+	 * @param body Body of the request.
+	 * @param parameters Parameters passed in the request.
+	 * @return Response message with the results.
+	 */
+	private NetworkMessageResponse performOperation(byte operationCode, String sourceOid, AgentEndpoint endpoint, 
+			String endpointPath, String body, Map<String, String> parameters){
+
+		String fullUrl = endpoint.getServiceUrl() + endpointPath;
 
 		// don't forget to put source OID as one of the parameters (this will also overwrite any previous such
 		// parameter that someone maliciously could have thrown in)
@@ -563,195 +646,446 @@ public class RestAgentConnector extends AgentConnector {
 			return performDummyOperation(operationCode, sourceOid, fullUrl, body, parameters);
 		}
 
-		// Unirest needs Map<String, Object>, but all we have is Map<String, String>. We have to do something...
-		Map<String, Object> convertedParams = Collections.<String, Object>unmodifiableMap(parameters);
-
 		// create stuff
 		NetworkMessageResponse response = new NetworkMessageResponse(config, logger);
 
-		HttpResponse<String> responseNode = null;
+		HttpRequestBase request;
+		try {
+			request = createRequest(operationCode, fullUrl, body, parameters);
+		} catch (URISyntaxException e) {
+			logger.warning("Invalid Agent URL: " + fullUrl + " Exception message: " + e.getMessage());
 
-		Map<String, String> headers = new HashMap<String, String>();
-		headers.put("Accept", "application/json");
-		headers.put("Content-Type", "application/json");
-		headers.put("sourceoid", sourceOid);
+			response.setError(true);
+			response.setResponseCode(CLIENT_ERR_STATUSCODE);
+			response.setResponseCodeReason(CLIENT_ERR_STATUSREASON + e.getMessage());
 
-		JSONObject jsonBody = null;
-		if (body != null && !body.isEmpty()) {
-			jsonBody = new JSONObject(body);
+			return response;
 		}
 
-		switch (operationCode){
+		request.setHeader("Accept", "application/json");
+		request.setHeader("Content-Type", "application/json");
+		request.setHeader("sourceoid", sourceOid);
 
-		case OPERATION_GET:
+		// if authentication is not 'none'
+		if (!agentAuthMethod.equals(CONFIG_DEF_AUTHMETHOD)) {
+			String credentials = agentUsername + ":" + agentPassword;
+			request.setHeader("Authorization", "Basic " 
+					+ Base64.getEncoder().encodeToString(credentials.getBytes(StandardCharsets.UTF_8)));
+		}
 
-			GetRequest getRequest = Unirest.get(fullUrl);
+		endpoint.requestStarted();
 
-			// fill the parameters
-			getRequest.queryString(convertedParams);
+		AgentCallEvent event = new AgentCallEvent();
+		event.begin();
 
-			// if authentication is not 'none'
-			if (!agentAuthMethod.equals(CONFIG_DEF_AUTHMETHOD)) {
-				getRequest.basicAuth(agentUsername, agentPassword);
-			}
+		long startTime = System.nanoTime();
 
-			getRequest.headers(headers);
+		try (CloseableHttpResponse httpResponse = httpClient.execute(request)) {
 
-			try {
-				responseNode = getRequest.asString();
-			} catch (UnirestException e) {
+			endpoint.setHealthy(true);
+
+			StatusLine statusLine = httpResponse.getStatusLine();
+			HttpEntity entity = httpResponse.getEntity();
 
-				clientError = true;
-				exceptionString = e.getMessage();
+			if (entity != null && !readResponseBody(request, entity, response)) {
 
-				StringWriter sw = new StringWriter();
-				e.printStackTrace(new PrintWriter(sw));
-				String exceptionAsString = sw.toString();
+				response.setError(true);
+				response.setResponseCode(CodesAndReasons.CODE_502_BADGATEWAY);
+				response.setResponseCodeReason(CodesAndReasons.REASON_502_BADGATEWAY 
+						+ "Agent response exceeds the maximum size of " + maxResponseSize + " bytes.");
 
-				logger.warning("Exception when connecting to Agent: " + exceptionString + "\nThe whole exception: " + exceptionAsString);
+				return response;
 			}
 
-			break;
+			Header contentTypeHeader = httpResponse.getFirstHeader("Content-type");
+			if (contentTypeHeader != null) {
+				response.setContentType(contentTypeHeader.getValue());
+			}
 
-		case OPERATION_POST:
+			// save the status code and reason
+			if (statusLine.getStatusCode() / 200 == 1) {
+				response.setError(false);
+			} else {
+				response.setError(true);
+			}
 
-			HttpRequestWithBody postRequest = Unirest.post(fullUrl);
+			response.setResponseCode(statusLine.getStatusCode());
+			response.setResponseCodeReason(statusLine.getReasonPhrase());
 
-			// fill the parameters
-			postRequest.queryString(convertedParams);
+		} catch (IOException e) {
 
-			// if authentication is not 'none'
-			if (!agentAuthMethod.equals(CONFIG_DEF_AUTHMETHOD)) {
-				postRequest.basicAuth(agentUsername, agentPassword);
-			}
+			StringWriter sw = new StringWriter();
+			e.printStackTrace(new PrintWriter(sw));
+			String exceptionAsString = sw.toString();
 
-			postRequest.headers(headers);
+			logger.warning("Exception when connecting to Agent: " + e.getMessage() + "\nThe whole exception: " 
+					+ exceptionAsString);
 
-			if (jsonBody != null) {
-				postRequest.body(jsonBody);
+			// let the other replicas take over until the health check finds this one alive - unless the Agent was
+			// only slow to answer this one request, or the connection pool had nothing free, which says nothing
+			// about the Agent at all
+			if (!(e instanceof SocketTimeoutException) && !(e instanceof ConnectionPoolTimeoutException)) {
+				endpoint.setHealthy(false);
 			}
 
-			try {
-				responseNode = postRequest.asString();
-			} catch (UnirestException e) {
-				clientError = true;
-				exceptionString = e.getMessage();
+			response.setError(true);
+			response.setResponseCode(CLIENT_ERR_STATUSCODE);
+			response.setResponseCodeReason(CLIENT_ERR_STATUSREASON + e.getMessage());
+		} finally {
+			endpoint.requestFinished();
 
-				StringWriter sw = new StringWriter();
-				e.printStackTrace(new PrintWriter(sw));
-				String exceptionAsString = sw.toString();
+			GatewayMetrics.recordAgentCall(request.getMethod(), describeEndpoint(endpointPath), startTime);
 
-				logger.warning("Exception when connecting to Agent: " + exceptionString + "\nThe whole exception: " + exceptionAsString);
-			}
+			event.complete(sourceOid, request.getMethod(), describeEndpoint(endpointPath), endpointPath, 
+					response.getResponseCode(), body, response.getResponseBody());
+		}
 
-			break;
+		return response;
+	}
 
-		case OPERATION_PUT:
 
-			HttpRequestWithBody putRequest = Unirest.put(fullUrl);
+	/**
+	 * Type of the Agent's end point, for monitoring - the kind of resource under the object, without any IDs.
+	 *
+	 * @param endpointPath Path of the Agent's service, relative to the Agent service URL.
+	 * @return Type of the end point, e.g. properties.
+	 */
+	private static String describeEndpoint(String endpointPath) {
 
-			// fill the parameters
-			putRequest.queryString(convertedParams);
+		if (!endpointPath.startsWith(ATTR_URL_OBJECTS + "/")) {
+			return ENDPOINT_OTHER;
+		}
 
-			// if authentication is not 'none'
-			if (!agentAuthMethod.equals(CONFIG_DEF_AUTHMETHOD)) {
-				putRequest.basicAuth(agentUsername, agentPassword);
-			}
+		// skip the object ID
+		int resourceStart = endpointPath.indexOf('/', ATTR_URL_OBJECTS.length() + 1);
+		if (resourceStart < 0) {
+			return ENDPOINT_OTHER;
+		}
 
-			putRequest.headers(headers);
+		int resourceEnd = endpointPath.indexOf('/', resourceStart + 1);
+		String resource = resourceEnd < 0 ? endpointPath.substring(resourceStart) 
+				: endpointPath.substring(resourceStart, resourceEnd);
+
+		switch (resource) {
+		case ATTR_URL_PROPERTIES:
+		case ATTR_URL_EVENTS:
+		case ATTR_URL_ACTIONS:
+		case ATTR_URL_DISCOVERY:
+		case ATTR_URL_NOTIFICATIONS:
+			return resource.substring(1);
+		default:
+			return ENDPOINT_OTHER;
+		}
+	}
 
-			if (jsonBody != null) {
-				putRequest.body(jsonBody);
-			}
 
-			try {
-				responseNode = putRequest.asString();
-			} catch (UnirestException e) {
-				clientError = true;
-				exceptionString = e.getMessage();
+	/**
+	 * Creates the HTTP request for given operation, including the query parameters and the JSON body (if the 
+	 * operation can carry one).
+	 * 
+	 * @param operationCode Code of the HTTP operation, see the constants.
+	 * @param fullUrl Full URL of the Agent's end point to be reached.
+	 * @param body Body of the request.
+	 * @param parameters Parameters passed in the request.
+	 * @return HTTP request ready to be executed.
+	 * @throws URISyntaxException If the URL can't be parsed.
+	 */
+	private HttpRequestBase createRequest(byte operationCode, String fullUrl, String body, 
+			Map<String, String> parameters) throws URISyntaxException {
 
-				StringWriter sw = new StringWriter();
-				e.printStackTrace(new PrintWriter(sw));
-				String exceptionAsString = sw.toString();
+		// fill the parameters
+		URIBuilder uriBuilder = new URIBuilder(fullUrl);
+		for (Map.Entry<String, String> parameter : parameters.entrySet()) {
+			uriBuilder.addParameter(parameter.getKey(), parameter.getValue());
+		}
+		URI uri = uriBuilder.build();
 
-				logger.warning("Exception when connecting to Agent: " + exceptionString + "\nThe whole exception: " + exceptionAsString);
-			}
+		HttpEntityEnclosingRequestBase requestWithBody;
+
+		switch (operationCode){
 
+		case OPERATION_POST:
+			requestWithBody = new HttpPost(uri);
+			break;
+
+		case OPERATION_PUT:
+			requestWithBody = new HttpPut(uri);
 			break;
 
 		case OPERATION_DELETE:
+			return new HttpDelete(uri);
 
-			HttpRequestWithBody deleteRequest = Unirest.delete(fullUrl);
+		default:
+			return new HttpGet(uri);
+		}
 
-			// fill the parameters
-			deleteRequest.queryString(convertedParams);
+		if (body != null && !body.isEmpty()) {
+			// the body has to be a JSON object, but there is no need to rebuild it - it is passed on as it came
+			JsonCodec.validateObject(body);
+			requestWithBody.setEntity(new StringEntity(body, ContentType.APPLICATION_JSON));
+		}
 
-			// if authentication is not 'none'
-			if (!agentAuthMethod.equals(CONFIG_DEF_AUTHMETHOD)) {
-				deleteRequest.basicAuth(agentUsername, agentPassword);
-			}
+		return requestWithBody;
+	}
 
-			deleteRequest.headers(headers);
 
-			try {
-				responseNode = deleteRequest.asString();
-			} catch (UnirestException e) {
-				clientError = true;
-				exceptionString = e.getMessage();
+	/**
+	 * Reads the HTTP entity returned by the Agent into the body of the response message. The content is decoded 
+	 * as it arrives, so the raw bytes are never held in memory all at once. The decoded text is still copied into a 
+	 * String, and once more when the response is serialised for the network. If the entity turns out to be larger than
+	 * allowed (either by its declared length or by the number of bytes actually read), reading is stopped and the 
+	 * request is aborted, so the rest of the entity does not need to be drained from the connection.
+	 * 
+	 * @param request The request that produced the entity.
+	 * @param entity HTTP entity returned by the Agent.
+	 * @param response Response message to be filled.
+	 * @return True if the body was read completely, false if it exceeded the maximum size.
+	 * @throws IOException If the stream can't be read.
+	 */
+	private boolean readResponseBody(HttpRequestBase request, HttpEntity entity, NetworkMessageResponse response) 
+			throws IOException {
 
-				StringWriter sw = new StringWriter();
-				e.printStackTrace(new PrintWriter(sw));
-				String exceptionAsString = sw.toString();
+		long contentLength = entity.getContentLength();
+
+		if (maxResponseSize > 0 && contentLength > maxResponseSize) {
+			logger.warning("REST Agent Connector: Agent announced a response of " + contentLength 
+					+ " bytes, the maximum is " + maxResponseSize + " bytes.");
+			request.abort();
+			return false;
+		}
+
+		Charset charset = ContentType.getOrDefault(entity).getCharset();
+		if (charset == null) {
+			charset = StandardCharsets.UTF_8;
+		}
 
-				logger.warning("Exception when connecting to Agent: " + exceptionString + "\nThe whole exception: " + exceptionAsString);
+		// size the buffer by what was announced, but don't trust the Agent with more than the limits allow
+		int initialCapacity = RESPONSE_BUFFER_SIZE;
+		if (contentLength > 0) {
+			long limit = RESPONSE_PRESIZE_LIMIT;
+			if (maxResponseSize > 0 && maxResponseSize < limit) {
+				limit = maxResponseSize;
 			}
+			initialCapacity = (int) Math.min(contentLength, limit);
+		}
 
-			break;
+		StringBuilder bodyBuilder = new StringBuilder(initialCapacity);
+		char[] buffer = new char[RESPONSE_BUFFER_SIZE];
+
+		CountingInputStream countingStream = new CountingInputStream(entity.getContent());
+		Reader reader = new InputStreamReader(countingStream, charset);
+
+		int charsRead;
+		while ((charsRead = reader.read(buffer)) != -1) {
 
+			if (maxResponseSize > 0 && countingStream.getByteCount() > maxResponseSize) {
+				logger.warning("REST Agent Connector: Agent response exceeded the maximum of " + maxResponseSize 
+						+ " bytes, reading was stopped.");
+				request.abort();
+				return false;
+			}
+
+			bodyBuilder.append(buffer, 0, charsRead);
 		}
 
-		if (clientError) {
+		reader.close();
 
-			//the responseNode is null now
-			response.setError(true);
-			response.setResponseCode(CLIENT_ERR_STATUSCODE);
-			response.setResponseCodeReason(CLIENT_ERR_STATUSREASON + exceptionString);
+		response.setResponseBody(bodyBuilder.toString());
 
+		return true;
+	}
 
-		} else {
 
-			if (responseNode.getBody() != null) {
-				response.setResponseBody(responseNode.getBody().toString());
+
+	/**
+	 * Reads a property through the {@link PropertyReadLane lane} of its object. If no other read of the object is 
+	 * being served by the Agent, the property is read right away. Otherwise the read joins the batch collecting reads 
+	 * meanwhile, the first read of the batch waits for the call in progress to finish and then performs the batch call
+	 * for all of them.
+	 * 
+	 * @param sourceOid The object ID of the source.
+	 * @param destinationOid The object ID of the destination.
+	 * @param propertyId Property ID.
+	 * @param parameters Parameters passed in the request.
+	 * @return Response message with the results, or null if the read could not be served in a batch and has to be
+	 * performed the usual way.
+	 */
+	private NetworkMessageResponse readPropertyInBatch(String sourceOid, String destinationOid, String propertyId, 
+			Map<String, String> parameters) {
+
+		// only reads that would result in the very same call (except the property) can share the batch
+		String laneKey = destinationOid + "/" + sourceOid + "/" + new TreeMap<String, String>(parameters).toString();
+
+		PropertyReadLane lane = readLanes.compute(laneKey, (key, existingLane) -> {
+			PropertyReadLane usedLane = existingLane == null ? new PropertyReadLane() : existingLane;
+			usedLane.retain();
+			return usedLane;
+		});
+
+		try {
+			PropertyReadBatch batch = lane.enter(sourceOid, destinationOid, parameters);
+
+			if (batch == null) {
+				// nothing in progress, no reason to wait
+				try {
+					String endpointPath = ATTR_URL_OBJECTS + "/" + destinationOid + ATTR_URL_PROPERTIES + "/" 
+							+ propertyId;
+
+					return performOperation(OPERATION_GET, sourceOid, destinationOid, endpointPath, null, parameters);
+				} finally {
+					lane.callFinished();
+				}
 			}
 
-			if (responseNode.getHeaders().containsKey("Content-type")) {
-				response.setContentType(responseNode.getHeaders().get("Content-type").toString());
+			CompletableFuture<NetworkMessageResponse> future = batch.add(propertyId);
+
+			if (future == null) {
+				// the batch got closed just now, don't bother waiting for another one
+				return null;
 			}
 
-			// save the status code and reason
-			if (responseNode.getStatus() / 200 == 1) {
-				response.setError(false);
-			} else {
-				response.setError(true);
+			if (batch.isLeader()) {
+				performBatch(lane, batch);
+				return future.getNow(null);
+			}
+
+			try {
+				return future.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return null;
+			} catch (ExecutionException e) {
+				return null;
 			}
 
-			response.setResponseCode(responseNode.getStatus());
-			response.setResponseCodeReason(responseNode.getStatusText());
+		} finally {
+			readLanes.computeIfPresent(laneKey, (key, existingLane) -> existingLane.release() ? null : existingLane);
 		}
+	}
+
+
+	/**
+	 * Waits for the turn of the batch in its lane and performs it. All reads of the batch are completed afterwards,
+	 * those that could not be served with null.
+	 * 
+	 * @param lane The lane of the batch.
+	 * @param batch The batch.
+	 */
+	private void performBatch(PropertyReadLane lane, PropertyReadBatch batch) {
 
-		// close httpClient
 		try {
-			if (httpClient != null) {
-				httpClient.close();
+			List<String> propertyIds = lane.awaitTurn(batch);
+
+			try {
+				performBatch(batch, propertyIds);
+			} finally {
+				lane.callFinished();
 			}
-		} catch (IOException e) {
-			logger.warning("Exception when httpClient closing! \nThe whole exception: " + e);
+
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			batch.completeRemaining();
 		}
+	}
 
-		return response;
+
+	/**
+	 * Performs the batch call to the Agent and splits the result among the reads of the batch. If all the reads are 
+	 * of the same property, the property is read just once. Reads that can't be served from the result (either because
+	 * the Agent did not include them, or because it does not support batches at all) are left to be completed with 
+	 * null.
+	 * 
+	 * @param batch The batch.
+	 * @param propertyIds IDs of properties to be read.
+	 */
+	private void performBatch(PropertyReadBatch batch, List<String> propertyIds) {
+
+		AgentEndpoint endpoint = agentRouter.selectEndpoint(batch.getDestinationOid());
+
+		// several reads of the same property
+		if (propertyIds.size() == 1) {
+
+			String endpointPath = ATTR_URL_OBJECTS + "/" + batch.getDestinationOid() + ATTR_URL_PROPERTIES + "/" 
+					+ propertyIds.get(0);
+
+			NetworkMessageResponse response = performOperation(OPERATION_GET, batch.getSourceOid(), endpoint, 
+					endpointPath, null, new HashMap<String, String>(batch.getParameters()));
+
+			batch.complete(propertyIds.get(0), () -> copyResponse(response));
+			return;
+		}
+
+		// the Agent said it can't do it
+		if (!endpoint.isBatchSupported()) {
+			return;
+		}
+
+		StringWriter batchBody = new StringWriter();
+		JsonGenerator generator = JsonCodec.createGenerator(batchBody);
+		generator.writeStartObject().writeStartArray(ATTR_BATCH_PROPERTIES);
+		for (String propertyId : propertyIds) {
+			generator.write(propertyId);
+		}
+		generator.writeEnd().writeEnd().close();
+
+		String endpointPath = ATTR_URL_OBJECTS + "/" + batch.getDestinationOid() + ATTR_URL_PROPERTIES;
+
+		NetworkMessageResponse batchResponse = performOperation(OPERATION_POST, batch.getSourceOid(), endpoint, 
+				endpointPath, batchBody.toString(), new HashMap<String, String>(batch.getParameters()));
+
+		int responseCode = batchResponse.getResponseCode();
+
+		if (responseCode == HTTP_NOTFOUND || responseCode == HTTP_METHODNOTALLOWED 
+				|| responseCode == HTTP_NOTIMPLEMENTED) {
+
+			logger.info("REST Agent Connector: Agent " + endpoint.getServiceUrl() + " does not support batch property "
+					+ "reads, they will be sent one by one.");
+
+			endpoint.setBatchSupported(false);
+			return;
+		}
+
+		if (batchResponse.isError() || batchResponse.getResponseBody() == null) {
+			// one by one then, the single reads will report the error properly
+			return;
+		}
+
+		JsonObject results;
+		try {
+			results = JsonCodec.readObject(batchResponse.getResponseBody());
+		} catch (JsonException e) {
+			logger.warning("REST Agent Connector: Invalid response to batch property read: " + e.getMessage());
+			return;
+		}
+
+		for (String propertyId : propertyIds) {
+
+			if (!results.containsKey(propertyId)) {
+				continue;
+			}
+
+			String result = results.get(propertyId).toString();
+
+			// each reader gets its own message, since it will fill in its own request ID
+			batch.complete(propertyId, () -> new NetworkMessageResponse(config, logger, false, responseCode, 
+					batchResponse.getResponseCodeReason(), batchResponse.getContentType(), result));
+		}
 	}
 
 
+	/**
+	 * Copies a response of the Agent, for another reader.
+	 * 
+	 * @param response The response.
+	 * @return New response message with the same content.
+	 */
+	private NetworkMessageResponse copyResponse(NetworkMessageResponse response) {
+
+		return new NetworkMessageResponse(config, logger, response.isError(), response.getResponseCode(), 
+				response.getResponseCodeReason(), response.getContentType(), response.getResponseBody());
+	}
+
 
 	/**
 	 * Very handy testing method that, if set in the configuration file, can be used instead of performOperation. This one does
@@ -779,7 +1113,7 @@ public class RestAgentConnector extends AgentConnector {
 
 		logger.fine(dummyResponseMessage);
 
-		JsonBuilderFactory jsonBuilderFactory = Json.createBuilderFactory(null);
+		JsonBuilderFactory jsonBuilderFactory = JsonCodec.getBuilderFactory();
 
 		JsonObjectBuilder builder = jsonBuilderFactory.createObjectBuilder();
 
@@ -29,9 +29,9 @@ import eu.bavenir.ogwapi.commons.ConnectionDescriptor;
  * put there classes that you need to support the engine. It is also advised to use some common parameters from the 
  * configuration file (those in 'general' section) before making a section of your own with additional parameters. 
  * 
- * You'd also like to add your new engine into the list of available engines in the configuration file and add it into 
- * {@link eu.bavenir.ogwapi.commons.ConnectionDescriptor ConnectionDescriptor}'s constructor decision tree in order to be
- * loaded.
+ * You'd also like to add your new engine into the list of available engines in the configuration file and register it
+ * in the {@link CommunicationEngineFactory CommunicationEngineFactory} under a short name. An engine that lives outside
+ * of this code base can be loaded without registering, by setting its class name in the configuration file. 
  * 
  * In order for your engine to work, you'll of course need to implement all methods mentioned here. They will be called
  * by the {@link eu.bavenir.ogwapi.commons.ConnectionDescriptor ConnectionDescriptor} during various phases of the 
@@ -129,6 +129,15 @@ public abstract class CommunicationEngine {
 	public abstract void disconnect();
 	
 	
+	/**
+	 * This method will be called when the owner object is being discarded for good (it was logged out for good, or 
+	 * its connection is being rebuilt). The engine should disconnect and release everything it holds - especially 
+	 * cancel its registrations in the {@link eu.bavenir.ogwapi.commons.GatewayScheduler GatewayScheduler}. 
+	 * The instance will not be used again afterwards.
+	 */
+	public abstract void destroy();
+	
+	
 	/**
 	 * Serves as a check whether or not the owner object is connected to the network or not. 
 	 * 
@@ -138,7 +147,9 @@ public abstract class CommunicationEngine {
 	
 	
 	/**
-	 * Serves to retrieve a set of object IDs that are visible to the owner object. 
+	 * Serves to retrieve a set of object IDs that are visible to the owner object. This is called for every incoming
+	 * request, so it should not build a new set every time - returning a read only view of a set maintained by the 
+	 * engine is perfectly fine. Callers must not modify it.
 	 * 
 	 * @return Set of object IDs visible to the object.
 	 */
@@ -0,0 +1,221 @@
+package eu.bavenir.ogwapi.commons.engines;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+import org.apache.commons.configuration2.XMLConfiguration;
+
+import eu.bavenir.ogwapi.commons.ConnectionDescriptor;
+import eu.bavenir.ogwapi.commons.engines.loopback.LoopbackEngine;
+import eu.bavenir.ogwapi.commons.engines.xmpp.XmppComponentEngine;
+import eu.bavenir.ogwapi.commons.engines.xmpp.XmppMessageEngine;
+
+/*
+ * STRUCTURE:
+ * - constants
+ * - fields
+ * - public methods
+ * - private methods
+ */
+
+/**
+ * Creates the {@link CommunicationEngine CommunicationEngine} of each {@link ConnectionDescriptor ConnectionDescriptor},
+ * the engine is chosen by the general.communicationEngine configuration parameter. Its value is either the name of an
+ * engine registered here - 'xmpp' and 'loopback' are built in, others can be added by
+ * {@link #register(String, Creator) register} - or the fully qualified name of a class extending CommunicationEngine,
+ * that has the same public constructor as CommunicationEngine itself. Such class only needs to be on the class path.
+ *
+ * The name is resolved once, when the first engine is created with it. An unknown name or a class that can not be
+ * used is reported and the default engine is used instead.
+ *
+ * @author sulfo
+ *
+ */
+public final class CommunicationEngineFactory {
+
+	/* === CONSTANTS === */
+
+	/**
+	 * Name of the configuration parameter for the communication engine.
+	 */
+	public static final String CONFIG_PARAM_COMMUNICATIONENGINE = "general.communicationEngine";
+
+	/**
+	 * Objects are connected through an XMPP server, the way is decided by {@link #CONFIG_PARAM_XMPPMODE
+	 * CONFIG_PARAM_XMPPMODE}.
+	 */
+	public static final String COMMUNICATIONENGINE_XMPP = "xmpp";
+
+	/**
+	 * Objects are connected through the in-memory broker of the JVM.
+	 */
+	public static final String COMMUNICATIONENGINE_LOOPBACK = "loopback";
+
+	/**
+	 * Default value of {@link #CONFIG_PARAM_COMMUNICATIONENGINE CONFIG_PARAM_COMMUNICATIONENGINE} configuration
+	 * parameter. This value is taken into account when no suitable value is found in the configuration file.
+	 */
+	public static final String CONFIG_DEF_COMMUNICATIONENGINE = COMMUNICATIONENGINE_XMPP;
+
+	/**
+	 * Name of the configuration parameter for the way objects are connected to XMPP server.
+	 */
+	private static final String CONFIG_PARAM_XMPPMODE = "xmpp.mode";
+
+	/**
+	 * Each object has its own client connection to the XMPP server.
+	 */
+	private static final String XMPPMODE_CLIENT = "client";
+
+	/**
+	 * All objects share a single component connection to the XMPP server.
+	 */
+	private static final String XMPPMODE_COMPONENT = "component";
+
+	/**
+	 * Default value of {@link #CONFIG_PARAM_XMPPMODE CONFIG_PARAM_XMPPMODE} configuration parameter. This value is
+	 * taken into account when no suitable value is found in the configuration file.
+	 */
+	private static final String CONFIG_DEF_XMPPMODE = XMPPMODE_CLIENT;
+
+
+	/* === FIELDS === */
+
+	/**
+	 * Registered engines and the resolved class names, name to creator.
+	 */
+	private static final Map<String, Creator> creators = new ConcurrentHashMap<String, Creator>();
+
+	static {
+		creators.put(COMMUNICATIONENGINE_XMPP, CommunicationEngineFactory::createXmppEngine);
+		creators.put(COMMUNICATIONENGINE_LOOPBACK, LoopbackEngine::new);
+	}
+
+
+	/* === PUBLIC METHODS === */
+
+	/**
+	 * Creates the engine for an object, as configured.
+	 *
+	 * @param objectId String with the object ID that connects via the engine.
+	 * @param password Password string for authentication.
+	 * @param config Configuration of the OGWAPI.
+	 * @param logger Logger of the OGWAPI.
+	 * @param connectionDescriptor Connection descriptor that will use the engine.
+	 * @return New engine.
+	 */
+	public static CommunicationEngine createEngine(String objectId, String password, XMLConfiguration config,
+			Logger logger, ConnectionDescriptor connectionDescriptor) {
+
+		String name = config.getString(CONFIG_PARAM_COMMUNICATIONENGINE, CONFIG_DEF_COMMUNICATIONENGINE);
+
+		Creator creator = creators.computeIfAbsent(name, unknownName -> resolveClass(unknownName, logger));
+
+		return creator.create(objectId, password, config, logger, connectionDescriptor);
+	}
+
+
+	/**
+	 * Registers an engine under a name, that can then be used in the configuration. Replaces an engine registered
+	 * under the same name before, but not the engines already created.
+	 *
+	 * @param name Name of the engine.
+	 * @param creator Creator of its instances.
+	 */
+	public static void register(String name, Creator creator) {
+		creators.put(name, creator);
+	}
+
+
+	/**
+	 * Creates an engine, usually the constructor of its class.
+	 */
+	@FunctionalInterface
+	public interface Creator {
+
+		/**
+		 * Creates a new engine.
+		 *
+		 * @param objectId String with the object ID that connects via the engine.
+		 * @param password Password string for authentication.
+		 * @param config Configuration of the OGWAPI.
+		 * @param logger Logger of the OGWAPI.
+		 * @param connectionDescriptor Connection descriptor that will use the engine.
+		 * @return New engine.
+		 */
+		CommunicationEngine create(String objectId, String password, XMLConfiguration config, Logger logger,
+				ConnectionDescriptor connectionDescriptor);
+	}
+
+
+	/* === PRIVATE METHODS === */
+
+	/**
+	 * Constructor, not to be used.
+	 */
+	private CommunicationEngineFactory() {
+	}
+
+
+	/**
+	 * Creates an XMPP engine, the client or the component one.
+	 *
+	 * @param objectId String with the object ID that connects via the engine.
+	 * @param password Password string for authentication.
+	 * @param config Configuration of the OGWAPI.
+	 * @param logger Logger of the OGWAPI.
+	 * @param connectionDescriptor Connection descriptor that will use the engine.
+	 * @return New engine.
+	 */
+	private static CommunicationEngine createXmppEngine(String objectId, String password, XMLConfiguration config,
+			Logger logger, ConnectionDescriptor connectionDescriptor) {
+
+		if (config.getString(CONFIG_PARAM_XMPPMODE, CONFIG_DEF_XMPPMODE).equals(XMPPMODE_COMPONENT)) {
+			return new XmppComponentEngine(objectId, password, config, logger, connectionDescriptor);
+		}
+
+		return new XmppMessageEngine(objectId, password, config, logger, connectionDescriptor);
+	}
+
+
+	/**
+	 * Finds the constructor of an engine class by its name. If that is not possible, the default engine is used.
+	 *
+	 * @param className Fully qualified name of the class.
+	 * @param logger Logger of the OGWAPI.
+	 * @return Creator of the engines.
+	 */
+	private static Creator resolveClass(String className, Logger logger) {
+
+		Constructor<? extends CommunicationEngine> constructor;
+
+		try {
+			constructor = Class.forName(className).asSubclass(CommunicationEngine.class).getConstructor(
+					String.class, String.class, XMLConfiguration.class, Logger.class, ConnectionDescriptor.class);
+
+		} catch (ClassNotFoundException | NoSuchMethodException | ClassCastException e) {
+
+			logger.warning("Unknown communication engine '" + className + "' (" + e + "), using default "
+					+ CONFIG_DEF_COMMUNICATIONENGINE + ".");
+
+			return creators.get(CONFIG_DEF_COMMUNICATIONENGINE);
+		}
+
+		logger.config("Communication engine: " + className);
+
+		return (objectId, password, config, engineLogger, connectionDescriptor) -> {
+			try {
+				return constructor.newInstance(objectId, password, config, engineLogger, connectionDescriptor);
+			} catch (InvocationTargetException e) {
+				throw new IllegalStateException("Communication engine " + className + " could not be created.",
+						e.getCause());
+			} catch (ReflectiveOperationException e) {
+				throw new IllegalStateException("Communication engine " + className + " could not be created.", e);
+			}
+		};
+	}
+
+}
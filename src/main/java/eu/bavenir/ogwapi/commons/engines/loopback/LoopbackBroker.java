@@ -0,0 +1,706 @@
+package eu.bavenir.ogwapi.commons.engines.loopback;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.configuration2.HierarchicalConfiguration;
+import org.apache.commons.configuration2.XMLConfiguration;
+import org.apache.commons.configuration2.tree.ImmutableNode;
+
+/*
+ * STRUCTURE:
+ * - constants
+ * - fields
+ * - public methods
+ * - private methods
+ */
+
+/**
+ * In-memory message broker shared by all {@link LoopbackEngine LoopbackEngines} in the JVM - it plays the role of the
+ * XMPP server for gateways running in a single process, no matter how many. Objects register here when they connect
+ * and unregister when they disconnect, which is their presence.
+ *
+ * Like the XMPP server, it keeps rosters. With the open roster every object that ever connected is a contact of every
+ * other one (and of itself). With the configured roster, only objects listed in the configuration can connect and
+ * their contacts are listed there too - contacts are always mutual. Contacts can be added and removed at run time,
+ * as the Neighbourhood Manager does it with the real rosters. A roster lists its contacts whether they are online or
+ * not, but messages can only be sent to the online ones.
+ *
+ * Passwords listed in the configuration are verified and objects without one can not connect. Only in the test mode,
+ * meant for benchmarks and tests that start gateways in one JVM, such objects get theirs on the first connection -
+ * from then on, until the JVM ends, they have to connect with the same password. The test mode is also the only one
+ * where the open roster can be used, outside of it the configured roster applies.
+ *
+ * Messages from one object to another travel through a channel of their own, the counterpart of an XMPP chat. A
+ * message is due after the delay the sending engine asked for, but never before the message sent through the channel
+ * before it, so the messages of a channel are never reordered, however the jitter falls. A single timer thread only
+ * keeps time and moves the due messages to their channels. The destination engine processes them on a pool of
+ * delivery threads, one message at a time and in order for each channel, the way Smack processes the messages of a
+ * chat. A delivery thread is busy while the destination processes a message, which for requests includes calling its
+ * Agent - a slow Agent holds up the channels that are waiting for it and, when all threads are taken, the others, but
+ * never the timer, so the delays of other messages stay as they were drawn.
+ *
+ * @author sulfo
+ *
+ */
+public class LoopbackBroker {
+
+	/* === CONSTANTS === */
+
+	/**
+	 * Name of the configuration parameter for the number of delivery threads, that process the messages.
+	 */
+	private static final String CONFIG_PARAM_DELIVERYTHREADS = "loopback.deliveryThreads";
+
+	/**
+	 * Default value of {@link #CONFIG_PARAM_DELIVERYTHREADS CONFIG_PARAM_DELIVERYTHREADS} configuration parameter.
+	 * This value is taken into account when no suitable value is found in the configuration file.
+	 */
+	private static final int CONFIG_DEF_DELIVERYTHREADS = 8;
+
+	/**
+	 * Name of the configuration parameter for the kind of rosters.
+	 */
+	private static final String CONFIG_PARAM_ROSTER = "loopback.roster";
+
+	/**
+	 * Every object is a contact of every other object.
+	 */
+	private static final String ROSTER_OPEN = "open";
+
+	/**
+	 * Only configured objects can connect, with configured contacts.
+	 */
+	private static final String ROSTER_CONFIGURED = "configured";
+
+	/**
+	 * Default value of {@link #CONFIG_PARAM_ROSTER CONFIG_PARAM_ROSTER} configuration parameter. This value is taken
+	 * into account when no suitable value is found in the configuration file.
+	 */
+	private static final String CONFIG_DEF_ROSTER = ROSTER_CONFIGURED;
+
+	/**
+	 * Name of the configuration parameter for the test mode, in which the open roster can be used and objects without
+	 * a configured password can connect.
+	 */
+	private static final String CONFIG_PARAM_TESTMODE = "loopback.testMode";
+
+	/**
+	 * Default value of {@link #CONFIG_PARAM_TESTMODE CONFIG_PARAM_TESTMODE} configuration parameter. This value is
+	 * taken into account when no suitable value is found in the configuration file.
+	 */
+	private static final boolean CONFIG_DEF_TESTMODE = false;
+
+	/**
+	 * Name of the configuration parameter for the configured objects.
+	 */
+	private static final String CONFIG_PARAM_OBJECTS = "loopback.objects.object";
+
+	/**
+	 * Name of the element with the object ID of a configured object.
+	 */
+	private static final String OBJECT_OID = "oid";
+
+	/**
+	 * Name of the element with the password of a configured object.
+	 */
+	private static final String OBJECT_PASSWORD = "password";
+
+	/**
+	 * Name of the element with a contact of a configured object.
+	 */
+	private static final String OBJECT_CONTACT = "contact";
+
+	/**
+	 * Name prefix of the delivery threads.
+	 */
+	private static final String THREAD_NAME_PREFIX = "ogwapi-loopback-";
+
+	/**
+	 * Name of the timer thread.
+	 */
+	private static final String TIMER_THREAD_NAME = "ogwapi-loopback-timer";
+
+
+	/* === FIELDS === */
+
+	/**
+	 * The instance shared by the JVM.
+	 */
+	private static LoopbackBroker instance = null;
+
+	/**
+	 * Logger of the OGWAPI.
+	 */
+	private Logger logger;
+
+	/**
+	 * Engines of the objects that are online, object ID to engine.
+	 */
+	private Map<String, LoopbackEngine> engines;
+
+	/**
+	 * Whether every object is a contact of every other object.
+	 */
+	private boolean openRoster;
+
+	/**
+	 * Whether objects without a configured password can connect, see {@link #CONFIG_PARAM_TESTMODE
+	 * CONFIG_PARAM_TESTMODE}.
+	 */
+	private boolean testMode;
+
+	/**
+	 * Objects that may connect (configured roster) or ever connected (open roster).
+	 */
+	private Set<String> knownObjects;
+
+	/**
+	 * Read only view of the {@link #knownObjects knownObjects}, that is the roster of everybody with the open roster.
+	 */
+	private Set<String> knownObjectsView;
+
+	/**
+	 * Contacts of the objects with the configured roster.
+	 */
+	private Map<String, Set<String>> contacts;
+
+	/**
+	 * Read only views of the {@link #contacts contacts}, that are handed over as rosters.
+	 */
+	private Map<String, Set<String>> contactsViews;
+
+	/**
+	 * Passwords of the objects, configured or, in the test mode, taken from their first connection.
+	 */
+	private Map<String, String> passwords;
+
+	/**
+	 * Threads delivering the messages, i.e. handing them over to the destination engines.
+	 */
+	private ThreadPoolExecutor executor;
+
+	/**
+	 * Thread that moves the delayed messages to their channels when they are due.
+	 */
+	private ScheduledThreadPoolExecutor timer;
+
+	/**
+	 * Channels by the destination object and then by the source object.
+	 */
+	private Map<String, Map<String, Channel>> channels;
+
+
+	/* === PUBLIC METHODS === */
+
+	/**
+	 * Returns the broker shared by the JVM, creating it on the first call. Configuration of the first caller is used.
+	 *
+	 * @param config Configuration of the OGWAPI.
+	 * @param logger Logger of the OGWAPI.
+	 * @return The broker.
+	 */
+	public static synchronized LoopbackBroker getInstance(XMLConfiguration config, Logger logger) {
+
+		if (instance == null) {
+			instance = new LoopbackBroker(config, logger);
+		}
+
+		return instance;
+	}
+
+
+	/**
+	 * Constructor, loads the configuration and starts the delivery threads. Use
+	 * {@link #getInstance(XMLConfiguration, Logger) getInstance}, unless a separate network is really needed.
+	 *
+	 * @param config Configuration of the OGWAPI.
+	 * @param logger Logger of the OGWAPI.
+	 */
+	public LoopbackBroker(XMLConfiguration config, Logger logger) {
+
+		this.logger = logger;
+
+		int threads = config.getInt(CONFIG_PARAM_DELIVERYTHREADS, CONFIG_DEF_DELIVERYTHREADS);
+		if (threads < 1) {
+			logger.warning("Invalid number of loopback delivery threads " + threads + ", using default "
+					+ CONFIG_DEF_DELIVERYTHREADS + ".");
+			threads = CONFIG_DEF_DELIVERYTHREADS;
+		}
+
+		logger.config("Loopback broker delivers messages with " + threads + " threads.");
+
+		engines = new ConcurrentHashMap<String, LoopbackEngine>();
+
+		knownObjects = ConcurrentHashMap.newKeySet();
+		knownObjectsView = Collections.unmodifiableSet(knownObjects);
+
+		contacts = new ConcurrentHashMap<String, Set<String>>();
+		contactsViews = new ConcurrentHashMap<String, Set<String>>();
+
+		passwords = new ConcurrentHashMap<String, String>();
+
+		channels = new ConcurrentHashMap<String, Map<String, Channel>>();
+
+		testMode = config.getBoolean(CONFIG_PARAM_TESTMODE, CONFIG_DEF_TESTMODE);
+		if (testMode) {
+			logger.warning("Loopback broker runs in the test mode, objects without a configured password can connect.");
+		}
+
+		String roster = config.getString(CONFIG_PARAM_ROSTER, CONFIG_DEF_ROSTER);
+		if (!roster.equals(ROSTER_OPEN) && !roster.equals(ROSTER_CONFIGURED)) {
+			logger.warning("Invalid loopback roster '" + roster + "', using default " + CONFIG_DEF_ROSTER + ".");
+			roster = CONFIG_DEF_ROSTER;
+		}
+
+		if (roster.equals(ROSTER_OPEN) && !testMode) {
+			logger.warning("The open loopback roster can only be used in the test mode, using the configured roster.");
+			roster = ROSTER_CONFIGURED;
+		}
+
+		openRoster = roster.equals(ROSTER_OPEN);
+		logger.config("Loopback broker roster: " + roster);
+
+		loadObjects(config);
+
+		executor = createExecutor(threads);
+		timer = createTimer();
+	}
+
+
+	/**
+	 * Registers an engine to receive messages for its object, after verifying the object may connect with the
+	 * password. An engine registered earlier for the same object is replaced.
+	 *
+	 * @param objectId ID of the object.
+	 * @param password Password of the object.
+	 * @param engine Engine of the object.
+	 * @return True if registered, false if the object may not connect.
+	 */
+	public boolean register(String objectId, String password, LoopbackEngine engine) {
+
+		if (!openRoster && !knownObjects.contains(objectId)) {
+			logger.warning("Object '" + objectId + "' is not in the loopback roster, it can not connect.");
+			return false;
+		}
+
+		String knownPassword = testMode ? passwords.putIfAbsent(objectId, password) : passwords.get(objectId);
+		if (knownPassword == null && !testMode) {
+			logger.warning("Object '" + objectId + "' has no password in the loopback configuration, it can not "
+					+ "connect.");
+			return false;
+		}
+
+		if (knownPassword != null && !knownPassword.equals(password)) {
+			logger.warning("Invalid password of object '" + objectId + "' in the loopback broker.");
+			return false;
+		}
+
+		knownObjects.add(objectId);
+		engines.put(objectId, engine);
+
+		return true;
+	}
+
+
+	/**
+	 * Stops delivering messages to the engine, if it is still the one registered for the object. Messages on their way
+	 * to the object are dropped.
+	 *
+	 * @param objectId ID of the object.
+	 * @param engine Engine of the object.
+	 */
+	public void unregister(String objectId, LoopbackEngine engine) {
+
+		if (engines.remove(objectId, engine)) {
+			channels.remove(objectId);
+		}
+	}
+
+
+	/**
+	 * Returns the roster of an object.
+	 *
+	 * @param objectId ID of the object.
+	 * @return A read only live set of object IDs, online or not.
+	 */
+	public Set<String> getRoster(String objectId) {
+
+		if (openRoster) {
+			return knownObjectsView;
+		}
+
+		Set<String> roster = contactsViews.get(objectId);
+
+		return roster == null ? Collections.<String>emptySet() : roster;
+	}
+
+
+	/**
+	 * Checks whether an object is in the roster of another one.
+	 *
+	 * @param objectId ID of the object.
+	 * @param contactId ID of the other object.
+	 * @return True if it is.
+	 */
+	public boolean isContact(String objectId, String contactId) {
+		return getRoster(objectId).contains(contactId);
+	}
+
+
+	/**
+	 * Checks whether an object is connected.
+	 *
+	 * @param objectId ID of the object.
+	 * @return True if it is.
+	 */
+	public boolean isOnline(String objectId) {
+		return engines.containsKey(objectId);
+	}
+
+
+	/**
+	 * Makes two objects mutual contacts. Has no effect with the open roster, where everybody is a contact already.
+	 *
+	 * @param objectId ID of one object.
+	 * @param contactId ID of the other one.
+	 */
+	public void addContacts(String objectId, String contactId) {
+
+		if (openRoster) {
+			return;
+		}
+
+		knownObjects.add(objectId);
+		knownObjects.add(contactId);
+
+		contactsOf(objectId).add(contactId);
+		contactsOf(contactId).add(objectId);
+	}
+
+
+	/**
+	 * Removes two objects from each other's rosters. Has no effect with the open roster.
+	 *
+	 * @param objectId ID of one object.
+	 * @param contactId ID of the other one.
+	 */
+	public void removeContacts(String objectId, String contactId) {
+
+		if (openRoster) {
+			return;
+		}
+
+		contactsOf(objectId).remove(contactId);
+		contactsOf(contactId).remove(objectId);
+	}
+
+
+	/**
+	 * Hands a message over to the destination engine after a delay, after all messages sent earlier from the same
+	 * source to the same destination.
+	 *
+	 * @param sourceOid ID of the sending object.
+	 * @param destinationOid ID of the destination object.
+	 * @param message The message.
+	 * @param delayMillis Delay of the delivery in milliseconds, 0 to deliver right away.
+	 * @return True if the destination was online when the message was sent, false otherwise.
+	 */
+	public boolean deliver(String sourceOid, String destinationOid, String message, long delayMillis) {
+
+		if (!engines.containsKey(destinationOid)) {
+			return false;
+		}
+
+		Channel channel = channels.computeIfAbsent(destinationOid,
+				newDestinationOid -> new ConcurrentHashMap<String, Channel>())
+				.computeIfAbsent(sourceOid, newSourceOid -> new Channel(newSourceOid, destinationOid));
+
+		try {
+			channel.send(message, delayMillis);
+		} catch (RejectedExecutionException e) {
+			return false;
+		}
+
+		return true;
+	}
+
+
+	/* === PRIVATE METHODS === */
+
+	/**
+	 * Loads the objects listed in the configuration, their passwords and contacts.
+	 *
+	 * @param config Configuration of the OGWAPI.
+	 */
+	private void loadObjects(XMLConfiguration config) {
+
+		for (HierarchicalConfiguration<ImmutableNode> object : config.configurationsAt(CONFIG_PARAM_OBJECTS)) {
+
+			String objectId = object.getString(OBJECT_OID, "");
+			if (objectId.isEmpty()) {
+				logger.warning("A loopback object without oid found in the configuration, it will be ignored.");
+				continue;
+			}
+
+			knownObjects.add(objectId);
+
+			String password = object.getString(OBJECT_PASSWORD, "");
+			if (!password.isEmpty()) {
+				passwords.put(objectId, password);
+			}
+
+			List<String> objectContacts = object.getList(String.class, OBJECT_CONTACT, new ArrayList<String>());
+			for (String contactId : objectContacts) {
+				addContacts(objectId, contactId);
+			}
+
+			logger.config("Loopback object " + objectId + ", contacts " + objectContacts);
+		}
+	}
+
+
+	/**
+	 * Returns the set of contacts of an object, creating it if there is none.
+	 *
+	 * @param objectId ID of the object.
+	 * @return The modifiable set.
+	 */
+	private Set<String> contactsOf(String objectId) {
+
+		return contacts.computeIfAbsent(objectId, newObjectId -> {
+			Set<String> newContacts = ConcurrentHashMap.newKeySet();
+			contactsViews.put(newObjectId, Collections.unmodifiableSet(newContacts));
+			return newContacts;
+		});
+	}
+
+
+	/**
+	 * Hands a message over to the destination engine, on a delivery thread.
+	 *
+	 * @param sourceOid ID of the sending object.
+	 * @param destinationOid ID of the destination object.
+	 * @param message The message.
+	 */
+	private void handOver(String sourceOid, String destinationOid, String message) {
+
+		// it may have disconnected in the meantime
+		LoopbackEngine destination = engines.get(destinationOid);
+		if (destination == null) {
+			logger.fine("Loopback message from " + sourceOid + " to " + destinationOid
+					+ " dropped, the destination is gone.");
+			return;
+		}
+
+		try {
+			destination.processMessage(sourceOid, message);
+		} catch (RuntimeException e) {
+			logger.log(Level.WARNING, "Loopback delivery to " + destinationOid + " failed: " + e.getMessage(), e);
+		}
+	}
+
+
+	/**
+	 * Creates the executor with daemon threads, so the broker never keeps the JVM running.
+	 *
+	 * @param threads Number of threads.
+	 * @return New executor.
+	 */
+	private static ThreadPoolExecutor createExecutor(int threads) {
+
+		AtomicInteger threadNumber = new AtomicInteger(0);
+
+		return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+				new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable runnable) {
+						Thread thread = new Thread(runnable, THREAD_NAME_PREFIX + threadNumber.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+	}
+
+
+	/**
+	 * Creates the timer with a single daemon thread.
+	 *
+	 * @return New timer.
+	 */
+	private static ScheduledThreadPoolExecutor createTimer() {
+
+		return new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, TIMER_THREAD_NAME);
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+
+	/**
+	 * Messages from one object to another, in the order they were sent.
+	 */
+	private class Channel {
+
+		/**
+		 * ID of the sending object.
+		 */
+		private final String sourceOid;
+
+		/**
+		 * ID of the destination object.
+		 */
+		private final String destinationOid;
+
+		/**
+		 * Messages that are not due yet, in the order they were sent.
+		 */
+		private final Queue<String> waiting = new ArrayDeque<String>();
+
+		/**
+		 * The times (System.nanoTime) the {@link #waiting waiting} messages are due, in the same order. They never
+		 * decrease.
+		 */
+		private final Queue<Long> waitingDue = new ArrayDeque<Long>();
+
+		/**
+		 * When the last message sent through the channel is due.
+		 */
+		private long lastDue = Long.MIN_VALUE;
+
+		/**
+		 * Messages that are due, to be handed over in this order.
+		 */
+		private final Queue<String> due = new ConcurrentLinkedQueue<String>();
+
+		/**
+		 * Whether the {@link #due due} messages are being handed over.
+		 */
+		private final AtomicBoolean delivering = new AtomicBoolean(false);
+
+
+		/**
+		 * Constructor.
+		 */
+		private Channel(String sourceOid, String destinationOid) {
+			this.sourceOid = sourceOid;
+			this.destinationOid = destinationOid;
+		}
+
+
+		/**
+		 * Sends a message through the channel. It is due after the delay, but not before the messages sent earlier.
+		 *
+		 * @param message The message.
+		 * @param delayMillis Delay in milliseconds.
+		 */
+		private void send(String message, long delayMillis) {
+
+			synchronized (this) {
+
+				long now = System.nanoTime();
+				long messageDue = now + TimeUnit.MILLISECONDS.toNanos(delayMillis);
+
+				if (lastDue != Long.MIN_VALUE && lastDue - messageDue > 0) {
+					messageDue = lastDue;
+				}
+				lastDue = messageDue;
+
+				waiting.add(message);
+				waitingDue.add(messageDue);
+
+				// whichever timer task runs first releases all messages that are due by then, in order
+				if (messageDue - now > 0) {
+					timer.schedule(new Runnable() {
+						@Override
+						public void run() {
+							release();
+						}
+					}, messageDue - now, TimeUnit.NANOSECONDS);
+
+					return;
+				}
+			}
+
+			release();
+		}
+
+
+		/**
+		 * Moves the messages that are due from the {@link #waiting waiting} ones to the {@link #due due} ones and starts
+		 * handing them over.
+		 */
+		private void release() {
+
+			synchronized (this) {
+
+				long now = System.nanoTime();
+
+				while (!waitingDue.isEmpty() && waitingDue.peek() - now <= 0) {
+					waitingDue.poll();
+					due.add(waiting.poll());
+				}
+			}
+
+			startDelivering();
+		}
+
+
+		/**
+		 * Starts handing the {@link #due due} messages over on a delivery thread, unless it is being done already.
+		 */
+		private void startDelivering() {
+
+			if (!due.isEmpty() && delivering.compareAndSet(false, true)) {
+				executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						deliverDue();
+					}
+				});
+			}
+		}
+
+
+		/**
+		 * Hands the {@link #due due} messages over one after another, until there are none left.
+		 */
+		private void deliverDue() {
+
+			try {
+				String message;
+				while ((message = due.poll()) != null) {
+					handOver(sourceOid, destinationOid, message);
+				}
+			} finally {
+				delivering.set(false);
+			}
+
+			// a message might have become due after the last poll, while the delivery was still marked as running
+			startDelivering();
+		}
+	}
+
+
+}
@@ -0,0 +1,291 @@
+package eu.bavenir.ogwapi.commons.engines.loopback;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.logging.Logger;
+
+import org.apache.commons.configuration2.XMLConfiguration;
+
+import eu.bavenir.ogwapi.commons.ConnectionDescriptor;
+import eu.bavenir.ogwapi.commons.engines.CommunicationEngine;
+import eu.bavenir.ogwapi.commons.monitoring.events.MessageReceiveEvent;
+import eu.bavenir.ogwapi.commons.monitoring.events.MessageSendEvent;
+
+/*
+ * STRUCTURE:
+ * - constants
+ * - fields
+ * - public methods
+ * - private methods
+ */
+
+/**
+ * Engine that connects objects through the in-memory {@link LoopbackBroker LoopbackBroker} instead of an XMPP server.
+ * It lets several gateways run in one JVM and talk to each other, e.g. for load tests and benchmarks, and it serves a
+ * gateway whose objects only talk to each other, with no XMPP server at all. The broker keeps the rosters, presence
+ * and passwords of the objects, see its description.
+ *
+ * The network can be made worse on purpose - every message is delayed by the configured latency plus or minus a
+ * random jitter, and a configured share of the messages is lost. A lost message is reported as sent, just as it would
+ * be over a real network. By default, messages are handed over right away.
+ *
+ * @author sulfo
+ *
+ */
+public class LoopbackEngine extends CommunicationEngine {
+
+	/* === CONSTANTS === */
+
+	/**
+	 * Name of the configuration parameter for the latency of message delivery, in milliseconds.
+	 */
+	private static final String CONFIG_PARAM_LATENCY = "loopback.latency";
+
+	/**
+	 * Default value of {@link #CONFIG_PARAM_LATENCY CONFIG_PARAM_LATENCY} configuration parameter. This value is taken
+	 * into account when no suitable value is found in the configuration file.
+	 */
+	private static final long CONFIG_DEF_LATENCY = 0;
+
+	/**
+	 * Name of the configuration parameter for the jitter of message delivery, in milliseconds.
+	 */
+	private static final String CONFIG_PARAM_JITTER = "loopback.jitter";
+
+	/**
+	 * Default value of {@link #CONFIG_PARAM_JITTER CONFIG_PARAM_JITTER} configuration parameter. This value is taken
+	 * into account when no suitable value is found in the configuration file.
+	 */
+	private static final long CONFIG_DEF_JITTER = 0;
+
+	/**
+	 * Name of the configuration parameter for the share of lost messages, in percent.
+	 */
+	private static final String CONFIG_PARAM_LOSS = "loopback.loss";
+
+	/**
+	 * Default value of {@link #CONFIG_PARAM_LOSS CONFIG_PARAM_LOSS} configuration parameter. This value is taken into
+	 * account when no suitable value is found in the configuration file.
+	 */
+	private static final double CONFIG_DEF_LOSS = 0.0;
+
+
+	/* === FIELDS === */
+
+	/**
+	 * The shared broker.
+	 */
+	private LoopbackBroker broker;
+
+	/**
+	 * Latency of message delivery, in milliseconds.
+	 */
+	private long latency;
+
+	/**
+	 * Jitter of message delivery, in milliseconds.
+	 */
+	private long jitter;
+
+	/**
+	 * Probability of a message being lost, 0 to 1.
+	 */
+	private double lossProbability;
+
+	/**
+	 * Whether the object is registered at the broker.
+	 */
+	private volatile boolean connected;
+
+
+	/* === PUBLIC METHODS === */
+
+	/**
+	 * Constructor.
+	 *
+	 * @param objectId String with the object ID that connects via this engine.
+	 * @param password Password string for authentication.
+	 * @param config Configuration of the OGWAPI.
+	 * @param logger Logger of the OGWAPI.
+	 * @param connectionDescriptor Connection descriptor that is using this particular instance of engine.
+	 */
+	public LoopbackEngine(String objectId, String password, XMLConfiguration config, Logger logger,
+			ConnectionDescriptor connectionDescriptor) {
+		super(objectId, password, config, logger, connectionDescriptor);
+
+		broker = LoopbackBroker.getInstance(config, logger);
+
+		latency = config.getLong(CONFIG_PARAM_LATENCY, CONFIG_DEF_LATENCY);
+		if (latency < 0) {
+			logger.warning("Invalid loopback latency " + latency + ", using default " + CONFIG_DEF_LATENCY + ".");
+			latency = CONFIG_DEF_LATENCY;
+		}
+
+		jitter = config.getLong(CONFIG_PARAM_JITTER, CONFIG_DEF_JITTER);
+		if (jitter < 0) {
+			logger.warning("Invalid loopback jitter " + jitter + ", using default " + CONFIG_DEF_JITTER + ".");
+			jitter = CONFIG_DEF_JITTER;
+		}
+
+		double loss = config.getDouble(CONFIG_PARAM_LOSS, CONFIG_DEF_LOSS);
+		if (loss < 0 || loss > 100) {
+			logger.warning("Invalid loopback loss " + loss + ", using default " + CONFIG_DEF_LOSS + ".");
+			loss = CONFIG_DEF_LOSS;
+		}
+		lossProbability = loss / 100;
+
+		connected = false;
+	}
+
+
+	/**
+	 * Registers the object at the broker, which verifies the password.
+	 *
+	 * @return True on success, false if the object may not connect.
+	 */
+	@Override
+	public boolean connect() {
+
+		connected = broker.register(objectId, password, this);
+
+		if (connected) {
+			logger.finest("Loopback object '" + objectId + "' connected.");
+		}
+
+		return connected;
+	}
+
+
+	/**
+	 * Stops receiving messages for the object.
+	 */
+	@Override
+	public void disconnect() {
+
+		connected = false;
+		broker.unregister(objectId, this);
+
+		logger.finest("Loopback object '" + objectId + "' disconnected.");
+	}
+
+
+	/**
+	 * Same as {@link #disconnect() disconnect}, the engine holds nothing else.
+	 */
+	@Override
+	public void destroy() {
+		disconnect();
+	}
+
+
+	/**
+	 * Returns true if the object is registered at the broker.
+	 *
+	 * @return True or false.
+	 */
+	@Override
+	public boolean isConnected() {
+		return connected;
+	}
+
+
+	/**
+	 * Retrieves the contact list of the object from the broker.
+	 *
+	 * @return A read only live set of object IDs, empty if not connected.
+	 */
+	@Override
+	public Set<String> getRoster() {
+
+		if (!connected) {
+			logger.warning("Invalid connection in descriptor for username '" + objectId + "'.");
+			return Collections.emptySet();
+		}
+
+		return broker.getRoster(objectId);
+	}
+
+
+	/**
+	 * Sends a string to the destination object through the broker, unless it gets lost.
+	 *
+	 * @param destinationObjectID Destination object ID.
+	 * @param message A string to send.
+	 * @return True on success, false if this object is not connected, or the destination is offline or not in the
+	 * roster.
+	 */
+	@Override
+	public boolean sendMessage(String destinationObjectID, String message) {
+
+		MessageSendEvent event = new MessageSendEvent();
+		event.begin();
+
+		if (!connected) {
+			logger.warning("Invalid connection in descriptor for username '" + objectId + "'.");
+			event.complete(objectId, destinationObjectID, message, false);
+			return false;
+		}
+
+		if (!broker.isContact(objectId, destinationObjectID)) {
+			logger.warning("Destination object " + destinationObjectID + " is not in the contact list of "
+					+ objectId + ".");
+			event.complete(objectId, destinationObjectID, message, false);
+			return false;
+		}
+
+		boolean sent;
+
+		if (lossProbability > 0 && ThreadLocalRandom.current().nextDouble() < lossProbability) {
+			// lost on the way, the sender does not know
+			sent = broker.isOnline(destinationObjectID);
+		} else {
+			sent = broker.deliver(objectId, destinationObjectID, message, delay());
+		}
+
+		if (!sent) {
+			logger.warning("Destination object " + destinationObjectID + " is offline.");
+		}
+
+		event.complete(objectId, destinationObjectID, message, sent);
+
+		return sent;
+	}
+
+
+	/**
+	 * Called by the broker when a message for this object arrives.
+	 *
+	 * @param sourceOid ID of the sending object.
+	 * @param body The message.
+	 */
+	public void processMessage(String sourceOid, String body) {
+
+		MessageReceiveEvent event = new MessageReceiveEvent();
+		event.begin();
+
+		connectionDescriptor.processIncommingMessage(sourceOid, body);
+
+		event.complete(sourceOid, objectId, body);
+	}
+
+
+	/* === PRIVATE METHODS === */
+
+	/**
+	 * Draws the delay of a message - the latency plus or minus the jitter, never negative.
+	 *
+	 * @return Delay in milliseconds.
+	 */
+	private long delay() {
+
+		if (jitter == 0) {
+			return latency;
+		}
+
+		long delay = latency + ThreadLocalRandom.current().nextLong(-jitter, jitter + 1);
+
+		return delay < 0 ? 0 : delay;
+	}
+
+}
@@ -0,0 +1,858 @@
+package eu.bavenir.ogwapi.commons.engines.xmpp;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.commons.configuration2.XMLConfiguration;
+
+import eu.bavenir.ogwapi.commons.monitoring.GatewayMetrics;
+
+/*
+ * STRUCTURE:
+ * - constants
+ * - fields
+ * - public methods
+ * - private methods
+ */
+
+/**
+ * A single external component connection to the XMPP server (XEP-0114), shared by all objects of this gateway that
+ * use the {@link XmppComponentEngine XmppComponentEngine}. Instead of one socket, TLS session, pair of reader / writer
+ * threads and roster per object, there is one socket and one reader thread for all of them.
+ *
+ * The component serves its own domain (e.g. gateway1.auroral.example), an object is addressed by its ID as the local
+ * part of a JID in that domain. Incoming messages are handed over to the engine registered for the local part of their
+ * destination, which queues them - the reader thread never waits for an object to process a message. The queued
+ * messages are processed on the inbound threads of the connection, a pool of its own that is not shared with the rest
+ * of the gateway. The server must therefore deliver messages for the objects of this gateway to the component domain,
+ * which is a matter of its configuration.
+ *
+ * Components have no rosters of their own. The rosters of the objects' user accounts are retrieved and kept up to date
+ * by means of remote roster management (XEP-0321), so the server has to grant the component this privilege.
+ *
+ * The stanzas are written and parsed directly - the protocol is trivial and SMACK does not support components.
+ *
+ * @author sulfo
+ *
+ */
+public class XmppComponentConnection {
+
+	/* === CONSTANTS === */
+
+	/**
+	 * Name of the configuration parameter for the domain served by the component.
+	 */
+	private static final String CONFIG_PARAM_COMPONENTDOMAIN = "xmpp.component.domain";
+
+	/**
+	 * Name of the configuration parameter for the shared secret of the component.
+	 */
+	private static final String CONFIG_PARAM_COMPONENTSECRET = "xmpp.component.secret";
+
+	/**
+	 * Name of the configuration parameter for the port the server accepts components on.
+	 */
+	private static final String CONFIG_PARAM_COMPONENTPORT = "xmpp.component.port";
+
+	/**
+	 * Name of the configuration parameter for the timeout of connecting and the handshake.
+	 */
+	private static final String CONFIG_PARAM_COMPONENTTIMEOUT = "xmpp.component.timeout";
+
+	/**
+	 * Name of the configuration parameter for XMPP server.
+	 */
+	private static final String CONFIG_PARAM_SERVER = "general.server";
+
+	/**
+	 * Name of the configuration parameter for the maximum number of threads processing the incoming messages.
+	 */
+	private static final String CONFIG_PARAM_INBOUNDTHREADS = "xmpp.component.inboundThreads";
+
+	/**
+	 * Default value of {@link #CONFIG_PARAM_COMPONENTDOMAIN CONFIG_PARAM_COMPONENTDOMAIN} configuration parameter.
+	 * This value is taken into account when no suitable value is found in the configuration file.
+	 */
+	private static final String CONFIG_DEF_COMPONENTDOMAIN = "";
+
+	/**
+	 * Default value of {@link #CONFIG_PARAM_COMPONENTSECRET CONFIG_PARAM_COMPONENTSECRET} configuration parameter.
+	 * This value is taken into account when no suitable value is found in the configuration file.
+	 */
+	private static final String CONFIG_DEF_COMPONENTSECRET = "";
+
+	/**
+	 * Default value of {@link #CONFIG_PARAM_COMPONENTPORT CONFIG_PARAM_COMPONENTPORT} configuration parameter.
+	 * This value is taken into account when no suitable value is found in the configuration file.
+	 */
+	private static final int CONFIG_DEF_COMPONENTPORT = 5275;
+
+	/**
+	 * Default value of {@link #CONFIG_PARAM_COMPONENTTIMEOUT CONFIG_PARAM_COMPONENTTIMEOUT} configuration parameter.
+	 * This value is taken into account when no suitable value is found in the configuration file.
+	 */
+	private static final int CONFIG_DEF_COMPONENTTIMEOUT = 30;
+
+	/**
+	 * Default value of {@link #CONFIG_PARAM_SERVER CONFIG_PARAM_SERVER} configuration parameter.
+	 * This value is taken into account when no suitable value is found in the configuration file.
+	 */
+	private static final String CONFIG_DEF_SERVER = "";
+
+	/**
+	 * Default value of {@link #CONFIG_PARAM_INBOUNDTHREADS CONFIG_PARAM_INBOUNDTHREADS} configuration parameter. This
+	 * value is taken into account when no suitable value is found in the configuration file.
+	 */
+	private static final int CONFIG_DEF_INBOUNDTHREADS = 16;
+
+	/**
+	 * Namespace of the roster queries.
+	 */
+	private static final String NAMESPACE_ROSTER = "jabber:iq:roster";
+
+	/**
+	 * Subscription state of a roster item that was removed.
+	 */
+	private static final String SUBSCRIPTION_REMOVE = "remove";
+
+	/**
+	 * Name of the thread reading the stream.
+	 */
+	private static final String READER_THREAD_NAME = "ogwapi-xmpp-component-reader";
+
+	/**
+	 * Prefix of the names of the threads processing the incoming messages.
+	 */
+	private static final String INBOUND_THREAD_NAME_PREFIX = "ogwapi-xmpp-component-inbound-";
+
+	/**
+	 * How long an idle inbound thread is kept, in seconds.
+	 */
+	private static final long INBOUND_THREAD_KEEPALIVE = 60;
+
+
+	/* === FIELDS === */
+
+	/**
+	 * The instance shared by all engines.
+	 */
+	private static XmppComponentConnection instance;
+
+	/**
+	 * Logger of the OGWAPI.
+	 */
+	private Logger logger;
+
+	/**
+	 * Domain served by the component.
+	 */
+	private String componentDomain;
+
+	/**
+	 * Shared secret of the component.
+	 */
+	private String secret;
+
+	/**
+	 * Host of the XMPP server.
+	 */
+	private String server;
+
+	/**
+	 * Port the server accepts components on.
+	 */
+	private int port;
+
+	/**
+	 * Timeout of connecting and the handshake, in milliseconds.
+	 */
+	private int timeout;
+
+	/**
+	 * Engines of the connected objects, object ID to engine.
+	 */
+	private Map<String, XmppComponentEngine> engines;
+
+	/**
+	 * Socket of the current stream, null when not connected.
+	 */
+	private Socket socket;
+
+	/**
+	 * Writer of the current stream. Stanzas are written under its lock.
+	 */
+	private Writer writer;
+
+	/**
+	 * Whether or not the stream is open and authenticated.
+	 */
+	private volatile boolean connected;
+
+	/**
+	 * Sequence for IQ IDs.
+	 */
+	private AtomicLong iqSequence;
+
+	/**
+	 * Executor processing the incoming messages queued by the engines.
+	 */
+	private ThreadPoolExecutor inboundExecutor;
+
+
+	/* === PUBLIC METHODS === */
+
+	/**
+	 * Returns the instance shared by all engines, creating it if necessary. It does not connect.
+	 *
+	 * @param config Configuration of the OGWAPI.
+	 * @param logger Logger of the OGWAPI.
+	 * @return The shared connection.
+	 */
+	public static synchronized XmppComponentConnection getInstance(XMLConfiguration config, Logger logger) {
+
+		if (instance == null) {
+			instance = new XmppComponentConnection(config, logger);
+		}
+
+		return instance;
+	}
+
+
+	/**
+	 * Constructor, loads the configuration. Use {@link #getInstance(XMLConfiguration, Logger) getInstance}, unless a
+	 * separate connection is really needed.
+	 *
+	 * @param config Configuration of the OGWAPI.
+	 * @param logger Logger of the OGWAPI.
+	 */
+	public XmppComponentConnection(XMLConfiguration config, Logger logger) {
+
+		this.logger = logger;
+
+		componentDomain = config.getString(CONFIG_PARAM_COMPONENTDOMAIN, CONFIG_DEF_COMPONENTDOMAIN);
+		secret = config.getString(CONFIG_PARAM_COMPONENTSECRET, CONFIG_DEF_COMPONENTSECRET);
+		server = config.getString(CONFIG_PARAM_SERVER, CONFIG_DEF_SERVER);
+		port = config.getInt(CONFIG_PARAM_COMPONENTPORT, CONFIG_DEF_COMPONENTPORT);
+		timeout = config.getInt(CONFIG_PARAM_COMPONENTTIMEOUT, CONFIG_DEF_COMPONENTTIMEOUT) * 1000;
+
+		if (componentDomain.isEmpty()) {
+			logger.warning("XMPP component domain is not set, component connection will not be possible.");
+		}
+
+		logger.config("XMPP component '" + componentDomain + "' will connect to " + server + ":" + port);
+
+		int inboundThreads = config.getInt(CONFIG_PARAM_INBOUNDTHREADS, CONFIG_DEF_INBOUNDTHREADS);
+		if (inboundThreads < 1) {
+			logger.warning("Wrong parameter entered for " + CONFIG_PARAM_INBOUNDTHREADS + " in the configuration file: "
+					+ inboundThreads + ". Setting to default: " + CONFIG_DEF_INBOUNDTHREADS);
+			inboundThreads = CONFIG_DEF_INBOUNDTHREADS;
+		}
+
+		logger.config("XMPP component inbound threads: " + inboundThreads);
+
+		engines = new ConcurrentHashMap<String, XmppComponentEngine>();
+		iqSequence = new AtomicLong(0);
+		inboundExecutor = createInboundExecutor(inboundThreads);
+
+		GatewayMetrics.registerQueue("xmppComponentInbound", () -> inboundExecutor.getQueue().size());
+
+		socket = null;
+		writer = null;
+		connected = false;
+	}
+
+
+	/**
+	 * Opens the stream and performs the handshake, unless it is already open. Safe to be called by many engines at
+	 * once, only the first one will actually connect.
+	 *
+	 * @return True if the stream is open.
+	 */
+	public synchronized boolean connect() {
+
+		if (connected) {
+			return true;
+		}
+
+		if (componentDomain.isEmpty()) {
+			return false;
+		}
+
+		Socket newSocket = new Socket();
+
+		try {
+			newSocket.connect(new InetSocketAddress(server, port), timeout);
+			newSocket.setSoTimeout(timeout);
+
+			Writer newWriter = new BufferedWriter(
+					new OutputStreamWriter(newSocket.getOutputStream(), StandardCharsets.UTF_8));
+
+			newWriter.write("<?xml version='1.0'?><stream:stream xmlns='jabber:component:accept' "
+					+ "xmlns:stream='http://etherx.jabber.org/streams' to='" + escape(componentDomain) + "'>");
+			newWriter.flush();
+
+			XMLStreamReader reader = createReader(newSocket.getInputStream());
+
+			// stream header with the ID
+			if (nextElement(reader, 0) == null || !reader.getLocalName().equals("stream")) {
+				throw new IOException("Stream header not received.");
+			}
+			String streamId = reader.getAttributeValue(null, "id");
+
+			newWriter.write("<handshake>" + sha1Hex((streamId == null ? "" : streamId) + secret) + "</handshake>");
+			newWriter.flush();
+
+			// handshake confirmation
+			if (nextElement(reader, 1) == null || !reader.getLocalName().equals("handshake")) {
+				throw new IOException("Handshake rejected.");
+			}
+			skipElement(reader);
+
+			// the stream may be silent for a long time from now on
+			newSocket.setSoTimeout(0);
+
+			socket = newSocket;
+			writer = newWriter;
+			connected = true;
+
+			startReader(newSocket, reader);
+
+		} catch (IOException | XMLStreamException e) {
+
+			logger.warning("XMPP component '" + componentDomain + "' could not connect. Message: " + e.getMessage());
+			closeQuietly(newSocket);
+
+			return false;
+		}
+
+		logger.info("XMPP component '" + componentDomain + "' connected.");
+
+		return true;
+	}
+
+
+	/**
+	 * Whether or not the stream is open.
+	 *
+	 * @return True if connected.
+	 */
+	public boolean isConnected() {
+		return connected;
+	}
+
+
+	/**
+	 * Registers an engine to receive messages and roster updates for its object.
+	 *
+	 * @param objectId Object ID.
+	 * @param engine Engine of the object.
+	 */
+	public void register(String objectId, XmppComponentEngine engine) {
+		engines.put(objectId, engine);
+	}
+
+
+	/**
+	 * Stops delivering messages and roster updates for an object.
+	 *
+	 * @param objectId Object ID.
+	 * @param engine Engine of the object, it is unregistered only if it is the one that is registered.
+	 */
+	public void unregister(String objectId, XmppComponentEngine engine) {
+		engines.remove(objectId, engine);
+	}
+
+
+	/**
+	 * Returns the domain served by the component.
+	 *
+	 * @return Component domain.
+	 */
+	public String getComponentDomain() {
+		return componentDomain;
+	}
+
+
+	/**
+	 * Sends a message on behalf of an object.
+	 *
+	 * @param sourceOid Object ID of the sender.
+	 * @param destinationJid Bare JID of the destination.
+	 * @param body Body of the message.
+	 * @return True if the message was written into the stream.
+	 */
+	public boolean sendMessage(String sourceOid, String destinationJid, String body) {
+
+		return writeStanza("<message type='chat' from='" + escape(sourceOid + "@" + componentDomain) + "' to='"
+				+ escape(destinationJid) + "'><body>" + escape(body) + "</body></message>");
+	}
+
+
+	/**
+	 * Asks the server for the roster of an object's user account (XEP-0321). The result arrives asynchronously and is
+	 * handed over to the registered engine.
+	 *
+	 * @param userJid Bare JID of the user account.
+	 * @return True if the request was written into the stream.
+	 */
+	public boolean requestRoster(String userJid) {
+
+		return writeStanza("<iq type='get' id='roster" + iqSequence.incrementAndGet() + "' from='"
+				+ escape(componentDomain) + "' to='" + escape(userJid) + "'><query xmlns='" + NAMESPACE_ROSTER
+				+ "'/></iq>");
+	}
+
+
+	/**
+	 * Processes incoming messages of an object on an inbound thread, as soon as one is free.
+	 *
+	 * @param task Task processing the messages.
+	 */
+	public void executeInbound(Runnable task) {
+
+		inboundExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					task.run();
+				} catch (RuntimeException e) {
+					logger.log(Level.WARNING, "XMPP component '" + componentDomain + "' failed to process an incoming "
+							+ "message: " + e.getMessage(), e);
+				}
+			}
+		});
+	}
+
+
+	/**
+	 * Closes the stream. Registered engines stay registered and will get their messages once it is re-opened.
+	 */
+	public synchronized void disconnect() {
+
+		if (!connected) {
+			return;
+		}
+
+		writeStanza("</stream:stream>");
+		markDisconnected(socket);
+	}
+
+
+	/* === PRIVATE METHODS === */
+
+	/**
+	 * Creates the executor of incoming messages with daemon threads. Threads are started as messages arrive, up to
+	 * the given number, further work waits in a queue. Idle threads end after a while.
+	 *
+	 * @param threads Maximum number of threads.
+	 * @return New executor.
+	 */
+	private static ThreadPoolExecutor createInboundExecutor(int threads) {
+
+		AtomicInteger threadNumber = new AtomicInteger(0);
+
+		ThreadPoolExecutor newExecutor = new ThreadPoolExecutor(threads, threads, INBOUND_THREAD_KEEPALIVE,
+				TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable runnable) {
+						Thread thread = new Thread(runnable, INBOUND_THREAD_NAME_PREFIX + threadNumber.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+
+		newExecutor.allowCoreThreadTimeOut(true);
+
+		return newExecutor;
+	}
+
+
+	/**
+	 * Writes a stanza into the stream and flushes it.
+	 *
+	 * @param stanza Serialised stanza.
+	 * @return True on success.
+	 */
+	private boolean writeStanza(String stanza) {
+
+		Writer currentWriter = writer;
+		Socket currentSocket = socket;
+
+		if (!connected || currentWriter == null) {
+			return false;
+		}
+
+		try {
+			synchronized (currentWriter) {
+				currentWriter.write(stanza);
+				currentWriter.flush();
+			}
+		} catch (IOException e) {
+			logger.warning("XMPP component '" + componentDomain + "' failed to write. Message: " + e.getMessage());
+			markDisconnected(currentSocket);
+
+			return false;
+		}
+
+		return true;
+	}
+
+
+	/**
+	 * Starts the thread that reads incoming stanzas until the stream ends.
+	 *
+	 * @param streamSocket Socket of the stream.
+	 * @param reader Parser positioned after the handshake.
+	 */
+	private void startReader(Socket streamSocket, XMLStreamReader reader) {
+
+		Thread readerThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					while (nextElement(reader, 1) != null) {
+						processStanza(reader);
+					}
+				} catch (XMLStreamException e) {
+					logger.fine("XMPP component stream ended. Message: " + e.getMessage());
+				}
+
+				if (streamSocket == socket && connected) {
+					logger.warning("XMPP component '" + componentDomain + "' lost its connection.");
+				}
+
+				markDisconnected(streamSocket);
+			}
+		}, READER_THREAD_NAME);
+
+		readerThread.setDaemon(true);
+		readerThread.start();
+	}
+
+
+	/**
+	 * Processes a stanza the parser is positioned at, consuming it entirely.
+	 *
+	 * @param reader Parser at the start of a stanza.
+	 * @throws XMLStreamException If the stream is broken.
+	 */
+	private void processStanza(XMLStreamReader reader) throws XMLStreamException {
+
+		String name = reader.getLocalName();
+		String from = reader.getAttributeValue(null, "from");
+		String to = reader.getAttributeValue(null, "to");
+		String type = reader.getAttributeValue(null, "type");
+		String id = reader.getAttributeValue(null, "id");
+
+		if (name.equals("message")) {
+
+			String body = null;
+
+			// read until the end of the message, picking the body on the way
+			int depth = 1;
+			while (depth > 0) {
+				int event = reader.next();
+
+				if (event == XMLStreamConstants.START_ELEMENT) {
+					if (depth == 1 && reader.getLocalName().equals("body")) {
+						body = reader.getElementText();
+						continue;
+					}
+					depth++;
+				} else if (event == XMLStreamConstants.END_ELEMENT) {
+					depth--;
+				}
+			}
+
+			if (body == null || "error".equals(type)) {
+				return;
+			}
+
+			XmppComponentEngine engine = engines.get(localpart(to));
+			if (engine == null) {
+				logger.finest("XMPP component received a message for an object that is not connected: " + to);
+				return;
+			}
+
+			// only queued here, the reader thread does nothing but reading
+			engine.deliverMessage(bareJid(from), body);
+
+		} else if (name.equals("iq")) {
+
+			List<String> items = new ArrayList<String>();
+			List<String> removedItems = new ArrayList<String>();
+
+			int depth = 1;
+			while (depth > 0) {
+				int event = reader.next();
+
+				if (event == XMLStreamConstants.START_ELEMENT) {
+					depth++;
+					if (reader.getLocalName().equals("item")) {
+						String itemJid = reader.getAttributeValue(null, "jid");
+
+						if (itemJid != null) {
+							if (SUBSCRIPTION_REMOVE.equals(reader.getAttributeValue(null, "subscription"))) {
+								removedItems.add(itemJid);
+							} else {
+								items.add(itemJid);
+							}
+						}
+					}
+				} else if (event == XMLStreamConstants.END_ELEMENT) {
+					depth--;
+				}
+			}
+
+			if ("result".equals(type) || "set".equals(type)) {
+
+				XmppComponentEngine engine = engines.get(localpart(from));
+				if (engine != null) {
+					// a result is the complete roster, a set is a push with changes
+					engine.processRoster(items, removedItems, "result".equals(type));
+				}
+
+				if ("set".equals(type)) {
+					writeStanza("<iq type='result' id='" + escape(id == null ? "" : id) + "' from='"
+							+ escape(to == null ? componentDomain : to) + "' to='" + escape(from == null ? "" : from)
+							+ "'/>");
+				}
+			} else if ("get".equals(type)) {
+				// we don't serve anything
+				writeStanza("<iq type='error' id='" + escape(id == null ? "" : id) + "' from='"
+						+ escape(to == null ? componentDomain : to) + "' to='" + escape(from == null ? "" : from)
+						+ "'><error type='cancel'><service-unavailable xmlns='urn:ietf:params:xml:ns:xmpp-stanzas'/>"
+						+ "</error></iq>");
+			} else if ("error".equals(type)) {
+				logger.warning("XMPP component request failed for '" + from + "'. Is remote roster management "
+						+ "permitted for the component?");
+			}
+
+		} else {
+			// presences and anything else
+			skipElement(reader);
+		}
+	}
+
+
+	/**
+	 * Marks the stream as closed, if the socket is still the current one.
+	 *
+	 * @param streamSocket Socket of the stream that ended.
+	 */
+	private synchronized void markDisconnected(Socket streamSocket) {
+
+		if (streamSocket != null && streamSocket == socket) {
+			connected = false;
+			socket = null;
+			writer = null;
+		}
+
+		closeQuietly(streamSocket);
+	}
+
+
+	/**
+	 * Creates a parser for the stream.
+	 *
+	 * @param inputStream Input stream of the socket.
+	 * @return Parser.
+	 * @throws XMLStreamException If the parser can't be created.
+	 */
+	private XMLStreamReader createReader(InputStream inputStream) throws XMLStreamException {
+
+		XMLInputFactory factory = XMLInputFactory.newInstance();
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+		factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+
+		return factory.createXMLStreamReader(inputStream, StandardCharsets.UTF_8.name());
+	}
+
+
+	/**
+	 * Moves the parser to the next element at given depth below the stream root. Returns null when the stream ends.
+	 *
+	 * @param reader Parser.
+	 * @param depth Zero for the stream root, one for stanzas.
+	 * @return Local name of the element, or null.
+	 * @throws XMLStreamException If the stream is broken.
+	 */
+	private String nextElement(XMLStreamReader reader, int depth) throws XMLStreamException {
+
+		while (reader.hasNext()) {
+			int event = reader.next();
+
+			if (event == XMLStreamConstants.START_ELEMENT) {
+				return reader.getLocalName();
+			}
+
+			if (event == XMLStreamConstants.END_ELEMENT && depth > 0) {
+				// end of the stream root
+				return null;
+			}
+		}
+
+		return null;
+	}
+
+
+	/**
+	 * Skips the element the parser is positioned at, including its children.
+	 *
+	 * @param reader Parser at the start of the element.
+	 * @throws XMLStreamException If the stream is broken.
+	 */
+	private void skipElement(XMLStreamReader reader) throws XMLStreamException {
+
+		int depth = 1;
+		while (depth > 0) {
+			int event = reader.next();
+
+			if (event == XMLStreamConstants.START_ELEMENT) {
+				depth++;
+			} else if (event == XMLStreamConstants.END_ELEMENT) {
+				depth--;
+			}
+		}
+	}
+
+
+	/**
+	 * Returns the local part of a JID.
+	 *
+	 * @param jid JID, may be null.
+	 * @return Local part, or empty string if there is none.
+	 */
+	private String localpart(String jid) {
+
+		if (jid == null || jid.indexOf('@') < 0) {
+			return "";
+		}
+
+		return jid.substring(0, jid.indexOf('@'));
+	}
+
+
+	/**
+	 * Strips the resource from a JID.
+	 *
+	 * @param jid JID, may be null.
+	 * @return Bare JID.
+	 */
+	private String bareJid(String jid) {
+
+		if (jid == null || jid.indexOf('/') < 0) {
+			return jid;
+		}
+
+		return jid.substring(0, jid.indexOf('/'));
+	}
+
+
+	/**
+	 * Computes the handshake digest.
+	 *
+	 * @param value Stream ID concatenated with the secret.
+	 * @return Lower case hex of the SHA-1 digest.
+	 */
+	private String sha1Hex(String value) {
+
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-1").digest(value.getBytes(StandardCharsets.UTF_8));
+
+			StringBuilder hex = new StringBuilder(digest.length * 2);
+			for (byte b : digest) {
+				hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+			}
+
+			return hex.toString();
+
+		} catch (NoSuchAlgorithmException e) {
+			// every JRE has SHA-1
+			throw new IllegalStateException(e);
+		}
+	}
+
+
+	/**
+	 * Escapes a string to be used as XML text or attribute value.
+	 *
+	 * @param value String to escape.
+	 * @return Escaped string.
+	 */
+	private static String escape(String value) {
+
+		StringBuilder escaped = null;
+
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			String replacement;
+
+			switch (c) {
+				case '&': replacement = "&amp;"; break;
+				case '<': replacement = "&lt;"; break;
+				case '>': replacement = "&gt;"; break;
+				case '"': replacement = "&quot;"; break;
+				case '\'': replacement = "&apos;"; break;
+				default: replacement = null;
+			}
+
+			if (replacement != null) {
+				if (escaped == null) {
+					escaped = new StringBuilder(value.length() + 16);
+					escaped.append(value, 0, i);
+				}
+				escaped.append(replacement);
+			} else if (escaped != null) {
+				escaped.append(c);
+			}
+		}
+
+		return escaped == null ? value : escaped.toString();
+	}
+
+
+	/**
+	 * Closes a socket, ignoring errors.
+	 *
+	 * @param toClose Socket, may be null.
+	 */
+	private void closeQuietly(Socket toClose) {
+
+		if (toClose == null) {
+			return;
+		}
+
+		try {
+			toClose.close();
+		} catch (IOException e) {
+			// nothing to do
+		}
+	}
+
+}
@@ -0,0 +1,531 @@
+package eu.bavenir.ogwapi.commons.engines.xmpp;
+
+import java.io.IOException;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import org.apache.commons.configuration2.XMLConfiguration;
+import org.jivesoftware.smack.AbstractXMPPConnection;
+import org.jivesoftware.smack.SmackException;
+import org.jivesoftware.smack.XMPPException;
+
+import eu.bavenir.ogwapi.commons.ConnectionDescriptor;
+import eu.bavenir.ogwapi.commons.engines.CommunicationEngine;
+import eu.bavenir.ogwapi.commons.monitoring.events.MessageReceiveEvent;
+import eu.bavenir.ogwapi.commons.monitoring.events.MessageSendEvent;
+
+/*
+ * STRUCTURE:
+ * - constants
+ * - fields
+ * - public methods
+ * - private methods
+ */
+
+/**
+ * Engine for the multiplexed XMPP mode. Instead of opening its own client connection, the object is served by the
+ * {@link XmppComponentConnection XmppComponentConnection} shared by the whole gateway - it only registers there to
+ * receive its messages and roster updates. This makes connecting an object cheap and lets a gateway host many
+ * thousands of objects.
+ *
+ * The object still needs its user account on the XMPP server - the password is verified against it when the object
+ * connects for the first time, and the roster of the account decides which objects it can talk to. Messages to an
+ * object from the roster are always sent to the JID the roster lists.
+ *
+ * Incoming messages are accepted from the JID the roster lists for the sender, or from the component domains of
+ * trusted gateways (including this one), whose objects write from their component JIDs. Anyone else is rejected, so
+ * a sender from a foreign domain can't pose as a contact by using its object ID as the local part. The accepted
+ * messages are queued and processed on the inbound threads of the {@link XmppComponentConnection
+ * XmppComponentConnection}, one at a time and in order for each object, so the reader of the shared connection never
+ * waits for the Agent. The inbound threads are shared by all objects of the gateway - an object with a slow Agent
+ * occupies one of them while it works through its queue, and if the Agents of many objects are slow, messages for the
+ * other objects wait until a thread is free. An object can have only a limited number of messages waiting, messages
+ * over the limit are refused - requests get '503 Service unavailable' right away, see {@link
+ * ConnectionDescriptor#refuseIncomingMessage(String, String, String) refuseIncomingMessage}.
+ *
+ * @author sulfo
+ *
+ */
+public class XmppComponentEngine extends CommunicationEngine {
+
+	/* === CONSTANTS === */
+
+	/**
+	 * Name of the configuration parameter for verifying the credentials of objects by logging them into their user
+	 * accounts.
+	 */
+	private static final String CONFIG_PARAM_VERIFYCREDENTIALS = "xmpp.component.verifyCredentials";
+
+	/**
+	 * Default value of {@link #CONFIG_PARAM_VERIFYCREDENTIALS CONFIG_PARAM_VERIFYCREDENTIALS} configuration parameter.
+	 * This value is taken into account when no suitable value is found in the configuration file.
+	 */
+	private static final boolean CONFIG_DEF_VERIFYCREDENTIALS = true;
+
+	/**
+	 * Name of the configuration parameter for the component domains of other gateways, whose objects are accepted as
+	 * senders when they write from their component JIDs.
+	 */
+	private static final String CONFIG_PARAM_TRUSTEDDOMAINS = "xmpp.component.trustedDomains";
+
+	/**
+	 * Name of the configuration parameter for the maximum number of incoming messages waiting to be processed for an
+	 * object.
+	 */
+	private static final String CONFIG_PARAM_INBOXLIMIT = "xmpp.component.inboxLimit";
+
+	/**
+	 * Default value of {@link #CONFIG_PARAM_INBOXLIMIT CONFIG_PARAM_INBOXLIMIT} configuration parameter. This value is
+	 * taken into account when no suitable value is found in the configuration file.
+	 */
+	private static final int CONFIG_DEF_INBOXLIMIT = 1000;
+
+
+	/* === FIELDS === */
+
+	/**
+	 * The shared component connection.
+	 */
+	private XmppComponentConnection componentConnection;
+
+	/**
+	 * Domain of the user accounts.
+	 */
+	private String xmppDomain;
+
+	/**
+	 * Whether or not the credentials were already verified.
+	 */
+	private boolean credentialsVerified;
+
+	/**
+	 * Whether the object is registered at the component connection.
+	 */
+	private volatile boolean registered;
+
+	/**
+	 * Objects in the roster and the bare JIDs the roster lists for them, object ID to bare JID.
+	 */
+	private Map<String, String> rosterJids;
+
+	/**
+	 * Read only view of the object IDs in the roster, that is handed over to callers.
+	 */
+	private Set<String> rosterView;
+
+	/**
+	 * Component domains whose JIDs are accepted as senders next to the ones in the roster. Contains the domain of the
+	 * shared connection.
+	 */
+	private Set<String> trustedDomains;
+
+	/**
+	 * Incoming messages waiting to be processed, pairs of sender JID and body.
+	 */
+	private Queue<Map.Entry<String, String>> inbox;
+
+	/**
+	 * Number of messages in the {@link #inbox inbox}.
+	 */
+	private AtomicInteger inboxSize;
+
+	/**
+	 * Maximum number of messages in the {@link #inbox inbox}. Messages arriving over the limit are refused, the object
+	 * is not keeping up with them anyway.
+	 */
+	private int inboxLimit;
+
+	/**
+	 * Whether the {@link #inbox inbox} is being processed on an inbound thread.
+	 */
+	private AtomicBoolean inboxProcessing;
+
+
+	/* === PUBLIC METHODS === */
+
+	/**
+	 * Constructor.
+	 *
+	 * @param objectId String with the object ID that connects via this engine.
+	 * @param password Password string for authentication.
+	 * @param config Configuration of the OGWAPI.
+	 * @param logger Logger of the OGWAPI.
+	 * @param connectionDescriptor Connection descriptor that is using this particular instance of engine.
+	 */
+	public XmppComponentEngine(String objectId, String password, XMLConfiguration config, Logger logger,
+			ConnectionDescriptor connectionDescriptor) {
+		this(objectId, password, config, logger, connectionDescriptor, 
+				XmppComponentConnection.getInstance(config, logger));
+	}
+
+
+	/**
+	 * Constructor using a given component connection instead of the shared one.
+	 *
+	 * @param objectId String with the object ID that connects via this engine.
+	 * @param password Password string for authentication.
+	 * @param config Configuration of the OGWAPI.
+	 * @param logger Logger of the OGWAPI.
+	 * @param connectionDescriptor Connection descriptor that is using this particular instance of engine.
+	 * @param componentConnection The component connection.
+	 */
+	XmppComponentEngine(String objectId, String password, XMLConfiguration config, Logger logger,
+			ConnectionDescriptor connectionDescriptor, XmppComponentConnection componentConnection) {
+		super(objectId, password, config, logger, connectionDescriptor);
+
+		this.componentConnection = componentConnection;
+
+		xmppDomain = config.getString(XmppMessageEngine.CONFIG_PARAM_XMPPDOMAIN, XmppMessageEngine.CONFIG_DEF_XMPPDOMAIN);
+
+		credentialsVerified = !config.getBoolean(CONFIG_PARAM_VERIFYCREDENTIALS, CONFIG_DEF_VERIFYCREDENTIALS);
+		registered = false;
+
+		rosterJids = new ConcurrentHashMap<String, String>();
+		rosterView = Collections.unmodifiableSet(rosterJids.keySet());
+
+		trustedDomains = new HashSet<String>(
+				config.getList(String.class, CONFIG_PARAM_TRUSTEDDOMAINS, new ArrayList<String>()));
+		trustedDomains.add(componentConnection.getComponentDomain());
+
+		inboxLimit = config.getInt(CONFIG_PARAM_INBOXLIMIT, CONFIG_DEF_INBOXLIMIT);
+		if (inboxLimit < 1) {
+			logger.warning("Wrong parameter entered for " + CONFIG_PARAM_INBOXLIMIT + " in the configuration file: "
+					+ inboxLimit + ". Setting to default: " + CONFIG_DEF_INBOXLIMIT);
+			inboxLimit = CONFIG_DEF_INBOXLIMIT;
+		}
+
+		inbox = new ConcurrentLinkedQueue<Map.Entry<String, String>>();
+		inboxSize = new AtomicInteger(0);
+		inboxProcessing = new AtomicBoolean(false);
+	}
+
+
+	/**
+	 * Verifies the credentials (only the first time), makes sure the shared connection is open, registers the object
+	 * there and asks for its roster.
+	 *
+	 * @return True on success, false otherwise.
+	 */
+	@Override
+	public boolean connect() {
+
+		if (!credentialsVerified) {
+			if (!verifyCredentials()) {
+				return false;
+			}
+			credentialsVerified = true;
+		}
+
+		if (!componentConnection.connect()) {
+			logger.warning("XMPP component connection is not available for '" + objectId + "'.");
+			return false;
+		}
+
+		componentConnection.register(objectId, this);
+		registered = true;
+
+		componentConnection.requestRoster(objectId + "@" + xmppDomain);
+
+		logger.finest("XMPP object '" + objectId + "' connected via component.");
+
+		return true;
+	}
+
+
+	/**
+	 * Stops receiving messages for the object. The shared connection stays open.
+	 */
+	@Override
+	public void disconnect() {
+
+		registered = false;
+		componentConnection.unregister(objectId, this);
+
+		logger.finest("XMPP object '" + objectId + "' disconnected from component.");
+	}
+
+
+	/**
+	 * Same as {@link #disconnect() disconnect}, the engine holds nothing else.
+	 */
+	@Override
+	public void destroy() {
+		disconnect();
+		rosterJids.clear();
+	}
+
+
+	/**
+	 * Returns true if the object is registered and the shared connection is open.
+	 *
+	 * @return True or false.
+	 */
+	@Override
+	public boolean isConnected() {
+		return registered && componentConnection.isConnected();
+	}
+
+
+	/**
+	 * Retrieves the contact list of the object.
+	 *
+	 * @return A read only live set of object IDs, empty if not connected.
+	 */
+	@Override
+	public Set<String> getRoster() {
+
+		if (!isConnected()) {
+			logger.warning("Invalid connection in descriptor for username '" + objectId + "'.");
+			return Collections.emptySet();
+		}
+
+		return rosterView;
+	}
+
+
+	/**
+	 * Sends a string to the destination object through the shared connection.
+	 *
+	 * @param destinationObjectID Destination object ID.
+	 * @param message A string to send.
+	 * @return True on success, false if the destination is not in the roster or the connection is down.
+	 */
+	@Override
+	public boolean sendMessage(String destinationObjectID, String message) {
+
+		MessageSendEvent event = new MessageSendEvent();
+		event.begin();
+
+		String destinationJid = rosterJids.get(destinationObjectID);
+
+		if (destinationJid == null) {
+			logger.warning("Destination object " + destinationObjectID + " is not in the contact list of "
+					+ objectId + ".");
+			event.complete(objectId, destinationObjectID, message, false);
+			return false;
+		}
+
+		boolean sent = componentConnection.sendMessage(objectId, destinationJid, message);
+
+		event.complete(objectId, destinationObjectID, message, sent);
+
+		return sent;
+	}
+
+
+	/**
+	 * Called by the component connection when a message for this object arrives. Checks the sender and queues the
+	 * message, it is processed later on an inbound thread of the component connection. If the object has too many
+	 * messages waiting, the message is refused.
+	 *
+	 * @param from Bare JID of the sender.
+	 * @param body Body of the message.
+	 */
+	public void deliverMessage(String from, String body) {
+
+		if (from == null || !isAcceptedSender(from)) {
+			logger.warning("XMPP object '" + objectId + "' rejected a message from " + from 
+					+ ", the sender does not match its roster entry.");
+			return;
+		}
+
+		if (inboxSize.incrementAndGet() > inboxLimit) {
+			inboxSize.decrementAndGet();
+			refuseMessage(from, body, "Too many messages waiting for object " + objectId + ".");
+			return;
+		}
+
+		inbox.add(new SimpleImmutableEntry<String, String>(from, body));
+
+		startInboxProcessing();
+	}
+
+
+	/**
+	 * Called by the component connection when the roster or its change arrives.
+	 *
+	 * @param items JIDs of added or updated contacts.
+	 * @param removedItems JIDs of removed contacts.
+	 * @param complete Whether this is the complete roster, in which case anything not listed is removed.
+	 */
+	public void processRoster(List<String> items, List<String> removedItems, boolean complete) {
+
+		if (complete) {
+			Set<String> listed = ConcurrentHashMap.newKeySet();
+			for (String jid : items) {
+				listed.add(localpart(jid));
+			}
+			rosterJids.keySet().retainAll(listed);
+		}
+
+		for (String jid : items) {
+			rosterJids.put(localpart(jid), jid);
+		}
+
+		for (String jid : removedItems) {
+			rosterJids.remove(localpart(jid), jid);
+		}
+	}
+
+
+	/* === PRIVATE METHODS === */
+
+	/**
+	 * Hands a queued message over to the connection descriptor.
+	 *
+	 * @param from Bare JID of the sender.
+	 * @param body Body of the message.
+	 */
+	protected void processMessage(String from, String body) {
+
+		String sourceOid = localpart(from);
+
+		MessageReceiveEvent event = new MessageReceiveEvent();
+		event.begin();
+
+		connectionDescriptor.processIncommingMessage(sourceOid, body);
+
+		event.complete(sourceOid, objectId, body);
+	}
+
+
+	/**
+	 * Hands a message that could not be queued over to the connection descriptor, to be refused.
+	 *
+	 * @param from Bare JID of the sender.
+	 * @param body Body of the message.
+	 * @param reason Why the message could not be queued.
+	 */
+	protected void refuseMessage(String from, String body, String reason) {
+
+		connectionDescriptor.refuseIncomingMessage(localpart(from), body, reason);
+	}
+
+
+	/**
+	 * Logs the object into its user account and right away out, to find out whether the password is right.
+	 *
+	 * @return True if the credentials are valid.
+	 */
+	private boolean verifyCredentials() {
+
+		AbstractXMPPConnection connection = XmppMessageEngine.buildNewConnection(objectId, password, config, logger);
+
+		if (connection == null) {
+			return false;
+		}
+
+		try {
+			connection.connect();
+			connection.login();
+
+			return true;
+
+		} catch (SmackException | IOException | XMPPException | InterruptedException e) {
+
+			logger.warning("Credentials of '" + objectId + "' could not be verified. Message: " + e.getMessage());
+
+			return false;
+
+		} finally {
+			connection.disconnect();
+		}
+	}
+
+
+	/**
+	 * Whether a message from the JID is accepted. It has to be the JID the roster lists for the sender, or a JID in a
+	 * trusted component domain. Senders that are not in the roster are left for the connection descriptor to decide, 
+	 * as long as they write from the domain of the user accounts.
+	 *
+	 * @param from Bare JID of the sender.
+	 * @return True if the message is accepted.
+	 */
+	private boolean isAcceptedSender(String from) {
+
+		String domain = domain(from);
+
+		if (trustedDomains.contains(domain)) {
+			return true;
+		}
+
+		String rosterJid = rosterJids.get(localpart(from));
+
+		if (rosterJid != null) {
+			return rosterJid.equals(from);
+		}
+
+		return domain.equals(xmppDomain);
+	}
+
+
+	/**
+	 * Starts processing the {@link #inbox inbox} on an inbound thread, unless it is being processed already.
+	 */
+	private void startInboxProcessing() {
+
+		if (inboxProcessing.compareAndSet(false, true)) {
+			componentConnection.executeInbound(() -> processInbox());
+		}
+	}
+
+
+	/**
+	 * Processes the queued messages one after another until the {@link #inbox inbox} is empty.
+	 */
+	private void processInbox() {
+
+		try {
+			Map.Entry<String, String> queued;
+			while ((queued = inbox.poll()) != null) {
+				inboxSize.decrementAndGet();
+				processMessage(queued.getKey(), queued.getValue());
+			}
+		} finally {
+			inboxProcessing.set(false);
+		}
+
+		// a message might have been queued after the last poll, while the processing was still marked as running
+		if (!inbox.isEmpty()) {
+			startInboxProcessing();
+		}
+	}
+
+
+	/**
+	 * Returns the domain of a JID.
+	 *
+	 * @param jid Bare JID.
+	 * @return Domain, the whole JID if it has no local part.
+	 */
+	private String domain(String jid) {
+
+		return jid.substring(jid.indexOf('@') + 1);
+	}
+
+
+	/**
+	 * Returns the local part of a JID.
+	 *
+	 * @param jid Bare JID.
+	 * @return Local part, or the whole JID if it has none.
+	 */
+	private String localpart(String jid) {
+
+		int at = jid.indexOf('@');
+
+		return at < 0 ? jid : jid.substring(0, at);
+	}
+
+}
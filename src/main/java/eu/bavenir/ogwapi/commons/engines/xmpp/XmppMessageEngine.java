@@ -3,15 +3,23 @@ package eu.bavenir.ogwapi.commons.engines.xmpp;
 import java.io.IOException;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Logger;
 
+import org.apache.commons.configuration2.HierarchicalConfiguration;
 import org.apache.commons.configuration2.XMLConfiguration;
+import org.apache.commons.configuration2.tree.ImmutableNode;
 import org.jivesoftware.smack.AbstractXMPPConnection;
+import org.jivesoftware.smack.ConnectionListener;
 import org.jivesoftware.smack.SmackConfiguration;
 import org.jivesoftware.smack.SmackException;
 import org.jivesoftware.smack.XMPPException;
@@ -26,15 +34,22 @@ import org.jivesoftware.smack.packet.Presence;
 import org.jivesoftware.smack.roster.Roster;
 import org.jivesoftware.smack.roster.RosterEntry;
 import org.jivesoftware.smack.roster.RosterListener;
+import org.jivesoftware.smack.roster.RosterLoadedListener;
+import org.jivesoftware.smack.sm.predicates.Predicate;
 import org.jivesoftware.smack.tcp.XMPPTCPConnection;
 import org.jivesoftware.smack.tcp.XMPPTCPConnectionConfiguration;
+import org.jxmpp.jid.DomainBareJid;
 import org.jxmpp.jid.EntityBareJid;
 import org.jxmpp.jid.Jid;
 import org.jxmpp.jid.impl.JidCreate;
+import org.jxmpp.jid.parts.Localpart;
 import org.jxmpp.stringprep.XmppStringprepException;
 
 import eu.bavenir.ogwapi.commons.ConnectionDescriptor;
+import eu.bavenir.ogwapi.commons.GatewayScheduler;
 import eu.bavenir.ogwapi.commons.engines.CommunicationEngine;
+import eu.bavenir.ogwapi.commons.monitoring.events.MessageReceiveEvent;
+import eu.bavenir.ogwapi.commons.monitoring.events.MessageSendEvent;
 
 
 /*
@@ -82,6 +97,50 @@ public class XmppMessageEngine extends CommunicationEngine {
 	 */
 	private static final boolean CONFIG_DEF_XMPPDEBUG = false;
 	
+	/**
+	 * Name of the configuration parameter for enabling stream management (XEP-0198).
+	 */
+	private static final String CONFIG_PARAM_STREAMMANAGEMENT = "xmpp.streamManagement";
+	
+	/**
+	 * Default value of {@link #CONFIG_PARAM_STREAMMANAGEMENT CONFIG_PARAM_STREAMMANAGEMENT} configuration parameter.
+	 * This value is taken into account when no suitable value is found in the configuration file.
+	 */
+	private static final boolean CONFIG_DEF_STREAMMANAGEMENT = true;
+	
+	/**
+	 * Name of the configuration parameter for the time (in seconds) the server should keep an interrupted session 
+	 * for resumption.
+	 */
+	private static final String CONFIG_PARAM_RESUMPTIONTIME = "xmpp.resumptionTime";
+	
+	/**
+	 * Default value of {@link #CONFIG_PARAM_RESUMPTIONTIME CONFIG_PARAM_RESUMPTIONTIME} configuration parameter.
+	 * This value is taken into account when no suitable value is found in the configuration file.
+	 */
+	private static final int CONFIG_DEF_RESUMPTIONTIME = 300;
+	
+	/**
+	 * Name of the configuration parameter for the list of objects that use more than one connection.
+	 */
+	private static final String CONFIG_PARAM_STRIPING = "xmpp.striping.object";
+	
+	/**
+	 * Name of the element with object ID in a striping entry.
+	 */
+	private static final String STRIPING_OID = "oid";
+	
+	/**
+	 * Name of the element with number of connections in a striping entry.
+	 */
+	private static final String STRIPING_CONNECTIONS = "connections";
+	
+	/**
+	 * Presence priority of the additional connections of striped objects. Negative priority makes the server deliver
+	 * messages addressed to the bare JID only to the main connection, so they are not received twice.
+	 */
+	private static final int STRIPE_PRESENCE_PRIORITY = -1;
+	
 	/**
 	 * Name of the configuration parameter for server URL. If not set, the application exits.
 	 */
@@ -136,6 +195,17 @@ public class XmppMessageEngine extends CommunicationEngine {
 	 */
 	private static final int ROSTER_RELOAD_TIME_MAX = 120;
 	
+	/**
+	 * Maximum number of messages that wait for the roster to load. Messages sent when there are this many already are
+	 * not sent.
+	 */
+	private static final int PENDING_MESSAGES_MAX = 1000;
+	
+	/**
+	 * How long (in ms) to wait after the connection was lost before trying to resume the session.
+	 */
+	private static final int RESUMPTION_DELAY = 1000;
+	
 	
 	/* === FIELDS === */
 	
@@ -155,16 +225,81 @@ public class XmppMessageEngine extends CommunicationEngine {
 	private Roster roster;
 	
 	/**
-	 * A list of opened chats.
+	 * Opened chats, by the object ID of the chat partner. The map is accessed both from the threads sending messages
+	 * and from the SMACK thread delivering incoming messages. 
+	 */
+	private Map<String, Chat> openedChats;
+	
+	/**
+	 * XMPP domain, resolved only once, so it does not need to be read from configuration and parsed for every message.
+	 */
+	private DomainBareJid xmppDomain;
+	
+	/**
+	 * Whether a reload of a roster that was not loaded when sending a message is already running.
 	 */
-	private HashMap<EntityBareJid, Chat> openedChats;
+	private AtomicBoolean rosterReloadRunning;
+	
+	/**
+	 * Messages sent before the roster was loaded, in the order they were sent. They are sent when it arrives.
+	 */
+	private BlockingQueue<PendingMessage> pendingMessages;
+	
+	/**
+	 * Whether the {@link #pendingMessages pending messages} are being sent right now, by whichever thread found them 
+	 * first.
+	 */
+	private AtomicBoolean sendingPendingMessages;
+	
+	/**
+	 * Object IDs of the contacts in the roster. Kept up to date by the roster listener callbacks and reconciled with
+	 * the roster whenever it is renewed, so checking for a contact does not require walking through the whole roster.
+	 */
+	private Set<String> rosterIndex;
+	
+	/**
+	 * Read only view of the {@link #rosterIndex rosterIndex}, that is handed over to callers.
+	 */
+	private Set<String> rosterIndexView;
+	
+	/**
+	 * Registration of the periodic roster renewal in the {@link eu.bavenir.ogwapi.commons.GatewayScheduler 
+	 * GatewayScheduler}.
+	 */
+	private ScheduledFuture<?> rosterRenewal;
+	
+	/**
+	 * Whether or not stream management with session resumption is used.
+	 */
+	private boolean streamManagement;
+	
+	/**
+	 * Preferred time (in seconds) the server should keep an interrupted session for resumption.
+	 */
+	private int resumptionTime;
+	
+	/**
+	 * Number of connections the object uses, including the main one. One unless the object is listed for striping.
+	 */
+	private int numberOfStripes;
+	
+	/**
+	 * Additional connections of a striped object, only used for sending. Empty for the others.
+	 */
+	private List<AbstractXMPPConnection> stripes;
+	
+	/**
+	 * Chat managers of the {@link #stripes stripes}, in the same order.
+	 */
+	private List<ChatManager> stripeChatManagers;
 	
 	
 	
 	/* === PUBLIC METHODS === */
 	
 	/**
-	 * Constructor for the XMPP message engine. It initialises fields and a {@link java.util.Timer Timer} that periodically
+	 * Constructor for the XMPP message engine. It initialises fields and registers a task in the 
+	 * {@link eu.bavenir.ogwapi.commons.GatewayScheduler GatewayScheduler} that periodically
 	 * in interval that is randomly set, executes the {@link #renewPresenceAndRoster() renewPresenceAndRoster} method.
 	 * 
 	 * @param objectId String with the object ID that connects via this engine.
@@ -182,7 +317,24 @@ public class XmppMessageEngine extends CommunicationEngine {
 		roster = null;
 		
 		// initialise map with opened chats
-		openedChats = new HashMap<EntityBareJid, Chat>();
+		openedChats = new ConcurrentHashMap<String, Chat>();
+		
+		rosterReloadRunning = new AtomicBoolean(false);
+		
+		pendingMessages = new LinkedBlockingQueue<PendingMessage>(PENDING_MESSAGES_MAX);
+		sendingPendingMessages = new AtomicBoolean(false);
+		
+		rosterIndex = ConcurrentHashMap.newKeySet();
+		rosterIndexView = Collections.unmodifiableSet(rosterIndex);
+		
+		// resolve the domain
+		String domain = config.getString(CONFIG_PARAM_XMPPDOMAIN, CONFIG_DEF_XMPPDOMAIN);
+		try {
+			xmppDomain = JidCreate.domainBareFrom(domain);
+		} catch (XmppStringprepException e) {
+			logger.warning("XMPP domain '" + domain + "' can't be resolved. Exception: " + e.getMessage());
+			xmppDomain = null;
+		}
 		
 		// compute the random time in seconds after which a roster will be renewed
 		long timeForRosterRenewal = (long) ((Math.random() * ((ROSTER_RELOAD_TIME_MAX - ROSTER_RELOAD_TIME_MIN) + 1)) 
@@ -192,15 +344,29 @@ public class XmppMessageEngine extends CommunicationEngine {
 				+ timeForRosterRenewal + "ms.");
 		
 		
-		// timer for roster renewing
-		Timer timerForRosterRenewal = new Timer();
-		timerForRosterRenewal.schedule(new TimerTask() {
+		// periodic roster renewing, it waits for the server
+		rosterRenewal = GatewayScheduler.scheduleBlocking(new Runnable() {
 			@Override
 			public void run() {
 				renewPresenceAndRoster();
 			}
 		}, timeForRosterRenewal, timeForRosterRenewal);
 		
+		streamManagement = config.getBoolean(CONFIG_PARAM_STREAMMANAGEMENT, CONFIG_DEF_STREAMMANAGEMENT);
+		resumptionTime = config.getInt(CONFIG_PARAM_RESUMPTIONTIME, CONFIG_DEF_RESUMPTIONTIME);
+		
+		// striping
+		numberOfStripes = 1;
+		for (HierarchicalConfiguration<ImmutableNode> striping : config.configurationsAt(CONFIG_PARAM_STRIPING)) {
+			if (objectId.equals(striping.getString(STRIPING_OID))) {
+				numberOfStripes = Math.max(1, striping.getInt(STRIPING_CONNECTIONS, 1));
+				logger.config("XMPP object '" + objectId + "' will use " + numberOfStripes + " connections.");
+			}
+		}
+		
+		stripes = new CopyOnWriteArrayList<AbstractXMPPConnection>();
+		stripeChatManagers = new CopyOnWriteArrayList<ChatManager>();
+		
 		// enable debugging if desired
 		boolean debuggingEnabled = config.getBoolean(CONFIG_PARAM_XMPPDEBUG, CONFIG_DEF_XMPPDEBUG);
 		if (debuggingEnabled) {
@@ -217,20 +383,31 @@ public class XmppMessageEngine extends CommunicationEngine {
 	 * possible to re-try. It attempts to be optimised in a sense that it does not rebuilds a 
 	 * {@link org.jivesoftware.smack.AbstractXMPPConnection connection} object if it already exists.
 	 * 
+	 * If stream management is enabled and the previous session was interrupted rather than closed, the session is
+	 * resumed - the stanzas that were not acknowledged by the server are re-sent and the roster is not reloaded. 
+	 * 
 	 * @param objectId ID that serves as XMPP user name.
 	 * @param password Password for authentication.
 	 * @return True on success, false otherwise.
 	 */
 	@Override
-	public boolean connect() {
+	public synchronized boolean connect() {
 		
 		boolean newConnection = false;
 		
 		if (connection == null) {
 			logger.finest("Connection object not yet exists for " + objectId 
 					+ ". Attempting to build a new one.");
-			connection = buildNewConnection(objectId, password);
+			connection = buildNewConnection(objectId, password, config, logger);
 			newConnection = true;
+			
+			if (connection == null) {
+				return false;
+			}
+			
+			if (streamManagement) {
+				enableStreamManagement();
+			}
 		} else {
 			logger.finest("Connection object already exists for " + objectId 
 					+ ". Not attempting to build a new one.");
@@ -255,8 +432,21 @@ public class XmppMessageEngine extends CommunicationEngine {
 			return false;
 		}
 		
+		if (streamManagement && ((XMPPTCPConnection) connection).streamWasResumed()) {
+			
+			// listeners, presence and roster are all still in place
+			logger.fine("XMPP session of '" + objectId + "' was resumed.");
+			
+			connectStripes();
+			
+			return true;
+		}
+		
 		chatManager = ChatManager.getInstanceFor(connection);
 		
+		// spawn a roster
+		roster = Roster.getInstanceFor(connection);
+		
 		if (newConnection) {
 			chatManager.addIncomingListener(new IncomingChatMessageListener(){
 				
@@ -266,37 +456,54 @@ public class XmppMessageEngine extends CommunicationEngine {
 				}
 				
 			});
-		}
-		
-		// spawn a roster and associate calls for changes in roster - if necessary
-		roster = Roster.getInstanceFor(connection);
-		
-		
-		roster.addRosterListener(new RosterListener() {
-			@Override
-			public void entriesAdded(Collection<Jid> addresses) {
-				processRosterEntriesAdded(addresses);
-			}
-			
-			@Override
-			public void entriesDeleted(Collection<Jid> addresses) {
-				processRosterEntriesDeleted(addresses);
-			}
 			
-			@Override
-			public void entriesUpdated(Collection<Jid> addresses) {
-				processRosterEntriesUpdated(addresses);
-			}
+			// associate calls for changes in roster
+			roster.addRosterListener(new RosterListener() {
+				@Override
+				public void entriesAdded(Collection<Jid> addresses) {
+					processRosterEntriesAdded(addresses);
+				}
+				
+				@Override
+				public void entriesDeleted(Collection<Jid> addresses) {
+					processRosterEntriesDeleted(addresses);
+				}
+				
+				@Override
+				public void entriesUpdated(Collection<Jid> addresses) {
+					processRosterEntriesUpdated(addresses);
+				}
+				
+				@Override
+				public void presenceChanged(Presence presence) {
+					processRosterPresenceChanged(presence);
+				}
+			});
 			
-			@Override
-			public void presenceChanged(Presence presence) {
-				processRosterPresenceChanged(presence);
-			}
-		});
+			// whoever loaded the roster, the messages waiting for it can go now
+			roster.addRosterLoadedListener(new RosterLoadedListener() {
+				@Override
+				public void onRosterLoaded(Roster loadedRoster) {
+					GatewayScheduler.execute(new Runnable() {
+						@Override
+						public void run() {
+							sendPendingMessages();
+						}
+					});
+				}
+				
+				@Override
+				public void onRosterLoadingFailed(Exception exception) {
+					// the messages keep waiting for the next reload
+				}
+			});
+		}
 		
 		
 		renewPresenceAndRoster();
 		
+		connectStripes();
+		
 		return true;
 	}
 	
@@ -314,7 +521,28 @@ public class XmppMessageEngine extends CommunicationEngine {
 			logger.finest("XMPP user '" + objectId + "' disconnected.");
 		} else {
 			logger.finest("XMPP user '" + objectId + "' is already disconnected.");
-		}		
+		}
+		
+		for (AbstractXMPPConnection stripe : stripes) {
+			if (stripe.isConnected()) {
+				stripe.disconnect();
+			}
+		}
+	}
+	
+	
+	/**
+	 * Disconnects and stops the periodic roster renewal. 
+	 */
+	@Override
+	public void destroy() {
+		
+		disconnect();
+		
+		GatewayScheduler.cancel(rosterRenewal);
+		
+		openedChats.clear();
+		pendingMessages.clear();
 	}
 
 	
@@ -325,118 +553,361 @@ public class XmppMessageEngine extends CommunicationEngine {
 	 */
 	@Override
 	public boolean isConnected() {
-		return connection.isConnected();
+		
+		if (connection == null || !connection.isConnected()) {
+			return false;
+		}
+		
+		// smack pretends to be connected while the session waits for resumption
+		return !(streamManagement && ((XMPPTCPConnection) connection).isDisconnectedButSmResumptionPossible());
 	}
 
 	
 	/**
 	 * Retrieves a contact list of the current XMPP user.
 	 * 
-	 * @return A set of object IDs from the {@link org.jivesoftware.smack.roster.Roster Roster} for this 
-	 * connection. In case of error it just returns empty set (not null).
+	 * @return A read only set of object IDs from the {@link org.jivesoftware.smack.roster.Roster Roster} for this 
+	 * connection. The set is live, it reflects the changes of the roster as they come. In case of error it just 
+	 * returns empty set (not null).
 	 */
 	@Override
 	public Set<String> getRoster() {
 		
-		Set<String> rosterSet = new HashSet<String>();
-		
 		if (connection == null || !connection.isConnected()){
 			logger.warning("Invalid connection in descriptor for username '" + objectId + "'.");
 			return Collections.emptySet();
 		}
 		
-		Collection<RosterEntry> entries = roster.getEntries();
-		for (RosterEntry entry : entries) {
-			rosterSet.add(entry.getJid().getLocalpartOrNull().toString());
-		}
-		
-		return rosterSet;
+		return rosterIndexView;
 	}
-
+	
 	
 	
 	/**
-	 * Sends a string to the destination XMPP user name.  
+	 * Sends a string to the destination XMPP user name. Striped objects spread their messages over their connections
+	 * by destination, so the messages for one destination keep their order.
+	 * 
+	 * A message sent before the roster was loaded (after a new connection) is queued and sent as soon as the roster
+	 * arrives, the sender does not wait for it. Messages sent while others are queued are queued behind them, to keep
+	 * the order. If the destination turns out not to be in the roster, the queued message is dropped with a warning.
 	 * 
 	 * @param destinationUsername Destination contact, for which the message is intended. 
 	 * @param message A string to send.
-	 * @return True on success, false if the destination object is offline or if error occurred.
+	 * @return True on success (or if the message was queued), false if the destination object is offline or if error 
+	 * occurred.
 	 */
 	@Override
 	public boolean sendMessage(String destinationObjectID, String message) {
-		destinationObjectID = destinationObjectID + "@" 
-									+ config.getString(CONFIG_PARAM_XMPPDOMAIN, CONFIG_DEF_XMPPDOMAIN);
-
+		
+		MessageSendEvent event = new MessageSendEvent();
+		event.begin();
+		
+		// the chat is already opened most of the time, no need to resolve the JID again
+		Chat chat = openedChats.get(destinationObjectID);
 		EntityBareJid jid;
-
-		try {
-			jid = JidCreate.entityBareFrom(destinationObjectID);
-		} catch (XmppStringprepException e) {
-			logger.warning("Destination can't be resolved. Exception: " + e.getMessage());
-			return false;
-		}
-
 		
-		// better do this
-		if (roster.isLoaded()) {
-			logger.finest("Status of the roster before message is sent: ready");
-		} else {
-			logger.finest("Roster is not loaded yet when sending message. Attempting a reload...");
+		if (chat == null) {
+			
+			if (xmppDomain == null) {
+				logger.warning("Destination can't be resolved, the XMPP domain is invalid.");
+				event.complete(objectId, destinationObjectID, message, false);
+				return false;
+			}
+			
 			try {
-				roster.reloadAndWait();
-				logger.finest("Roster reloaded.");
-			} catch (NotLoggedInException | NotConnectedException | InterruptedException e) {
-				logger.warning("Roster could not be reloaded. Exception: " + e.getMessage());
+				jid = JidCreate.entityBareFrom(Localpart.from(destinationObjectID), xmppDomain);
+			} catch (XmppStringprepException e) {
+				logger.warning("Destination can't be resolved. Exception: " + e.getMessage());
+				event.complete(objectId, destinationObjectID, message, false);
+				return false;
 			}
+		} else {
+			jid = chat.getXmppAddressOfChatPartner();
 		}
 		
+		// the roster may still be loading after a (re)connection, the message waits for it instead of the sender
+		if (!roster.isLoaded() || !pendingMessages.isEmpty()) {
+			
+			if (!pendingMessages.offer(new PendingMessage(destinationObjectID, jid, message))) {
+				logger.warning("XMPPMessageEngine: Message not sent. The roster is not loaded yet and " 
+						+ PENDING_MESSAGES_MAX + " messages already wait for it.");
+				event.complete(objectId, destinationObjectID, message, false);
+				return false;
+			}
+			
+			// it might have arrived in the meantime
+			if (roster.isLoaded()) {
+				sendPendingMessages();
+			} else {
+				requestRosterReload();
+			}
+			
+			event.complete(objectId, destinationObjectID, message, true);
+			return true;
+		}
+		
+		boolean sent = deliverMessage(destinationObjectID, jid, chat, message);
+		
+		event.complete(objectId, destinationObjectID, message, sent);
+		
+		return sent;
+	}
+	
+	
+	
+	/* === PRIVATE METHODS === */
+	
+	/**
+	 * Sends a message to a destination in the roster, through the stripe of the destination if the object is striped.
+	 * 
+	 * @param destinationObjectID Object ID of the destination.
+	 * @param jid JID of the destination.
+	 * @param chat Chat opened with the destination, null if there is none yet.
+	 * @param message A string to send.
+	 * @return True on success, false if the destination is not in the roster or if error occurred.
+	 */
+	private boolean deliverMessage(String destinationObjectID, EntityBareJid jid, Chat chat, String message) {
 		
 		// check whether the destination is in our contact list
-		Chat chat;
+		if (!roster.contains(jid)) {
+			
+			// the destination is not in the contact list or the sending of the message failed 
+			logger.warning("XMPPMessageEngine: Message not sent. The OID " + jid + " is not in the roster.");
+			return false;
+		}
 		
-		if (roster.contains(jid)) {
+		if (chat == null) {
+			chat = chatManager.chatWith(jid);
 			
-			// try to find older opened chat, so we don't have to open a new one
-			chat = openedChats.get(jid);
+			Chat openedChat = openedChats.putIfAbsent(destinationObjectID, chat);
+			if (openedChat != null) {
+				chat = openedChat;
+			}
+		}
+		
+		// pick the stripe, the main connection is stripe 0
+		if (numberOfStripes > 1) {
+			int stripe = Math.floorMod(destinationObjectID.hashCode(), numberOfStripes);
 			
-			if (chat == null){
-				chat = chatManager.chatWith(jid);
-				openedChats.put(jid, chat);
-			} 
+			// an unavailable stripe falls back to the main connection
+			if (stripe > 0 && stripe <= stripes.size() && stripes.get(stripe - 1).isAuthenticated()) {
+				chat = stripeChatManagers.get(stripe - 1).chatWith(jid);
+			}
+		}
+		
+		// fire the thing
+		try {
+			chat.send(message);
+		} catch (NotConnectedException | InterruptedException e) {
+			logger.warning("XMPPMessageEngine: Message could not be sent. Exception: " + e.getMessage());
+			return false;
+		}
+		
+		return true;
+	}
+	
+	
+	/**
+	 * Sends the messages that were waiting for the roster, in the order they were queued. Only one thread sends them 
+	 * at a time, the others leave it to that one. Called when the roster is loaded, and by a sender that queued a 
+	 * message just as it was loaded.
+	 */
+	private void sendPendingMessages() {
+		
+		// checked again after the flag is released, a message might have been queued just before that
+		while (roster.isLoaded() && !pendingMessages.isEmpty() && sendingPendingMessages.compareAndSet(false, true)) {
 			
-			// fire the thing
 			try {
+				PendingMessage pendingMessage;
 				
-				chat.send(message);
-			} catch (NotConnectedException | InterruptedException e) {
-				logger.warning("XMPPMessageEngine: Message could not be sent. Exception: " + e.getMessage());
-				return false;
+				while (roster.isLoaded() && (pendingMessage = pendingMessages.poll()) != null) {
+					
+					MessageSendEvent event = new MessageSendEvent();
+					event.begin();
+					
+					boolean sent = deliverMessage(pendingMessage.destinationObjectID, pendingMessage.jid, 
+							openedChats.get(pendingMessage.destinationObjectID), pendingMessage.message);
+					
+					event.complete(objectId, pendingMessage.destinationObjectID, pendingMessage.message, sent);
+				}
+			} finally {
+				sendingPendingMessages.set(false);
 			}
+		}
+	}
+	
+	
+	/**
+	 * Connects the additional connections of a striped object, building them first if necessary. They don't load the 
+	 * roster and announce themselves with negative priority, so the messages addressed to the bare JID keep coming 
+	 * through the main connection. Replies to the messages sent through a stripe come back through it though, since 
+	 * the peer answers the full JID the message came from. A stripe that breaks is reconnected as long as the object 
+	 * stays connected. Failures are logged, messages for a stripe that is not connected go through the main connection.
+	 */
+	private void connectStripes() {
+		
+		if (numberOfStripes < 2) {
+			return;
+		}
+		
+		for (int i = 1; i < numberOfStripes; i++) {
+			
+			if (stripes.size() < i) {
+				AbstractXMPPConnection stripe = buildNewConnection(objectId, password, XMPP_RESOURCE + "-" + i, 
+						config, logger);
 				
-		} else {
+				if (stripe == null) {
+					return;
+				}
+				
+				Roster.getInstanceFor(stripe).setRosterLoadedAtLogin(false);
+				
+				ChatManager stripeChatManager = ChatManager.getInstanceFor(stripe);
+				
+				// replies to what was sent through the stripe arrive here
+				stripeChatManager.addIncomingListener(new IncomingChatMessageListener(){
+					@Override
+					public void newIncomingMessage(EntityBareJid from, Message message, Chat chat) {
+						receiveMessage(from.getLocalpart().toString(), message.getBody());
+					}
+				});
+				
+				if (streamManagement) {
+					XMPPTCPConnection tcpStripe = (XMPPTCPConnection) stripe;
+					tcpStripe.setUseStreamManagement(true);
+					tcpStripe.setUseStreamManagementResumption(true);
+					tcpStripe.setPreferredResumptionTime(resumptionTime);
+					tcpStripe.addRequestAckPredicate(Predicate.forMessagesOrAfter5Stanzas());
+				}
+				
+				stripe.addConnectionListener(new ConnectionListener() {
+					@Override
+					public void connectionClosedOnError(Exception e) {
+						
+						logger.info("Additional XMPP connection of '" + objectId + "' was interrupted, reconnecting.");
+						
+						GatewayScheduler.scheduleOnceBlocking(new Runnable() {
+							@Override
+							public void run() {
+								reconnectStripes();
+							}
+						}, RESUMPTION_DELAY);
+					}
+				});
+				
+				stripes.add(stripe);
+				stripeChatManagers.add(stripeChatManager);
+			}
 			
-			// the destination is not in the contact list or the sending of the message failed 
-			logger.warning("XMPPMessageEngine: Message not sent. The OID " + destinationObjectID + " is not in the roster.");
-			return false;
+			AbstractXMPPConnection stripe = stripes.get(i - 1);
+			
+			if (stripe.isAuthenticated()) {
+				continue;
+			}
+			
+			try {
+				stripe.connect();
+				stripe.login();
+				
+				if (streamManagement && ((XMPPTCPConnection) stripe).streamWasResumed()) {
+					continue;
+				}
+				
+				Presence presence = new Presence(Presence.Type.available);
+				presence.setStatus(XMPP_PRESENCE_STRING);
+				presence.setPriority(STRIPE_PRESENCE_PRIORITY);
+				stripe.sendStanza(presence);
+				
+			} catch (SmackException | IOException | XMPPException | InterruptedException e) {
+				logger.warning("Additional XMPP connection " + i + " of '" + objectId + "' could not be established. "
+						+ "Message: " + e.getMessage());
+			}
 		}
+	}
+	
+	
+	/**
+	 * Reconnects the stripes that broke, unless the object was disconnected meanwhile. Synchronised with 
+	 * {@link #connect() connect}, so the stripes are never connected twice at once.
+	 */
+	private synchronized void reconnectStripes() {
 		
-		return true;
+		if (isConnected()) {
+			connectStripes();
+		}
 	}
 	
 	
+	/**
+	 * Enables stream management with session resumption on a freshly built connection. The server is asked to 
+	 * acknowledge every message (and every fifth other stanza), so the queue of unacknowledged stanzas stays short. 
+	 * When the connection breaks, an attempt to resume the session is made right away, without waiting for the 
+	 * session recovery of the {@link eu.bavenir.ogwapi.commons.CommunicationManager CommunicationManager}. Reconnecting
+	 * blocks, so it runs on the I/O threads of the {@link GatewayScheduler GatewayScheduler}.
+	 */
+	private void enableStreamManagement() {
+		
+		XMPPTCPConnection tcpConnection = (XMPPTCPConnection) connection;
+		
+		tcpConnection.setUseStreamManagement(true);
+		tcpConnection.setUseStreamManagementResumption(true);
+		tcpConnection.setPreferredResumptionTime(resumptionTime);
+		tcpConnection.addRequestAckPredicate(Predicate.forMessagesOrAfter5Stanzas());
+		
+		tcpConnection.addConnectionListener(new ConnectionListener() {
+			@Override
+			public void connectionClosedOnError(Exception e) {
+				
+				if (!tcpConnection.isDisconnectedButSmResumptionPossible()) {
+					return;
+				}
+				
+				logger.info("XMPP connection of '" + objectId + "' was interrupted, attempting to resume the session.");
+				
+				GatewayScheduler.scheduleOnceBlocking(new Runnable() {
+					@Override
+					public void run() {
+						if (!isConnected()) {
+							connect();
+						}
+					}
+				}, RESUMPTION_DELAY);
+			}
+		});
+		
+		logger.finest("XMPP stream management enabled for '" + objectId + "', preferred resumption time " 
+				+ resumptionTime + "s.");
+	}
 	
 	
-
-	/* === PRIVATE METHODS === */
+	/**
+	 * Builds the connection object based on OGWAPI configuration and the provided credentials. It is also used by
+	 * the {@link XmppComponentEngine XmppComponentEngine} to verify credentials of objects.
+	 * 
+	 * @param xmppUsername XMPP user name without the served domain (i.e. just 'user' instead of 'user@xmpp.server').
+	 * @param xmppPassword Password of the user.
+	 * @param config Configuration of the OGWAPI.
+	 * @param logger Logger of the OGWAPI.
+	 * @return The established connection if the attempt was successful, null otherwise.
+	 */
+	static AbstractXMPPConnection buildNewConnection(String xmppUsername, String xmppPassword, 
+			XMLConfiguration config, Logger logger){
+		return buildNewConnection(xmppUsername, xmppPassword, XMPP_RESOURCE, config, logger);
+	}
+	
 	
 	/**
-	 * Builds the connection object based on OGWAPI configuration and the provided credentials.  
+	 * Builds the connection object with a given resource.  
 	 * 
 	 * @param xmppUsername XMPP user name without the served domain (i.e. just 'user' instead of 'user@xmpp.server').
 	 * @param xmppPassword Password of the user.
+	 * @param xmppResource Resource part of the full JID.
+	 * @param config Configuration of the OGWAPI.
+	 * @param logger Logger of the OGWAPI.
 	 * @return The established connection if the attempt was successful, null otherwise.
 	 */
-	private AbstractXMPPConnection buildNewConnection(String xmppUsername, String xmppPassword){
+	private static AbstractXMPPConnection buildNewConnection(String xmppUsername, String xmppPassword, 
+			String xmppResource, XMLConfiguration config, Logger logger){
 		// we build a new connection here
 		
 		String xmppServer = config.getString(CONFIG_PARAM_SERVER, CONFIG_DEF_SERVER);
@@ -454,7 +925,7 @@ public class XmppMessageEngine extends CommunicationEngine {
 		xmppConfigBuilder.setPort(xmppPort);
 		
 		try {
-			xmppConfigBuilder.setResource(XMPP_RESOURCE);
+			xmppConfigBuilder.setResource(xmppResource);
 		} catch (XmppStringprepException e) {
 			logger.warning("Exiting due to exception during building a connection to XMPP server. Message: " 
 					+ e.getMessage());
@@ -499,15 +970,64 @@ public class XmppMessageEngine extends CommunicationEngine {
 	 */
 	private void processMessage(EntityBareJid from, Message xmppMessage, Chat chat) {
 		
-		// try to find an opened chat
-		Chat openedChat = openedChats.get(from);
+		String sourceOid = from.getLocalpart().toString();
 		
-		if (openedChat == null) {
-
-			openedChats.put(from, chat);
-		}
+		// remember the chat, so we don't have to open a new one when replying
+		openedChats.putIfAbsent(sourceOid, chat);
+		
+		receiveMessage(sourceOid, xmppMessage.getBody());
+	}
+	
+	
+	/**
+	 * Hands a received message over to the {@link eu.bavenir.ogwapi.commons.ConnectionDescriptor ConnectionDescriptor},
+	 * recording the {@link MessageReceiveEvent event} of its processing.
+	 * 
+	 * @param sourceOid Object ID of the sender.
+	 * @param body Body of the message.
+	 */
+	private void receiveMessage(String sourceOid, String body) {
+		
+		MessageReceiveEvent event = new MessageReceiveEvent();
+		event.begin();
+		
+		connectionDescriptor.processIncommingMessage(sourceOid, body);
+		
+		event.complete(sourceOid, objectId, body);
+	}
 	
-		connectionDescriptor.processIncommingMessage(from.getLocalpart().toString(), xmppMessage.getBody());
+	
+	/**
+	 * Asks the server for the roster without waiting for it. If a reload requested this way is still running, 
+	 * nothing happens.
+	 */
+	private void requestRosterReload() {
+		
+		if (!rosterReloadRunning.compareAndSet(false, true)) {
+			return;
+		}
+		
+		try {
+			roster.addRosterLoadedListener(new RosterLoadedListener() {
+				@Override
+				public void onRosterLoaded(Roster loadedRoster) {
+					reconcileRosterIndex();
+					rosterReloadRunning.set(false);
+					loadedRoster.removeRosterLoadedListener(this);
+				}
+				
+				@Override
+				public void onRosterLoadingFailed(Exception exception) {
+					rosterReloadRunning.set(false);
+					roster.removeRosterLoadedListener(this);
+				}
+			});
+			
+			roster.reload();
+		} catch (NotLoggedInException | NotConnectedException | InterruptedException e) {
+			logger.warning("Roster could not be reloaded. Exception: " + e.getMessage());
+			rosterReloadRunning.set(false);
+		}
 	}
 	
 	
@@ -540,6 +1060,8 @@ public class XmppMessageEngine extends CommunicationEngine {
 			try {
 				roster.reloadAndWait();
 				
+				reconcileRosterIndex();
+				
 				logger.finest("The roster for " + objectId + " was renewed.");
 				
 			} catch (NotLoggedInException | NotConnectedException | InterruptedException e) {
@@ -563,82 +1085,79 @@ public class XmppMessageEngine extends CommunicationEngine {
 
 	/**
 	 * A callback method called when entries are added into the {@link org.jivesoftware.smack.roster.Roster roster}.
-	 * 
-	 * In this implementation it serves nothing, but can be helpful when debugging.
+	 * The new contacts are added into the {@link #rosterIndex roster index}.
 	 * 
 	 * @param addresses A collection of {@link org.jxmpp.jid.Jid JID} addresses that were added.
 	 */
 	private void processRosterEntriesAdded(Collection<Jid> addresses){
 		
-		/*
-		for(Jid address : addresses){
-			System.out.println("processRosterEntriesAdded: " + address.toString());
+		for (Jid address : addresses) {
+			
+			Localpart localpart = address.getLocalpartOrNull();
+			
+			if (localpart != null) {
+				rosterIndex.add(localpart.toString());
+			}
 		}
 		
-		System.out.println("Roster entries added");
-		*/
-		
-		/*
-		try {
-			roster.reloadAndWait();
-		} catch (NotLoggedInException | NotConnectedException | InterruptedException e) {
-			logger.warning("Roster could not be reloaded. Exception: " + e.getMessage());
-		}*/
-		
+		logger.finest("Roster entries added for " + objectId + ": " + addresses.size());
 	}
 	
 	
 	/**
 	 * A callback method called when entries are deleted from the {@link org.jivesoftware.smack.roster.Roster roster}.
-	 * 
-	 * In this implementation it serves nothing, but can be helpful when debugging.
+	 * The contacts are removed from the {@link #rosterIndex roster index}, together with chats opened with them.
 	 * 
 	 * @param addresses A collection of {@link org.jxmpp.jid.Jid JID} addresses that were deleted.
 	 */
 	private void processRosterEntriesDeleted(Collection<Jid> addresses){
 		
-		/*
-		for(Jid address : addresses){
-			System.out.println("processRosterEntriesDeleted: " + address.toString());
+		for (Jid address : addresses) {
+			
+			Localpart localpart = address.getLocalpartOrNull();
+			
+			if (localpart != null) {
+				rosterIndex.remove(localpart.toString());
+				openedChats.remove(localpart.toString());
+			}
 		}
 		
-		System.out.println("Roster entries deleted");
-		*/
-		
-		/*
-		try {
-			roster.reloadAndWait();
-		} catch (NotLoggedInException | NotConnectedException | InterruptedException e) {
-			logger.warning("Roster could not be reloaded. Exception: " + e.getMessage());
-		}*/
-		
+		logger.finest("Roster entries deleted for " + objectId + ": " + addresses.size());
 	}
 	
 	
 	/**
 	 * A callback method called when entries are updated in the {@link org.jivesoftware.smack.roster.Roster roster}.
-	 * 
-	 * In this implementation it serves nothing, but can be helpful when debugging.
+	 * Updated contacts are still in the roster, so this only makes sure they are in the 
+	 * {@link #rosterIndex roster index} as well.
 	 * 
 	 * @param addresses A collection of {@link org.jxmpp.jid.Jid JID} addresses that were updated.
 	 */
 	private void processRosterEntriesUpdated(Collection<Jid> addresses) {
-
-		/*
-		for(Jid address : addresses){
-			System.out.println("processRosterEntriesUpdated: " + address.toString());
-		}
 		
-		System.out.println("Roster entries updated");
-		*/
+		processRosterEntriesAdded(addresses);
+	}
+	
+	
+	/**
+	 * Makes the {@link #rosterIndex roster index} match the {@link org.jivesoftware.smack.roster.Roster roster}, 
+	 * in case some change slipped through the callbacks (e.g. while the connection was down).
+	 */
+	private void reconcileRosterIndex() {
+		
+		Set<String> currentEntries = new HashSet<String>();
 		
-		/*
-		try {
-			roster.reloadAndWait();
-		} catch (NotLoggedInException | NotConnectedException | InterruptedException e) {
-			logger.warning("Roster could not be reloaded. Exception: " + e.getMessage());
-		}*/
+		for (RosterEntry entry : roster.getEntries()) {
+			
+			Localpart localpart = entry.getJid().getLocalpartOrNull();
+			
+			if (localpart != null) {
+				currentEntries.add(localpart.toString());
+			}
+		}
 		
+		rosterIndex.addAll(currentEntries);
+		rosterIndex.retainAll(currentEntries);
 	}
 	
 	
@@ -652,4 +1171,36 @@ public class XmppMessageEngine extends CommunicationEngine {
 	private void processRosterPresenceChanged(Presence presence) {
 		//System.out.println("processRosterPresenceChanged - Presence changed: " + presence.getFrom() + " " + presence);
 	}
+	
+	
+	/**
+	 * A message waiting for the roster to load.
+	 */
+	private static class PendingMessage {
+		
+		/**
+		 * Object ID of the destination.
+		 */
+		private final String destinationObjectID;
+		
+		/**
+		 * JID of the destination.
+		 */
+		private final EntityBareJid jid;
+		
+		/**
+		 * The message.
+		 */
+		private final String message;
+		
+		
+		/**
+		 * Constructor.
+		 */
+		private PendingMessage(String destinationObjectID, EntityBareJid jid, String message) {
+			this.destinationObjectID = destinationObjectID;
+			this.jid = jid;
+			this.message = message;
+		}
+	}
 }
@@ -0,0 +1,244 @@
+package eu.bavenir.ogwapi.commons.logging;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.ErrorManager;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+/*
+ * STRUCTURE:
+ * - constants
+ * - fields
+ * - public methods
+ * - private methods
+ */
+
+/**
+ * Handler that takes the writing of log records off the threads that log them. Records are put into a bounded ring
+ * buffer and a single daemon thread passes them to the wrapped handler (typically the
+ * {@link java.util.logging.FileHandler FileHandler}), so a thread processing a message never waits for the disk.
+ *
+ * When the buffer is full, the oldest record is dropped to make room for the new one - logging must never block the
+ * message processing. The number of dropped records is written into the log as soon as the writer catches up.
+ *
+ * The caller of each record (class and method name) is resolved before the record is queued, the formatter would
+ * otherwise resolve it on the writer thread and get it wrong.
+ *
+ * @author sulfo
+ *
+ */
+public class AsyncLogHandler extends Handler {
+
+	/* === CONSTANTS === */
+
+	/**
+	 * Name of the writer thread.
+	 */
+	private static final String THREAD_NAME = "ogwapi-log-writer";
+
+	/**
+	 * Maximum number of records the writer takes from the buffer at once.
+	 */
+	private static final int DRAIN_BATCH = 256;
+
+	/**
+	 * How long (ms) the writer waits for a record before it flushes the wrapped handler.
+	 */
+	private static final long FLUSH_INTERVAL = 1000;
+
+	/**
+	 * How long (ms) closing the handler waits for the writer to write what is left in the buffer.
+	 */
+	private static final long CLOSE_TIMEOUT = 5000;
+
+
+	/* === FIELDS === */
+
+	/**
+	 * The handler that does the actual writing.
+	 */
+	private Handler target;
+
+	/**
+	 * Ring buffer of records waiting to be written.
+	 */
+	private ArrayBlockingQueue<LogRecord> buffer;
+
+	/**
+	 * Number of records dropped since the last report.
+	 */
+	private AtomicLong dropped;
+
+	/**
+	 * The writer thread.
+	 */
+	private Thread writer;
+
+	/**
+	 * Set when the handler is being closed.
+	 */
+	private volatile boolean closing;
+
+
+	/* === PUBLIC METHODS === */
+
+	/**
+	 * Constructor. Starts the writer thread.
+	 *
+	 * @param target The handler that does the actual writing. Its level is taken over.
+	 * @param capacity Number of records the buffer can hold.
+	 */
+	public AsyncLogHandler(Handler target, int capacity) {
+		this.target = target;
+
+		buffer = new ArrayBlockingQueue<LogRecord>(capacity);
+		dropped = new AtomicLong(0);
+		closing = false;
+
+		setLevel(target.getLevel());
+
+		writer = new Thread(() -> writeRecords(), THREAD_NAME);
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+
+	/**
+	 * Queues a record to be written.
+	 *
+	 * @param record Record to be written.
+	 */
+	@Override
+	public void publish(LogRecord record) {
+
+		if (record == null || !isLoggable(record)) {
+			return;
+		}
+
+		if (closing) {
+			target.publish(record);
+			return;
+		}
+
+		// resolve the caller now, it is not known on the writer thread
+		record.getSourceClassName();
+
+		while (!buffer.offer(record)) {
+			if (buffer.poll() != null) {
+				dropped.incrementAndGet();
+			}
+		}
+	}
+
+
+	/**
+	 * The records are written by the writer thread as soon as possible, flushing does not wait for it.
+	 */
+	@Override
+	public void flush() {
+		target.flush();
+	}
+
+
+	/**
+	 * Writes what is left in the buffer, stops the writer and closes the wrapped handler.
+	 */
+	@Override
+	public void close() {
+
+		closing = true;
+		writer.interrupt();
+
+		try {
+			writer.join(CLOSE_TIMEOUT);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		// whatever the writer did not manage to write
+		writeBatch(new ArrayList<LogRecord>(buffer));
+		buffer.clear();
+
+		target.close();
+	}
+
+
+	/**
+	 * Returns the number of records waiting in the buffer.
+	 *
+	 * @return Number of records.
+	 */
+	public int getBufferedRecords() {
+		return buffer.size();
+	}
+
+
+	/* === PRIVATE METHODS === */
+
+	/**
+	 * Body of the writer thread.
+	 */
+	private void writeRecords() {
+
+		List<LogRecord> batch = new ArrayList<LogRecord>(DRAIN_BATCH);
+
+		while (!closing) {
+			try {
+				LogRecord first = buffer.poll(FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+
+				if (first == null) {
+					target.flush();
+					continue;
+				}
+
+				batch.add(first);
+				buffer.drainTo(batch, DRAIN_BATCH - 1);
+
+				writeBatch(batch);
+				batch.clear();
+
+			} catch (InterruptedException e) {
+				// closing
+				break;
+			}
+		}
+
+		writeBatch(batch);
+		batch.clear();
+
+		buffer.drainTo(batch);
+		writeBatch(batch);
+	}
+
+
+	/**
+	 * Passes records to the wrapped handler, reporting the dropped records first, if there were any.
+	 *
+	 * @param batch Records to be written.
+	 */
+	private void writeBatch(List<LogRecord> batch) {
+
+		long lost = dropped.getAndSet(0);
+		if (lost > 0) {
+			LogRecord report = new LogRecord(Level.WARNING, "Logging could not keep up, " + lost
+					+ " log records were dropped.");
+			report.setSourceClassName(AsyncLogHandler.class.getName());
+			report.setSourceMethodName("publish");
+			target.publish(report);
+		}
+
+		for (LogRecord record : batch) {
+			try {
+				target.publish(record);
+			} catch (RuntimeException e) {
+				reportError("Log record could not be written.", e, ErrorManager.WRITE_FAILURE);
+			}
+		}
+	}
+
+}
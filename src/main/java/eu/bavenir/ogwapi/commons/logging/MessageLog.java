@@ -0,0 +1,276 @@
+package eu.bavenir.ogwapi.commons.logging;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.configuration2.XMLConfiguration;
+
+/*
+ * STRUCTURE:
+ * - constants
+ * - fields
+ * - public methods
+ * - private methods
+ */
+
+/**
+ * Logging of the message path - messages sent, received, events forwarded. These happen for every single message,
+ * so the records are built only when they are going to be written: nothing is concatenated when the level is not
+ * loggable, and bodies of the messages are passed as {@link java.util.function.Supplier suppliers}.
+ *
+ * Records are structured, an object ID, a short description of what happened and a list of key=value pairs:
+ *
+ *   0729a580-...: message sent destination=5b61f0b5-... type=request requestId=1872 size=317
+ *
+ * On a busy gateway, even records of the message path at INFO level are too many to read. Each category (see
+ * constants) can therefore be sampled - only every n-th record of the category is written, together with the number
+ * of records that were skipped since the last written one. Records of WARNING and higher levels are never sampled.
+ *
+ * The records carry the class and method that called this log, not this class. The caller is looked up only for the
+ * records that are written. The key=value variant takes its arguments as an array, so callers on the message path
+ * check {@link #isLoggable(Level) isLoggable} before they build it.
+ *
+ * @author sulfo
+ *
+ */
+public class MessageLog {
+
+	/* === CONSTANTS === */
+
+	/**
+	 * Name of the configuration parameter for the sampling of message path records. Only every n-th record of each
+	 * category is written.
+	 */
+	private static final String CONFIG_PARAM_MESSAGELOGSAMPLING = "logging.messageLogSampling";
+
+	/**
+	 * Default value of {@link #CONFIG_PARAM_MESSAGELOGSAMPLING CONFIG_PARAM_MESSAGELOGSAMPLING} configuration
+	 * parameter. This value is taken into account when no suitable value is found in the configuration file.
+	 */
+	private static final int CONFIG_DEF_MESSAGELOGSAMPLING = 1;
+
+	/**
+	 * Category of records about messages being sent.
+	 */
+	public static final String CATEGORY_SEND = "send";
+
+	/**
+	 * Category of records about messages being received.
+	 */
+	public static final String CATEGORY_RECEIVE = "receive";
+
+	/**
+	 * Category of records about events.
+	 */
+	public static final String CATEGORY_EVENT = "event";
+
+	/**
+	 * Key of the number of skipped records, appended to sampled records.
+	 */
+	private static final String KEY_SKIPPED = "skipped";
+
+	/**
+	 * Walker used to find the caller of this log, class names are enough.
+	 */
+	private static final StackWalker STACK_WALKER = StackWalker.getInstance();
+
+
+	/* === FIELDS === */
+
+	/**
+	 * Logger of the OGWAPI.
+	 */
+	private Logger logger;
+
+	/**
+	 * Every n-th record of a category is written.
+	 */
+	private int sampling;
+
+	/**
+	 * Number of records of each category, for sampling.
+	 */
+	private Map<String, AtomicLong> categoryCounters;
+
+	/**
+	 * Number of records of each category skipped since the last written one.
+	 */
+	private Map<String, AtomicLong> skippedCounters;
+
+
+	/* === PUBLIC METHODS === */
+
+	/**
+	 * Constructor.
+	 *
+	 * @param config Configuration of the OGWAPI.
+	 * @param logger Logger of the OGWAPI.
+	 */
+	public MessageLog(XMLConfiguration config, Logger logger) {
+		this.logger = logger;
+
+		sampling = config.getInt(CONFIG_PARAM_MESSAGELOGSAMPLING, CONFIG_DEF_MESSAGELOGSAMPLING);
+		if (sampling < 1) {
+			logger.warning("Wrong parameter entered for " + CONFIG_PARAM_MESSAGELOGSAMPLING
+					+ " in the configuration file: " + sampling + ". Setting to default: "
+					+ CONFIG_DEF_MESSAGELOGSAMPLING);
+			sampling = CONFIG_DEF_MESSAGELOGSAMPLING;
+		}
+
+		categoryCounters = new ConcurrentHashMap<String, AtomicLong>();
+		skippedCounters = new ConcurrentHashMap<String, AtomicLong>();
+	}
+
+
+	/**
+	 * Whether or not a record of given level would be written at all. Useful when the values of the record are costly
+	 * to get.
+	 *
+	 * @param level Level of the record.
+	 * @return True if the logger writes records of the level.
+	 */
+	public boolean isLoggable(Level level) {
+		return logger.isLoggable(level);
+	}
+
+
+	/**
+	 * Writes a structured record, if the level is loggable and the category sampling lets it through.
+	 *
+	 * @param level Level of the record.
+	 * @param category Category of the record, see the constants.
+	 * @param objectId ID of the object the record is about.
+	 * @param what Short description of what happened.
+	 * @param keyValues Keys and values, alternating. Values are converted to strings only when the record is written,
+	 * values that are suppliers are asked for their value at that moment.
+	 */
+	public void log(Level level, String category, String objectId, String what, Object... keyValues) {
+
+		if (!logger.isLoggable(level)) {
+			return;
+		}
+
+		long skipped = sample(level, category);
+		if (skipped < 0) {
+			return;
+		}
+
+		write(level, format(objectId, what, skipped, keyValues));
+	}
+
+
+	/**
+	 * Writes a record whose text is produced by a supplier, if the level is loggable and the category sampling lets
+	 * it through. The supplier is not called otherwise.
+	 *
+	 * @param level Level of the record.
+	 * @param category Category of the record, see the constants.
+	 * @param objectId ID of the object the record is about.
+	 * @param text Supplier of the text of the record.
+	 */
+	public void log(Level level, String category, String objectId, Supplier<String> text) {
+
+		if (!logger.isLoggable(level)) {
+			return;
+		}
+
+		long skipped = sample(level, category);
+		if (skipped < 0) {
+			return;
+		}
+
+		String record = objectId + ": " + text.get();
+		if (skipped > 0) {
+			record = record + " " + KEY_SKIPPED + "=" + skipped;
+		}
+
+		write(level, record);
+	}
+
+
+	/* === PRIVATE METHODS === */
+
+	/**
+	 * Writes a record on behalf of the caller of this log.
+	 *
+	 * @param level Level of the record.
+	 * @param record Text of the record.
+	 */
+	private void write(Level level, String record) {
+
+		StackWalker.StackFrame caller = STACK_WALKER.walk(frames -> frames
+				.filter(frame -> !frame.getClassName().equals(MessageLog.class.getName()))
+				.findFirst()
+				.orElse(null));
+
+		if (caller == null) {
+			logger.log(level, record);
+		} else {
+			logger.logp(level, caller.getClassName(), caller.getMethodName(), record);
+		}
+	}
+
+
+	/**
+	 * Decides whether a record of given category should be written.
+	 *
+	 * @param level Level of the record.
+	 * @param category Category of the record.
+	 * @return Number of records of the category skipped since the last written one, or -1 if this one should be
+	 * skipped too.
+	 */
+	private long sample(Level level, String category) {
+
+		if (sampling == 1 || level.intValue() >= Level.WARNING.intValue()) {
+			return 0;
+		}
+
+		long count = categoryCounters.computeIfAbsent(category, key -> new AtomicLong(0)).getAndIncrement();
+		AtomicLong skipped = skippedCounters.computeIfAbsent(category, key -> new AtomicLong(0));
+
+		if (count % sampling != 0) {
+			skipped.incrementAndGet();
+			return -1;
+		}
+
+		return skipped.getAndSet(0);
+	}
+
+
+	/**
+	 * Formats a structured record.
+	 *
+	 * @param objectId ID of the object the record is about.
+	 * @param what Short description of what happened.
+	 * @param skipped Number of skipped records to be appended, if there were any.
+	 * @param keyValues Keys and values, alternating.
+	 * @return Text of the record.
+	 */
+	private String format(String objectId, String what, long skipped, Object... keyValues) {
+
+		StringBuilder builder = new StringBuilder(64 + keyValues.length * 16);
+
+		builder.append(objectId).append(": ").append(what);
+
+		for (int i = 0; i + 1 < keyValues.length; i += 2) {
+
+			Object value = keyValues[i + 1];
+			if (value instanceof Supplier<?>) {
+				value = ((Supplier<?>) value).get();
+			}
+
+			builder.append(' ').append(keyValues[i]).append('=').append(value);
+		}
+
+		if (skipped > 0) {
+			builder.append(' ').append(KEY_SKIPPED).append('=').append(skipped);
+		}
+
+		return builder.toString();
+	}
+
+}
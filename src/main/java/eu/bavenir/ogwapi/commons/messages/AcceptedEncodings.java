@@ -0,0 +1,138 @@
+package eu.bavenir.ogwapi.commons.messages;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * STRUCTURE:
+ * - constants
+ * - fields
+ * - public methods
+ * - private methods
+ */
+
+/**
+ * Record of the encodings remote objects accept, shared by the whole gateway. Objects announce them in the
+ * {@link NetworkMessageRequest#ATTR_ACCEPTENCODING acceptEncoding} attribute of their requests as a comma separated
+ * list (e.g. "deflate,binary"), receiving a message in some encoding counts as an announcement as well.
+ *
+ * Announcements are trusted only for a while, objects keep announcing with every request, so an object that moves
+ * to an older gateway is forgotten after {@link #ANNOUNCEMENT_VALIDITY ANNOUNCEMENT_VALIDITY}.
+ *
+ * @author sulfo
+ *
+ */
+public class AcceptedEncodings {
+
+	/* === CONSTANTS === */
+
+	/**
+	 * How long (ms) an announcement of an object accepting an encoding is trusted.
+	 */
+	private static final long ANNOUNCEMENT_VALIDITY = 600000;
+
+	/**
+	 * Separator of the encodings in the announcement.
+	 */
+	private static final String SEPARATOR = ",";
+
+
+	/* === FIELDS === */
+
+	/**
+	 * Time of the last announcement, key is the encoding and the object ID separated by a space.
+	 */
+	private static Map<String, Long> announcements = new ConcurrentHashMap<String, Long>();
+
+
+	/* === PUBLIC METHODS === */
+
+	/**
+	 * Records the encodings an object announced.
+	 *
+	 * @param objectId Object ID.
+	 * @param acceptEncoding Comma separated list of encodings, may be null.
+	 */
+	public static void record(String objectId, String acceptEncoding) {
+
+		if (objectId == null || acceptEncoding == null) {
+			return;
+		}
+
+		long now = System.currentTimeMillis();
+
+		for (String encoding : acceptEncoding.split(SEPARATOR)) {
+			encoding = encoding.trim();
+			if (!encoding.isEmpty()) {
+				announcements.put(key(objectId, encoding), now);
+			}
+		}
+	}
+
+
+	/**
+	 * Whether or not an object recently announced it accepts an encoding.
+	 *
+	 * @param objectId Object ID.
+	 * @param encoding Name of the encoding.
+	 * @return True if it does.
+	 */
+	public static boolean accepts(String objectId, String encoding) {
+
+		if (objectId == null) {
+			return false;
+		}
+
+		String key = key(objectId, encoding);
+		Long announced = announcements.get(key);
+
+		if (announced == null) {
+			return false;
+		}
+
+		if (System.currentTimeMillis() - announced > ANNOUNCEMENT_VALIDITY) {
+			announcements.remove(key, announced);
+			return false;
+		}
+
+		return true;
+	}
+
+
+	/**
+	 * Builds the announcement out of encoding names, skipping nulls.
+	 *
+	 * @param encodings Names of the encodings.
+	 * @return Comma separated list, or null if there is nothing to announce.
+	 */
+	public static String join(String... encodings) {
+
+		StringBuilder builder = new StringBuilder();
+
+		for (String encoding : encodings) {
+			if (encoding != null) {
+				if (builder.length() > 0) {
+					builder.append(SEPARATOR);
+				}
+				builder.append(encoding);
+			}
+		}
+
+		return builder.length() == 0 ? null : builder.toString();
+	}
+
+
+	/* === PRIVATE METHODS === */
+
+	/**
+	 * Key of the announcements map.
+	 *
+	 * @param objectId Object ID.
+	 * @param encoding Name of the encoding.
+	 * @return Key.
+	 */
+	private static String key(String objectId, String encoding) {
+		return encoding + " " + objectId;
+	}
+
+}
@@ -0,0 +1,688 @@
+package eu.bavenir.ogwapi.commons.messages;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.logging.Logger;
+
+import org.apache.commons.configuration2.XMLConfiguration;
+
+/*
+ * STRUCTURE:
+ * - constants
+ * - fields
+ * - public methods
+ * - private methods
+ */
+
+/**
+ * Compact binary alternative to the JSON form of the {@link NetworkMessage NetworkMessage} hierarchy. The JSON
+ * repeats attribute names like requestOperation or destinationOid in every message and escapes the bodies, that are
+ * often JSONs themselves. The binary envelope lists the attributes in a fixed order instead:
+ *
+ *   version | message type | request ID | attributes of the message type...
+ *
+ * Requests and responses that carry a {@link TraceContext trace} end with it - the trace ID and the recorded stages,
+ * each as the stage number and 8 bytes of its stamp. Such envelopes have version {@link #VERSION_TRACE 2}, the others
+ * keep version {@link #VERSION 1}, so gateways that only know version 1 still read every message without a trace
+ * and reject the traced ones as of unknown version instead of misreading them.
+ *
+ * Strings are written as a tag byte (null / UUID / UTF-8) followed by 16 bytes of the UUID or a variable length
+ * integer with the length and the UTF-8 bytes. Object IDs are UUIDs and therefore take 16 bytes instead of 36 (plus
+ * the quotes and the attribute name). Maps are written as a number of entries followed by the keys and values.
+ * Envelopes longer than the {@link PayloadCompression compression} threshold are deflated after the two header bytes,
+ * which is marked by {@link #FLAG_DEFLATED FLAG_DEFLATED} in the version byte.
+ *
+ * The engines transport text, so the envelope is base64 encoded behind a prefix, the same way as compressed messages:
+ *
+ *   ~binary:AQEAAABk...
+ *
+ * Only objects that announced the {@link #ENCODING_BINARY binary} encoding (see
+ * {@link AcceptedEncodings AcceptedEncodings}) receive it, everybody else keeps getting the JSON.
+ *
+ * @author sulfo
+ *
+ */
+public class BinaryEnvelopeCodec {
+
+	/* === CONSTANTS === */
+
+	/**
+	 * Name of the configuration parameter for sending messages in the binary envelope.
+	 */
+	private static final String CONFIG_PARAM_BINARYENVELOPE = "general.binaryEnvelope";
+
+	/**
+	 * Default value of {@link #CONFIG_PARAM_BINARYENVELOPE CONFIG_PARAM_BINARYENVELOPE} configuration parameter. This
+	 * value is taken into account when no suitable value is found in the configuration file.
+	 */
+	private static final boolean CONFIG_DEF_BINARYENVELOPE = false;
+
+	/**
+	 * Name of the encoding, as announced to other gateways.
+	 */
+	public static final String ENCODING_BINARY = "binary";
+
+	/**
+	 * Prefix of a message in the binary envelope.
+	 */
+	private static final String PREFIX_BINARY = "~" + ENCODING_BINARY + ":";
+
+	/**
+	 * Version of the layout.
+	 */
+	private static final byte VERSION = 0x01;
+
+	/**
+	 * Version of the layout with the trace at the end of requests and responses.
+	 */
+	private static final byte VERSION_TRACE = 0x02;
+
+	/**
+	 * Flag in the version byte, marking a deflated envelope.
+	 */
+	private static final byte FLAG_DEFLATED = (byte) 0x80;
+
+	/**
+	 * Tag of a null string.
+	 */
+	private static final byte TAG_NULL = 0x00;
+
+	/**
+	 * Tag of a string that is a UUID in its canonical form.
+	 */
+	private static final byte TAG_UUID = 0x01;
+
+	/**
+	 * Tag of any other string.
+	 */
+	private static final byte TAG_UTF8 = 0x02;
+
+	/**
+	 * Length of a UUID in its canonical form.
+	 */
+	private static final int UUID_LENGTH = 36;
+
+	/**
+	 * Initial size of the buffer for the envelope without the bodies.
+	 */
+	private static final int ENVELOPE_SIZE_ESTIMATE = 128;
+
+
+	/* === FIELDS === */
+
+	/**
+	 * Configuration of the OGWAPI.
+	 */
+	private XMLConfiguration config;
+
+	/**
+	 * Logger of the OGWAPI.
+	 */
+	private Logger logger;
+
+	/**
+	 * Compression, for the large envelopes.
+	 */
+	private PayloadCompression payloadCompression;
+
+	/**
+	 * Whether or not this gateway sends binary envelopes.
+	 */
+	private boolean enabled;
+
+
+	/* === PUBLIC METHODS === */
+
+	/**
+	 * Constructor.
+	 *
+	 * @param config Configuration of the OGWAPI.
+	 * @param logger Logger of the OGWAPI.
+	 * @param payloadCompression Compression used for the large envelopes.
+	 */
+	public BinaryEnvelopeCodec(XMLConfiguration config, Logger logger, PayloadCompression payloadCompression) {
+		this.config = config;
+		this.logger = logger;
+		this.payloadCompression = payloadCompression;
+
+		enabled = config.getBoolean(CONFIG_PARAM_BINARYENVELOPE, CONFIG_DEF_BINARYENVELOPE);
+	}
+
+
+	/**
+	 * Whether or not this gateway sends binary envelopes (and therefore announces it accepts them). Binary envelopes
+	 * are decoded regardless.
+	 *
+	 * @return True if enabled.
+	 */
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+
+	/**
+	 * Whether or not the message should be sent to the destination in the binary envelope.
+	 *
+	 * @param destinationOid Object ID of the destination.
+	 * @return True if this gateway sends binary envelopes and the destination accepts them.
+	 */
+	public boolean shouldEncode(String destinationOid) {
+		return enabled && AcceptedEncodings.accepts(destinationOid, ENCODING_BINARY);
+	}
+
+
+	/**
+	 * Whether or not the string that arrived from the network is a binary envelope.
+	 *
+	 * @param message Message as it arrived.
+	 * @return True if it is.
+	 */
+	public boolean isEncoded(String message) {
+		return message != null && message.startsWith(PREFIX_BINARY);
+	}
+
+
+	/**
+	 * Whether or not a binary envelope is deflated, i.e. whether it would have to be inflated to be decoded. Only the
+	 * first bytes of the envelope are decoded to find out.
+	 *
+	 * @param message Message as it arrived, a binary envelope.
+	 * @return True if it is deflated or damaged.
+	 */
+	public boolean isDeflated(String message) {
+
+		// four base64 characters make the first three bytes, the version byte is the first one
+		if (message.length() < PREFIX_BINARY.length() + 4) {
+			return true;
+		}
+
+		try {
+			byte[] header = Base64.getDecoder().decode(message.substring(PREFIX_BINARY.length(),
+					PREFIX_BINARY.length() + 4));
+
+			return (header[0] & FLAG_DEFLATED) != 0;
+		} catch (IllegalArgumentException e) {
+			return true;
+		}
+	}
+
+
+	/**
+	 * Encodes a message into the binary envelope. The envelope is kept in the message until the message changes.
+	 *
+	 * @param message Request, response or event.
+	 * @return Prefixed base64 string that can be sent over the network, or null if the message is of unknown type.
+	 */
+	public String encode(NetworkMessage message) {
+
+		// the envelope does not depend on the destination, e.g. an event is encoded once for all subscribers
+		if (message.getBinaryEnvelope() != null) {
+			return message.getBinaryEnvelope();
+		}
+
+		ByteArrayOutputStream body = new ByteArrayOutputStream(ENVELOPE_SIZE_ESTIMATE);
+		TraceContext trace = null;
+
+		writeInt(body, message.getRequestId());
+		writeString(body, message.getSourceOid());
+		writeString(body, message.getDestinationOid());
+
+		switch (message.getMessageType()) {
+
+		case NetworkMessageRequest.MESSAGE_TYPE:
+			NetworkMessageRequest request = (NetworkMessageRequest) message;
+			body.write(request.getRequestOperation());
+			writeString(body, request.getRequestBody());
+			writeMap(body, request.getAttributes());
+			writeMap(body, request.getParameters());
+			writeString(body, request.getAcceptEncoding());
+			trace = request.getTrace();
+			writeTrace(body, trace);
+			break;
+
+		case NetworkMessageResponse.MESSAGE_TYPE:
+			NetworkMessageResponse response = (NetworkMessageResponse) message;
+			body.write(response.isError() ? 1 : 0);
+			writeInt(body, response.getResponseCode());
+			writeString(body, response.getResponseCodeReason());
+			writeString(body, response.getContentType());
+			writeString(body, response.getResponseBody());
+			writeString(body, response.getResponseBodySupplement());
+			trace = response.getTrace();
+			writeTrace(body, trace);
+			break;
+
+		case NetworkMessageEvent.MESSAGE_TYPE:
+			NetworkMessageEvent event = (NetworkMessageEvent) message;
+			writeString(body, event.getEventId());
+			writeString(body, event.getEventBody());
+			writeMap(body, event.getParameters());
+			break;
+
+		default:
+			logger.warning("Message of type " + message.getMessageType() + " can't be sent in binary envelope.");
+			return null;
+		}
+
+		byte version = trace == null ? VERSION : VERSION_TRACE;
+		byte[] bodyBytes = body.toByteArray();
+
+		if (payloadCompression.isWorthCompressing(bodyBytes.length)) {
+			byte[] deflated = payloadCompression.deflate(bodyBytes);
+
+			if (deflated.length < bodyBytes.length) {
+				version |= FLAG_DEFLATED;
+				bodyBytes = deflated;
+			}
+		}
+
+		byte[] envelope = new byte[bodyBytes.length + 2];
+		envelope[0] = version;
+		envelope[1] = (byte) message.getMessageType();
+		System.arraycopy(bodyBytes, 0, envelope, 2, bodyBytes.length);
+
+		String encoded = PREFIX_BINARY + Base64.getEncoder().encodeToString(envelope);
+		message.setBinaryEnvelope(encoded);
+
+		return encoded;
+	}
+
+
+	/**
+	 * Decodes a message in the binary envelope. Receiving it also means its source accepts them.
+	 *
+	 * @param sourceOid Object ID of the source, as reported by the engine.
+	 * @param message Message as it arrived.
+	 * @return Request, response or event, or null if the envelope is damaged or of unknown version.
+	 */
+	public NetworkMessage decode(String sourceOid, String message) {
+
+		AcceptedEncodings.record(sourceOid, ENCODING_BINARY);
+
+		byte[] envelope;
+		try {
+			envelope = Base64.getDecoder().decode(message.substring(PREFIX_BINARY.length()));
+		} catch (IllegalArgumentException e) {
+			logger.warning("Binary envelope from " + sourceOid + " is not properly encoded.");
+			return null;
+		}
+
+		int version = envelope.length < 2 ? 0 : envelope[0] & ~FLAG_DEFLATED;
+		if (version != VERSION && version != VERSION_TRACE) {
+			logger.warning("Binary envelope from " + sourceOid + " is of unknown version.");
+			return null;
+		}
+
+		ByteBuffer buffer;
+		if ((envelope[0] & FLAG_DEFLATED) != 0) {
+			byte[] inflated = payloadCompression.inflate(sourceOid, Arrays.copyOfRange(envelope, 2, envelope.length));
+			if (inflated == null) {
+				return null;
+			}
+			buffer = ByteBuffer.wrap(inflated);
+		} else {
+			buffer = ByteBuffer.wrap(envelope, 2, envelope.length - 2);
+		}
+
+		try {
+			NetworkMessage networkMessage = readMessage(envelope[1], version == VERSION_TRACE, buffer);
+
+			if (networkMessage != null) {
+				networkMessage.setMessageSize(message.length());
+			}
+
+			return networkMessage;
+		} catch (BufferUnderflowException | IllegalArgumentException e) {
+			logger.warning("Binary envelope from " + sourceOid + " is damaged.");
+			return null;
+		}
+	}
+
+
+	/* === PRIVATE METHODS === */
+
+	/**
+	 * Reads the message attributes in the order they were written by {@link #encode(NetworkMessage) encode}.
+	 *
+	 * @param messageType Type of the message.
+	 * @param traced Whether requests and responses end with a trace.
+	 * @param buffer Buffer positioned after the header.
+	 * @return The message, or null if it lacks mandatory attributes or is of unknown type.
+	 */
+	private NetworkMessage readMessage(int messageType, boolean traced, ByteBuffer buffer) {
+
+		int requestId = buffer.getInt();
+		String sourceOid = readString(buffer);
+		String destinationOid = readString(buffer);
+
+		switch (messageType) {
+
+		case NetworkMessageRequest.MESSAGE_TYPE:
+			NetworkMessageRequest request = new NetworkMessageRequest(config, logger);
+			request.setRequestId(requestId);
+			request.setSourceOid(sourceOid);
+			request.setDestinationOid(destinationOid);
+			request.setRequestOperation(buffer.get());
+			request.setRequestBody(readString(buffer));
+			request.setAttributes(readMap(buffer));
+			request.setParameters(readMap(buffer));
+			request.setAcceptEncoding(readString(buffer));
+			request.setTrace(traced ? readTrace(buffer) : null);
+
+			if (sourceOid == null || destinationOid == null
+					|| !NetworkMessageRequest.validateRequestOperation(request.getRequestOperation())) {
+				return null;
+			}
+
+			return request;
+
+		case NetworkMessageResponse.MESSAGE_TYPE:
+			NetworkMessageResponse response = new NetworkMessageResponse(config, logger);
+			response.setRequestId(requestId);
+			response.setSourceOid(sourceOid);
+			response.setDestinationOid(destinationOid);
+			response.setError(buffer.get() != 0);
+			response.setResponseCode(buffer.getInt());
+			response.setResponseCodeReason(readString(buffer));
+			response.setContentType(readString(buffer));
+			response.setResponseBody(readString(buffer));
+			response.setResponseBodySupplement(readString(buffer));
+			response.setTrace(traced ? readTrace(buffer) : null);
+
+			return response;
+
+		case NetworkMessageEvent.MESSAGE_TYPE:
+			String eventId = readString(buffer);
+			String eventBody = readString(buffer);
+			Map<String, String> parameters = readMap(buffer);
+
+			if (sourceOid == null || eventId == null) {
+				return null;
+			}
+
+			NetworkMessageEvent event = new NetworkMessageEvent(config, sourceOid, eventId, eventBody, parameters,
+					logger);
+			event.setRequestId(requestId);
+			event.setDestinationOid(destinationOid);
+
+			return event;
+
+		default:
+			return null;
+		}
+	}
+
+
+	/**
+	 * Writes an integer, big endian.
+	 *
+	 * @param output Where to write.
+	 * @param value Value to write.
+	 */
+	private void writeInt(ByteArrayOutputStream output, int value) {
+		output.write(value >>> 24);
+		output.write(value >>> 16);
+		output.write(value >>> 8);
+		output.write(value);
+	}
+
+
+	/**
+	 * Writes a long, big endian.
+	 *
+	 * @param output Where to write.
+	 * @param value Value to write.
+	 */
+	private void writeLong(ByteArrayOutputStream output, long value) {
+		writeInt(output, (int) (value >>> 32));
+		writeInt(output, (int) value);
+	}
+
+
+	/**
+	 * Writes a non negative integer in 7 bit groups, least significant first, with the highest bit marking that
+	 * another group follows.
+	 *
+	 * @param output Where to write.
+	 * @param value Value to write.
+	 */
+	private void writeLength(ByteArrayOutputStream output, int value) {
+		while ((value & ~0x7F) != 0) {
+			output.write((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		output.write(value);
+	}
+
+
+	/**
+	 * Reads a length written by {@link #writeLength(ByteArrayOutputStream, int) writeLength}.
+	 *
+	 * @param buffer Where to read from.
+	 * @return The length.
+	 */
+	private int readLength(ByteBuffer buffer) {
+
+		int value = 0;
+		int shift = 0;
+		byte b;
+
+		do {
+			if (shift > 28) {
+				throw new IllegalArgumentException("Length too long.");
+			}
+			b = buffer.get();
+			value |= (b & 0x7F) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+
+		if (value < 0 || value > buffer.remaining()) {
+			throw new IllegalArgumentException("Length out of range.");
+		}
+
+		return value;
+	}
+
+
+	/**
+	 * Writes a string, that can be null.
+	 *
+	 * @param output Where to write.
+	 * @param value Value to write.
+	 */
+	private void writeString(ByteArrayOutputStream output, String value) {
+
+		if (value == null) {
+			output.write(TAG_NULL);
+			return;
+		}
+
+		UUID uuid = toUuid(value);
+
+		if (uuid != null) {
+			output.write(TAG_UUID);
+			long most = uuid.getMostSignificantBits();
+			long least = uuid.getLeastSignificantBits();
+			writeInt(output, (int) (most >>> 32));
+			writeInt(output, (int) most);
+			writeInt(output, (int) (least >>> 32));
+			writeInt(output, (int) least);
+			return;
+		}
+
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		output.write(TAG_UTF8);
+		writeLength(output, bytes.length);
+		output.write(bytes, 0, bytes.length);
+	}
+
+
+	/**
+	 * Reads a string written by {@link #writeString(ByteArrayOutputStream, String) writeString}.
+	 *
+	 * @param buffer Where to read from.
+	 * @return The string, or null.
+	 */
+	private String readString(ByteBuffer buffer) {
+
+		byte tag = buffer.get();
+
+		switch (tag) {
+		case TAG_NULL:
+			return null;
+
+		case TAG_UUID:
+			return new UUID(buffer.getLong(), buffer.getLong()).toString();
+
+		case TAG_UTF8:
+			int length = readLength(buffer);
+			String value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length,
+					StandardCharsets.UTF_8);
+			buffer.position(buffer.position() + length);
+			return value;
+
+		default:
+			throw new IllegalArgumentException("Unknown string tag " + tag);
+		}
+	}
+
+
+	/**
+	 * Writes a map of strings, null is written as an empty map.
+	 *
+	 * @param output Where to write.
+	 * @param map Map to write.
+	 */
+	private void writeMap(ByteArrayOutputStream output, Map<String, String> map) {
+
+		if (map == null) {
+			writeLength(output, 0);
+			return;
+		}
+
+		writeLength(output, map.size());
+
+		for (Map.Entry<String, String> entry : map.entrySet()) {
+			writeString(output, entry.getKey());
+			writeString(output, entry.getValue());
+		}
+	}
+
+
+	/**
+	 * Reads a map written by {@link #writeMap(ByteArrayOutputStream, Map) writeMap}.
+	 *
+	 * @param buffer Where to read from.
+	 * @return The map, never null.
+	 */
+	private Map<String, String> readMap(ByteBuffer buffer) {
+
+		// every entry takes at least two bytes, which limits the size of a forged count
+		int size = readLength(buffer);
+		Map<String, String> map = new LinkedHashMap<String, String>(Math.min(size, buffer.remaining() / 2) * 2);
+
+		for (int i = 0; i < size; i++) {
+			String key = readString(buffer);
+			if (key == null) {
+				throw new IllegalArgumentException("Null key.");
+			}
+			map.put(key, readString(buffer));
+		}
+
+		return map;
+	}
+
+
+	/**
+	 * Writes the trace of a message, nothing if it has none.
+	 *
+	 * @param output Where to write.
+	 * @param trace Trace to write, can be null.
+	 */
+	private void writeTrace(ByteArrayOutputStream output, TraceContext trace) {
+
+		if (trace == null) {
+			return;
+		}
+
+		writeString(output, trace.getTraceId());
+
+		int recorded = 0;
+		for (int stage = 0; stage < TraceContext.STAGES; stage++) {
+			if (trace.getStamp(stage) != 0) {
+				recorded++;
+			}
+		}
+
+		writeLength(output, recorded);
+
+		for (int stage = 0; stage < TraceContext.STAGES; stage++) {
+			if (trace.getStamp(stage) != 0) {
+				output.write(stage);
+				writeLong(output, trace.getStamp(stage));
+			}
+		}
+	}
+
+
+	/**
+	 * Reads a trace written by {@link #writeTrace(ByteArrayOutputStream, TraceContext) writeTrace}.
+	 *
+	 * @param buffer Where to read from.
+	 * @return The trace.
+	 */
+	private TraceContext readTrace(ByteBuffer buffer) {
+
+		String traceId = readString(buffer);
+		if (traceId == null) {
+			throw new IllegalArgumentException("Null trace ID.");
+		}
+
+		TraceContext trace = new TraceContext(traceId);
+
+		int recorded = readLength(buffer);
+		for (int i = 0; i < recorded; i++) {
+			trace.record(buffer.get(), buffer.getLong());
+		}
+
+		return trace;
+	}
+
+
+	/**
+	 * Converts a string to UUID, if the string is a UUID in its canonical (lower case) form, so it can be restored
+	 * exactly.
+	 *
+	 * @param value String to convert.
+	 * @return UUID, or null if the string is not a UUID.
+	 */
+	private UUID toUuid(String value) {
+
+		if (value.length() != UUID_LENGTH || value.charAt(8) != '-' || value.charAt(13) != '-'
+				|| value.charAt(18) != '-' || value.charAt(23) != '-') {
+			return null;
+		}
+
+		for (int i = 0; i < UUID_LENGTH; i++) {
+			char c = value.charAt(i);
+			if (!(c >= '0' && c <= '9') && !(c >= 'a' && c <= 'f') && c != '-') {
+				return null;
+			}
+		}
+
+		try {
+			UUID uuid = UUID.fromString(value);
+			return uuid.toString().equals(value) ? uuid : null;
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+}
@@ -80,6 +80,16 @@ public class CodesAndReasons {
 	 */
 	public static final String REASON_408_REQUESTTIMEOUT = "Request timeout. ";
 	
+	/**
+	 * Integer value for "Bad gateway" code.
+	 */
+	public static final int CODE_502_BADGATEWAY = 502;
+	
+	/**
+	 * String for "Bad gateway" code reason.
+	 */
+	public static final String REASON_502_BADGATEWAY = "Bad gateway. ";
+	
 	/**
 	 * Integer value for "Service unavailable" code.
 	 */
@@ -2,15 +2,23 @@ package eu.bavenir.ogwapi.commons.messages;
 
 import java.io.StringReader;
 import java.util.LinkedList;
+import java.util.NoSuchElementException;
 import java.util.Queue;
 import java.util.logging.Logger;
 
-import javax.json.Json;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonBuilderFactory;
+import javax.json.JsonException;
 import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
 import javax.json.JsonReader;
+import javax.json.stream.JsonParser;
+import javax.json.stream.JsonParser.Event;
 
 import org.apache.commons.configuration2.XMLConfiguration;
 
+import eu.bavenir.ogwapi.commons.JsonCodec;
+
 /*
  * STRUCTURE:
  * - constants
@@ -25,6 +33,9 @@ import org.apache.commons.configuration2.XMLConfiguration;
  * suitable subclass. During the resolving process it also watches for duplicated messages (a flaw in some XMPP 
  * server implementations) and discards any such duplicate. 
  * 
+ * The message is read as a stream, header first. The attributes that route the message (type, request ID, source
+ * OID) precede the bodies in every message this gateway builds, so a {@link HeaderFilter HeaderFilter} can reject
+ * the message before its body - possibly large - gets read at all.
  *    
  * @author sulfo
  *
@@ -41,6 +52,26 @@ public class MessageResolver {
 	 */
 	private static final int REQUEST_ID_ARRAY_SIZE = 6000;
 	
+	
+	/**
+	 * Decides whether or not a message is worth reading further, based on its header. Called once per message, before
+	 * the first attribute that is not a part of the header is read. 
+	 */
+	public interface HeaderFilter {
+		
+		/**
+		 * Decides whether or not the message should be read further.
+		 * 
+		 * @param messageType Type of the message.
+		 * @param requestId Request ID, or 0 if it was not among the attributes preceding the body (events carry it 
+		 * after the body).
+		 * @param sourceOid Object ID of the source, or null if the message does not have any.
+		 * @return True if the message is to be read, false if it is to be discarded.
+		 */
+		public boolean accept(int messageType, int requestId, String sourceOid);
+	}
+	
+	
 	/* === FIELDS === */
 	
 	/**
@@ -59,6 +90,11 @@ public class MessageResolver {
 	 */
 	private Queue<Integer> requestIds;
 	
+	/**
+	 * Factory for JSON builders.
+	 */
+	private JsonBuilderFactory jsonBuilderFactory;
+	
 	/* === PUBLIC METHODS === */
 	
 	/**
@@ -72,6 +108,8 @@ public class MessageResolver {
 		this.logger = logger;
 		
 		requestIds = new LinkedList<Integer>();
+		
+		jsonBuilderFactory = JsonCodec.getBuilderFactory();
 	}
 	
 	
@@ -85,7 +123,21 @@ public class MessageResolver {
 	 */
 	public NetworkMessage resolveNetworkMessage(String message){
 		
-		JsonObject json = readJsonObject(message);
+		return resolveNetworkMessage(message, null);
+	}
+	
+	
+	/**
+	 * Resolves the message that arrived from the network, unless the filter rejects it based on its header. 
+	 *  
+	 * @param message Message body.
+	 * @param filter Filter deciding on the header, or null to read every message.
+	 * @return Some extension of a {@link NetworkMessage NetworkMessage} class, or null if the received message did not
+	 * contain a valid or suitable JSON, or was rejected by the filter.
+	 */
+	public NetworkMessage resolveNetworkMessage(String message, HeaderFilter filter){
+		
+		JsonObject json = readNetworkMessage(message, filter);
 		
 		if (json == null){
 			
@@ -98,6 +150,8 @@ public class MessageResolver {
 			return null;
 		}
 		
+		NetworkMessage networkMessage;
+		
 		// ok seems legit
 		switch (json.getInt(NetworkMessage.ATTR_MESSAGETYPE)){
 		
@@ -107,7 +161,8 @@ public class MessageResolver {
 			//	return null;
 			//}
 			
-			return new NetworkMessageRequest(json, config, logger);
+			networkMessage = new NetworkMessageRequest(json, config, logger);
+			break;
 			
 		case NetworkMessageResponse.MESSAGE_TYPE:
 			// check for message duplication
@@ -115,18 +170,25 @@ public class MessageResolver {
 			//	return null;
 			//}
 			
-			return new NetworkMessageResponse(json, config, logger);
+			networkMessage = new NetworkMessageResponse(json, config, logger);
+			break;
 			
 		case NetworkMessageEvent.MESSAGE_TYPE:
 			
 			// no duplication checking for events! there is no request ID
 			
-			return new NetworkMessageEvent(json, config, logger);
+			networkMessage = new NetworkMessageEvent(json, config, logger);
+			break;
 			
 		default:
 				
 			return null;
 		}
+		
+		// keep the string, so the message doesn't need to be serialised again for forwarding or counting
+		networkMessage.setMessageString(message);
+		
+		return networkMessage;
 	}
 	
 	
@@ -143,7 +205,7 @@ public class MessageResolver {
 		}
 		
 		// make a JSON from the incoming String - any string that is not a valid JSON will throw exception
-		JsonReader jsonReader = Json.createReader(new StringReader(jsonString));
+		JsonReader jsonReader = JsonCodec.createReader(jsonString);
 		
 		JsonObject json;
 		
@@ -164,6 +226,176 @@ public class MessageResolver {
 	
 	/* === PRIVATE METHODS === */
 	
+	/**
+	 * Reads the message as a stream of attributes. Attributes of the header are taken note of and as soon as the 
+	 * first other attribute comes, the header is given to the filter. A rejected message is not read any further.
+	 * 
+	 * @param message Message body.
+	 * @param filter Filter deciding on the header, or null.
+	 * @return JsonObject if the message is a JSON object and was not rejected, null otherwise.
+	 */
+	private JsonObject readNetworkMessage(String message, HeaderFilter filter) {
+		
+		if (message == null) {
+			return null;
+		}
+		
+		JsonParser parser = JsonCodec.createParser(new StringReader(message));
+		
+		try {
+			
+			if (parser.next() != Event.START_OBJECT) {
+				return null;
+			}
+			
+			JsonObjectBuilder builder = jsonBuilderFactory.createObjectBuilder();
+			
+			boolean filtered = filter == null;
+			boolean typeKnown = false;
+			int messageType = 0;
+			int requestId = 0;
+			String sourceOid = null;
+			
+			Event event;
+			while ((event = parser.next()) != Event.END_OBJECT) {
+				
+				String key = parser.getString();
+				
+				// the header is complete, let the filter decide before reading anything else
+				if (!filtered && typeKnown && sourceOid != null && !isHeaderAttribute(key)) {
+					if (!filter.accept(messageType, requestId, sourceOid)) {
+						return null;
+					}
+					filtered = true;
+				}
+				
+				event = parser.next();
+				
+				if (event == Event.VALUE_NUMBER && parser.isIntegralNumber()) {
+					if (key.equals(NetworkMessage.ATTR_MESSAGETYPE)) {
+						messageType = parser.getInt();
+						typeKnown = true;
+					} else if (key.equals(NetworkMessage.ATTR_REQUESTID)) {
+						requestId = parser.getInt();
+					}
+				} else if (event == Event.VALUE_STRING && key.equals(NetworkMessage.ATTR_SOURCEOID)) {
+					sourceOid = parser.getString();
+				}
+				
+				addValue(parser, event, builder, null, key);
+			}
+			
+			// the message had nothing but the header (or it was in unusual order)
+			if (!filtered && !filter.accept(messageType, requestId, sourceOid)) {
+				return null;
+			}
+			
+			return builder.build();
+			
+		} catch (JsonException | NoSuchElementException | IllegalStateException e) {
+			logger.severe("Exception during reading JSON object: " 
+					+ e.getMessage());
+			
+			return null;
+		} finally {
+			parser.close();
+		}
+	}
+	
+	
+	/**
+	 * Adds the value the parser is at into an object builder (under a key) or an array builder.
+	 * 
+	 * @param parser Parser positioned at the value.
+	 * @param event The event of the value.
+	 * @param objectBuilder Builder of the enclosing object, or null.
+	 * @param arrayBuilder Builder of the enclosing array, used when objectBuilder is null.
+	 * @param key Key of the value in the enclosing object.
+	 */
+	private void addValue(JsonParser parser, Event event, JsonObjectBuilder objectBuilder, 
+			JsonArrayBuilder arrayBuilder, String key) {
+		
+		switch (event) {
+		
+		case VALUE_STRING:
+			if (objectBuilder != null) {
+				objectBuilder.add(key, parser.getString());
+			} else {
+				arrayBuilder.add(parser.getString());
+			}
+			break;
+			
+		case VALUE_NUMBER:
+			if (objectBuilder != null) {
+				objectBuilder.add(key, parser.getBigDecimal());
+			} else {
+				arrayBuilder.add(parser.getBigDecimal());
+			}
+			break;
+			
+		case VALUE_TRUE:
+		case VALUE_FALSE:
+			if (objectBuilder != null) {
+				objectBuilder.add(key, event == Event.VALUE_TRUE);
+			} else {
+				arrayBuilder.add(event == Event.VALUE_TRUE);
+			}
+			break;
+			
+		case VALUE_NULL:
+			if (objectBuilder != null) {
+				objectBuilder.addNull(key);
+			} else {
+				arrayBuilder.addNull();
+			}
+			break;
+			
+		case START_OBJECT:
+			JsonObjectBuilder nestedObject = jsonBuilderFactory.createObjectBuilder();
+			Event nestedEvent;
+			while ((nestedEvent = parser.next()) != Event.END_OBJECT) {
+				String nestedKey = parser.getString();
+				addValue(parser, parser.next(), nestedObject, null, nestedKey);
+			}
+			if (objectBuilder != null) {
+				objectBuilder.add(key, nestedObject);
+			} else {
+				arrayBuilder.add(nestedObject);
+			}
+			break;
+			
+		case START_ARRAY:
+			JsonArrayBuilder nestedArray = jsonBuilderFactory.createArrayBuilder();
+			while ((nestedEvent = parser.next()) != Event.END_ARRAY) {
+				addValue(parser, nestedEvent, null, nestedArray, null);
+			}
+			if (objectBuilder != null) {
+				objectBuilder.add(key, nestedArray);
+			} else {
+				arrayBuilder.add(nestedArray);
+			}
+			break;
+			
+		default:
+			throw new IllegalStateException("Unexpected " + event);
+		}
+	}
+	
+	
+	/**
+	 * Whether or not the attribute is a part of the header.
+	 * 
+	 * @param key Name of the attribute.
+	 * @return True if it is.
+	 */
+	private boolean isHeaderAttribute(String key) {
+		return key.equals(NetworkMessage.ATTR_MESSAGETYPE) 
+				|| key.equals(NetworkMessage.ATTR_REQUESTID)
+				|| key.equals(NetworkMessage.ATTR_SOURCEOID)
+				|| key.equals(NetworkMessage.ATTR_DESTINATIONOID);
+	}
+	
+
 	/**
 	 * Duplicated messages were discovered when using XMPP engine, however they are not necessarily bound solely to 
 	 * XMPP and can possibly manifest themselves in other engines as well. The probable cause seems to be lost 
@@ -172,10 +404,13 @@ public class MessageResolver {
 	 * {@link #REQUEST_ID_ARRAY_SIZE REQUEST_ID_ARRAY_SIZE} constant) and this method serves the purpose of verifying
 	 * whether or not a message with such request ID has already been recently received. 
 	 *   
+	 * Synchronised, messages for an object may be resolved by several threads at once (e.g. the listeners of its 
+	 * XMPP connections).
+	 *   
 	 * @param requestId The request ID to be checked for duplicates.
 	 * @return True if there already was a message with such request ID received recently, false otherwise.
 	 */
-	private boolean checkForDuplicates(int requestId) {
+	private synchronized boolean checkForDuplicates(int requestId) {
 		
 		// if there is no such request ID existing in the queue, add it and watch for overflow
 		if (!requestIds.contains(requestId)) {
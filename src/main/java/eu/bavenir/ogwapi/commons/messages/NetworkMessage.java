@@ -76,6 +76,12 @@ public class NetworkMessage {
 	 */
 	public static final String ATTR_DESTINATIONOID = "destinationOid";
 	
+	/**
+	 * Name of the attribute with the {@link TraceContext trace} of the request. It is optional, older gateways 
+	 * neither send nor read it. 
+	 */
+	public static final String ATTR_TRACE = "trace";
+	
 	/**
 	 * Number of seconds to consider request message as no longer relevant. 
 	 * After a request is sent from point A to point B, point A waits for 
@@ -161,6 +167,29 @@ public class NetworkMessage {
 	 *  	first event, if the same message object is used (which should not happen). 
 	 */
 	protected JsonObject jsonRepresentation;
+	
+	/**
+	 * The message as it arrived from the network, or as it was built by {@link #buildMessageString() build} method.
+	 * Kept so the message is serialised only once, no matter how many times it is sent or counted. Any setter
+	 * discards it.
+	 */
+	protected String messageString;
+	
+	/**
+	 * Trace of the request this message belongs to, null if it is not traced. 
+	 */
+	protected TraceContext trace;
+	
+	/**
+	 * Size of the message in bytes, -1 if not counted yet.
+	 */
+	private int messageSize;
+	
+	/**
+	 * The message in the {@link BinaryEnvelopeCodec binary envelope}, kept for the same reason as the 
+	 * {@link #messageString messageString}.
+	 */
+	private String binaryEnvelope;
 
 	
 	/* === PUBLIC METHODS === */
@@ -183,6 +212,11 @@ public class NetworkMessage {
 		sourceOid = null;
 		destinationOid = null;
 		jsonRepresentation = null;
+		trace = null;
+		
+		messageString = null;
+		messageSize = -1;
+		binaryEnvelope = null;
 		
 		this.config = config;
 		this.logger = logger;
@@ -209,6 +243,7 @@ public class NetworkMessage {
 	 */
 	public void setRequestId(int requestId){
 		this.requestId = requestId;
+		discardMessageString();
 	}
 
 
@@ -229,6 +264,7 @@ public class NetworkMessage {
 	 */
 	public void setDestinationOid(String destinationOid) {
 		this.destinationOid = destinationOid;
+		discardMessageString();
 	}
 
 
@@ -249,6 +285,29 @@ public class NetworkMessage {
 	 */
 	public void setSourceOid(String sourceOid) {
 		this.sourceOid = sourceOid;
+		discardMessageString();
+	}
+
+
+	/**
+	 * Returns the trace of the request this message belongs to.
+	 * 
+	 * @return The trace, or null if the message is not traced.
+	 */
+	public TraceContext getTrace() {
+		return trace;
+	}
+
+
+	/**
+	 * Sets the trace of the request this message belongs to. Stamps recorded into the trace afterwards are not sent,
+	 * unless the message is built again.
+	 * 
+	 * @param trace The trace, or null.
+	 */
+	public void setTrace(TraceContext trace) {
+		this.trace = trace;
+		discardMessageString();
 	}
 
 
@@ -311,6 +370,7 @@ public class NetworkMessage {
 	 */
 	public void setMessageType(int messageType) {
 		this.messageType = messageType;
+		discardMessageString();
 	}
 
 	
@@ -350,6 +410,122 @@ public class NetworkMessage {
 		if (requestId < 0){
 			requestId = requestId * (-1);
 		}
+		
+		discardMessageString();
+	}
+	
+	
+	/**
+	 * Returns a JSON String that is to be sent over the network. Subclasses build it from their fields the first time
+	 * and return the same String afterwards, until a setter is called. A message that arrived from the network returns
+	 * the String it arrived in. 
+	 * 
+	 * NOTE: Changes made to maps returned by getters (attributes, parameters) after the message was built are not 
+	 * reflected, set the whole map instead.
+	 * 
+	 * @return JSON String, or null if this class has nothing to build.
+	 */
+	public String buildMessageString() {
+		return messageString;
+	}
+	
+	
+	/**
+	 * Returns the size of the message in bytes, for monitoring. It is the size of the message as it arrived from the
+	 * network (which can be a {@link BinaryEnvelopeCodec binary envelope}), or the size of its JSON for messages built
+	 * by this gateway. Counted only once.
+	 * 
+	 * @return Size in bytes.
+	 */
+	public int getMessageSize() {
+		
+		if (messageSize < 0) {
+			String string = buildMessageString();
+			messageSize = string == null ? 0 : utf8Length(string);
+		}
+		
+		return messageSize;
+	}
+	
+	
+	/**
+	 * Remembers the String the message arrived in, so it does not have to be built again.
+	 * 
+	 * @param messageString The String as it arrived from the network.
+	 */
+	void setMessageString(String messageString) {
+		this.messageString = messageString;
+		messageSize = -1;
+	}
+	
+	
+	/**
+	 * Sets the size of the message as it arrived from the network, when it did not arrive as JSON.
+	 * 
+	 * @param messageSize Size in bytes.
+	 */
+	void setMessageSize(int messageSize) {
+		this.messageSize = messageSize;
+	}
+	
+	
+	/**
+	 * Returns the message in the binary envelope, if it was already encoded.
+	 * 
+	 * @return The envelope, or null.
+	 */
+	String getBinaryEnvelope() {
+		return binaryEnvelope;
+	}
+	
+	
+	/**
+	 * Remembers the message in the binary envelope.
+	 * 
+	 * @param binaryEnvelope The envelope.
+	 */
+	void setBinaryEnvelope(String binaryEnvelope) {
+		this.binaryEnvelope = binaryEnvelope;
+	}
+	
+	
+	/**
+	 * Counts the bytes of a String in UTF-8, without encoding it.
+	 * 
+	 * @param string The String.
+	 * @return Number of bytes.
+	 */
+	public static int utf8Length(String string) {
+		
+		int length = 0;
+		
+		for (int i = 0; i < string.length(); i++) {
+			char c = string.charAt(i);
+			
+			if (c < 0x80) {
+				length++;
+			} else if (c < 0x800) {
+				length += 2;
+			} else if (Character.isHighSurrogate(c) && i + 1 < string.length() 
+					&& Character.isLowSurrogate(string.charAt(i + 1))) {
+				length += 4;
+				i++;
+			} else {
+				length += 3;
+			}
+		}
+		
+		return length;
+	}
+	
+	
+	/**
+	 * Discards the serialised forms of the message, because one of its fields changed. To be called by setters.
+	 */
+	protected void discardMessageString() {
+		messageString = null;
+		messageSize = -1;
+		binaryEnvelope = null;
 	}
 	
 
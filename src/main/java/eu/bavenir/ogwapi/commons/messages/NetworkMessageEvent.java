@@ -6,7 +6,6 @@ import java.util.Set;
 import java.util.Map.Entry;
 import java.util.logging.Logger;
 
-import javax.json.Json;
 import javax.json.JsonBuilderFactory;
 import javax.json.JsonObject;
 import javax.json.JsonObjectBuilder;
@@ -14,6 +13,8 @@ import javax.json.JsonValue;
 
 import org.apache.commons.configuration2.XMLConfiguration;
 
+import eu.bavenir.ogwapi.commons.JsonCodec;
+
 /*
  * STRUCTURE:
  * - constants
@@ -161,6 +162,7 @@ public class NetworkMessageEvent extends NetworkMessage{
 	 */
 	public void setEventId(String eventId) {
 		this.eventId = eventId;
+		discardMessageString();
 	}
 
 
@@ -181,6 +183,7 @@ public class NetworkMessageEvent extends NetworkMessage{
 	 */
 	public void setEventBody(String eventBody) {
 		this.eventBody = eventBody;
+		discardMessageString();
 	}
 
 	
@@ -201,6 +204,7 @@ public class NetworkMessageEvent extends NetworkMessage{
 	 */
 	public void setParameters(Map<String, String> parameters) {
 		this.parameters = parameters;
+		discardMessageString();
 	}	
 	
 	
@@ -208,14 +212,19 @@ public class NetworkMessageEvent extends NetworkMessage{
 	/**
 	 * Returns a JSON String that is to be sent over the network. The String is build from all the attributes that
 	 * were set with getters and setters. Use this when you are finished with setting the attributes, parameters etc.
+	 * The String is built only once and kept until a setter is called (see {@link NetworkMessage#buildMessageString()}).
 	 * 
 	 * @return JSON String that can be sent over the network.
 	 */
+	@Override
 	public String buildMessageString(){
 		
-		buildMessageJson();
+		if (messageString == null) {
+			buildMessageJson();
+			messageString = jsonRepresentation.toString();
+		}
 		
-		return jsonRepresentation.toString();
+		return messageString;
 	}
 	
 	
@@ -230,7 +239,7 @@ public class NetworkMessageEvent extends NetworkMessage{
 	private void buildMessageJson(){
 		
 		// create the factory
-		JsonBuilderFactory jsonBuilderFactory = Json.createBuilderFactory(null);
+		JsonBuilderFactory jsonBuilderFactory = JsonCodec.getBuilderFactory();
 		
 		// build the thing
 		JsonObjectBuilder mainBuilder = jsonBuilderFactory.createObjectBuilder();
@@ -7,7 +7,6 @@ import java.util.Set;
 import java.util.logging.Logger;
 import java.util.Map.Entry;
 
-import javax.json.Json;
 import javax.json.JsonBuilderFactory;
 import javax.json.JsonObject;
 import javax.json.JsonObjectBuilder;
@@ -15,6 +14,8 @@ import javax.json.JsonValue;
 
 import org.apache.commons.configuration2.XMLConfiguration;
 
+import eu.bavenir.ogwapi.commons.JsonCodec;
+
 /*
  * STRUCTURE:
  * - constants
@@ -90,6 +91,12 @@ public class NetworkMessageRequest extends NetworkMessage {
 	 */
 	public static final String ATTR_NOTIFICATION = "nid";
 	
+	/**
+	 * Name of the attribute announcing the encodings the source accepts, as a comma separated list (see 
+	 * {@link AcceptedEncodings AcceptedEncodings}). It is optional, older gateways neither send nor read it. 
+	 */
+	public static final String ATTR_ACCEPTENCODING = "acceptEncoding";
+	
 	/**
 	 * How the property ID is to be marked in the message.
 	 */
@@ -208,6 +215,11 @@ public class NetworkMessageRequest extends NetworkMessage {
 	 */
 	private String requestBody;
 	
+	/**
+	 * Encodings the source accepts, null if it did not say.
+	 */
+	private String acceptEncoding;
+	
 	
 	/* === PUBLIC METHODS === */
 	/**
@@ -270,20 +282,47 @@ public class NetworkMessageRequest extends NetworkMessage {
 	 */
 	public void setRequestBody(String requestBody) {
 		this.requestBody = requestBody;
+		discardMessageString();
+	}
+
+
+	/**
+	 * Returns the encodings the source of the message accepts.
+	 * 
+	 * @return Comma separated encoding names (e.g. {@link PayloadCompression#ENCODING_DEFLATE deflate}), or null.
+	 */
+	public String getAcceptEncoding() {
+		return acceptEncoding;
+	}
+
+
+	/**
+	 * Sets the encodings this gateway accepts in the response.
+	 * 
+	 * @param acceptEncoding Comma separated encoding names, or null.
+	 */
+	public void setAcceptEncoding(String acceptEncoding) {
+		this.acceptEncoding = acceptEncoding;
+		discardMessageString();
 	}
 
 
 	/**
 	 * Returns a JSON String that is to be sent over the network. The String is build from all the fields that
 	 * were set with getters and setters. Use this when you are finished with setting the attributes, parameters etc.
+	 * The String is built only once and kept until a setter is called (see {@link NetworkMessage#buildMessageString()}).
 	 * 
 	 * @return JSON String that can be sent over the network.
 	 */
+	@Override
 	public String buildMessageString(){
 		
-		buildMessageJson();
+		if (messageString == null) {
+			buildMessageJson();
+			messageString = jsonRepresentation.toString();
+		}
 		
-		return jsonRepresentation.toString();
+		return messageString;
 	}
 	
 	
@@ -306,6 +345,7 @@ public class NetworkMessageRequest extends NetworkMessage {
 	 */
 	public void setRequestOperation(byte requestOperation) {
 		this.requestOperation = requestOperation;
+		discardMessageString();
 	}
 	
 	
@@ -346,6 +386,7 @@ public class NetworkMessageRequest extends NetworkMessage {
 	 */
 	public void setParameters(Map<String, String> parameters) {
 		this.parameters = parameters;
+		discardMessageString();
 	}
 	
 	
@@ -356,6 +397,7 @@ public class NetworkMessageRequest extends NetworkMessage {
 	 */
 	public void setAttributes(Map<String, String> attributes) {
 		this.attributes = attributes;
+		discardMessageString();
 	}
 	
 	/**
@@ -366,7 +408,7 @@ public class NetworkMessageRequest extends NetworkMessage {
 	private void buildMessageJson(){
 		
 		// create the factory
-		JsonBuilderFactory jsonBuilderFactory = Json.createBuilderFactory(null);
+		JsonBuilderFactory jsonBuilderFactory = JsonCodec.getBuilderFactory();
 		
 		// turn attributes into json
 		JsonObjectBuilder attributesBuilder = jsonBuilderFactory.createObjectBuilder();
@@ -411,6 +453,14 @@ public class NetworkMessageRequest extends NetworkMessage {
 		mainBuilder.add(ATTR_ATTRIBUTES, attributesBuilder)
 			.add(ATTR_PARAMETERS, parametersBuilder);
 		
+		if (acceptEncoding != null) {
+			mainBuilder.add(ATTR_ACCEPTENCODING, acceptEncoding);
+		}
+		
+		if (trace != null) {
+			mainBuilder.add(ATTR_TRACE, trace.toJson());
+		}
+		
 		jsonRepresentation = mainBuilder.build();
 		
 	}
@@ -474,6 +524,16 @@ public class NetworkMessageRequest extends NetworkMessage {
 				requestBody = json.getString(ATTR_REQUESTBODY);
 			}
 			
+			// optional
+			if (json.containsKey(ATTR_ACCEPTENCODING) && !json.isNull(ATTR_ACCEPTENCODING)) {
+				acceptEncoding = json.getString(ATTR_ACCEPTENCODING);
+			}
+			
+			// optional
+			if (json.containsKey(ATTR_TRACE)) {
+				trace = TraceContext.fromJson(json.get(ATTR_TRACE));
+			}
+			
 		} catch (Exception e) {
 			logger.severe("NetworkMessageRequest: Exception while parsing NetworkMessageRequest: " + e.getMessage());
 			
@@ -556,7 +616,7 @@ public class NetworkMessageRequest extends NetworkMessage {
 	 * @param requestOperation Operation ID of the incoming message. 
 	 * @return True if the operation ID is valid for this gateway, false otherwise.
 	 */
-	private boolean validateRequestOperation(byte requestOperation) {
+	static boolean validateRequestOperation(byte requestOperation) {
 		
 		if (
 				!(requestOperation == NetworkMessageRequest.OPERATION_CANCELTASK
@@ -591,6 +651,7 @@ public class NetworkMessageRequest extends NetworkMessage {
 		attributes = new LinkedHashMap<String, String>();
 		parameters = new LinkedHashMap<String, String>();
 		requestBody = null;
+		acceptEncoding = null;
 	}
 
 	
@@ -1,15 +1,19 @@
 package eu.bavenir.ogwapi.commons.messages;
 
+import java.io.StringWriter;
+import java.io.Writer;
 import java.util.logging.Logger;
 
-import javax.json.Json;
 import javax.json.JsonBuilderFactory;
 import javax.json.JsonObject;
 import javax.json.JsonObjectBuilder;
 import javax.json.JsonValue;
+import javax.json.stream.JsonGenerator;
 
 import org.apache.commons.configuration2.XMLConfiguration;
 
+import eu.bavenir.ogwapi.commons.JsonCodec;
+
 /*
  * STRUCTURE:
  * - constants
@@ -86,6 +90,12 @@ public class NetworkMessageResponse extends NetworkMessage {
 	 * one.
 	 */
 	private static final String ATTR_RESPONSEBODYSUPPLEMENT = "responseBodySupplement";
+	
+	/**
+	 * Rough number of characters taken by the attribute names and values other than the bodies. Used to size the 
+	 * buffer the message is written into.
+	 */
+	private static final int ENVELOPE_SIZE_ESTIMATE = 512;
 
 	
 	/* === FIELDS === */
@@ -202,6 +212,7 @@ public class NetworkMessageResponse extends NetworkMessage {
 	 */
 	public void setError(boolean error) {
 		this.error = error;
+		discardMessageString();
 	}
 	
 
@@ -224,6 +235,7 @@ public class NetworkMessageResponse extends NetworkMessage {
 	 */
 	public void setResponseCode(int responseCode) {
 		this.responseCode = responseCode;
+		discardMessageString();
 	}
 	
 	
@@ -246,6 +258,7 @@ public class NetworkMessageResponse extends NetworkMessage {
 	 */
 	public void setResponseCodeReason(String responseCodeReason){
 		this.responseCodeReason = responseCodeReason;
+		discardMessageString();
 	}
 
 
@@ -266,6 +279,7 @@ public class NetworkMessageResponse extends NetworkMessage {
 	 */
 	public void setContentType(String contentType) {
 		this.contentType = contentType;
+		discardMessageString();
 	}
 
 
@@ -286,6 +300,7 @@ public class NetworkMessageResponse extends NetworkMessage {
 	 */
 	public void setResponseBody(String responseBody) {
 		this.responseBody = responseBody;
+		discardMessageString();
 	}
 	
 	
@@ -306,18 +321,78 @@ public class NetworkMessageResponse extends NetworkMessage {
 	 */
 	public void setResponseBodySupplement(String responseBodySupplement) {
 		this.responseBodySupplement = responseBodySupplement;
+		discardMessageString();
 	}
 	
 	
 	/**
 	 * Returns a JSON String that is to be sent over the network. The String is build from all the attributes that
 	 * were set with getters and setters. Use this when you are finished with setting the attributes, parameters etc.
+	 * The String is built only once and kept until a setter is called (see {@link NetworkMessage#buildMessageString()}).
+	 * 
+	 * The message is written directly into a buffer sized after the bodies, without building the JSON object first.
+	 * A large response body is still copied twice - escaped into the buffer and with the buffer into the String.
 	 * 
 	 * @return JSON String that can be sent over the network.
 	 */
+	@Override
 	public String buildMessageString(){
-		buildMessageJson();
-		return jsonRepresentation.toString();
+		
+		if (messageString != null) {
+			return messageString;
+		}
+		
+		int expectedSize = ENVELOPE_SIZE_ESTIMATE;
+		
+		if (responseBody != null) {
+			expectedSize += responseBody.length();
+		}
+		
+		if (responseBodySupplement != null) {
+			expectedSize += responseBodySupplement.length();
+		}
+		
+		StringWriter writer = new StringWriter(expectedSize);
+		writeMessage(writer);
+		
+		messageString = writer.toString();
+		
+		return messageString;
+	}
+	
+	
+	/**
+	 * Writes the JSON that is to be sent over the network into provided writer, attribute by attribute. The writer
+	 * is closed afterwards.
+	 * 
+	 * @param writer Writer to write the message into.
+	 */
+	public void writeMessage(Writer writer) {
+		
+		JsonGenerator generator = JsonCodec.createGenerator(writer);
+		
+		generator.writeStartObject();
+		
+		generator.write(ATTR_MESSAGETYPE, messageType);
+		generator.write(ATTR_REQUESTID, requestId);
+		
+		writeNullable(generator, ATTR_SOURCEOID, sourceOid);
+		writeNullable(generator, ATTR_DESTINATIONOID, destinationOid);
+		
+		generator.write(ATTR_ERROR, error);
+		generator.write(ATTR_RESPONSECODE, responseCode);
+		
+		writeNullable(generator, ATTR_RESPONSECODEREASON, responseCodeReason);
+		writeNullable(generator, ATTR_CONTENTTYPE, contentType);
+		writeNullable(generator, ATTR_RESPONSEBODY, responseBody);
+		writeNullable(generator, ATTR_RESPONSEBODYSUPPLEMENT, responseBodySupplement);
+		
+		if (trace != null) {
+			generator.write(ATTR_TRACE, trace.toJson());
+		}
+		
+		generator.writeEnd();
+		generator.close();
 	}
 	
 
@@ -328,6 +403,10 @@ public class NetworkMessageResponse extends NetworkMessage {
 	 */
 	public JsonObject getJsonRepresentation() {
 		
+		if (jsonRepresentation == null) {
+			buildMessageJson();
+		}
+		
 		return jsonRepresentation;
 	}
 	
@@ -389,6 +468,11 @@ public class NetworkMessageResponse extends NetworkMessage {
 				responseBodySupplement = json.getString(ATTR_RESPONSEBODYSUPPLEMENT);
 			}
 			
+			// optional
+			if (json.containsKey(ATTR_TRACE)) {
+				trace = TraceContext.fromJson(json.get(ATTR_TRACE));
+			}
+			
 		} catch (Exception e) {
 			logger.severe("NetworkMessageResponse: Exception while parsing NetworkMessageResponse: " + e.getMessage());
 			
@@ -413,18 +497,13 @@ public class NetworkMessageResponse extends NetworkMessage {
 	 */
 	private void buildMessageJson(){
 		// create the factory
-		JsonBuilderFactory jsonBuilderFactory = Json.createBuilderFactory(null);
+		JsonBuilderFactory jsonBuilderFactory = JsonCodec.getBuilderFactory();
 		
 		// build the thing
 		JsonObjectBuilder mainBuilder = jsonBuilderFactory.createObjectBuilder();
 		
 		mainBuilder.add(ATTR_MESSAGETYPE, messageType);
 		mainBuilder.add(ATTR_REQUESTID, requestId);
-		mainBuilder.add(ATTR_SOURCEOID, sourceOid);
-		mainBuilder.add(ATTR_DESTINATIONOID, destinationOid);
-		mainBuilder.add(ATTR_ERROR, error);
-		mainBuilder.add(ATTR_RESPONSECODE, responseCode);
-		
 		
 		if (sourceOid == null){
 			mainBuilder.addNull(ATTR_SOURCEOID);
@@ -438,6 +517,9 @@ public class NetworkMessageResponse extends NetworkMessage {
 			mainBuilder.add(ATTR_DESTINATIONOID, destinationOid);
 		}
 		
+		mainBuilder.add(ATTR_ERROR, error);
+		mainBuilder.add(ATTR_RESPONSECODE, responseCode);
+		
 		if (responseCodeReason == null){
 			mainBuilder.addNull(ATTR_RESPONSECODEREASON);
 		} else {
@@ -461,12 +543,32 @@ public class NetworkMessageResponse extends NetworkMessage {
 		} else {
 			mainBuilder.add(ATTR_RESPONSEBODYSUPPLEMENT, responseBodySupplement);
 		}
+		
+		if (trace != null) {
+			mainBuilder.add(ATTR_TRACE, trace.toJson());
+		}
 				
 		// build the thing
 		jsonRepresentation = mainBuilder.build(); 
 	}
 	
 	
+	/**
+	 * Writes a string attribute, or JSON null if the value is not set.
+	 * 
+	 * @param generator Generator to write into.
+	 * @param name Name of the attribute.
+	 * @param value Value of the attribute.
+	 */
+	private void writeNullable(JsonGenerator generator, String name, String value) {
+		if (value == null) {
+			generator.writeNull(name);
+		} else {
+			generator.write(name, value);
+		}
+	}
+	
+	
 	/**
 	 * Initialises fields.
 	 */
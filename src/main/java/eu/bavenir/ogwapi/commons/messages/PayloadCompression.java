@@ -0,0 +1,299 @@
+package eu.bavenir.ogwapi.commons.messages;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.logging.Logger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.apache.commons.configuration2.XMLConfiguration;
+
+/*
+ * STRUCTURE:
+ * - constants
+ * - fields
+ * - public methods
+ * - private methods
+ */
+
+/**
+ * Transparent compression of network messages. Messages longer than a threshold are deflated and, since the engines
+ * transport text, base64 encoded with a short prefix that can never start a JSON:
+ *
+ *   ~deflate:eJzVkk1v...
+ *
+ * Older gateways would not understand such a message, so it is only sent to objects that announced they accept it.
+ * Every {@link NetworkMessageRequest request} of a gateway with compression enabled carries the
+ * {@link NetworkMessageRequest#ATTR_ACCEPTENCODING acceptEncoding} attribute, which older gateways ignore. A gateway
+ * that receives it (or a compressed message) remembers the source object for a while (see
+ * {@link AcceptedEncodings AcceptedEncodings}), which covers the responses - the usual large messages (thing
+ * descriptions, property values) - as well as any later traffic to that object.
+ *
+ * Messages that are routed locally are never compressed, neither are messages where compression would not save
+ * anything.
+ *
+ * Incoming messages are inflated up to twice the maximum size of an Agent response (see
+ * {@link #CONFIG_PARAM_MAXRESPONSESIZE CONFIG_PARAM_MAXRESPONSESIZE}) - the largest message a gateway sends carries
+ * such a response as a JSON string, which grows a little with the escaping. Anything larger is not a message a
+ * gateway would send and is discarded before it takes more memory.
+ *
+ * @author sulfo
+ *
+ */
+public class PayloadCompression {
+
+	/* === CONSTANTS === */
+
+	/**
+	 * Name of the configuration parameter for the size of a message (in characters) above which the message is
+	 * compressed.
+	 */
+	private static final String CONFIG_PARAM_COMPRESSIONTHRESHOLD = "general.compressionThreshold";
+
+	/**
+	 * Default value of {@link #CONFIG_PARAM_COMPRESSIONTHRESHOLD CONFIG_PARAM_COMPRESSIONTHRESHOLD} configuration
+	 * parameter. This value is taken into account when no suitable value is found in the configuration file.
+	 */
+	private static final int CONFIG_DEF_COMPRESSIONTHRESHOLD = 2048;
+
+	/**
+	 * Name of the configuration parameter for the maximum size of an Agent response, in bytes.
+	 */
+	private static final String CONFIG_PARAM_MAXRESPONSESIZE = "connector.restAgentConnector.maxResponseSize";
+
+	/**
+	 * Default value of {@link #CONFIG_PARAM_MAXRESPONSESIZE CONFIG_PARAM_MAXRESPONSESIZE} configuration parameter.
+	 * This value is taken into account when no suitable value is found in the configuration file.
+	 */
+	private static final int CONFIG_DEF_MAXRESPONSESIZE = 10485760;
+
+	/**
+	 * Name of the encoding, as announced to other gateways.
+	 */
+	public static final String ENCODING_DEFLATE = "deflate";
+
+	/**
+	 * Prefix of a compressed message.
+	 */
+	private static final String PREFIX_DEFLATE = "~" + ENCODING_DEFLATE + ":";
+
+	/**
+	 * Incoming messages are never inflated to more bytes than this, even when the size of Agent responses is not
+	 * limited.
+	 */
+	private static final int MAX_INFLATED_SIZE = 64 * 1024 * 1024;
+
+
+	/* === FIELDS === */
+
+	/**
+	 * Deflater for each thread, they are costly to create.
+	 */
+	private static ThreadLocal<Deflater> deflaters = ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED));
+
+	/**
+	 * Inflater for each thread, they are costly to create.
+	 */
+	private static ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(() -> new Inflater());
+
+	/**
+	 * Logger of the OGWAPI.
+	 */
+	private Logger logger;
+
+	/**
+	 * Messages longer than this are compressed. Zero or less disables compression.
+	 */
+	private int threshold;
+
+	/**
+	 * Incoming messages that would inflate to more bytes than this are discarded.
+	 */
+	private int maxInflatedSize;
+
+
+	/* === PUBLIC METHODS === */
+
+	/**
+	 * Constructor.
+	 *
+	 * @param config Configuration of the OGWAPI.
+	 * @param logger Logger of the OGWAPI.
+	 */
+	public PayloadCompression(XMLConfiguration config, Logger logger) {
+		this.logger = logger;
+
+		threshold = config.getInt(CONFIG_PARAM_COMPRESSIONTHRESHOLD, CONFIG_DEF_COMPRESSIONTHRESHOLD);
+
+		// zero or less means the Agent responses are not limited
+		long maxResponseSize = config.getLong(CONFIG_PARAM_MAXRESPONSESIZE, CONFIG_DEF_MAXRESPONSESIZE);
+		if (maxResponseSize > 0 && maxResponseSize * 2 < MAX_INFLATED_SIZE) {
+			maxInflatedSize = (int) (maxResponseSize * 2);
+		} else {
+			maxInflatedSize = MAX_INFLATED_SIZE;
+		}
+	}
+
+
+	/**
+	 * Whether or not this gateway compresses messages (and therefore accepts compressed messages).
+	 *
+	 * @return True if enabled.
+	 */
+	public boolean isEnabled() {
+		return threshold > 0;
+	}
+
+
+	/**
+	 * Compresses a message that is to be sent to the network, if it is worth it and the destination accepts it.
+	 *
+	 * @param destinationOid Object ID of the destination.
+	 * @param message Message to be sent.
+	 * @return Compressed message, or the original one.
+	 */
+	public String compress(String destinationOid, String message) {
+
+		if (!isEnabled() || message == null || message.length() <= threshold
+				|| !AcceptedEncodings.accepts(destinationOid, ENCODING_DEFLATE)) {
+			return message;
+		}
+
+		byte[] output = deflate(message.getBytes(StandardCharsets.UTF_8));
+
+		// base64 adds a third, it does not pay off for messages that don't compress well
+		if ((output.length + 2) / 3 * 4 + PREFIX_DEFLATE.length() >= message.length()) {
+			return message;
+		}
+
+		return PREFIX_DEFLATE + Base64.getEncoder().encodeToString(output);
+	}
+
+
+	/**
+	 * Whether or not the string that arrived from the network is a compressed message.
+	 *
+	 * @param message Message as it arrived.
+	 * @return True if it is.
+	 */
+	public boolean isCompressed(String message) {
+		return message != null && message.startsWith(PREFIX_DEFLATE);
+	}
+
+
+	/**
+	 * Decompresses a message that arrived from the network. Messages that are not compressed are returned as they are.
+	 * Receiving a compressed message also means its source accepts them.
+	 *
+	 * @param sourceOid Object ID of the source.
+	 * @param message Message as it arrived.
+	 * @return Decompressed message, or null if it was compressed but could not be decompressed.
+	 */
+	public String decompress(String sourceOid, String message) {
+
+		if (message == null || !message.startsWith(PREFIX_DEFLATE)) {
+			return message;
+		}
+
+		AcceptedEncodings.record(sourceOid, ENCODING_DEFLATE);
+
+		byte[] input;
+		try {
+			input = Base64.getDecoder().decode(message.substring(PREFIX_DEFLATE.length()));
+		} catch (IllegalArgumentException e) {
+			logger.warning("Compressed message from " + sourceOid + " is not properly encoded.");
+			return null;
+		}
+
+		byte[] output = inflate(sourceOid, input);
+
+		if (output == null) {
+			return null;
+		}
+
+		return new String(output, StandardCharsets.UTF_8);
+	}
+
+
+	/**
+	 * Whether or not data of given length should be compressed.
+	 *
+	 * @param length Length of the data.
+	 * @return True if compression is enabled and the data is longer than the threshold.
+	 */
+	boolean isWorthCompressing(int length) {
+		return isEnabled() && length > threshold;
+	}
+
+
+	/**
+	 * Deflates an array of bytes.
+	 *
+	 * @param input Data to be deflated.
+	 * @return Deflated data.
+	 */
+	byte[] deflate(byte[] input) {
+
+		Deflater deflater = deflaters.get();
+		deflater.reset();
+		deflater.setInput(input);
+		deflater.finish();
+
+		ByteArrayOutputStream output = new ByteArrayOutputStream(input.length / 4 + 64);
+		byte[] buffer = new byte[8192];
+
+		while (!deflater.finished()) {
+			int length = deflater.deflate(buffer);
+			output.write(buffer, 0, length);
+		}
+
+		return output.toByteArray();
+	}
+
+
+	/**
+	 * Inflates an array of bytes that arrived from the network.
+	 *
+	 * @param sourceOid Object ID of the source, for logging.
+	 * @param input Deflated data.
+	 * @return Inflated data, or null if they could not be inflated.
+	 */
+	byte[] inflate(String sourceOid, byte[] input) {
+
+		Inflater inflater = inflaters.get();
+		inflater.reset();
+		inflater.setInput(input);
+
+		ByteArrayOutputStream output = new ByteArrayOutputStream(Math.min(input.length * 4, maxInflatedSize));
+		byte[] buffer = new byte[8192];
+
+		try {
+			while (!inflater.finished()) {
+				int length = inflater.inflate(buffer);
+
+				if (length == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					logger.warning("Compressed message from " + sourceOid + " is truncated.");
+					return null;
+				}
+
+				output.write(buffer, 0, length);
+
+				if (output.size() > maxInflatedSize) {
+					logger.warning("Compressed message from " + sourceOid + " is too large, discarding.");
+					return null;
+				}
+			}
+		} catch (DataFormatException e) {
+			logger.warning("Compressed message from " + sourceOid + " is corrupted. Message: " + e.getMessage());
+			return null;
+		}
+
+		return output.toByteArray();
+	}
+
+
+	/* === PRIVATE METHODS === */
+
+}
@@ -1,12 +1,13 @@
 package eu.bavenir.ogwapi.commons.messages;
 
-import javax.json.Json;
 import javax.json.JsonArray;
 import javax.json.JsonArrayBuilder;
 import javax.json.JsonBuilderFactory;
 import javax.json.JsonObject;
 import javax.json.JsonObjectBuilder;
 
+import eu.bavenir.ogwapi.commons.JsonCodec;
+
 
 /*
  * STRUCTURE:
@@ -75,6 +76,11 @@ public class StatusMessage {
 	 */
 	public static final String ATTR_MESSAGE = "message";
 	
+	/**
+	 * Name of the optional attribute with the {@link TraceContext trace} of the request.
+	 */
+	public static final String ATTR_TRACE = "trace";
+	
 	/**
 	 * Attribute name for the value.
 	 */
@@ -134,6 +140,11 @@ public class StatusMessage {
 	 */
 	private JsonObjectBuilder innerBuilder;
 	
+	/**
+	 * Trace of the request with its breakdown, null if it is not to be returned.
+	 */
+	private JsonObject trace;
+	
 	
 	/* === PUBLIC METHODS === */
 		
@@ -173,7 +184,7 @@ public class StatusMessage {
 		this.contentType = contentType;
 		
 		// create the factory
-		jsonBuilderFactory = Json.createBuilderFactory(null);
+		jsonBuilderFactory = JsonCodec.getBuilderFactory();
 		arrayBuilder = jsonBuilderFactory.createArrayBuilder();
 	}
 	
@@ -315,6 +326,17 @@ public class StatusMessage {
 	}
 	
 
+	/**
+	 * Sets the trace of the request, to be returned next to the message array (see 
+	 * {@link TraceContext#toBreakdownJson() toBreakdownJson}).
+	 * 
+	 * @param trace JSON of the trace, or null.
+	 */
+	public void setTrace(JsonObject trace) {
+		this.trace = trace;
+	}
+	
+
 	/**
 	 * Builds the status message JSON. This method can be called repeatedly but the returned value will always reflect
 	 * the internal state of the StatusMessage when the method was called for the first time, which means no subsequent
@@ -343,6 +365,10 @@ public class StatusMessage {
 		}
 		
 		mainBuilder.add(ATTR_MESSAGE, arrayBuilder);
+		
+		if (trace != null) {
+			mainBuilder.add(ATTR_TRACE, trace);
+		}
 			
 		return mainBuilder.build();
 		
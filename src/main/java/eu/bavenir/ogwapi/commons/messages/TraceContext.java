@@ -0,0 +1,479 @@
+package eu.bavenir.ogwapi.commons.messages;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+import javax.json.JsonNumber;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+import javax.json.JsonValue;
+
+import eu.bavenir.ogwapi.commons.JsonCodec;
+
+/*
+ * STRUCTURE:
+ * - constants
+ * - fields
+ * - public methods
+ * - private methods
+ */
+
+/**
+ * Trace of a request sent over the network - a trace ID and time stamps of the stages the request went through, on
+ * both gateways:
+ *
+ *   restEntry        the call arrived at the REST API of the requesting gateway,
+ *   send             the request is being sent,
+ *   receive          the request arrived at the remote gateway,
+ *   agentStart       the remote gateway starts handling it (calling its Agent),
+ *   agentEnd         ... and is done with it,
+ *   responseSend     the response is being sent,
+ *   responseReceive  the response arrived back at the requesting gateway,
+ *   responseMatch    the response was matched to the waiting request.
+ *
+ * The trace travels in the {@link NetworkMessage NetworkMessage} envelope, the remote gateway adds its stamps and
+ * returns it with the response. The requesting gateway can then tell where the time went, see
+ * {@link #getBreakdown() getBreakdown}. The gateways' clocks are not assumed to be synchronised - only stamps taken on
+ * the same gateway are ever subtracted.
+ *
+ * Stamps are UNIX time in milliseconds, 0 marks a stage that was not recorded (e.g. by an older gateway, that neither
+ * reads nor returns the trace).
+ *
+ * @author sulfo
+ *
+ */
+public class TraceContext {
+
+	/* === CONSTANTS === */
+
+	/**
+	 * Name of the configuration parameter for tracing the requests sent over the network.
+	 */
+	public static final String CONFIG_PARAM_TRACING = "general.tracing";
+
+	/**
+	 * Default value of {@link #CONFIG_PARAM_TRACING CONFIG_PARAM_TRACING} configuration parameter. This value is taken
+	 * into account when no suitable value is found in the configuration file.
+	 */
+	public static final boolean CONFIG_DEF_TRACING = true;
+
+	/**
+	 * Name of the configuration parameter for returning the trace of a request in its status message.
+	 */
+	public static final String CONFIG_PARAM_TRACEBREAKDOWN = "general.traceBreakdown";
+
+	/**
+	 * Default value of {@link #CONFIG_PARAM_TRACEBREAKDOWN CONFIG_PARAM_TRACEBREAKDOWN} configuration parameter. This
+	 * value is taken into account when no suitable value is found in the configuration file.
+	 */
+	public static final boolean CONFIG_DEF_TRACEBREAKDOWN = false;
+
+	/**
+	 * The call arrived at the REST API.
+	 */
+	public static final int STAGE_RESTENTRY = 0;
+
+	/**
+	 * The request is being sent.
+	 */
+	public static final int STAGE_SEND = 1;
+
+	/**
+	 * The request arrived at the remote gateway.
+	 */
+	public static final int STAGE_RECEIVE = 2;
+
+	/**
+	 * The remote gateway starts handling the request.
+	 */
+	public static final int STAGE_AGENTSTART = 3;
+
+	/**
+	 * The remote gateway is done handling the request.
+	 */
+	public static final int STAGE_AGENTEND = 4;
+
+	/**
+	 * The response is being sent.
+	 */
+	public static final int STAGE_RESPONSESEND = 5;
+
+	/**
+	 * The response arrived back.
+	 */
+	public static final int STAGE_RESPONSERECEIVE = 6;
+
+	/**
+	 * The response was matched to the waiting request.
+	 */
+	public static final int STAGE_RESPONSEMATCH = 7;
+
+	/**
+	 * Names of the stages in JSON, by their number.
+	 */
+	private static final String[] STAGE_NAMES = { "restEntry", "send", "receive", "agentStart", "agentEnd",
+			"responseSend", "responseReceive", "responseMatch" };
+
+	/**
+	 * Number of stages.
+	 */
+	public static final int STAGES = STAGE_NAMES.length;
+
+	/**
+	 * Name of the trace ID attribute.
+	 */
+	private static final String ATTR_TRACEID = "traceId";
+
+	/**
+	 * Name of the attribute with the stamps.
+	 */
+	private static final String ATTR_STAGES = "stages";
+
+	/**
+	 * Name of the attribute with the breakdown.
+	 */
+	private static final String ATTR_BREAKDOWN = "breakdown";
+
+	/**
+	 * Part of the breakdown - from the REST API to sending the request.
+	 */
+	public static final String BREAKDOWN_REST = "rest";
+
+	/**
+	 * Part of the breakdown - the request and the response on their way through the network.
+	 */
+	public static final String BREAKDOWN_NETWORK = "network";
+
+	/**
+	 * Part of the breakdown - the request waiting at the remote gateway.
+	 */
+	public static final String BREAKDOWN_REMOTEQUEUE = "remoteQueue";
+
+	/**
+	 * Part of the breakdown - the remote Agent.
+	 */
+	public static final String BREAKDOWN_AGENT = "agent";
+
+	/**
+	 * Part of the breakdown - the remote gateway preparing the response.
+	 */
+	public static final String BREAKDOWN_REMOTERESPONSE = "remoteResponse";
+
+	/**
+	 * Part of the breakdown - the response waiting to be matched to the request.
+	 */
+	public static final String BREAKDOWN_RESPONSEMATCH = "responseMatch";
+
+	/**
+	 * Part of the breakdown - all of it.
+	 */
+	public static final String BREAKDOWN_TOTAL = "total";
+
+
+	/* === FIELDS === */
+
+	/**
+	 * Time the REST call being processed by the current thread arrived.
+	 */
+	private static final ThreadLocal<long[]> restEntry = ThreadLocal.withInitial(() -> new long[1]);
+
+	/**
+	 * ID of the trace, shared by both gateways.
+	 */
+	private String traceId;
+
+	/**
+	 * Stamps by the stage number, 0 if not recorded.
+	 */
+	private long[] stamps;
+
+
+	/* === PUBLIC METHODS === */
+
+	/**
+	 * Constructor of a trace with given ID and no stamps.
+	 *
+	 * @param traceId ID of the trace.
+	 */
+	public TraceContext(String traceId) {
+		this.traceId = traceId;
+
+		stamps = new long[STAGES];
+	}
+
+
+	/**
+	 * Starts a new trace with random ID.
+	 *
+	 * @return The trace.
+	 */
+	public static TraceContext start() {
+		return new TraceContext(String.format("%016x", ThreadLocalRandom.current().nextLong()));
+	}
+
+
+	/**
+	 * Marks the arrival of a REST call processed by the current thread. To be called by the REST API before the call
+	 * is handled.
+	 */
+	public static void markRestEntry() {
+		restEntry.get()[0] = System.currentTimeMillis();
+	}
+
+
+	/**
+	 * Forgets the arrival of the REST call processed by the current thread. To be called by the REST API after the
+	 * call is handled.
+	 */
+	public static void clearRestEntry() {
+		restEntry.get()[0] = 0;
+	}
+
+
+	/**
+	 * Returns the arrival of the REST call processed by the current thread and forgets it, so a second request sent
+	 * during the same call does not count the first one in its REST stage.
+	 *
+	 * @return UNIX time (ms), or 0 if not known.
+	 */
+	public static long takeRestEntry() {
+		long[] entry = restEntry.get();
+		long time = entry[0];
+		entry[0] = 0;
+
+		return time;
+	}
+
+
+	/**
+	 * Returns the ID of the trace.
+	 *
+	 * @return Trace ID.
+	 */
+	public String getTraceId() {
+		return traceId;
+	}
+
+
+	/**
+	 * Records a stage now.
+	 *
+	 * @param stage Number of the stage, one of the STAGE_ constants.
+	 */
+	public void record(int stage) {
+		record(stage, System.currentTimeMillis());
+	}
+
+
+	/**
+	 * Records a stage. Unknown stages (e.g. from a newer gateway) are ignored.
+	 *
+	 * @param stage Number of the stage, one of the STAGE_ constants.
+	 * @param time UNIX time (ms), 0 to leave the stage unrecorded.
+	 */
+	public void record(int stage, long time) {
+		if (stage >= 0 && stage < STAGES) {
+			stamps[stage] = time;
+		}
+	}
+
+
+	/**
+	 * Returns the stamp of a stage.
+	 *
+	 * @param stage Number of the stage.
+	 * @return UNIX time (ms), or 0 if the stage was not recorded.
+	 */
+	public long getStamp(int stage) {
+		return stamps[stage];
+	}
+
+
+	/**
+	 * Takes over the stamps of a trace that came back with the response, where this trace has none. Traces with
+	 * different ID are ignored.
+	 *
+	 * @param returned Trace from the response, can be null.
+	 */
+	public void merge(TraceContext returned) {
+
+		if (returned == null || !traceId.equals(returned.traceId)) {
+			return;
+		}
+
+		for (int stage = 0; stage < STAGES; stage++) {
+			if (stamps[stage] == 0) {
+				stamps[stage] = returned.stamps[stage];
+			}
+		}
+	}
+
+
+	/**
+	 * Splits the time of the request into parts, in milliseconds. Only the parts whose stamps were recorded are
+	 * included. The network part is the round trip without the time spent at the remote gateway, so it does not
+	 * depend on the clocks of the two gateways being synchronised.
+	 *
+	 * @return Parts by their name (BREAKDOWN_ constants), in the order they happened.
+	 */
+	public Map<String, Long> getBreakdown() {
+
+		Map<String, Long> breakdown = new LinkedHashMap<String, Long>();
+
+		addPart(breakdown, BREAKDOWN_REST, STAGE_RESTENTRY, STAGE_SEND);
+
+		if (isRecorded(STAGE_SEND, STAGE_RECEIVE, STAGE_RESPONSESEND, STAGE_RESPONSERECEIVE)) {
+			breakdown.put(BREAKDOWN_NETWORK, (stamps[STAGE_RESPONSERECEIVE] - stamps[STAGE_SEND])
+					- (stamps[STAGE_RESPONSESEND] - stamps[STAGE_RECEIVE]));
+		}
+
+		addPart(breakdown, BREAKDOWN_REMOTEQUEUE, STAGE_RECEIVE, STAGE_AGENTSTART);
+		addPart(breakdown, BREAKDOWN_AGENT, STAGE_AGENTSTART, STAGE_AGENTEND);
+		addPart(breakdown, BREAKDOWN_REMOTERESPONSE, STAGE_AGENTEND, STAGE_RESPONSESEND);
+		addPart(breakdown, BREAKDOWN_RESPONSEMATCH, STAGE_RESPONSERECEIVE, STAGE_RESPONSEMATCH);
+
+		if (isRecorded(STAGE_RESTENTRY, STAGE_RESPONSEMATCH)) {
+			addPart(breakdown, BREAKDOWN_TOTAL, STAGE_RESTENTRY, STAGE_RESPONSEMATCH);
+		} else {
+			addPart(breakdown, BREAKDOWN_TOTAL, STAGE_SEND, STAGE_RESPONSEMATCH);
+		}
+
+		return breakdown;
+	}
+
+
+	/**
+	 * Builds the JSON that travels in the message envelope:
+	 *
+	 * {
+	 *     "traceId": "4f1c...",
+	 *     "stages": {
+	 *         "restEntry": 1589876543210,
+	 *         "send": 1589876543215,
+	 *         ...
+	 *     }
+	 * }
+	 *
+	 * @return The JSON.
+	 */
+	public JsonObject toJson() {
+		return buildJson(false);
+	}
+
+
+	/**
+	 * Builds the JSON returned to the user of the REST API, the same as {@link #toJson() toJson} plus the
+	 * {@link #getBreakdown() breakdown} in the "breakdown" attribute.
+	 *
+	 * @return The JSON.
+	 */
+	public JsonObject toBreakdownJson() {
+		return buildJson(true);
+	}
+
+
+	/**
+	 * Reads the trace from the JSON built by {@link #toJson() toJson}. Unknown stages are ignored.
+	 *
+	 * @param json The JSON value of the trace attribute.
+	 * @return The trace, or null if the JSON is not a trace.
+	 */
+	public static TraceContext fromJson(JsonValue json) {
+
+		if (json == null || json.getValueType() != JsonValue.ValueType.OBJECT) {
+			return null;
+		}
+
+		JsonObject object = (JsonObject) json;
+
+		if (!object.containsKey(ATTR_TRACEID) || object.isNull(ATTR_TRACEID)) {
+			return null;
+		}
+
+		try {
+			TraceContext trace = new TraceContext(object.getString(ATTR_TRACEID));
+
+			JsonObject stages = object.getJsonObject(ATTR_STAGES);
+			if (stages != null) {
+				for (int stage = 0; stage < STAGES; stage++) {
+					JsonValue stamp = stages.get(STAGE_NAMES[stage]);
+					if (stamp != null && stamp.getValueType() == JsonValue.ValueType.NUMBER) {
+						trace.stamps[stage] = ((JsonNumber) stamp).longValue();
+					}
+				}
+			}
+
+			return trace;
+
+		} catch (ClassCastException e) {
+			return null;
+		}
+	}
+
+
+	/* === PRIVATE METHODS === */
+
+	/**
+	 * Builds the JSON of the trace.
+	 *
+	 * @param withBreakdown Whether or not to include the breakdown.
+	 * @return The JSON.
+	 */
+	private JsonObject buildJson(boolean withBreakdown) {
+
+		JsonObjectBuilder stagesBuilder = JsonCodec.createObjectBuilder();
+		for (int stage = 0; stage < STAGES; stage++) {
+			if (stamps[stage] != 0) {
+				stagesBuilder.add(STAGE_NAMES[stage], stamps[stage]);
+			}
+		}
+
+		JsonObjectBuilder mainBuilder = JsonCodec.createObjectBuilder();
+		mainBuilder.add(ATTR_TRACEID, traceId);
+		mainBuilder.add(ATTR_STAGES, stagesBuilder);
+
+		if (withBreakdown) {
+			JsonObjectBuilder breakdownBuilder = JsonCodec.createObjectBuilder();
+			for (Map.Entry<String, Long> part : getBreakdown().entrySet()) {
+				breakdownBuilder.add(part.getKey(), part.getValue());
+			}
+			mainBuilder.add(ATTR_BREAKDOWN, breakdownBuilder);
+		}
+
+		return mainBuilder.build();
+	}
+
+
+	/**
+	 * Adds a part to the breakdown, if both of its stamps were recorded.
+	 *
+	 * @param breakdown Where to add.
+	 * @param name Name of the part.
+	 * @param from Stage the part starts with.
+	 * @param to Stage the part ends with.
+	 */
+	private void addPart(Map<String, Long> breakdown, String name, int from, int to) {
+		if (isRecorded(from, to)) {
+			breakdown.put(name, stamps[to] - stamps[from]);
+		}
+	}
+
+
+	/**
+	 * Whether or not all given stages were recorded.
+	 *
+	 * @param stages Numbers of the stages.
+	 * @return True if all were.
+	 */
+	private boolean isRecorded(int... stages) {
+		for (int stage : stages) {
+			if (stamps[stage] == 0) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+}
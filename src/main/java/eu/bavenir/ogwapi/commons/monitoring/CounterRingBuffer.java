@@ -0,0 +1,293 @@
+package eu.bavenir.ogwapi.commons.monitoring;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * STRUCTURE:
+ * - constants
+ * - fields
+ * - public methods
+ * - private methods
+ */
+
+/**
+ * Bounded buffer of counter records, written concurrently by the threads that process messages (REST, XMPP, events)
+ * and read by a single drainer. The records are not objects - each slot of the ring is a set of fields in parallel
+ * arrays, preallocated, so recording a message allocates nothing and takes no lock.
+ *
+ * A writer claims a slot by moving the tail with a compare-and-set, fills the fields and publishes the slot by
+ * setting its sequence number. The reader takes slots in order, as long as they are published. The buffer never
+ * grows - when it is full, {@link #offer(int, int, String, String, boolean, String, int, long, long) offer} returns false
+ * and the caller decides what to do.
+ *
+ * @author sulfo
+ *
+ */
+public class CounterRingBuffer {
+
+	/* === CONSTANTS === */
+
+	/**
+	 * Largest allowed capacity.
+	 */
+	private static final int MAX_CAPACITY = 1 << 24;
+
+
+	/* === FIELDS === */
+
+	/**
+	 * Number of slots, a power of two.
+	 */
+	private int capacity;
+
+	/**
+	 * Mask turning a position into an index of a slot.
+	 */
+	private int mask;
+
+	/**
+	 * Sequence numbers of the slots. A slot at given position is free for writing when its sequence equals the
+	 * position and published for reading when it equals the position + 1.
+	 */
+	private AtomicLongArray sequences;
+
+	/**
+	 * Position of the next slot to be claimed by a writer.
+	 */
+	private AtomicLong tail;
+
+	/**
+	 * Position of the next slot to be read. Only the reader moves it.
+	 */
+	private volatile long head;
+
+	/**
+	 * Request IDs of the records.
+	 */
+	private int[] requestIds;
+
+	/**
+	 * Types of the records.
+	 */
+	private int[] recordTypes;
+
+	/**
+	 * Source object IDs of the records.
+	 */
+	private String[] sourceOids;
+
+	/**
+	 * Destination object IDs of the records.
+	 */
+	private String[] destinationOids;
+
+	/**
+	 * Whether or not this gateway initiated the communication, for each record.
+	 */
+	private boolean[] reqInitiators;
+
+	/**
+	 * Message types of the records.
+	 */
+	private String[] messageTypes;
+
+	/**
+	 * Message sizes of the records.
+	 */
+	private int[] messageSizes;
+
+	/**
+	 * Times of the records.
+	 */
+	private long[] timestamps;
+
+	/**
+	 * Latencies (ms) of the records, -1 where not known.
+	 */
+	private long[] latencies;
+
+
+	/**
+	 * Receives records taken out of the buffer.
+	 */
+	public interface RecordVisitor {
+
+		/**
+		 * Called for each record, in the order they were written.
+		 *
+		 * @param requestId Request ID of the message.
+		 * @param recordType Type of the record, see {@link MessageCounter MessageCounter} constants.
+		 * @param sourceOid Source object ID.
+		 * @param destinationOid Destination object ID.
+		 * @param reqInitiator Whether or not this gateway initiated the communication.
+		 * @param messageType Type of the message.
+		 * @param messageSize Size of the message in bytes.
+		 * @param timestamp Time the record was written.
+		 * @param latency Time (ms) it took to get the response, -1 if not known.
+		 */
+		public void visit(int requestId, int recordType, String sourceOid, String destinationOid,
+				boolean reqInitiator, String messageType, int messageSize, long timestamp, long latency);
+	}
+
+
+	/* === PUBLIC METHODS === */
+
+	/**
+	 * Constructor.
+	 *
+	 * @param capacity Minimal number of records the buffer can hold, it is rounded up to a power of two.
+	 */
+	public CounterRingBuffer(int capacity) {
+
+		this.capacity = Integer.highestOneBit(Math.max(2, Math.min(capacity, MAX_CAPACITY)) - 1) << 1;
+		mask = this.capacity - 1;
+
+		sequences = new AtomicLongArray(this.capacity);
+		for (int i = 0; i < this.capacity; i++) {
+			sequences.set(i, i);
+		}
+
+		tail = new AtomicLong(0);
+		head = 0;
+
+		requestIds = new int[this.capacity];
+		recordTypes = new int[this.capacity];
+		sourceOids = new String[this.capacity];
+		destinationOids = new String[this.capacity];
+		reqInitiators = new boolean[this.capacity];
+		messageTypes = new String[this.capacity];
+		messageSizes = new int[this.capacity];
+		timestamps = new long[this.capacity];
+		latencies = new long[this.capacity];
+	}
+
+
+	/**
+	 * Writes a record into the buffer. Safe to be called from any number of threads.
+	 *
+	 * @param requestId Request ID of the message.
+	 * @param recordType Type of the record.
+	 * @param sourceOid Source object ID.
+	 * @param destinationOid Destination object ID.
+	 * @param reqInitiator Whether or not this gateway initiated the communication.
+	 * @param messageType Type of the message.
+	 * @param messageSize Size of the message in bytes.
+	 * @param timestamp Time of the record.
+	 * @param latency Time (ms) it took to get the response, -1 if not known.
+	 * @return True if the record was written, false if the buffer is full.
+	 */
+	public boolean offer(int requestId, int recordType, String sourceOid, String destinationOid,
+			boolean reqInitiator, String messageType, int messageSize, long timestamp, long latency) {
+
+		long position;
+
+		while (true) {
+			position = tail.get();
+			long difference = sequences.get(index(position)) - position;
+
+			if (difference == 0) {
+				if (tail.compareAndSet(position, position + 1)) {
+					break;
+				}
+			} else if (difference < 0) {
+				// the reader did not free the slot yet
+				return false;
+			}
+			// otherwise another writer claimed the slot meanwhile, try again
+		}
+
+		int index = index(position);
+
+		requestIds[index] = requestId;
+		recordTypes[index] = recordType;
+		sourceOids[index] = sourceOid;
+		destinationOids[index] = destinationOid;
+		reqInitiators[index] = reqInitiator;
+		messageTypes[index] = messageType;
+		messageSizes[index] = messageSize;
+		timestamps[index] = timestamp;
+		latencies[index] = latency;
+
+		// publish
+		sequences.set(index, position + 1);
+
+		return true;
+	}
+
+
+	/**
+	 * Takes records out of the buffer, in the order they were written. Stops at the first slot that was claimed, but
+	 * is not published yet.
+	 *
+	 * @param visitor Receives the records.
+	 * @param max Maximum number of records to take.
+	 * @return Number of records taken.
+	 */
+	public synchronized int drain(RecordVisitor visitor, int max) {
+
+		int taken = 0;
+		long position = head;
+
+		while (taken < max) {
+
+			int index = index(position);
+
+			if (sequences.get(index) != position + 1) {
+				break;
+			}
+
+			visitor.visit(requestIds[index], recordTypes[index], sourceOids[index], destinationOids[index],
+					reqInitiators[index], messageTypes[index], messageSizes[index], timestamps[index], latencies[index]);
+
+			// don't keep the strings alive
+			sourceOids[index] = null;
+			destinationOids[index] = null;
+			messageTypes[index] = null;
+
+			// free the slot for the writer that gets around the ring next time
+			sequences.set(index, position + capacity);
+
+			position++;
+			taken++;
+		}
+
+		head = position;
+
+		return taken;
+	}
+
+
+	/**
+	 * Returns the number of records in the buffer, including those claimed, but not published yet.
+	 *
+	 * @return Number of records.
+	 */
+	public int size() {
+		return (int) Math.max(0, Math.min(capacity, tail.get() - head));
+	}
+
+
+	/**
+	 * Returns the number of records the buffer can hold.
+	 *
+	 * @return Capacity.
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
+
+	/* === PRIVATE METHODS === */
+
+	/**
+	 * Index of the slot at given position.
+	 *
+	 * @param position Position in the ring.
+	 * @return Index of the slot.
+	 */
+	private int index(long position) {
+		return (int) position & mask;
+	}
+
+}
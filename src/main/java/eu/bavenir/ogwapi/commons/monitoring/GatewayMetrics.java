@@ -0,0 +1,457 @@
+package eu.bavenir.ogwapi.commons.monitoring;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/*
+ * STRUCTURE:
+ * - constants
+ * - fields
+ * - public methods
+ * - private methods
+ */
+
+/**
+ * Gateway wide metrics, exposed in the Prometheus text format by the {@link eu.bavenir.ogwapi.restapi.services.Metrics
+ * Metrics} service at /api/metrics, when it is enabled in the configuration (api.metrics). Collected are:
+ *
+ * - latencies of the network requests by operation (GETPROPERTYVALUE, STARTACTION...), both on the side that sends
+ *   the request (until the response arrives) and on the side that answers it (until the response is sent),
+ * - the same latencies split into stages (REST API, network, remote Agent...) by the trace of the request, see
+ *   {@link eu.bavenir.ogwapi.commons.messages.TraceContext TraceContext},
+ * - latencies of the calls to the Agent by HTTP method and type of end point (properties, actions, events...),
+ * - latencies of the calls to the Neighbourhood Manager by service,
+ * - numbers of inbound and outbound messages, their rates are up to Prometheus,
+ * - numbers of timeouts (408s) by operation,
+ * - numbers of incoming messages dropped by the gateway before processing, by reason,
+ * - gauges - numbers of connection descriptors, depths of queues - registered by their owners.
+ *
+ * Recording is cheap enough to be done on every message: once a series exists, it is found in a couple of
+ * {@link java.util.concurrent.ConcurrentHashMap ConcurrentHashMap} look ups without building any strings, and the
+ * values are {@link java.util.concurrent.atomic.LongAdder LongAdders}. Gauges cost nothing until they are scraped.
+ *
+ * Labels are meant to take a small set of values - operation names, service names, never object IDs.
+ *
+ * @author sulfo
+ *
+ */
+public class GatewayMetrics {
+
+	/* === CONSTANTS === */
+
+	/**
+	 * Side of a network request - this gateway sent it.
+	 */
+	public static final String SIDE_REQUESTER = "requester";
+
+	/**
+	 * Side of a network request - this gateway answered it.
+	 */
+	public static final String SIDE_RESPONDER = "responder";
+
+	/**
+	 * Direction of a message - received from the network.
+	 */
+	public static final String DIRECTION_INBOUND = "inbound";
+
+	/**
+	 * Direction of a message - sent to the network.
+	 */
+	public static final String DIRECTION_OUTBOUND = "outbound";
+
+	/**
+	 * Prefix of all metric names.
+	 */
+	private static final String PREFIX = "ogwapi_";
+
+	/**
+	 * Name of the metric with the queue depths.
+	 */
+	private static final String QUEUE_DEPTH = PREFIX + "queue_depth";
+
+
+	/* === FIELDS === */
+
+	/**
+	 * Latencies of the network requests by operation and side.
+	 */
+	private static final Family<LatencyHistogram> requestDurations = new Family<LatencyHistogram>(
+			PREFIX + "request_duration_seconds", "Latency of the requests sent over the network, by operation.",
+			"histogram", new String[] { "operation", "side" }, LatencyHistogram::new);
+
+	/**
+	 * Durations of the stages of the network requests by operation and stage.
+	 */
+	private static final Family<LatencyHistogram> stageDurations = new Family<LatencyHistogram>(
+			PREFIX + "request_stage_duration_seconds", "Time the requests sent over the network spent in each stage, "
+			+ "by operation.", "histogram", new String[] { "operation", "stage" }, LatencyHistogram::new);
+
+	/**
+	 * Latencies of the Agent calls by method and end point type.
+	 */
+	private static final Family<LatencyHistogram> agentDurations = new Family<LatencyHistogram>(
+			PREFIX + "agent_request_duration_seconds", "Latency of the calls to the Agent, by end point type.",
+			"histogram", new String[] { "method", "endpoint" }, LatencyHistogram::new);
+
+	/**
+	 * Latencies of the NM calls by service.
+	 */
+	private static final Family<LatencyHistogram> neighbourhoodManagerDurations = new Family<LatencyHistogram>(
+			PREFIX + "nm_request_duration_seconds", "Latency of the calls to the Neighbourhood Manager, by service.",
+			"histogram", new String[] { "service" }, LatencyHistogram::new);
+
+	/**
+	 * Numbers of messages by direction.
+	 */
+	private static final Family<LongAdder> messages = new Family<LongAdder>(
+			PREFIX + "messages_total", "Number of messages received from and sent to the network.",
+			"counter", new String[] { "direction" }, LongAdder::new);
+
+	/**
+	 * Numbers of timeouts by operation.
+	 */
+	private static final Family<LongAdder> timeouts = new Family<LongAdder>(
+			PREFIX + "request_timeouts_total", "Number of requests sent over the network that got no response (408).",
+			"counter", new String[] { "operation" }, LongAdder::new);
+
+	/**
+	 * Numbers of dropped incoming messages by reason.
+	 */
+	private static final Family<LongAdder> droppedMessages = new Family<LongAdder>(
+			PREFIX + "messages_dropped_total", "Number of messages received from the network and dropped before they "
+			+ "were processed, by reason.", "counter", new String[] { "reason" }, LongAdder::new);
+
+	/**
+	 * Gauges by their name, then by their rendered labels.
+	 */
+	private static final Map<String, Map<String, LongSupplier>> gauges =
+			new ConcurrentSkipListMap<String, Map<String, LongSupplier>>();
+
+	/**
+	 * Help texts of the gauges by their name.
+	 */
+	private static final Map<String, String> gaugeHelp = new ConcurrentHashMap<String, String>();
+
+
+	/* === PUBLIC METHODS === */
+
+	/**
+	 * Records the latency of a network request.
+	 *
+	 * @param operation Name of the operation, e.g. GETPROPERTYVALUE.
+	 * @param side {@link #SIDE_REQUESTER SIDE_REQUESTER} or {@link #SIDE_RESPONDER SIDE_RESPONDER}.
+	 * @param startNanos {@link java.lang.System#nanoTime() System.nanoTime()} at the start of the request.
+	 */
+	public static void recordRequest(String operation, String side, long startNanos) {
+		requestDurations.get(operation, side).record(System.nanoTime() - startNanos);
+	}
+
+
+	/**
+	 * Records the duration of a stage of a network request.
+	 *
+	 * @param operation Name of the operation, e.g. GETPROPERTYVALUE.
+	 * @param stage Name of the stage, e.g. network.
+	 * @param millis Duration in milliseconds.
+	 */
+	public static void recordStage(String operation, String stage, long millis) {
+		stageDurations.get(operation, stage).record(TimeUnit.MILLISECONDS.toNanos(millis));
+	}
+
+
+	/**
+	 * Records the latency of an Agent call.
+	 *
+	 * @param method HTTP method.
+	 * @param endpoint Type of the end point, e.g. properties.
+	 * @param startNanos {@link java.lang.System#nanoTime() System.nanoTime()} at the start of the call.
+	 */
+	public static void recordAgentCall(String method, String endpoint, long startNanos) {
+		agentDurations.get(method, endpoint).record(System.nanoTime() - startNanos);
+	}
+
+
+	/**
+	 * Records the latency of a Neighbourhood Manager call.
+	 *
+	 * @param service The NM service, without any IDs.
+	 * @param startNanos {@link java.lang.System#nanoTime() System.nanoTime()} at the start of the call.
+	 */
+	public static void recordNeighbourhoodManagerCall(String service, long startNanos) {
+		neighbourhoodManagerDurations.get(service, null).record(System.nanoTime() - startNanos);
+	}
+
+
+	/**
+	 * Counts a message.
+	 *
+	 * @param direction {@link #DIRECTION_INBOUND DIRECTION_INBOUND} or {@link #DIRECTION_OUTBOUND DIRECTION_OUTBOUND}.
+	 */
+	public static void countMessage(String direction) {
+		messages.get(direction, null).increment();
+	}
+
+
+	/**
+	 * Counts a network request that got no response in time.
+	 *
+	 * @param operation Name of the operation.
+	 */
+	public static void countTimeout(String operation) {
+		timeouts.get(operation, null).increment();
+	}
+
+
+	/**
+	 * Counts an incoming message that was dropped before it was processed.
+	 *
+	 * @param reason Short name of the reason, e.g. inbox_full.
+	 */
+	public static void countDroppedMessage(String reason) {
+		droppedMessages.get(reason, null).increment();
+	}
+
+
+	/**
+	 * Registers a gauge, its value is taken when the metrics are scraped. Registering the same name again replaces
+	 * the previous gauge.
+	 *
+	 * @param name Name of the metric, without the ogwapi_ prefix.
+	 * @param help Description of the metric.
+	 * @param value Source of the value, must be cheap and thread safe.
+	 */
+	public static void registerGauge(String name, String help, LongSupplier value) {
+		registerGauge(PREFIX + name, help, "", value);
+	}
+
+
+	/**
+	 * Registers the depth of a queue, as a series of the ogwapi_queue_depth gauge.
+	 *
+	 * @param queue Name of the queue.
+	 * @param depth Source of the depth, must be cheap and thread safe.
+	 */
+	public static void registerQueue(String queue, LongSupplier depth) {
+		registerGauge(QUEUE_DEPTH, "Number of items waiting in the queues of the gateway.",
+				"queue=\"" + escape(queue) + "\"", depth);
+	}
+
+
+	/**
+	 * Writes all metrics in the Prometheus text format (version 0.0.4).
+	 *
+	 * @return The metrics.
+	 */
+	public static String scrape() {
+
+		StringBuilder out = new StringBuilder(8192);
+
+		requestDurations.writeHistograms(out);
+		stageDurations.writeHistograms(out);
+		agentDurations.writeHistograms(out);
+		neighbourhoodManagerDurations.writeHistograms(out);
+		messages.writeCounters(out);
+		timeouts.writeCounters(out);
+		droppedMessages.writeCounters(out);
+
+		for (Map.Entry<String, Map<String, LongSupplier>> gauge : gauges.entrySet()) {
+
+			writeHeader(out, gauge.getKey(), gaugeHelp.get(gauge.getKey()), "gauge");
+
+			for (Map.Entry<String, LongSupplier> series : gauge.getValue().entrySet()) {
+				out.append(gauge.getKey());
+				if (!series.getKey().isEmpty()) {
+					out.append('{').append(series.getKey()).append('}');
+				}
+				out.append(' ').append(series.getValue().getAsLong()).append('\n');
+			}
+		}
+
+		return out.toString();
+	}
+
+
+	/* === PRIVATE METHODS === */
+
+	/**
+	 * Registers a series of a gauge.
+	 *
+	 * @param name Full name of the metric.
+	 * @param help Description of the metric.
+	 * @param labels Rendered labels of the series.
+	 * @param value Source of the value.
+	 */
+	private static void registerGauge(String name, String help, String labels, LongSupplier value) {
+
+		gaugeHelp.put(name, help);
+		gauges.computeIfAbsent(name, key -> new ConcurrentSkipListMap<String, LongSupplier>()).put(labels, value);
+	}
+
+
+	/**
+	 * Writes the HELP and TYPE lines of a metric.
+	 *
+	 * @param out Where to write.
+	 * @param name Name of the metric.
+	 * @param help Description of the metric.
+	 * @param type Type of the metric.
+	 */
+	private static void writeHeader(StringBuilder out, String name, String help, String type) {
+		out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+	}
+
+
+	/**
+	 * Escapes a label value.
+	 *
+	 * @param value The value, null is written as an empty string.
+	 * @return Escaped value.
+	 */
+	private static String escape(String value) {
+
+		if (value == null) {
+			return "";
+		}
+
+		return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+
+
+	/**
+	 * A metric with up to two labels and a series for each combination of their values. The series are kept in two
+	 * levels of maps, so looking up an existing one needs no string to be built.
+	 *
+	 * @param <T> Type of the series.
+	 */
+	private static class Family<T> {
+
+		/**
+		 * Name of the metric.
+		 */
+		private final String name;
+
+		/**
+		 * Description of the metric.
+		 */
+		private final String help;
+
+		/**
+		 * Type of the metric.
+		 */
+		private final String type;
+
+		/**
+		 * Names of the labels, one or two.
+		 */
+		private final String[] labelNames;
+
+		/**
+		 * Creates new series.
+		 */
+		private final Supplier<T> factory;
+
+		/**
+		 * Series by the value of the first label, then of the second.
+		 */
+		private final Map<String, Map<String, T>> series = new ConcurrentHashMap<String, Map<String, T>>();
+
+
+		/**
+		 * Constructor.
+		 */
+		private Family(String name, String help, String type, String[] labelNames, Supplier<T> factory) {
+			this.name = name;
+			this.help = help;
+			this.type = type;
+			this.labelNames = labelNames;
+			this.factory = factory;
+		}
+
+
+		/**
+		 * Returns the series for given label values, creating it if necessary.
+		 *
+		 * @param first Value of the first label.
+		 * @param second Value of the second label, null if there is only one.
+		 * @return The series.
+		 */
+		private T get(String first, String second) {
+
+			first = first == null ? "" : first;
+			second = second == null ? "" : second;
+
+			Map<String, T> inner = series.get(first);
+			if (inner == null) {
+				inner = series.computeIfAbsent(first, key -> new ConcurrentHashMap<String, T>());
+			}
+
+			T value = inner.get(second);
+			if (value == null) {
+				value = inner.computeIfAbsent(second, key -> factory.get());
+			}
+
+			return value;
+		}
+
+
+		/**
+		 * Writes all series of a histogram family.
+		 *
+		 * @param out Where to write.
+		 */
+		private void writeHistograms(StringBuilder out) {
+
+			writeHeader(out, name, help, type);
+
+			for (Map.Entry<String, Map<String, T>> outer : series.entrySet()) {
+				for (Map.Entry<String, T> inner : outer.getValue().entrySet()) {
+					((LatencyHistogram) inner.getValue()).write(out, name, renderLabels(outer.getKey(), inner.getKey()));
+				}
+			}
+		}
+
+
+		/**
+		 * Writes all series of a counter family.
+		 *
+		 * @param out Where to write.
+		 */
+		private void writeCounters(StringBuilder out) {
+
+			writeHeader(out, name, help, type);
+
+			for (Map.Entry<String, Map<String, T>> outer : series.entrySet()) {
+				for (Map.Entry<String, T> inner : outer.getValue().entrySet()) {
+					out.append(name).append('{').append(renderLabels(outer.getKey(), inner.getKey())).append("} ")
+						.append(((LongAdder) inner.getValue()).sum()).append('\n');
+				}
+			}
+		}
+
+
+		/**
+		 * Renders the labels of a series.
+		 *
+		 * @param first Value of the first label.
+		 * @param second Value of the second label.
+		 * @return Labels as name="value" pairs separated by commas.
+		 */
+		private String renderLabels(String first, String second) {
+
+			String labels = labelNames[0] + "=\"" + escape(first) + "\"";
+
+			if (labelNames.length > 1) {
+				labels += "," + labelNames[1] + "=\"" + escape(second) + "\"";
+			}
+
+			return labels;
+		}
+	}
+
+}
@@ -0,0 +1,120 @@
+package eu.bavenir.ogwapi.commons.monitoring;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * STRUCTURE:
+ * - constants
+ * - fields
+ * - public methods
+ * - private methods
+ */
+
+/**
+ * Histogram of durations with fixed classes, written concurrently by any number of threads. Each class is a
+ * {@link java.util.concurrent.atomic.LongAdder LongAdder}, so recording a duration takes no lock and threads recording
+ * at the same time don't fight over a single counter.
+ *
+ * The classes are stored non-cumulative and are summed up only when written out in the Prometheus text format by
+ * {@link #write(StringBuilder, String, String) write}.
+ *
+ * @author sulfo
+ *
+ */
+public class LatencyHistogram {
+
+	/* === CONSTANTS === */
+
+	/**
+	 * Upper bounds (seconds, inclusive) of the classes, as they are written out. The last class, above the last
+	 * bound, is unbounded.
+	 */
+	private static final String[] BOUNDS_SECONDS =
+		{ "0.005", "0.01", "0.025", "0.05", "0.1", "0.25", "0.5", "1", "2.5", "5", "10", "30", "60" };
+
+	/**
+	 * The same bounds in nanoseconds, for recording.
+	 */
+	private static final long[] BOUNDS_NANOS = {
+			5000000L, 10000000L, 25000000L, 50000000L, 100000000L, 250000000L, 500000000L,
+			1000000000L, 2500000000L, 5000000000L, 10000000000L, 30000000000L, 60000000000L };
+
+
+	/* === FIELDS === */
+
+	/**
+	 * Number of durations in each class.
+	 */
+	private LongAdder[] counts;
+
+	/**
+	 * Sum of all durations in nanoseconds.
+	 */
+	private LongAdder sum;
+
+
+	/* === PUBLIC METHODS === */
+
+	/**
+	 * Constructor.
+	 */
+	public LatencyHistogram() {
+
+		counts = new LongAdder[BOUNDS_NANOS.length + 1];
+		for (int i = 0; i < counts.length; i++) {
+			counts[i] = new LongAdder();
+		}
+
+		sum = new LongAdder();
+	}
+
+
+	/**
+	 * Records a duration.
+	 *
+	 * @param nanos Duration in nanoseconds, negative values are recorded as 0.
+	 */
+	public void record(long nanos) {
+
+		if (nanos < 0) {
+			nanos = 0;
+		}
+
+		int durationClass = 0;
+		while (durationClass < BOUNDS_NANOS.length && nanos > BOUNDS_NANOS[durationClass]) {
+			durationClass++;
+		}
+
+		counts[durationClass].increment();
+		sum.add(nanos);
+	}
+
+
+	/**
+	 * Writes the histogram in the Prometheus text format - the cumulative classes, the sum and the count.
+	 *
+	 * @param out Where to write.
+	 * @param name Name of the metric.
+	 * @param labels Labels of the series, rendered as name="value" pairs separated by commas, may be empty.
+	 */
+	public void write(StringBuilder out, String name, String labels) {
+
+		String separator = labels.isEmpty() ? "" : ",";
+		long cumulative = 0;
+
+		for (int i = 0; i < counts.length; i++) {
+
+			cumulative += counts[i].sum();
+
+			out.append(name).append("_bucket{").append(labels).append(separator).append("le=\"")
+				.append(i < BOUNDS_SECONDS.length ? BOUNDS_SECONDS[i] : "+Inf").append("\"} ")
+				.append(cumulative).append('\n');
+		}
+
+		String braced = labels.isEmpty() ? "" : "{" + labels + "}";
+
+		out.append(name).append("_sum").append(braced).append(' ').append(sum.sum() / 1e9).append('\n');
+		out.append(name).append("_count").append(braced).append(' ').append(cumulative).append('\n');
+	}
+
+}
@@ -1,20 +1,46 @@
 package eu.bavenir.ogwapi.commons.monitoring;
 
+import java.io.File;
+import java.io.StringWriter;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import javax.json.Json;
-import javax.json.JsonArrayBuilder;
 import javax.json.JsonObject;
-import javax.json.JsonObjectBuilder;
+import javax.json.stream.JsonGenerator;
 
 import org.apache.commons.configuration2.XMLConfiguration;
+import org.restlet.resource.ResourceException;
 
+import eu.bavenir.ogwapi.commons.GatewayScheduler;
+import eu.bavenir.ogwapi.commons.JsonCodec;
 import eu.bavenir.ogwapi.commons.connectors.NeighbourhoodManagerConnector;
+import eu.bavenir.ogwapi.commons.persistence.CounterSpool;
 import eu.bavenir.ogwapi.commons.persistence.Counters;
 
 /**
  * This class serves for monitoring count of messages
+ * 
+ * Records are written by the threads processing messages into a lock free {@link CounterRingBuffer ring buffer}, 
+ * without building any JSON. A thread of the counter, the drainer, takes them out, serialises them and appends them 
+ * to a {@link CounterSpool spool} on the disk, so they survive a crash. It waits only for the disk, never for the 
+ * network or a pool of the gateway. A background task on the I/O pool of the {@link GatewayScheduler 
+ * GatewayScheduler}, the flusher, uploads the spool to the NM in batches - whenever a full batch is waiting, or when 
+ * the last upload was longer than the flush interval ago, and no more than a few batches per run. Uploads are gzip 
+ * compressed and a failed one is retried with a growing delay; the spool remembers what was uploaded, so the upload 
+ * resumes where it left off after a restart. When the buffer fills up, new records are either dropped (the default) 
+ * or the threads recording them wait for space, see {@link #CONFIG_PARAM_OVERFLOWPOLICY}. They wait at most
+ * {@link #CONFIG_PARAM_BLOCKTIMEOUT} and drop the record then, so a stuck disk can't stop the processing of messages.
+ * 
+ * In the aggregated mode, the drainer does not spool a record per message. It adds them into the rolling time 
+ * buckets of a {@link TrafficAggregator TrafficAggregator} and spools the summaries of the buckets as they close, 
+ * along with a sample of the records, if configured. Summaries have a spool of their own, each line is uploaded as
+ * it is. Both spools are always uploaded, so nothing is left behind when the mode changes.
  */
 public class MessageCounter {
 
@@ -32,6 +58,185 @@ public class MessageCounter {
 	 * This value is taken into account when no suitable value is found in the configuration file.
 	 */
 	private static final int CONFIG_DEF_MAXRECORDS = 1000;
+	
+	/**
+	 * Name of the configuration parameter for the number of records waiting to be sent the buffer can hold.
+	 */
+	private static final String CONFIG_PARAM_BUFFERSIZE = "messageCounter.bufferSize";
+	
+	/**
+	 * Default value of {@link #CONFIG_PARAM_BUFFERSIZE} configuration parameter. 
+	 * This value is taken into account when no suitable value is found in the configuration file.
+	 */
+	private static final int CONFIG_DEF_BUFFERSIZE = 65536;
+	
+	/**
+	 * Name of the configuration parameter for what to do with new records when the buffer is full.
+	 */
+	private static final String CONFIG_PARAM_OVERFLOWPOLICY = "messageCounter.overflowPolicy";
+	
+	/**
+	 * Overflow policy - new records are dropped.
+	 */
+	private static final String OVERFLOWPOLICY_DROP = "drop";
+	
+	/**
+	 * Overflow policy - threads recording messages wait until there is space.
+	 */
+	private static final String OVERFLOWPOLICY_BLOCK = "block";
+	
+	/**
+	 * Default value of {@link #CONFIG_PARAM_OVERFLOWPOLICY} configuration parameter. 
+	 * This value is taken into account when no suitable value is found in the configuration file.
+	 */
+	private static final String CONFIG_DEF_OVERFLOWPOLICY = OVERFLOWPOLICY_DROP;
+	
+	/**
+	 * Name of the configuration parameter for the longest time (ms) a thread waits for space in the buffer, when the
+	 * policy is to block. The record is dropped then.
+	 */
+	private static final String CONFIG_PARAM_BLOCKTIMEOUT = "messageCounter.blockTimeout";
+	
+	/**
+	 * Default value of {@link #CONFIG_PARAM_BLOCKTIMEOUT} configuration parameter. 
+	 * This value is taken into account when no suitable value is found in the configuration file.
+	 */
+	private static final long CONFIG_DEF_BLOCKTIMEOUT = 1000;
+	
+	/**
+	 * Name of the configuration parameter for the time (ms) after which records are sent to NM, even if there are 
+	 * not enough of them to fill a batch.
+	 */
+	private static final String CONFIG_PARAM_FLUSHINTERVAL = "messageCounter.flushInterval";
+	
+	/**
+	 * Default value of {@link #CONFIG_PARAM_FLUSHINTERVAL} configuration parameter. 
+	 * This value is taken into account when no suitable value is found in the configuration file.
+	 */
+	private static final long CONFIG_DEF_FLUSHINTERVAL = 60000;
+	
+	/**
+	 * Name of the configuration parameter for what is sent to NM - a record per message, or aggregated statistics.
+	 */
+	private static final String CONFIG_PARAM_MODE = "messageCounter.mode";
+	
+	/**
+	 * Mode - a record per message is sent.
+	 */
+	private static final String MODE_RECORDS = "records";
+	
+	/**
+	 * Mode - aggregated statistics are sent.
+	 */
+	private static final String MODE_AGGREGATED = "aggregated";
+	
+	/**
+	 * Default value of {@link #CONFIG_PARAM_MODE} configuration parameter. 
+	 * This value is taken into account when no suitable value is found in the configuration file.
+	 */
+	private static final String CONFIG_DEF_MODE = MODE_RECORDS;
+	
+	/**
+	 * Name of the configuration parameter for the length (ms) of the time buckets of the aggregated statistics.
+	 */
+	private static final String CONFIG_PARAM_BUCKETLENGTH = "messageCounter.bucketLength";
+	
+	/**
+	 * Default value of {@link #CONFIG_PARAM_BUCKETLENGTH} configuration parameter. 
+	 * This value is taken into account when no suitable value is found in the configuration file.
+	 */
+	private static final long CONFIG_DEF_BUCKETLENGTH = 60000;
+	
+	/**
+	 * Name of the configuration parameter for sampling of records in the aggregated mode - every n-th record is sent
+	 * along with the statistics, 0 means none.
+	 */
+	private static final String CONFIG_PARAM_RAWSAMPLING = "messageCounter.rawSampling";
+	
+	/**
+	 * Default value of {@link #CONFIG_PARAM_RAWSAMPLING} configuration parameter. 
+	 * This value is taken into account when no suitable value is found in the configuration file.
+	 */
+	private static final int CONFIG_DEF_RAWSAMPLING = 0;
+	
+	/**
+	 * Latency of a record that is not known.
+	 */
+	public static final long LATENCY_UNKNOWN = -1;
+	
+	/**
+	 * Name of the configuration parameter for the size (bytes) of the spool segment files.
+	 */
+	private static final String CONFIG_PARAM_SEGMENTSIZE = "messageCounter.segmentSize";
+	
+	/**
+	 * Default value of {@link #CONFIG_PARAM_SEGMENTSIZE} configuration parameter. 
+	 * This value is taken into account when no suitable value is found in the configuration file.
+	 */
+	private static final long CONFIG_DEF_SEGMENTSIZE = 1048576;
+	
+	/**
+	 * Name of the configuration parameter for compressing the uploads to NM.
+	 */
+	private static final String CONFIG_PARAM_COMPRESSUPLOAD = "messageCounter.compressUpload";
+	
+	/**
+	 * Default value of {@link #CONFIG_PARAM_COMPRESSUPLOAD} configuration parameter. 
+	 * This value is taken into account when no suitable value is found in the configuration file.
+	 */
+	private static final boolean CONFIG_DEF_COMPRESSUPLOAD = true;
+	
+	/**
+	 * Name of the configuration parameter for path to data files.
+	 */
+	private static final String CONFIG_PARAM_DATADIR = "general.dataDirectory";
+	
+	/**
+	 * Default value for {@link #CONFIG_PARAM_DATADIR } parameter. 
+	 */
+	private static final String CONFIG_DEF_DATADIR = "data/";
+	
+	/**
+	 * Directory of the spool of records, in the data directory.
+	 */
+	private static final String SPOOL_RECORDS = "counterSpool/records";
+	
+	/**
+	 * Directory of the spool of aggregated statistics, in the data directory.
+	 */
+	private static final String SPOOL_AGGREGATES = "counterSpool/aggregates";
+	
+	/**
+	 * Longest delay (ms) between attempts to upload to NM after failures.
+	 */
+	private static final long MAX_UPLOAD_BACKOFF = 300000;
+	
+	/**
+	 * HTTP status of a request the NM can't decode.
+	 */
+	private static final int HTTP_UNSUPPORTEDMEDIATYPE = 415;
+	
+	/**
+	 * How often (ms) the drainer spools the new records and the flusher checks for records to be sent.
+	 */
+	private static final long FLUSHER_PERIOD = 1000;
+	
+	/**
+	 * Name of the drainer thread.
+	 */
+	private static final String DRAINER_THREAD_NAME = "ogwapi-counter-drainer";
+	
+	/**
+	 * How many batches the flusher uploads at most in one run. A backlog in the spools is sent over the following runs,
+	 * so one run does not keep an I/O thread busy for minutes.
+	 */
+	private static final int MAX_BATCHES_PER_FLUSH = 10;
+	
+	/**
+	 * How long (ns) a thread waits before trying again to record a message, when the buffer is full and the policy
+	 * is to block.
+	 */
+	private static final long BLOCK_PARK_NANOS = 1000000;
 
 	/**
 	 * Record type - not possible to send
@@ -82,9 +287,19 @@ public class MessageCounter {
 	private NeighbourhoodManagerConnector nmConnector;
 	
 	/**
-	 * List of messages
+	 * Records waiting to be spooled
+	 */
+	private CounterRingBuffer buffer;
+	
+	/**
+	 * Records waiting to be uploaded, a record per line
+	 */
+	private CounterSpool recordSpool;
+	
+	/**
+	 * Aggregated statistics waiting to be uploaded, a whole upload per line
 	 */
-	private List<JsonObject> records;
+	private CounterSpool aggregateSpool;
 	
 	/**
 	 * Number of records that are sent to NM
@@ -92,14 +307,85 @@ public class MessageCounter {
 	private int countOfSendingRecords;
 	
 	/**
-	 * Current number of saved messages
+	 * Whether threads wait for space when the buffer is full, rather than dropping the records
+	 */
+	private boolean blockWhenFull;
+	
+	/**
+	 * Longest time (ns) a thread waits for space in the buffer, when it is full and the policy is to block
+	 */
+	private long blockTimeout;
+	
+	/**
+	 * Records are sent after this time (ms) even if there are not enough of them to fill a batch
+	 */
+	private long flushInterval;
+	
+	/**
+	 * Whether uploads are gzip compressed
+	 */
+	private boolean compressUpload;
+	
+	/**
+	 * Time of the last batch sent (or of the start)
+	 */
+	private long lastFlush;
+	
+	/**
+	 * No upload is attempted before this time, after a failure
+	 */
+	private long nextUploadAttempt;
+	
+	/**
+	 * Current delay between upload attempts, after failures
+	 */
+	private long uploadBackoff;
+	
+	/**
+	 * Number of records dropped since the last batch sent
+	 */
+	private AtomicLong droppedRecords;
+	
+	/**
+	 * Registration of the flusher in the scheduler
 	 */
-	private int count;
+	private ScheduledFuture<?> flusherRegistration;
 	
 	/**
-	 * Counters file management
+	 * Thread spooling the records from the buffer
 	 */
-	private Counters CountersPersistence;
+	private Thread drainer;
+	
+	/**
+	 * Whether the drainer keeps running
+	 */
+	private volatile boolean draining;
+	
+	/**
+	 * Guards the state of the spooling - the aggregated statistics and the sampled records. The flusher holds the lock
+	 * of the counter itself, so the drainer never waits for an upload
+	 */
+	private final Object spoolLock = new Object();
+	
+	/**
+	 * Aggregated statistics, null when a record per message is sent
+	 */
+	private TrafficAggregator aggregator;
+	
+	/**
+	 * In the aggregated mode, every n-th record is sent as well, 0 means none
+	 */
+	private int rawSampling;
+	
+	/**
+	 * Number of records aggregated, for the sampling
+	 */
+	private long aggregatedRecords;
+	
+	/**
+	 * Sampled records waiting to be sent with the statistics
+	 */
+	private List<String> sampledRecords;
 	
 	
 	/* === PUBLIC METHODS === */
@@ -114,114 +400,442 @@ public class MessageCounter {
 		
 		nmConnector = new NeighbourhoodManagerConnector(config, logger);
 		
-		logger.info("Trying to load counters from file...");
-		CountersPersistence = new Counters(config, logger);
-		records = CountersPersistence.getRecords();
-		count = CountersPersistence.getCountOfMessages();
-		
 		// Initialize max counters stored before sending - MAX 500 - DEFAULT 100
 		countOfSendingRecords = config.getInt(CONFIG_PARAM_MAXRECORDS, CONFIG_DEF_MAXRECORDS);		
 		if(countOfSendingRecords > 500) {
 			countOfSendingRecords = 500;
 		} 
+		
+		// the spools
+		String dataDirectory = config.getString(CONFIG_PARAM_DATADIR, CONFIG_DEF_DATADIR);
+		long segmentSize = config.getLong(CONFIG_PARAM_SEGMENTSIZE, CONFIG_DEF_SEGMENTSIZE);
+		
+		recordSpool = new CounterSpool(new File(dataDirectory, SPOOL_RECORDS), segmentSize, logger);
+		aggregateSpool = new CounterSpool(new File(dataDirectory, SPOOL_AGGREGATES), segmentSize, logger);
+		
+		// records stored by older versions of the gateway go to the spool
+		logger.info("Trying to load counters from file...");
+		List<JsonObject> loaded = new Counters(config, logger).getRecords();
+		if (loaded != null && !loaded.isEmpty()) {
+			List<String> lines = new ArrayList<String>(loaded.size());
+			loaded.forEach(record -> lines.add(record.toString()));
+			recordSpool.append(lines);
+			logger.fine(loaded.size() + " counter records were moved to the spool.");
+		}
+		
+		buffer = new CounterRingBuffer(config.getInt(CONFIG_PARAM_BUFFERSIZE, CONFIG_DEF_BUFFERSIZE));
+		
+		String overflowPolicy = config.getString(CONFIG_PARAM_OVERFLOWPOLICY, CONFIG_DEF_OVERFLOWPOLICY);
+		if (!overflowPolicy.equals(OVERFLOWPOLICY_DROP) && !overflowPolicy.equals(OVERFLOWPOLICY_BLOCK)) {
+			logger.warning("Wrong parameter entered for " + CONFIG_PARAM_OVERFLOWPOLICY + " in the configuration file: "
+					+ overflowPolicy + ". Setting to default: " + CONFIG_DEF_OVERFLOWPOLICY);
+			overflowPolicy = CONFIG_DEF_OVERFLOWPOLICY;
+		}
+		blockWhenFull = overflowPolicy.equals(OVERFLOWPOLICY_BLOCK);
+		
+		long blockTimeoutMillis = config.getLong(CONFIG_PARAM_BLOCKTIMEOUT, CONFIG_DEF_BLOCKTIMEOUT);
+		if (blockTimeoutMillis < 0) {
+			logger.warning("Wrong parameter entered for " + CONFIG_PARAM_BLOCKTIMEOUT + " in the configuration file: "
+					+ blockTimeoutMillis + ". Setting to default: " + CONFIG_DEF_BLOCKTIMEOUT);
+			blockTimeoutMillis = CONFIG_DEF_BLOCKTIMEOUT;
+		}
+		blockTimeout = TimeUnit.MILLISECONDS.toNanos(blockTimeoutMillis);
+		
+		flushInterval = config.getLong(CONFIG_PARAM_FLUSHINTERVAL, CONFIG_DEF_FLUSHINTERVAL);
+		
+		compressUpload = config.getBoolean(CONFIG_PARAM_COMPRESSUPLOAD, CONFIG_DEF_COMPRESSUPLOAD);
+		
+		logger.config("Message counter buffer size: " + buffer.getCapacity() + ", overflow policy: " + overflowPolicy 
+				+ ", block timeout: " + blockTimeoutMillis + ", flush interval: " + flushInterval + ", spool segment size: " + segmentSize 
+				+ ", compressed upload: " + compressUpload);
+		
+		String mode = config.getString(CONFIG_PARAM_MODE, CONFIG_DEF_MODE);
+		if (mode.equals(MODE_AGGREGATED)) {
+			
+			long bucketLength = config.getLong(CONFIG_PARAM_BUCKETLENGTH, CONFIG_DEF_BUCKETLENGTH);
+			if (bucketLength < 1000) {
+				logger.warning("Wrong parameter entered for " + CONFIG_PARAM_BUCKETLENGTH + " in the configuration file: "
+						+ bucketLength + ". Setting to default: " + CONFIG_DEF_BUCKETLENGTH);
+				bucketLength = CONFIG_DEF_BUCKETLENGTH;
+			}
+			
+			aggregator = new TrafficAggregator(bucketLength);
+			rawSampling = Math.max(0, config.getInt(CONFIG_PARAM_RAWSAMPLING, CONFIG_DEF_RAWSAMPLING));
+			sampledRecords = new ArrayList<String>();
+			
+			logger.config("Message counter sends aggregated statistics, bucket length: " + bucketLength 
+					+ ", raw sampling: " + rawSampling);
+			
+		} else if (!mode.equals(MODE_RECORDS)) {
+			logger.warning("Wrong parameter entered for " + CONFIG_PARAM_MODE + " in the configuration file: "
+					+ mode + ". Setting to default: " + CONFIG_DEF_MODE);
+		}
+		
+		GatewayMetrics.registerQueue("messageCounter", () -> buffer.size());
+		
+		droppedRecords = new AtomicLong(0);
+		lastFlush = System.currentTimeMillis();
+		nextUploadAttempt = 0;
+		uploadBackoff = FLUSHER_PERIOD;
+		
+		// the spooling has a thread of its own, the threads waiting for space in the buffer may be the I/O threads
+		draining = true;
+		drainer = new Thread(() -> drain(), DRAINER_THREAD_NAME);
+		drainer.setDaemon(true);
+		drainer.start();
+		
+		// the uploads block on the NM, so the flusher runs on the I/O pool
+		flusherRegistration = GatewayScheduler.scheduleBlocking(() -> flush(), FLUSHER_PERIOD, FLUSHER_PERIOD);
 	}
 	
 	/**
-	 * Save messages in counters file
+	 * Save messages in counters file. Stops the flusher and the drainer and spools everything that was not spooled 
+	 * yet - including, in the aggregated mode, the buckets that are still open. Nothing is uploaded, that is left for 
+	 * the next start.
 	 */
-	public void saveCounters(){
-		CountersPersistence.saveCounters(records);
+	public synchronized void saveCounters(){
+		
+		GatewayScheduler.cancel(flusherRegistration);
+		
+		draining = false;
+		LockSupport.unpark(drainer);
+		try {
+			drainer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		
+		spool(Long.MAX_VALUE);
+		
+		recordSpool.close();
+		aggregateSpool.close();
 	}
 	
 	/**
 	 * add message
 	 */
 	public void addMessage(int requestId, int recordType, String sourceOid, String destinationOid, Boolean reqInitiator, String messageType, int messageSize) {
+		addMessage(requestId, recordType, sourceOid, destinationOid, reqInitiator, messageType, messageSize, 
+				LATENCY_UNKNOWN);
+	}
+	
+	/**
+	 * add message, with the time (ms) it took to get the response
+	 */
+	public void addMessage(int requestId, int recordType, String sourceOid, String destinationOid, Boolean reqInitiator, 
+			String messageType, int messageSize, long latency) {
 		
-		// record JsonObject
-		JsonObjectBuilder recordObjectBuilder = Json.createObjectBuilder();
-		recordObjectBuilder.add("destinationOid", destinationOid);
-		recordObjectBuilder.add("sourceOid", sourceOid);
-		recordObjectBuilder.add("requestId", requestId);
-		recordObjectBuilder.add("timestamp", System.currentTimeMillis());
-		recordObjectBuilder.add("reqInitiator", reqInitiator);  // True if I am initiating the communication
-		recordObjectBuilder.add("messageType", messageType);
-		recordObjectBuilder.add("messageSize", messageSize);
-
-
+		long timestamp = System.currentTimeMillis();
+		long blockStart = 0;
+		
+		while (!buffer.offer(requestId, recordType, sourceOid, destinationOid, reqInitiator, messageType, messageSize, 
+				timestamp, latency)) {
+			
+			if (!blockWhenFull) {
+				droppedRecords.incrementAndGet();
+				return;
+			}
+			
+			if (blockStart == 0) {
+				blockStart = System.nanoTime();
+			} else if (System.nanoTime() - blockStart >= blockTimeout) {
+				droppedRecords.incrementAndGet();
+				return;
+			}
+			
+			// no need to wait for the next round of the drainer
+			LockSupport.unpark(drainer);
+			LockSupport.parkNanos(BLOCK_PARK_NANOS);
+		}
+	}
+	
+	/**
+	 * Returns the number of records waiting to be spooled
+	 */
+	public int getWaitingRecords() {
+		return buffer.size();
+	}
+	
+	
+	/* === PRIVATE METHODS === */
+	
+	/**
+	 * Body of the drainer - spools the new records every flusher period, or right away when a thread waits for space 
+	 * in the buffer
+	 */
+	private void drain() {
 		
-		if (recordType == RECORDTYPE_INT_NOT_POSSIBLE_TO_SEND) {
+		while (draining) {
 			
-			// message status
-			recordObjectBuilder.add("messageStatus", RECORDTYPE_STRING_NOT_POSSIBLE_TO_SEND);
-			recordObjectBuilder.add("messageStatusCode", RECORDTYPE_INT_NOT_POSSIBLE_TO_SEND);
+			LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(FLUSHER_PERIOD));
+			
+			if (!draining) {
+				return;
+			}
+			
+			try {
+				spool(System.currentTimeMillis());
+			} catch (RuntimeException e) {
+				logger.log(Level.WARNING, "Message counter could not spool the records: " + e.getMessage(), e);
+			}
+			
+			long dropped = droppedRecords.getAndSet(0);
+			if (dropped > 0) {
+				logger.warning("Message counter buffer was full, " + dropped + " records were dropped.");
+			}
+		}
+	}
+	
+	/**
+	 * Body of the flusher - uploads what is waiting in the spools
+	 */
+	private synchronized void flush() {
+		
+		long now = System.currentTimeMillis();
+		
+		if (now < nextUploadAttempt) {
+			return;
+		}
+		
+		if (upload(now)) {
+			uploadBackoff = FLUSHER_PERIOD;
+		} else {
+			nextUploadAttempt = now + uploadBackoff;
+			logger.info("Counters will be sent again in " + uploadBackoff / 1000 + " s.");
+			uploadBackoff = Math.min(uploadBackoff * 2, MAX_UPLOAD_BACKOFF);
+		}
+	}
+	
+	/**
+	 * take all records out of the buffer and append them to the spool, or, in the aggregated mode, add them to the 
+	 * statistics and spool the buckets that are closed at given time
+	 */
+	private void spool(long now) {
+		
+		synchronized (spoolLock) {
+			spoolRecords(now);
+		}
+	}
+	
+	/**
+	 * body of {@link #spool(long)}, called under the spool lock - takes at most one buffer full of records, writers 
+	 * fill the freed slots again while the records are taken, so draining until the buffer is empty might never end
+	 */
+	private void spoolRecords(long now) {
+		
+		int max = buffer.getCapacity();
+		
+		if (aggregator == null) {
 			
-		} else if (recordType == RECORDTYPE_INT_NO_RESPONSE_MESSAGE_RECEIVED) {
+			List<String> lines = new ArrayList<String>();
 			
-			// message status
-			recordObjectBuilder.add("messageStatus", RECORDTYPE_STRING_NO_RESPONSE_MESSAGE_RECEIVED);
-			recordObjectBuilder.add("messageStatusCode", RECORDTYPE_INT_NO_RESPONSE_MESSAGE_RECEIVED);
+			buffer.drain((requestId, recordType, sourceOid, destinationOid, reqInitiator, messageType, messageSize, 
+					timestamp, latency) -> lines.add(createRecord(requestId, recordType, sourceOid, destinationOid, 
+							reqInitiator, messageType, messageSize, timestamp, latency)), max);
 			
-		} else if (recordType == RECORDTYPE_INT_OK) {
+			recordSpool.append(lines);
+			return;
+		}
+		
+		buffer.drain((requestId, recordType, sourceOid, destinationOid, reqInitiator, messageType, messageSize, 
+				timestamp, latency) -> {
+					
+					aggregator.add(recordType, sourceOid, destinationOid, reqInitiator, messageType, messageSize, 
+							timestamp, latency);
+					
+					if (rawSampling > 0 && aggregatedRecords++ % rawSampling == 0 
+							&& sampledRecords.size() < countOfSendingRecords) {
+						sampledRecords.add(createRecord(requestId, recordType, sourceOid, destinationOid, reqInitiator, 
+								messageType, messageSize, timestamp, latency));
+					}
+				}, max);
+		
+		if (aggregator.hasClosedBuckets(now) || (now == Long.MAX_VALUE && !aggregator.isEmpty())) {
 			
-			// message status
-			recordObjectBuilder.add("messageStatus", RECORDTYPE_STRING_OK);
-			recordObjectBuilder.add("messageStatusCode", RECORDTYPE_INT_OK);
+			List<String> lines = new ArrayList<String>(1);
+			lines.add(createAggregatedPayload(now));
+			aggregateSpool.append(lines);
 		}
+	}
+	
+	/**
+	 * upload what is waiting in the spools - the aggregated statistics, then full batches of records and a partial one 
+	 * if the last batch was sent longer than the flush interval ago. Stops at the first failure, and after 
+	 * MAX_BATCHES_PER_FLUSH batches, the rest waits for the next run
+	 */
+	private boolean upload(long now) {
 		
-		records.add(recordObjectBuilder.build());
+		List<String> lines;
+		int batches = 0;
+		
+		while (!(lines = aggregateSpool.peek(1)).isEmpty()) {
+			
+			if (batches++ == MAX_BATCHES_PER_FLUSH) {
+				return true;
+			}
+			
+			if (!sendToNeighborhoodManager(lines.get(0))) {
+				return false;
+			}
+			
+			aggregateSpool.commit();
+		}
 		
-		if (++count >= countOfSendingRecords) {
+		while (batches++ < MAX_BATCHES_PER_FLUSH) {
+			
+			lines = recordSpool.peek(countOfSendingRecords);
+			
+			if (lines.isEmpty() || (lines.size() < countOfSendingRecords && now - lastFlush < flushInterval)) {
+				return true;
+			}
 			
-			sendToNeighborhoodManager();
+			if (!sendToNeighborhoodManager(createPayload(lines))) {
+				return false;
+			}
 			
-			records.clear();
-			count = 0;
+			recordSpool.commit();
+			lastFlush = now;
 		}
+		
+		return true;
 	}
 	
 	/**
-	 * send JsonObject to the Neighborhood Manager
+	 * create JSON of the aggregated statistics - the buckets closed at given time and the sampled records
 	 */
-	private void sendToNeighborhoodManager() {
+	private String createAggregatedPayload(long now) {
+		
+		StringWriter aggregates = new StringWriter();
+		JsonGenerator generator = JsonCodec.createGenerator(aggregates);
 		
-		JsonObject payload = createJsonFromRecords();
-//		Representation resp;
-//		String jsonStr;
+		generator.writeStartArray();
+		aggregator.writeClosedBuckets(generator, now);
+		generator.writeEnd().close();
+		
+		// the sampled records are JSON objects already
+		String payload = "{\"records\":[" + String.join(",", sampledRecords) + "],\"aggregates\":" 
+				+ aggregates.toString() + "}";
+		
+		sampledRecords.clear();
+		
+		return payload;
+	}
+	
+	/**
+	 * send JSON to the Neighborhood Manager
+	 */
+	private boolean sendToNeighborhoodManager(String payload) {
 		
 		logger.info("Sending counters to platform");
 		
 		try {
-//			resp = nmConnector.sendCounters(payload);
-			nmConnector.sendCounters(payload);
-			
-			// Get string from representation
-//			jsonStr = resp.getText();
+			nmConnector.sendCounters(payload, compressUpload);
 			
 			logger.info("Counters were sent to platform");
+			
+			return true;
+		 }
+		 catch (ResourceException e) {
+			
+			if (compressUpload && e.getStatus() != null 
+					&& e.getStatus().getCode() == HTTP_UNSUPPORTEDMEDIATYPE) {
+				
+				logger.warning("NM does not accept compressed counters, they will be sent uncompressed.");
+				compressUpload = false;
+			}
+			
+			logger.warning("There was a problem sending counters to platform: " + e.getMessage());
+			
+			return false;
 		 }
 		 catch (Exception e) {	 
 			e.printStackTrace();
 			
 			logger.warning("There was a problem sending counters to platform");
-		 };
+			
+			return false;
+		 }
+	}
+	
+	/**
+	 * create JSON of a batch of spooled records - they are JSON objects already, so they are just joined
+	 */
+	private String createPayload(List<String> lines) {
+		
+		StringBuilder payload = new StringBuilder(lines.size() * 256 + 16);
+		
+		payload.append("{\"records\":[");
+		
+		for (int i = 0; i < lines.size(); i++) {
+			if (i > 0) {
+				payload.append(',');
+			}
+			payload.append(lines.get(i));
+		}
+		
+		payload.append("]}");
+		
+		return payload.toString();
 	}
 	
 	/**
-	 * create JsonObject from records
+	 * create JSON of one record, as it is spooled
 	 */
-	private JsonObject createJsonFromRecords() {
+	private String createRecord(int requestId, int recordType, String sourceOid, String destinationOid, 
+			boolean reqInitiator, String messageType, int messageSize, long timestamp, long latency) {
 		
-		// JsonArray outgoing message
-		JsonArrayBuilder recordsArrayBuilder = Json.createArrayBuilder();
-		// fill this array
-		records.stream().forEach(x -> recordsArrayBuilder.add(x));
+		StringWriter writer = new StringWriter(256);
+		JsonGenerator generator = JsonCodec.createGenerator(writer);
+		
+		generator.writeStartObject();
+		writeNullable(generator, "destinationOid", destinationOid);
+		writeNullable(generator, "sourceOid", sourceOid);
+		generator.write("requestId", requestId);
+		generator.write("timestamp", timestamp);
+		generator.write("reqInitiator", reqInitiator);  // True if I am initiating the communication
+		writeNullable(generator, "messageType", messageType);
+		generator.write("messageSize", messageSize);
+		if (latency != LATENCY_UNKNOWN) {
+			generator.write("latency", latency);
+		}
 		
-		// main JsonObject
-		JsonObjectBuilder mainObjectBuilder = Json.createObjectBuilder();
-		mainObjectBuilder.add("records", recordsArrayBuilder);
+		String messageStatus = getMessageStatus(recordType);
+		if (messageStatus != null) {
+			generator.write("messageStatus", messageStatus);
+			generator.write("messageStatusCode", recordType);
+		}
+		
+		generator.writeEnd().close();
+		
+		return writer.toString();
+	}
+	
+	/**
+	 * write a string attribute that may be null
+	 */
+	private void writeNullable(JsonGenerator generator, String name, String value) {
+		if (value == null) {
+			generator.writeNull(name);
+		} else {
+			generator.write(name, value);
+		}
+	}
+	
+	/**
+	 * message status of given record type, null if the type is unknown
+	 */
+	private String getMessageStatus(int recordType) {
 		
-		return mainObjectBuilder.build();
+		switch (recordType) {
+		case RECORDTYPE_INT_NOT_POSSIBLE_TO_SEND:
+			return RECORDTYPE_STRING_NOT_POSSIBLE_TO_SEND;
+		case RECORDTYPE_INT_NO_RESPONSE_MESSAGE_RECEIVED:
+			return RECORDTYPE_STRING_NO_RESPONSE_MESSAGE_RECEIVED;
+		case RECORDTYPE_INT_OK:
+			return RECORDTYPE_STRING_OK;
+		default:
+			return null;
+		}
 	}
 	
 }
@@ -0,0 +1,372 @@
+package eu.bavenir.ogwapi.commons.monitoring;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+
+import javax.json.stream.JsonGenerator;
+
+/*
+ * STRUCTURE:
+ * - constants
+ * - fields
+ * - public methods
+ * - private methods
+ */
+
+/**
+ * Traffic statistics aggregated into rolling time buckets, as a compact alternative to a record per message. Within
+ * each bucket there is one entry per source, destination, message type and status, holding the number of messages,
+ * the number of bytes and a histogram of latencies (where the latency is known - i.e. for requests this gateway sent
+ * and got a response to).
+ *
+ * A bucket is closed once the time it covers is over, closed buckets are written out by
+ * {@link #writeClosedBuckets(JsonGenerator, long) writeClosedBuckets} and forgotten. A record arriving late, for a
+ * bucket that was already written out, opens that bucket again and is sent with the next batch.
+ *
+ * Not thread safe, it is meant to be fed by the single drainer of the {@link MessageCounter MessageCounter}.
+ *
+ * @author sulfo
+ *
+ */
+public class TrafficAggregator {
+
+	/* === CONSTANTS === */
+
+	/**
+	 * Upper bounds (ms, inclusive) of the latency histogram classes. The last class, above the last bound, is
+	 * unbounded.
+	 */
+	private static final long[] LATENCY_BOUNDS = { 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000 };
+
+
+	/* === FIELDS === */
+
+	/**
+	 * Length of a bucket in milliseconds.
+	 */
+	private long bucketLength;
+
+	/**
+	 * Buckets by their start time.
+	 */
+	private TreeMap<Long, Map<TrafficKey, TrafficStats>> buckets;
+
+
+	/* === PUBLIC METHODS === */
+
+	/**
+	 * Constructor.
+	 *
+	 * @param bucketLength Length of a bucket in milliseconds.
+	 */
+	public TrafficAggregator(long bucketLength) {
+		this.bucketLength = bucketLength;
+
+		buckets = new TreeMap<Long, Map<TrafficKey, TrafficStats>>();
+	}
+
+
+	/**
+	 * Adds a message to the statistics.
+	 *
+	 * @param recordType Type of the record, see {@link MessageCounter MessageCounter} constants.
+	 * @param sourceOid Source object ID.
+	 * @param destinationOid Destination object ID.
+	 * @param reqInitiator Whether or not this gateway initiated the communication.
+	 * @param messageType Type of the message.
+	 * @param messageSize Size of the message in bytes.
+	 * @param timestamp Time of the message.
+	 * @param latency Time (ms) it took to get the response, -1 if not known.
+	 */
+	public void add(int recordType, String sourceOid, String destinationOid, boolean reqInitiator,
+			String messageType, int messageSize, long timestamp, long latency) {
+
+		long bucketStart = timestamp - Math.floorMod(timestamp, bucketLength);
+
+		Map<TrafficKey, TrafficStats> bucket = buckets.get(bucketStart);
+		if (bucket == null) {
+			bucket = new HashMap<TrafficKey, TrafficStats>();
+			buckets.put(bucketStart, bucket);
+		}
+
+		TrafficKey key = new TrafficKey(sourceOid, destinationOid, messageType, recordType, reqInitiator);
+
+		TrafficStats stats = bucket.get(key);
+		if (stats == null) {
+			stats = new TrafficStats();
+			bucket.put(key, stats);
+		}
+
+		stats.add(messageSize, latency);
+	}
+
+
+	/**
+	 * Whether or not there is a bucket whose time is over.
+	 *
+	 * @param now Current time.
+	 * @return True if there is a closed bucket.
+	 */
+	public boolean hasClosedBuckets(long now) {
+		return !buckets.isEmpty() && buckets.firstKey() + bucketLength <= now;
+	}
+
+
+	/**
+	 * Whether or not there are any statistics at all.
+	 *
+	 * @return True if there are none.
+	 */
+	public boolean isEmpty() {
+		return buckets.isEmpty();
+	}
+
+
+	/**
+	 * Writes the buckets whose time is over as an array of buckets and removes them.
+	 *
+	 * @param generator Generator positioned inside an array.
+	 * @param now Current time. Use Long.MAX_VALUE to write out all buckets.
+	 * @return Number of buckets written.
+	 */
+	public int writeClosedBuckets(JsonGenerator generator, long now) {
+
+		int written = 0;
+		Iterator<Map.Entry<Long, Map<TrafficKey, TrafficStats>>> iterator = buckets.entrySet().iterator();
+
+		while (iterator.hasNext()) {
+
+			Map.Entry<Long, Map<TrafficKey, TrafficStats>> bucket = iterator.next();
+
+			if (now != Long.MAX_VALUE && bucket.getKey() + bucketLength > now) {
+				break;
+			}
+
+			generator.writeStartObject();
+			generator.write("start", bucket.getKey());
+			generator.write("length", bucketLength);
+
+			generator.writeStartArray("latencyBounds");
+			for (long bound : LATENCY_BOUNDS) {
+				generator.write(bound);
+			}
+			generator.writeEnd();
+
+			generator.writeStartArray("traffic");
+
+			for (Map.Entry<TrafficKey, TrafficStats> entry : bucket.getValue().entrySet()) {
+				writeEntry(generator, entry.getKey(), entry.getValue());
+			}
+
+			generator.writeEnd();
+			generator.writeEnd();
+
+			iterator.remove();
+			written++;
+		}
+
+		return written;
+	}
+
+
+	/* === PRIVATE METHODS === */
+
+	/**
+	 * Writes one entry of a bucket.
+	 *
+	 * @param generator Generator positioned inside an array.
+	 * @param key Key of the entry.
+	 * @param stats Statistics of the entry.
+	 */
+	private void writeEntry(JsonGenerator generator, TrafficKey key, TrafficStats stats) {
+
+		generator.writeStartObject();
+
+		writeNullable(generator, "sourceOid", key.sourceOid);
+		writeNullable(generator, "destinationOid", key.destinationOid);
+		writeNullable(generator, "messageType", key.messageType);
+		generator.write("messageStatusCode", key.recordType);
+		generator.write("reqInitiator", key.reqInitiator);
+		generator.write("count", stats.count);
+		generator.write("bytes", stats.bytes);
+
+		if (stats.latencyCount > 0) {
+			generator.writeStartObject("latency");
+			generator.write("count", stats.latencyCount);
+			generator.write("sum", stats.latencySum);
+			generator.write("max", stats.latencyMax);
+
+			generator.writeStartArray("histogram");
+			for (long classCount : stats.latencyHistogram) {
+				generator.write(classCount);
+			}
+			generator.writeEnd();
+
+			generator.writeEnd();
+		}
+
+		generator.writeEnd();
+	}
+
+
+	/**
+	 * Writes a string attribute that may be null.
+	 *
+	 * @param generator Generator.
+	 * @param name Name of the attribute.
+	 * @param value Value of the attribute.
+	 */
+	private void writeNullable(JsonGenerator generator, String name, String value) {
+		if (value == null) {
+			generator.writeNull(name);
+		} else {
+			generator.write(name, value);
+		}
+	}
+
+
+	/**
+	 * Key of an entry in a bucket.
+	 */
+	private static class TrafficKey {
+
+		/**
+		 * Source object ID.
+		 */
+		private final String sourceOid;
+
+		/**
+		 * Destination object ID.
+		 */
+		private final String destinationOid;
+
+		/**
+		 * Type of the message.
+		 */
+		private final String messageType;
+
+		/**
+		 * Type of the record, i.e. status of the message.
+		 */
+		private final int recordType;
+
+		/**
+		 * Whether or not this gateway initiated the communication.
+		 */
+		private final boolean reqInitiator;
+
+		/**
+		 * Hash code, computed once.
+		 */
+		private final int hash;
+
+
+		/**
+		 * Constructor.
+		 */
+		private TrafficKey(String sourceOid, String destinationOid, String messageType, int recordType,
+				boolean reqInitiator) {
+			this.sourceOid = sourceOid;
+			this.destinationOid = destinationOid;
+			this.messageType = messageType;
+			this.recordType = recordType;
+			this.reqInitiator = reqInitiator;
+
+			hash = Objects.hash(sourceOid, destinationOid, messageType, recordType, reqInitiator);
+		}
+
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+
+		@Override
+		public boolean equals(Object other) {
+
+			if (this == other) {
+				return true;
+			}
+
+			if (!(other instanceof TrafficKey)) {
+				return false;
+			}
+
+			TrafficKey key = (TrafficKey) other;
+
+			return hash == key.hash && recordType == key.recordType && reqInitiator == key.reqInitiator
+					&& Objects.equals(sourceOid, key.sourceOid) && Objects.equals(destinationOid, key.destinationOid)
+					&& Objects.equals(messageType, key.messageType);
+		}
+	}
+
+
+	/**
+	 * Statistics of an entry in a bucket.
+	 */
+	private static class TrafficStats {
+
+		/**
+		 * Number of messages.
+		 */
+		private long count;
+
+		/**
+		 * Number of bytes.
+		 */
+		private long bytes;
+
+		/**
+		 * Number of messages with known latency.
+		 */
+		private long latencyCount;
+
+		/**
+		 * Sum of the known latencies (ms).
+		 */
+		private long latencySum;
+
+		/**
+		 * Largest known latency (ms).
+		 */
+		private long latencyMax;
+
+		/**
+		 * Number of messages in each latency class, see {@link TrafficAggregator#LATENCY_BOUNDS LATENCY_BOUNDS}.
+		 */
+		private long[] latencyHistogram = new long[LATENCY_BOUNDS.length + 1];
+
+
+		/**
+		 * Adds a message.
+		 *
+		 * @param messageSize Size of the message in bytes.
+		 * @param latency Latency in ms, -1 if not known.
+		 */
+		private void add(int messageSize, long latency) {
+
+			count++;
+			bytes += messageSize;
+
+			if (latency < 0) {
+				return;
+			}
+
+			latencyCount++;
+			latencySum += latency;
+			latencyMax = Math.max(latencyMax, latency);
+
+			int latencyClass = 0;
+			while (latencyClass < LATENCY_BOUNDS.length && latency > LATENCY_BOUNDS[latencyClass]) {
+				latencyClass++;
+			}
+
+			latencyHistogram[latencyClass]++;
+		}
+	}
+
+}
@@ -0,0 +1,111 @@
+package eu.bavenir.ogwapi.commons.monitoring.events;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+import eu.bavenir.ogwapi.commons.messages.NetworkMessage;
+
+/*
+ * STRUCTURE:
+ * - fields
+ * - public methods
+ */
+
+/**
+ * Flight Recorder event of an HTTP call to the Agent.
+ *
+ * @author sulfo
+ *
+ */
+@Name("eu.bavenir.ogwapi.AgentCall")
+@Label("Agent Call")
+@Category({ "OGWAPI", "Agent" })
+@Description("An HTTP call to the Agent.")
+@StackTrace(false)
+public class AgentCallEvent extends Event {
+
+	/* === FIELDS === */
+
+	/**
+	 * Object ID the call is made on behalf of.
+	 */
+	@Label("Source OID")
+	private String sourceOid;
+
+	/**
+	 * HTTP method.
+	 */
+	@Label("Method")
+	private String method;
+
+	/**
+	 * Type of the end point, e.g. properties.
+	 */
+	@Label("Operation")
+	private String operation;
+
+	/**
+	 * Path of the end point, with the object IDs in it.
+	 */
+	@Label("Path")
+	private String path;
+
+	/**
+	 * HTTP status code, or the client error code if the Agent was not reached.
+	 */
+	@Label("Status Code")
+	private int statusCode;
+
+	/**
+	 * Size of the request body.
+	 */
+	@Label("Request Size")
+	@DataAmount
+	private long requestSize;
+
+	/**
+	 * Size of the response body.
+	 */
+	@Label("Response Size")
+	@DataAmount
+	private long responseSize;
+
+
+	/* === PUBLIC METHODS === */
+
+	/**
+	 * Ends the event and commits it, if it is enabled and lasted long enough. The sizes of the bodies are only
+	 * counted then.
+	 *
+	 * @param sourceOid Object ID the call is made on behalf of.
+	 * @param method HTTP method.
+	 * @param operation Type of the end point.
+	 * @param path Path of the end point.
+	 * @param statusCode Status code of the response.
+	 * @param requestBody Body of the request, can be null.
+	 * @param responseBody Body of the response, can be null.
+	 */
+	public void complete(String sourceOid, String method, String operation, String path, int statusCode,
+			String requestBody, String responseBody) {
+
+		end();
+
+		if (shouldCommit()) {
+			this.sourceOid = sourceOid;
+			this.method = method;
+			this.operation = operation;
+			this.path = path;
+			this.statusCode = statusCode;
+			this.requestSize = requestBody == null ? 0 : NetworkMessage.utf8Length(requestBody);
+			this.responseSize = responseBody == null ? 0 : NetworkMessage.utf8Length(responseBody);
+
+			commit();
+		}
+	}
+
+}
@@ -0,0 +1,79 @@
+package eu.bavenir.ogwapi.commons.monitoring.events;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+import eu.bavenir.ogwapi.commons.messages.NetworkMessage;
+
+/*
+ * STRUCTURE:
+ * - fields
+ * - public methods
+ */
+
+/**
+ * Flight Recorder event of a message received from the XMPP network, lasting while it is processed by the
+ * {@link eu.bavenir.ogwapi.commons.ConnectionDescriptor ConnectionDescriptor} - for requests that includes the call
+ * to the Agent and sending the response.
+ *
+ * @author sulfo
+ *
+ */
+@Name("eu.bavenir.ogwapi.MessageReceive")
+@Label("Message Receive")
+@Category({ "OGWAPI", "Messaging" })
+@Description("A message received from the XMPP network and its processing.")
+@StackTrace(false)
+public class MessageReceiveEvent extends Event {
+
+	/* === FIELDS === */
+
+	/**
+	 * Object ID of the sender.
+	 */
+	@Label("Source OID")
+	private String sourceOid;
+
+	/**
+	 * Object ID of the receiver.
+	 */
+	@Label("Destination OID")
+	private String destinationOid;
+
+	/**
+	 * Size of the message as received.
+	 */
+	@Label("Size")
+	@DataAmount
+	private long size;
+
+
+	/* === PUBLIC METHODS === */
+
+	/**
+	 * Ends the event and commits it, if it is enabled and lasted long enough. The size of the message is only counted
+	 * then.
+	 *
+	 * @param sourceOid Object ID of the sender.
+	 * @param destinationOid Object ID of the receiver.
+	 * @param message The message as received.
+	 */
+	public void complete(String sourceOid, String destinationOid, String message) {
+
+		end();
+
+		if (shouldCommit()) {
+			this.sourceOid = sourceOid;
+			this.destinationOid = destinationOid;
+			this.size = message == null ? 0 : NetworkMessage.utf8Length(message);
+
+			commit();
+		}
+	}
+
+}
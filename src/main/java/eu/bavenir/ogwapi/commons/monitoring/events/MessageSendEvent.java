@@ -0,0 +1,90 @@
+package eu.bavenir.ogwapi.commons.monitoring.events;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+import eu.bavenir.ogwapi.commons.messages.NetworkMessage;
+
+/*
+ * STRUCTURE:
+ * - fields
+ * - public methods
+ */
+
+/**
+ * Flight Recorder event of a message handed over to the XMPP network, lasting until the engine returns. Used like:
+ *
+ *   MessageSendEvent event = new MessageSendEvent();
+ *   event.begin();
+ *   ... send the message ...
+ *   event.complete(sourceOid, destinationOid, message, sent);
+ *
+ * @author sulfo
+ *
+ */
+@Name("eu.bavenir.ogwapi.MessageSend")
+@Label("Message Send")
+@Category({ "OGWAPI", "Messaging" })
+@Description("A message sent to the XMPP network.")
+@StackTrace(false)
+public class MessageSendEvent extends Event {
+
+	/* === FIELDS === */
+
+	/**
+	 * Object ID of the sender.
+	 */
+	@Label("Source OID")
+	private String sourceOid;
+
+	/**
+	 * Object ID of the destination.
+	 */
+	@Label("Destination OID")
+	private String destinationOid;
+
+	/**
+	 * Size of the message as sent.
+	 */
+	@Label("Size")
+	@DataAmount
+	private long size;
+
+	/**
+	 * Whether or not the engine took the message.
+	 */
+	@Label("Sent")
+	private boolean sent;
+
+
+	/* === PUBLIC METHODS === */
+
+	/**
+	 * Ends the event and commits it, if it is enabled and lasted long enough. The size of the message is only counted
+	 * then.
+	 *
+	 * @param sourceOid Object ID of the sender.
+	 * @param destinationOid Object ID of the destination.
+	 * @param message The message as sent.
+	 * @param sent Whether or not the engine took the message.
+	 */
+	public void complete(String sourceOid, String destinationOid, String message, boolean sent) {
+
+		end();
+
+		if (shouldCommit()) {
+			this.sourceOid = sourceOid;
+			this.destinationOid = destinationOid;
+			this.size = message == null ? 0 : NetworkMessage.utf8Length(message);
+			this.sent = sent;
+
+			commit();
+		}
+	}
+
+}
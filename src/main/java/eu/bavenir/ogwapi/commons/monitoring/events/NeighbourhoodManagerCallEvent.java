@@ -0,0 +1,72 @@
+package eu.bavenir.ogwapi.commons.monitoring.events;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/*
+ * STRUCTURE:
+ * - fields
+ * - public methods
+ */
+
+/**
+ * Flight Recorder event of a call to the Neighbourhood Manager.
+ *
+ * @author sulfo
+ *
+ */
+@Name("eu.bavenir.ogwapi.NeighbourhoodManagerCall")
+@Label("Neighbourhood Manager Call")
+@Category({ "OGWAPI", "Neighbourhood Manager" })
+@Description("A call to the Neighbourhood Manager.")
+@StackTrace(false)
+public class NeighbourhoodManagerCallEvent extends Event {
+
+	/* === FIELDS === */
+
+	/**
+	 * HTTP method.
+	 */
+	@Label("Method")
+	private String method;
+
+	/**
+	 * The NM service, without any IDs.
+	 */
+	@Label("Operation")
+	private String operation;
+
+	/**
+	 * HTTP status code, 0 if none arrived.
+	 */
+	@Label("Status Code")
+	private int statusCode;
+
+
+	/* === PUBLIC METHODS === */
+
+	/**
+	 * Ends the event and commits it, if it is enabled and lasted long enough.
+	 *
+	 * @param method HTTP method.
+	 * @param operation The NM service.
+	 * @param statusCode HTTP status code, 0 if none arrived.
+	 */
+	public void complete(String method, String operation, int statusCode) {
+
+		end();
+
+		if (shouldCommit()) {
+			this.method = method;
+			this.operation = operation;
+			this.statusCode = statusCode;
+
+			commit();
+		}
+	}
+
+}
@@ -0,0 +1,84 @@
+package eu.bavenir.ogwapi.commons.monitoring.events;
+
+import java.io.File;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/*
+ * STRUCTURE:
+ * - fields
+ * - public methods
+ */
+
+/**
+ * Flight Recorder event of the data of an object (event channels, actions...) being written to its file.
+ *
+ * @author sulfo
+ *
+ */
+@Name("eu.bavenir.ogwapi.PersistenceWrite")
+@Label("Persistence Write")
+@Category({ "OGWAPI", "Persistence" })
+@Description("Data of an object written to its file.")
+@StackTrace(false)
+public class PersistenceWriteEvent extends Event {
+
+	/* === FIELDS === */
+
+	/**
+	 * Object ID the data belong to.
+	 */
+	@Label("Object ID")
+	private String objectId;
+
+	/**
+	 * Path of the file.
+	 */
+	@Label("File")
+	private String file;
+
+	/**
+	 * Size of the file after the write.
+	 */
+	@Label("Size")
+	@DataAmount
+	private long size;
+
+	/**
+	 * Whether or not the data were written.
+	 */
+	@Label("Written")
+	private boolean written;
+
+
+	/* === PUBLIC METHODS === */
+
+	/**
+	 * Ends the event and commits it, if it is enabled and lasted long enough. The size of the file is only looked up
+	 * then.
+	 *
+	 * @param objectId Object ID the data belong to.
+	 * @param file Path of the file.
+	 * @param written Whether or not the data were written.
+	 */
+	public void complete(String objectId, String file, boolean written) {
+
+		end();
+
+		if (shouldCommit()) {
+			this.objectId = objectId;
+			this.file = file;
+			this.size = new File(file).length();
+			this.written = written;
+
+			commit();
+		}
+	}
+
+}
@@ -0,0 +1,99 @@
+package eu.bavenir.ogwapi.commons.monitoring.events;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/*
+ * STRUCTURE:
+ * - fields
+ * - public methods
+ */
+
+/**
+ * Flight Recorder event of a thread waiting for the response to a request it sent over the network.
+ *
+ * @author sulfo
+ *
+ */
+@Name("eu.bavenir.ogwapi.ResponseWait")
+@Label("Response Wait")
+@Category({ "OGWAPI", "Messaging" })
+@Description("Waiting for the response to a request sent over the network.")
+@StackTrace(false)
+public class ResponseWaitEvent extends Event {
+
+	/* === FIELDS === */
+
+	/**
+	 * Object ID of the requester.
+	 */
+	@Label("Source OID")
+	private String sourceOid;
+
+	/**
+	 * Object ID the request was sent to.
+	 */
+	@Label("Destination OID")
+	private String destinationOid;
+
+	/**
+	 * Operation of the request, e.g. GETPROPERTYVALUE.
+	 */
+	@Label("Operation")
+	private String operation;
+
+	/**
+	 * Correlation ID of the request.
+	 */
+	@Label("Request ID")
+	private int requestId;
+
+	/**
+	 * Size of the request.
+	 */
+	@Label("Request Size")
+	@DataAmount
+	private long size;
+
+	/**
+	 * Whether or not the response arrived in time.
+	 */
+	@Label("Responded")
+	private boolean responded;
+
+
+	/* === PUBLIC METHODS === */
+
+	/**
+	 * Ends the event and commits it, if it is enabled and lasted long enough.
+	 *
+	 * @param sourceOid Object ID of the requester.
+	 * @param destinationOid Object ID the request was sent to.
+	 * @param operation Operation of the request.
+	 * @param requestId Correlation ID of the request.
+	 * @param size Size of the request in bytes.
+	 * @param responded Whether or not the response arrived in time.
+	 */
+	public void complete(String sourceOid, String destinationOid, String operation, int requestId, long size,
+			boolean responded) {
+
+		end();
+
+		if (shouldCommit()) {
+			this.sourceOid = sourceOid;
+			this.destinationOid = destinationOid;
+			this.operation = operation;
+			this.requestId = requestId;
+			this.size = size;
+			this.responded = responded;
+
+			commit();
+		}
+	}
+
+}
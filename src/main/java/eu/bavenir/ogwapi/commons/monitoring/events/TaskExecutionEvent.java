@@ -0,0 +1,89 @@
+package eu.bavenir.ogwapi.commons.monitoring.events;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/*
+ * STRUCTURE:
+ * - fields
+ * - public methods
+ */
+
+/**
+ * Flight Recorder event of a {@link eu.bavenir.ogwapi.commons.Task task} being started, i.e. handed over to the
+ * Agent for execution.
+ *
+ * @author sulfo
+ *
+ */
+@Name("eu.bavenir.ogwapi.TaskExecution")
+@Label("Task Execution")
+@Category({ "OGWAPI", "Actions" })
+@Description("A task of an action handed over to the Agent for execution.")
+@StackTrace(false)
+public class TaskExecutionEvent extends Event {
+
+	/* === FIELDS === */
+
+	/**
+	 * Object ID that requested the action.
+	 */
+	@Label("Source OID")
+	private String sourceOid;
+
+	/**
+	 * Object ID of the object the action belongs to.
+	 */
+	@Label("Destination OID")
+	private String destinationOid;
+
+	/**
+	 * ID of the action.
+	 */
+	@Label("Action ID")
+	private String actionId;
+
+	/**
+	 * ID of the task.
+	 */
+	@Label("Task ID")
+	private String taskId;
+
+	/**
+	 * Whether or not the Agent accepted the task.
+	 */
+	@Label("Started")
+	private boolean started;
+
+
+	/* === PUBLIC METHODS === */
+
+	/**
+	 * Ends the event and commits it, if it is enabled and lasted long enough.
+	 *
+	 * @param sourceOid Object ID that requested the action.
+	 * @param destinationOid Object ID of the object the action belongs to.
+	 * @param actionId ID of the action.
+	 * @param taskId ID of the task.
+	 * @param started Whether or not the Agent accepted the task.
+	 */
+	public void complete(String sourceOid, String destinationOid, String actionId, String taskId, boolean started) {
+
+		end();
+
+		if (shouldCommit()) {
+			this.sourceOid = sourceOid;
+			this.destinationOid = destinationOid;
+			this.actionId = actionId;
+			this.taskId = taskId;
+			this.started = started;
+
+			commit();
+		}
+	}
+
+}
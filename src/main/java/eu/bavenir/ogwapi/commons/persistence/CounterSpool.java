@@ -0,0 +1,457 @@
+package eu.bavenir.ogwapi.commons.persistence;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.logging.Logger;
+
+import javax.json.JsonException;
+
+import eu.bavenir.ogwapi.commons.JsonCodec;
+
+/*
+ * STRUCTURE:
+ * - constants
+ * - fields
+ * - public methods
+ * - private methods
+ */
+
+/**
+ * Append-only spool of counter data waiting to be uploaded to the NM, one JSON object per line. Lines are appended
+ * in batches to the current segment file and forced to the disk, so a crash loses at most the batch being written.
+ * Segments are rotated when they get larger than the configured size, and every start of the gateway opens a new
+ * one - a line torn by a crash is then never continued.
+ *
+ * Uploading reads lines from a cursor ({@link #peek(int) peek}) and moves the cursor only after the NM took them
+ * ({@link #commit() commit}). The cursor is stored in a file, so after a restart the upload resumes where it left
+ * off. Segments behind the cursor are deleted. A crash between an upload and the commit means the batch is uploaded
+ * once more - lines are delivered at least once.
+ *
+ * Lines that are not valid JSON objects (torn by a crash) are skipped.
+ *
+ * @author sulfo
+ *
+ */
+public class CounterSpool {
+
+	/* === CONSTANTS === */
+
+	/**
+	 * Prefix of the segment file names.
+	 */
+	private static final String SEGMENT_PREFIX = "segment-";
+
+	/**
+	 * Suffix of the segment file names.
+	 */
+	private static final String SEGMENT_SUFFIX = ".jsonl";
+
+	/**
+	 * Name of the file with the cursor.
+	 */
+	private static final String CURSOR_FILE = "cursor";
+
+	/**
+	 * End of a line.
+	 */
+	private static final byte NEWLINE = '\n';
+
+
+	/* === FIELDS === */
+
+	/**
+	 * Logger of the OGWAPI.
+	 */
+	private Logger logger;
+
+	/**
+	 * Directory of the spool.
+	 */
+	private File directory;
+
+	/**
+	 * Segments are rotated when they get larger than this (bytes).
+	 */
+	private long segmentSize;
+
+	/**
+	 * Sequence number of the segment being written.
+	 */
+	private long currentSegment;
+
+	/**
+	 * Segment being written, opened on the first append.
+	 */
+	private FileOutputStream output;
+
+	/**
+	 * Size of the segment being written.
+	 */
+	private long currentSize;
+
+	/**
+	 * Segment of the cursor - the first line that was not uploaded yet.
+	 */
+	private long cursorSegment;
+
+	/**
+	 * Offset of the cursor in its segment.
+	 */
+	private long cursorOffset;
+
+	/**
+	 * Segment the cursor moves to on commit.
+	 */
+	private long peekSegment;
+
+	/**
+	 * Offset the cursor moves to on commit.
+	 */
+	private long peekOffset;
+
+
+	/* === PUBLIC METHODS === */
+
+	/**
+	 * Constructor. Loads the cursor and starts a new segment.
+	 *
+	 * @param directory Directory of the spool, created if necessary.
+	 * @param segmentSize Segments are rotated when they get larger than this (bytes).
+	 * @param logger Logger of the OGWAPI.
+	 */
+	public CounterSpool(File directory, long segmentSize, Logger logger) {
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		this.logger = logger;
+
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			logger.warning("Counter spool directory " + directory + " could not be created.");
+		}
+
+		TreeMap<Long, File> segments = listSegments();
+
+		loadCursor();
+
+		// the uploaded segments are deleted, the numbering must not start again behind the cursor
+		currentSegment = segments.isEmpty() ? 0 : segments.lastKey() + 1;
+		currentSegment = Math.max(currentSegment, cursorSegment);
+		currentSize = 0;
+
+		// the segment of the cursor is gone, continue from the next one there is
+		if (!segments.containsKey(cursorSegment)) {
+			Long nextSegment = segments.ceilingKey(cursorSegment);
+			cursorSegment = nextSegment == null ? currentSegment : nextSegment;
+			cursorOffset = 0;
+		}
+
+		peekSegment = cursorSegment;
+		peekOffset = cursorOffset;
+
+		logger.fine("Counter spool " + directory + ": " + segments.size() + " segments waiting to be uploaded.");
+	}
+
+
+	/**
+	 * Appends lines to the spool and forces them to the disk.
+	 *
+	 * @param lines Lines to be appended, each a JSON object without line breaks.
+	 * @return True if the lines were written.
+	 */
+	public synchronized boolean append(List<String> lines) {
+
+		if (lines.isEmpty()) {
+			return true;
+		}
+
+		ByteArrayOutputStream batch = new ByteArrayOutputStream(lines.size() * 256);
+		for (String line : lines) {
+			byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+			batch.write(bytes, 0, bytes.length);
+			batch.write(NEWLINE);
+		}
+
+		try {
+			if (output == null) {
+				output = new FileOutputStream(segmentFile(currentSegment), true);
+			}
+
+			batch.writeTo(output);
+			output.getChannel().force(false);
+			currentSize += batch.size();
+
+			if (currentSize >= segmentSize) {
+				rotate();
+			}
+
+			return true;
+
+		} catch (IOException e) {
+			logger.warning("Counter spool " + directory + ": lines could not be written. Exception: " + e.getMessage());
+			return false;
+		}
+	}
+
+
+	/**
+	 * Reads lines from the cursor on, without moving it.
+	 *
+	 * @param maxLines Maximum number of lines to read.
+	 * @return Lines, possibly none.
+	 */
+	public synchronized List<String> peek(int maxLines) {
+
+		List<String> lines = new ArrayList<String>();
+
+		peekSegment = cursorSegment;
+		peekOffset = cursorOffset;
+
+		for (File segment : listSegments().tailMap(cursorSegment).values()) {
+
+			long sequence = parseSequence(segment.getName());
+			long offset = sequence == cursorSegment ? cursorOffset : 0;
+
+			try {
+				offset = readLines(segment, offset, lines, maxLines);
+			} catch (IOException e) {
+				logger.warning("Counter spool " + directory + ": segment " + segment.getName()
+						+ " could not be read. Exception: " + e.getMessage());
+				break;
+			}
+
+			peekSegment = sequence;
+			peekOffset = offset;
+
+			if (lines.size() >= maxLines || sequence >= currentSegment) {
+				break;
+			}
+
+			// the segment is complete, the cursor can move past it
+			peekSegment = sequence + 1;
+			peekOffset = 0;
+		}
+
+		return lines;
+	}
+
+
+	/**
+	 * Moves the cursor past the lines returned by the last {@link #peek(int) peek}, deleting the segments that were
+	 * uploaded completely.
+	 */
+	public synchronized void commit() {
+
+		cursorSegment = peekSegment;
+		cursorOffset = peekOffset;
+
+		saveCursor();
+
+		for (File segment : listSegments().headMap(cursorSegment).values()) {
+			if (!segment.delete()) {
+				logger.warning("Counter spool " + directory + ": segment " + segment.getName()
+						+ " could not be deleted.");
+			}
+		}
+	}
+
+
+	/**
+	 * Closes the segment being written.
+	 */
+	public synchronized void close() {
+
+		if (output == null) {
+			return;
+		}
+
+		try {
+			output.close();
+		} catch (IOException e) {
+			logger.warning("Counter spool " + directory + ": segment could not be closed. Exception: "
+					+ e.getMessage());
+		}
+
+		output = null;
+	}
+
+
+	/* === PRIVATE METHODS === */
+
+	/**
+	 * Closes the segment being written and starts a new one.
+	 *
+	 * @throws IOException If the segment can't be closed.
+	 */
+	private void rotate() throws IOException {
+
+		output.close();
+		output = null;
+
+		currentSegment++;
+		currentSize = 0;
+	}
+
+
+	/**
+	 * Reads complete lines of a segment, skipping those that are not JSON objects.
+	 *
+	 * @param segment Segment file.
+	 * @param offset Where to start.
+	 * @param lines Where to put the lines.
+	 * @param maxLines Maximum number of lines in the list.
+	 * @return Offset after the last complete line read.
+	 * @throws IOException If the file can't be read.
+	 */
+	private long readLines(File segment, long offset, List<String> lines, int maxLines) throws IOException {
+
+		try (InputStream input = new BufferedInputStream(new FileInputStream(segment))) {
+
+			long skipped = 0;
+			while (skipped < offset) {
+				long step = input.skip(offset - skipped);
+				if (step <= 0) {
+					return offset;
+				}
+				skipped += step;
+			}
+
+			ByteArrayOutputStream line = new ByteArrayOutputStream(256);
+			long position = offset;
+			long lineStart = offset;
+			int next;
+
+			while (lines.size() < maxLines && (next = input.read()) != -1) {
+
+				position++;
+
+				if (next != NEWLINE) {
+					line.write(next);
+					continue;
+				}
+
+				String text = new String(line.toByteArray(), StandardCharsets.UTF_8);
+				line.reset();
+				lineStart = position;
+
+				try {
+					JsonCodec.validateObject(text);
+					lines.add(text);
+				} catch (JsonException e) {
+					logger.warning("Counter spool " + directory + ": skipping a damaged line in " + segment.getName());
+				}
+			}
+
+			// an incomplete line at the end is left for later (or is a leftover of a crash)
+			return lineStart;
+		}
+	}
+
+
+	/**
+	 * Loads the cursor from its file, or starts from the beginning.
+	 */
+	private void loadCursor() {
+
+		cursorSegment = 0;
+		cursorOffset = 0;
+
+		File file = new File(directory, CURSOR_FILE);
+		if (!file.exists()) {
+			return;
+		}
+
+		try {
+			String[] cursor = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8).trim().split(" ");
+			cursorSegment = Long.parseLong(cursor[0]);
+			cursorOffset = Long.parseLong(cursor[1]);
+		} catch (IOException | RuntimeException e) {
+			logger.warning("Counter spool " + directory + ": cursor could not be loaded, uploading from the oldest "
+					+ "segment. Exception: " + e.getMessage());
+		}
+	}
+
+
+	/**
+	 * Stores the cursor, replacing its file atomically.
+	 */
+	private void saveCursor() {
+
+		File file = new File(directory, CURSOR_FILE);
+		File temporary = new File(directory, CURSOR_FILE + ".tmp");
+
+		try {
+			Files.write(temporary.toPath(), (cursorSegment + " " + cursorOffset).getBytes(StandardCharsets.UTF_8));
+			Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			logger.warning("Counter spool " + directory + ": cursor could not be saved. Exception: " + e.getMessage());
+		}
+	}
+
+
+	/**
+	 * Lists the segment files by their sequence numbers.
+	 *
+	 * @return Segments.
+	 */
+	private TreeMap<Long, File> listSegments() {
+
+		TreeMap<Long, File> segments = new TreeMap<Long, File>();
+
+		File[] files = directory.listFiles();
+		if (files == null) {
+			return segments;
+		}
+
+		for (File file : files) {
+			long sequence = parseSequence(file.getName());
+			if (sequence >= 0) {
+				segments.put(sequence, file);
+			}
+		}
+
+		return segments;
+	}
+
+
+	/**
+	 * File of a segment.
+	 *
+	 * @param sequence Sequence number of the segment.
+	 * @return The file.
+	 */
+	private File segmentFile(long sequence) {
+		return new File(directory, String.format("%s%010d%s", SEGMENT_PREFIX, sequence, SEGMENT_SUFFIX));
+	}
+
+
+	/**
+	 * Parses the sequence number out of a segment file name.
+	 *
+	 * @param name File name.
+	 * @return Sequence number, or -1 if it is not a segment.
+	 */
+	private long parseSequence(String name) {
+
+		if (!name.startsWith(SEGMENT_PREFIX) || !name.endsWith(SEGMENT_SUFFIX)) {
+			return -1;
+		}
+
+		try {
+			return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+}
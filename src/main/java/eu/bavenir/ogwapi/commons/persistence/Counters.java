@@ -6,13 +6,11 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStreamWriter;
-import java.io.StringReader;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.logging.Logger;
 
-import javax.json.Json;
 import javax.json.JsonArray;
 import javax.json.JsonObject;
 import javax.json.JsonReader;
@@ -20,11 +18,16 @@ import javax.json.JsonReader;
 import org.apache.commons.configuration2.XMLConfiguration;
 import org.apache.commons.io.IOUtils;
 
+import eu.bavenir.ogwapi.commons.JsonCodec;
+
 /**
  * Class for persisting counters between restarts.
  * Instance of this class exists in app -> MessageCounter.
  * 
  * On init if counter persisted data exists is loaded.
+ * 
+ * Counters are persisted by the {@link CounterSpool CounterSpool} now, the file stored here by older versions 
+ * is only loaded once and moved to the spool.
  *  
  * @author Jorge
  *
@@ -147,7 +150,7 @@ public class Counters {
                 String jsonTxt = IOUtils.toString(is, "UTF-8");
                 is.close();
                 
-                JsonReader jsonReader = Json.createReader(new StringReader(jsonTxt));
+                JsonReader jsonReader = JsonCodec.createReader(jsonTxt);
                 
                 try {
                 	raw = jsonReader.readArray();
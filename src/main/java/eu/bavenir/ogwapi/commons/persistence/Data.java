@@ -7,17 +7,16 @@ import java.util.List;
 import java.util.Set;
 import java.util.logging.Logger;
 
-import javax.json.Json;
 import javax.json.JsonArray;
+import javax.json.JsonArrayBuilder;
 import javax.json.JsonObject;
+import javax.json.JsonValue.ValueType;
 
 import org.apache.commons.configuration2.XMLConfiguration;
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
 
 import eu.bavenir.ogwapi.commons.Action;
 import eu.bavenir.ogwapi.commons.EventChannel;
+import eu.bavenir.ogwapi.commons.JsonCodec;
 import eu.bavenir.ogwapi.commons.Subscription;
 
 /*
@@ -245,23 +244,19 @@ public class Data implements Serializable {
 	 * @return all events channels that are active
 	 * From persisted channels in gateway 
 	 */
-	public JSONObject getEvents() {
+	public JsonObject getEvents() {
 		
-		JSONObject events = new JSONObject();
+		JsonArrayBuilder eventsArr = JsonCodec.createArrayBuilder();
 
 		if (providedEventChannels != null) {
-			JSONArray eventsArr = new JSONArray();
 			for (EventChannel eventChannel : providedEventChannels) {
 				if (eventChannel.isActive()) {
-					eventsArr.put(eventChannel.getEventId());
+					eventsArr.add(eventChannel.getEventId());
 				}
 			}
-			events.put("events", eventsArr);
-		} else {
-			events.put("events", new JSONArray());
 		}
 
-		return events;
+		return JsonCodec.createObjectBuilder().add("events", eventsArr).build();
 	}
 	
 	/**
@@ -274,12 +269,14 @@ public class Data implements Serializable {
 		JsonObject actions = null;
 		
 		if (thingDescription != null) {
-			try {
+			
+			if (thingDescription.containsKey("actions") 
+					&& thingDescription.get("actions").getValueType() == ValueType.ARRAY) {
 				
 				JsonArray actionsArr = thingDescription.getJsonArray("actions");
-				actions = Json.createObjectBuilder().add("actions", actionsArr).build();
+				actions = JsonCodec.createObjectBuilder().add("actions", actionsArr).build();
 			
-			} catch (JSONException e) {
+			} else {
 				
 				logger.info("There are no actions in TD for object: " + objectId);
 			}
@@ -297,12 +294,14 @@ public class Data implements Serializable {
 		JsonObject properties = null;
 		
 		if (thingDescription != null) {
-			try {
+			
+			if (thingDescription.containsKey("properties") 
+					&& thingDescription.get("properties").getValueType() == ValueType.ARRAY) {
 				
 				JsonArray propertiesArr = thingDescription.getJsonArray("properties");
-				properties = Json.createObjectBuilder().add("properties", propertiesArr).build();
+				properties = JsonCodec.createObjectBuilder().add("properties", propertiesArr).build();
 			
-			} catch (JSONException e) {
+			} else {
 				
 				logger.info("There are no properties in TD for object: " + objectId);
 			}
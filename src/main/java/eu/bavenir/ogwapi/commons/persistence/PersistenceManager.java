@@ -8,12 +8,10 @@ import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.OutputStream;
-import java.io.StringReader;
 import java.util.logging.Logger;
 import java.util.HashMap;
 import java.util.Map;
 
-import javax.json.Json;
 import javax.json.JsonObject;
 import javax.json.JsonReader;
 
@@ -21,9 +19,11 @@ import org.apache.commons.configuration2.XMLConfiguration;
 import org.apache.commons.io.IOUtils;
 import org.restlet.representation.Representation;
 
+import eu.bavenir.ogwapi.commons.JsonCodec;
 import eu.bavenir.ogwapi.commons.connectors.AgentConnector;
 import eu.bavenir.ogwapi.commons.messages.NetworkMessageResponse;
 import eu.bavenir.ogwapi.commons.connectors.http.RestAgentConnector;
+import eu.bavenir.ogwapi.commons.monitoring.events.PersistenceWriteEvent;
 
 /*
  * STRUCTURE:
@@ -236,6 +236,9 @@ public class PersistenceManager {
 		// get the file name 
 		String objectDataFileName = String.format(persistenceFile, objectId);
 		
+		PersistenceWriteEvent event = new PersistenceWriteEvent();
+		event.begin();
+		
 		// try to write data to file
 		try {
 			
@@ -248,10 +251,14 @@ public class PersistenceManager {
 			
 			logger.fine("Serialized data for " + objectId + " is saved in " + objectDataFileName );
 			
+			event.complete(objectId, objectDataFileName, true);
+			
 		} catch (IOException i) {
 			
 			logger.warning("Data for " + objectId + " could not be written to file. " + objectDataFileName );
 			i.printStackTrace();
+			
+			event.complete(objectId, objectDataFileName, false);
 		}
 	}
 	
@@ -306,7 +313,7 @@ public class PersistenceManager {
 		 };
 		 
 	// transform to standard JsonObject
-		JsonReader jsonReader = Json.createReader(new StringReader(jsonStr));
+		JsonReader jsonReader = JsonCodec.createReader(jsonStr);
 		JsonObject json;
 		
 		try {
@@ -15,6 +15,7 @@ import eu.bavenir.ogwapi.restapi.services.AgentsAgidObjects;
 import eu.bavenir.ogwapi.restapi.services.AgentsAgidObjectsDelete;
 import eu.bavenir.ogwapi.restapi.services.AgentsAgidObjectsUpdate;
 import eu.bavenir.ogwapi.restapi.services.EventsEid;
+import eu.bavenir.ogwapi.restapi.services.Metrics;
 import eu.bavenir.ogwapi.restapi.services.Objects;
 import eu.bavenir.ogwapi.restapi.services.ObjectsLogin;
 import eu.bavenir.ogwapi.restapi.services.ObjectsLogout;
@@ -38,6 +39,7 @@ import eu.bavenir.ogwapi.restapi.services.DiscoveryCommunityNodesCommid;
 import eu.bavenir.ogwapi.restapi.services.DiscoveryOrganisationItems;
 import eu.bavenir.ogwapi.restapi.services.DiscoveryContractItemsCtid;
 import eu.bavenir.ogwapi.commons.CommunicationManager;
+import eu.bavenir.ogwapi.commons.messages.TraceContext;
 import eu.bavenir.ogwapi.commons.monitoring.MessageCounter;
 
 
@@ -100,6 +102,26 @@ public class Api extends Application {
 	 */
 	private static final String CONF_DEF_AUTHMETHOD = "basic";
 	
+	/**
+	 * Name of the configuration parameter for serving the metrics at /api/metrics.
+	 */
+	private static final String CONF_PARAM_METRICS = "api.metrics";
+	
+	/**
+	 * Default value for serving the metrics.
+	 */
+	private static final boolean CONF_DEF_METRICS = false;
+	
+	/**
+	 * Name of the configuration parameter for serving the metrics without authentication.
+	 */
+	private static final String CONF_PARAM_METRICSANONYMOUS = "api.metricsAnonymous";
+	
+	/**
+	 * Default value for serving the metrics without authentication.
+	 */
+	private static final boolean CONF_DEF_METRICSANONYMOUS = false;
+	
 	
 	
 	
@@ -232,17 +254,52 @@ public class Api extends Application {
 		// get
 		router.attach("/security/contracts/{cid}", SecurityContracts.class); // Get contract info with some organisation
 
+		// METRICS
+		// get - behind the authentication like the rest, unless it is explicitly opened for the monitoring systems
+		boolean serveMetrics = config.getBoolean(CONF_PARAM_METRICS, CONF_DEF_METRICS);
+		boolean anonymousMetrics = config.getBoolean(CONF_PARAM_METRICSANONYMOUS, CONF_DEF_METRICSANONYMOUS);
+		
+		if (serveMetrics && !anonymousMetrics) {
+			
+			logger.config("Metrics are served at /api/metrics");
+			
+			router.attach("/metrics", Metrics.class);
+		}
+
 		// solve the question of API authentication
+		Restlet root = router;
 		if (useAuthentication){
 			// create authenticator
 			ChallengeAuthenticator authenticator = createAuthenticator();
 			
 			// enable authentication
 			authenticator.setNext(router);
-			return authenticator;
+			root = authenticator;
 		} 
 		
-		return router;
+		// mark the arrival of the calls for the traces of the requests they send, authentication is counted in
+		if (config.getBoolean(TraceContext.CONFIG_PARAM_TRACING, TraceContext.CONFIG_DEF_TRACING)) {
+			
+			logger.config("Requests sent over the network are traced.");
+			
+			TracingFilter tracingFilter = new TracingFilter(getContext());
+			tracingFilter.setNext(root);
+			root = tracingFilter;
+		}
+		
+		// served without authentication, so that monitoring systems can scrape it
+		if (serveMetrics && anonymousMetrics) {
+			
+			logger.config("Metrics are served at /api/metrics, without authentication");
+			
+			Router metricsRouter = new Router(getContext());
+			metricsRouter.attach("/metrics", Metrics.class);
+			metricsRouter.attachDefault(root);
+			
+			return metricsRouter;
+		}
+		
+		return root;
 	}
 
 	
@@ -0,0 +1,64 @@
+package eu.bavenir.ogwapi.restapi;
+
+import org.restlet.Context;
+import org.restlet.Request;
+import org.restlet.Response;
+import org.restlet.routing.Filter;
+
+import eu.bavenir.ogwapi.commons.messages.TraceContext;
+
+/*
+ * STRUCTURE:
+ * - constants
+ * - fields
+ * - public methods
+ * - private methods
+ */
+
+/**
+ * RESTLET filter that marks the arrival of each call at the Gateway API, for the
+ * {@link eu.bavenir.ogwapi.commons.messages.TraceContext traces} of the requests the call sends over the network. The
+ * call is handled by the same thread all the way to sending the request, so the time is handed over in a thread
+ * local variable.
+ *
+ * @author sulfo
+ *
+ */
+public class TracingFilter extends Filter {
+
+	/* === PUBLIC METHODS === */
+
+	/**
+	 * Constructor.
+	 *
+	 * @param context Application context.
+	 */
+	public TracingFilter(Context context) {
+		super(context);
+	}
+
+
+	/* === PRIVATE METHODS === */
+
+	/**
+	 * Marks the arrival of the call.
+	 */
+	@Override
+	protected int beforeHandle(Request request, Response response) {
+
+		TraceContext.markRestEntry();
+
+		return CONTINUE;
+	}
+
+
+	/**
+	 * Forgets the arrival, the thread goes on to handle other calls.
+	 */
+	@Override
+	protected void afterHandle(Request request, Response response) {
+
+		TraceContext.clearRestEntry();
+	}
+
+}
@@ -0,0 +1,52 @@
+package eu.bavenir.ogwapi.restapi.services;
+
+import org.restlet.data.MediaType;
+import org.restlet.representation.Representation;
+import org.restlet.representation.StringRepresentation;
+import org.restlet.resource.Get;
+import org.restlet.resource.ServerResource;
+
+import eu.bavenir.ogwapi.commons.monitoring.GatewayMetrics;
+
+
+/*
+ * STRUCTURE
+ * - constants
+ * - public methods overriding HTTP methods 
+ * - private methods
+ */
+
+
+/**
+ * This class implements a {@link org.restlet.resource.ServerResource ServerResource} interface for following
+ * Gateway API calls:
+ * 
+ *   URL: 				[server]:[port]/api/metrics
+ *   METHODS: 			GET
+ *   SPECIFICATION:		@see <a href="https://prometheus.io/docs/instrumenting/exposition_formats/">Prometheus 
+ *   					text format</a>
+ *
+ * @author sulfo
+ *
+ */
+public class Metrics extends ServerResource {
+	
+	// === CONSTANTS ===
+	
+	// === OVERRIDEN HTTP METHODS ===
+	
+	/**
+	 * Returns the metrics of the gateway, see {@link eu.bavenir.ogwapi.commons.monitoring.GatewayMetrics 
+	 * GatewayMetrics}.
+	 * 
+	 * @return Metrics in the Prometheus text format.
+	 */
+	@Get
+	public Representation represent() {
+		
+		return new StringRepresentation(GatewayMetrics.scrape(), MediaType.TEXT_PLAIN);
+	}
+	
+	// === PRIVATE METHODS ===
+	
+}
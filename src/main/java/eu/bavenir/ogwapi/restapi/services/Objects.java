@@ -1,11 +1,9 @@
 package eu.bavenir.ogwapi.restapi.services;
 
-import java.io.StringReader;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
 
-import javax.json.Json;
 import javax.json.JsonArray;
 import javax.json.JsonArrayBuilder;
 import javax.json.JsonObject;
@@ -18,6 +16,7 @@ import org.restlet.representation.Representation;
 import org.restlet.resource.Get;
 import org.restlet.resource.ServerResource;
 
+import eu.bavenir.ogwapi.commons.JsonCodec;
 import eu.bavenir.ogwapi.restapi.Api;
 import eu.bavenir.ogwapi.commons.CommunicationManager;
 import eu.bavenir.ogwapi.commons.messages.MessageResolver;
@@ -96,14 +95,14 @@ public class Objects extends ServerResource {
 		Set<String> rosterObjects = communicationManager.getRosterEntriesForObject(
 							getRequest().getChallengeResponse().getIdentifier());
 		
-		JsonObjectBuilder mainObjectBuilder = Json.createObjectBuilder();
-		JsonArrayBuilder mainArrayBuilder = Json.createArrayBuilder();
+		JsonObjectBuilder mainObjectBuilder = JsonCodec.createObjectBuilder();
+		JsonArrayBuilder mainArrayBuilder = JsonCodec.createArrayBuilder();
 		
 		
 		for (String entry : rosterObjects) {
 			
 			mainArrayBuilder.add(
-						Json.createObjectBuilder().add(ATTR_OID, entry)
+						JsonCodec.createObjectBuilder().add(ATTR_OID, entry)
 					);
 		}
 		
@@ -125,7 +124,7 @@ public class Objects extends ServerResource {
 		}
 		
 		// make a JSON from the incoming String - any string that is not a valid JSON will throw exception
-		JsonReader jsonReader = Json.createReader(new StringReader(jsonString));
+		JsonReader jsonReader = JsonCodec.createReader(jsonString);
 		
 		JsonArray json;
 		
@@ -0,0 +1,380 @@
+package eu.bavenir.ogwapi.commons;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+
+import org.apache.commons.configuration2.XMLConfiguration;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpServer;
+
+import eu.bavenir.ogwapi.commons.messages.NetworkMessage;
+import eu.bavenir.ogwapi.commons.messages.NetworkMessageEvent;
+import eu.bavenir.ogwapi.commons.messages.NetworkMessageRequest;
+import eu.bavenir.ogwapi.commons.messages.NetworkMessageResponse;
+import eu.bavenir.ogwapi.commons.messages.StatusMessage;
+import eu.bavenir.ogwapi.commons.monitoring.GatewayMetrics;
+import eu.bavenir.ogwapi.commons.monitoring.MessageCounter;
+
+/**
+ * The filter {@link ConnectionDescriptor ConnectionDescriptor} applies to incoming messages before their bodies are
+ * read. Two objects on two gateways talk through the loopback engine and both of them are served by one Agent.
+ */
+public class ConnectionDescriptorTest {
+
+	private static final String OBJECT_A = "descriptor-test-a";
+
+	private static final String OBJECT_B = "descriptor-test-b";
+
+	private static final String EVENT_ID = "alarm";
+
+	private static final long TIMEOUT = 5000;
+
+	private static HttpServer agent;
+
+	private static BlockingQueue<String> agentCalls;
+
+	private static File dataDirectory;
+
+	private Logger logger;
+
+	private XMLConfiguration config;
+
+	private ConnectionDescriptor descriptorA;
+
+	private ConnectionDescriptor descriptorB;
+
+
+	/**
+	 * The Agent and the data directory outlive the single tests, as the Agent endpoint is resolved once per JVM.
+	 */
+	@BeforeClass
+	public static void startAgent() throws IOException {
+
+		agentCalls = new LinkedBlockingQueue<String>();
+
+		// answers everything with a value, the slow property only after two seconds
+		agent = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		agent.createContext("/", exchange -> {
+			String call = exchange.getRequestMethod() + " " + exchange.getRequestURI().getPath();
+			agentCalls.add(call);
+
+			if (call.endsWith("/properties/slow")) {
+				try {
+					Thread.sleep(2000);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+
+			byte[] body = "{\"value\":1}".getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders().add("Content-Type", "application/json");
+			exchange.sendResponseHeaders(200, body.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(body);
+			}
+		});
+		agent.start();
+
+		dataDirectory = Files.createTempDirectory("ogwapi-descriptor-test").toFile();
+	}
+
+
+	@AfterClass
+	public static void stopAgent() throws IOException {
+
+		agent.stop(0);
+
+		try (Stream<Path> paths = Files.walk(dataDirectory.toPath())) {
+			paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+		}
+	}
+
+
+	@Before
+	public void setUp() {
+
+		logger = Logger.getLogger(ConnectionDescriptorTest.class.getName());
+		logger.setLevel(Level.OFF);
+
+		agentCalls.clear();
+
+		config = new XMLConfiguration();
+		config.addProperty("general.neighbourhoodManagerServer", "localhost");
+		config.addProperty("general.neighourhoodManagerPort", 1);
+		config.addProperty("general.sessionRecovery", "none");
+		config.addProperty("general.dataDirectory", dataDirectory.getAbsolutePath() + File.separator);
+		config.addProperty("general.communicationEngine", "loopback");
+		config.addProperty("general.requestMessageTimeout", 6);
+		config.addProperty("loopback.testMode", true);
+		config.addProperty("loopback.roster", "open");
+		config.addProperty("connector.restAgentConnector.agent", "localhost");
+		config.addProperty("connector.restAgentConnector.agentPort", agent.getAddress().getPort());
+		config.addProperty("connector.restAgentConnector.healthCheckInterval", 0);
+
+		MessageCounter messageCounter = new MessageCounter(config, logger);
+
+		// separate managers, so the messages go through the engine and not the local shortcut
+		descriptorA = new ConnectionDescriptor(OBJECT_A, "password", config, logger,
+				new CommunicationManager(config, logger, messageCounter), messageCounter);
+		descriptorB = new ConnectionDescriptor(OBJECT_B, "password", config, logger,
+				new CommunicationManager(config, logger, messageCounter), messageCounter);
+
+		assertTrue(descriptorA.connect());
+		assertTrue(descriptorB.connect());
+	}
+
+
+	@After
+	public void tearDown() {
+
+		descriptorA.destroy();
+		descriptorB.destroy();
+	}
+
+
+	@Test
+	public void awaitedResponseIsDelivered() {
+
+		StatusMessage status = descriptorA.getPropertyOfRemoteObject(OBJECT_B, "temperature",
+				new HashMap<String, String>(), null);
+
+		assertFalse(status.getStatusCodeReason(), status.isError());
+		assertEquals(0, descriptorA.getQueuedMessages());
+	}
+
+
+	@Test
+	public void responseNobodyWaitsForIsDiscarded() {
+
+		descriptorA.processIncommingMessage(OBJECT_B, response(OBJECT_B, OBJECT_A, 4242).buildMessageString());
+
+		assertEquals(0, descriptorA.getQueuedMessages());
+	}
+
+
+	@Test
+	public void lateResponseIsDiscarded() throws InterruptedException {
+
+		config.setProperty("general.requestMessageTimeout", 1);
+
+		StatusMessage status = descriptorA.getPropertyOfRemoteObject(OBJECT_B, "slow",
+				new HashMap<String, String>(), null);
+
+		// timed out
+		assertTrue(status.isError());
+
+		// the Agent answers after the requester gave up, the response must not stay in the queue
+		Thread.sleep(2500);
+		assertEquals(0, descriptorA.getQueuedMessages());
+	}
+
+
+	@Test
+	public void requestFromOutsideTheRosterIsRejected() throws InterruptedException {
+
+		NetworkMessageRequest request = new NetworkMessageRequest(config, logger);
+		request.setRequestOperation(NetworkMessageRequest.OPERATION_GETPROPERTYVALUE);
+		request.setSourceOid("stranger");
+		request.setDestinationOid(OBJECT_A);
+		request.getAttributes().put(NetworkMessageRequest.ATTR_PID, "temperature");
+
+		descriptorA.processIncommingMessage("stranger", request.buildMessageString());
+
+		assertNull(agentCalls.poll(200, TimeUnit.MILLISECONDS));
+	}
+
+
+	@Test
+	public void compressedMessageFromOutsideTheRosterIsNotInflated() throws InterruptedException {
+
+		long dropped = droppedNotInRoster();
+
+		descriptorA.processIncommingMessage("stranger", compress(request("stranger", OBJECT_A)));
+
+		assertEquals(dropped + 1, droppedNotInRoster());
+		assertNull(agentCalls.poll(200, TimeUnit.MILLISECONDS));
+	}
+
+
+	@Test
+	public void compressedRequestFromTheRosterIsProcessed() throws InterruptedException {
+
+		long dropped = droppedNotInRoster();
+
+		descriptorA.processIncommingMessage(OBJECT_B, compress(request(OBJECT_B, OBJECT_A)));
+
+		assertEquals("GET /agent/objects/" + OBJECT_A + "/properties/temperature", nextAgentCall());
+		assertEquals(dropped, droppedNotInRoster());
+	}
+
+
+	@Test
+	public void messageWithForgedSourceIsRejected() throws InterruptedException {
+
+		NetworkMessageRequest request = new NetworkMessageRequest(config, logger);
+		request.setRequestOperation(NetworkMessageRequest.OPERATION_GETPROPERTYVALUE);
+		request.setSourceOid(OBJECT_A);
+		request.setDestinationOid(OBJECT_B);
+		request.getAttributes().put(NetworkMessageRequest.ATTR_PID, "temperature");
+
+		// b claims to be a, writing to itself
+		descriptorB.processIncommingMessage(OBJECT_B, request.buildMessageString());
+
+		assertNull(agentCalls.poll(200, TimeUnit.MILLISECONDS));
+	}
+
+
+	@Test
+	public void acknowledgementsOfQosTwoEventsAreAccepted() throws InterruptedException {
+
+		subscribeAToEventsOfB(2);
+
+		StatusMessage status = descriptorB.sendEventToSubscribers(EVENT_ID, "{\"level\":3}",
+				new HashMap<String, String>());
+
+		assertFalse(status.getStatusCodeReason(), status.isError());
+		assertTrue(status.getStatusCodeReason(), status.getStatusCodeReason().contains("1 acknowledgements arrived"));
+		assertEquals("PUT /agent/objects/" + OBJECT_A + "/events/" + EVENT_ID,
+				nextAgentCall());
+		assertEquals(0, descriptorB.getQueuedMessages());
+	}
+
+
+	@Test
+	public void acknowledgementsOfQosOneEventsAreDiscarded() throws InterruptedException {
+
+		subscribeAToEventsOfB(1);
+
+		NetworkMessageEvent event = new NetworkMessageEvent(config, OBJECT_B, EVENT_ID, "{}",
+				new HashMap<String, String>(), logger);
+		event.generateRequestId();
+
+		// an acknowledgement nobody asked for
+		descriptorB.processIncommingMessage(OBJECT_A, response(OBJECT_A, OBJECT_B, event.getRequestId())
+				.buildMessageString());
+
+		assertEquals(0, descriptorB.getQueuedMessages());
+	}
+
+
+	@Test
+	public void eventWithTrailingRequestIdIsForwarded() throws InterruptedException {
+
+		subscribeAToEventsOfB(1);
+
+		// the request ID follows the body, so the header filter sees 0 and must not take it for a response
+		String event = "{\"" + NetworkMessage.ATTR_MESSAGETYPE + "\":" + NetworkMessageEvent.MESSAGE_TYPE
+				+ ",\"" + NetworkMessage.ATTR_SOURCEOID + "\":\"" + OBJECT_B + "\""
+				+ ",\"eid\":\"" + EVENT_ID + "\",\"body\":\"{}\",\"parameters\":{}"
+				+ ",\"" + NetworkMessage.ATTR_REQUESTID + "\":77}";
+
+		descriptorA.processIncommingMessage(OBJECT_B, event);
+
+		assertEquals("PUT /agent/objects/" + OBJECT_A + "/events/" + EVENT_ID,
+				nextAgentCall());
+	}
+
+
+	private void subscribeAToEventsOfB(int qos) throws InterruptedException {
+
+		Map<String, String> parameters = new HashMap<String, String>();
+		parameters.put("qos", String.valueOf(qos));
+
+		assertFalse(descriptorB.setLocalEventChannelStatus(EVENT_ID, true, parameters, null).isError());
+		// the subscriber sends acknowledgements when it subscribes with the same QoS
+		assertFalse(descriptorA.subscribeToEventChannel(OBJECT_B, EVENT_ID, new HashMap<String, String>(parameters), 
+				null).isError());
+
+		agentCalls.clear();
+	}
+
+
+	private String request(String sourceOid, String destinationOid) {
+
+		NetworkMessageRequest request = new NetworkMessageRequest(config, logger);
+		request.setRequestOperation(NetworkMessageRequest.OPERATION_GETPROPERTYVALUE);
+		request.setSourceOid(sourceOid);
+		request.setDestinationOid(destinationOid);
+		request.getAttributes().put(NetworkMessageRequest.ATTR_PID, "temperature");
+
+		return request.buildMessageString();
+	}
+
+
+	/**
+	 * Compresses a message the way another gateway would.
+	 */
+	private String compress(String message) {
+
+		Deflater deflater = new Deflater();
+		deflater.setInput(message.getBytes(StandardCharsets.UTF_8));
+		deflater.finish();
+
+		byte[] buffer = new byte[message.length() + 64];
+		int length = deflater.deflate(buffer);
+		deflater.end();
+
+		return "~deflate:" + Base64.getEncoder().encodeToString(Arrays.copyOf(buffer, length));
+	}
+
+
+	private long droppedNotInRoster() {
+
+		String sample = "ogwapi_messages_dropped_total{reason=\"notInRoster\"} ";
+
+		for (String line : GatewayMetrics.scrape().split("\n")) {
+			if (line.startsWith(sample)) {
+				return (long) Double.parseDouble(line.substring(sample.length()));
+			}
+		}
+
+		return 0;
+	}
+
+
+	private String nextAgentCall() throws InterruptedException {
+		return agentCalls.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+	}
+
+
+	private NetworkMessageResponse response(String sourceOid, String destinationOid, int requestId) {
+
+		NetworkMessageResponse response = new NetworkMessageResponse(config, logger);
+		response.setRequestId(requestId);
+		response.setSourceOid(sourceOid);
+		response.setDestinationOid(destinationOid);
+		response.setResponseCode(200);
+		response.setResponseCodeReason("OK");
+		response.setContentType("application/json");
+		response.setResponseBody("{\"value\":1}");
+
+		return response;
+	}
+}
@@ -0,0 +1,114 @@
+package eu.bavenir.ogwapi.commons.connectors.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+
+/**
+ * Balancing policies of {@link AgentEndpointPool AgentEndpointPool}.
+ */
+public class AgentEndpointPoolTest {
+
+	private final AgentEndpoint first = new AgentEndpoint("http://first:9997/agent");
+
+	private final AgentEndpoint second = new AgentEndpoint("http://second:9997/agent");
+
+	private final AgentEndpoint third = new AgentEndpoint("http://third:9997/agent");
+
+	private final List<AgentEndpoint> endpoints = Arrays.asList(first, second, third);
+
+
+	@Test
+	public void roundRobinVisitsAllEndpointsInTurn() {
+
+		AgentEndpointPool pool = new AgentEndpointPool(endpoints, AgentEndpointPool.POLICY_ROUNDROBIN);
+
+		assertSame(first, pool.selectEndpoint());
+		assertSame(second, pool.selectEndpoint());
+		assertSame(third, pool.selectEndpoint());
+		assertSame(first, pool.selectEndpoint());
+	}
+
+
+	@Test
+	public void roundRobinSkipsUnhealthyEndpoints() {
+
+		AgentEndpointPool pool = new AgentEndpointPool(endpoints, AgentEndpointPool.POLICY_ROUNDROBIN);
+		second.setHealthy(false);
+
+		Set<AgentEndpoint> selected = new HashSet<AgentEndpoint>();
+		for (int i = 0; i < 10; i++) {
+			selected.add(pool.selectEndpoint());
+		}
+
+		assertEquals(new HashSet<AgentEndpoint>(Arrays.asList(first, third)), selected);
+	}
+
+
+	@Test
+	public void allEndpointsAreTriedWhenNoneIsHealthy() {
+
+		AgentEndpointPool pool = new AgentEndpointPool(endpoints, AgentEndpointPool.POLICY_ROUNDROBIN);
+		for (AgentEndpoint endpoint : endpoints) {
+			endpoint.setHealthy(false);
+		}
+
+		Set<AgentEndpoint> selected = new HashSet<AgentEndpoint>();
+		for (int i = 0; i < 10; i++) {
+			selected.add(pool.selectEndpoint());
+		}
+
+		assertEquals(new HashSet<AgentEndpoint>(endpoints), selected);
+	}
+
+
+	@Test
+	public void leastOutstandingPrefersTheLeastBusyEndpoint() {
+
+		AgentEndpointPool pool = new AgentEndpointPool(endpoints, AgentEndpointPool.POLICY_LEASTOUTSTANDING);
+
+		first.requestStarted();
+		first.requestStarted();
+		second.requestStarted();
+
+		assertSame(third, pool.selectEndpoint());
+
+		third.requestStarted();
+		third.requestStarted();
+
+		assertSame(second, pool.selectEndpoint());
+
+		second.requestFinished();
+
+		assertSame(second, pool.selectEndpoint());
+	}
+
+
+	@Test
+	public void leastOutstandingSkipsUnhealthyEndpoints() {
+
+		AgentEndpointPool pool = new AgentEndpointPool(endpoints, AgentEndpointPool.POLICY_LEASTOUTSTANDING);
+
+		first.requestStarted();
+		second.requestStarted();
+		third.setHealthy(false);
+
+		assertSame(first, pool.selectEndpoint());
+	}
+
+
+	@Test
+	public void singleEndpointIsAlwaysUsed() {
+
+		AgentEndpointPool pool = new AgentEndpointPool(Arrays.asList(first), AgentEndpointPool.POLICY_LEASTOUTSTANDING);
+		first.setHealthy(false);
+
+		assertSame(first, pool.selectEndpoint());
+	}
+}
@@ -0,0 +1,238 @@
+package eu.bavenir.ogwapi.commons.connectors.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.configuration2.XMLConfiguration;
+import org.apache.commons.configuration2.ex.ConfigurationException;
+import org.apache.commons.configuration2.io.FileHandler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpServer;
+
+import eu.bavenir.ogwapi.commons.GatewayScheduler;
+
+/**
+ * Routing and health checks of {@link AgentRouter AgentRouter}.
+ */
+public class AgentRouterTest {
+
+	private Logger logger;
+
+	private HttpServer liveAgent;
+
+	private List<ServerSocket> deadAgents;
+
+
+	@Before
+	public void setUp() throws IOException {
+
+		logger = Logger.getLogger(AgentRouterTest.class.getName());
+		logger.setLevel(Level.OFF);
+
+		// answers 404 to everything, which is alive enough
+		liveAgent = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		liveAgent.start();
+
+		deadAgents = new ArrayList<ServerSocket>();
+	}
+
+
+	@After
+	public void tearDown() throws IOException {
+
+		liveAgent.stop(0);
+
+		for (ServerSocket deadAgent : deadAgents) {
+			deadAgent.close();
+		}
+	}
+
+
+	@Test
+	public void destinationsAreRoutedByTheLongestPrefix() throws ConfigurationException {
+
+		AgentRouter router = new AgentRouter(config(
+				"<agent>default</agent><agentPort>1000</agentPort>"
+				+ "<routes>"
+				+ "<route><match>a</match><endpoint>short:1001</endpoint></route>"
+				+ "<route><match>abc</match><match>x</match><endpoint>long:1002</endpoint></route>"
+				+ "</routes>"), logger, false, null);
+
+		assertEquals("http://long:1002/agent", router.selectEndpoint("abcdef").getServiceUrl());
+		assertEquals("http://short:1001/agent", router.selectEndpoint("abx").getServiceUrl());
+		assertEquals("http://long:1002/agent", router.selectEndpoint("xyz").getServiceUrl());
+		assertEquals("http://default:1000/agent", router.selectEndpoint("other").getServiceUrl());
+		assertEquals("http://default:1000/agent", router.selectEndpoint(null).getServiceUrl());
+	}
+
+
+	@Test
+	public void replicasOfTheDefaultAgentShareTheLoad() throws ConfigurationException {
+
+		AgentRouter router = new AgentRouter(config(
+				"<agent>localhost</agent><agentPort>1000</agentPort>"
+				+ "<replicas><endpoint>localhost:1001</endpoint></replicas>"), logger, true, null);
+
+		assertEquals("https://localhost:1000/agent", router.selectEndpoint("oid").getServiceUrl());
+		assertEquals("https://localhost:1001/agent", router.selectEndpoint("oid").getServiceUrl());
+	}
+
+
+	@Test
+	public void checkingBatchSupportDoesNotTakeATurn() throws ConfigurationException {
+
+		AgentRouter router = new AgentRouter(config(
+				"<agent>localhost</agent><agentPort>1000</agentPort>"
+				+ "<replicas><endpoint>localhost:1001</endpoint></replicas>"), logger, false, null);
+
+		for (int i = 0; i < 4; i++) {
+			assertTrue(router.isBatchSupported("oid"));
+			assertEquals("http://localhost:" + (1000 + i % 2) + "/agent", router.selectEndpoint("oid").getServiceUrl());
+		}
+
+		// one replica refusing them is not enough, the other can still serve batches
+		router.selectEndpoint("oid").setBatchSupported(false);
+		assertTrue(router.isBatchSupported("oid"));
+
+		router.selectEndpoint("oid").setBatchSupported(false);
+		assertFalse(router.isBatchSupported("oid"));
+	}
+
+
+	@Test
+	public void deadEndpointsDoNotDelayTheHealthChecksOfOthers() throws Exception {
+
+		// each dead Agent accepts connections and never answers
+		StringBuilder replicas = new StringBuilder();
+		for (int i = 0; i < 3; i++) {
+			ServerSocket deadAgent = new ServerSocket(0);
+			deadAgents.add(deadAgent);
+			replicas.append("<endpoint>localhost:").append(deadAgent.getLocalPort()).append("</endpoint>");
+		}
+
+		AgentRouter router = new AgentRouter(config(
+				"<agent>localhost</agent><agentPort>" + liveAgent.getAddress().getPort() + "</agentPort>"
+				+ "<replicas>" + replicas + "</replicas>"
+				+ "<healthCheckTimeout>1</healthCheckTimeout>"), logger, false, null);
+
+		AgentEndpoint live = router.selectEndpoint(null);
+		live.setHealthy(false);
+
+		long start = System.nanoTime();
+
+		for (Future<?> check : router.checkHealth()) {
+			check.get();
+		}
+
+		long elapsedMillis = (System.nanoTime() - start) / 1000000;
+
+		// sequential checks would take at least 3 timeouts
+		assertTrue("Health checks took " + elapsedMillis + " ms.", elapsedMillis < 2500);
+
+		assertTrue(live.isHealthy());
+
+		for (int i = 0; i < 3; i++) {
+			AgentEndpoint endpoint = router.selectEndpoint(null);
+			assertEquals(live, endpoint);
+		}
+
+		router.stop();
+	}
+
+
+	@Test
+	public void checkInProgressIsNotStartedAgain() throws Exception {
+
+		ServerSocket deadAgent = new ServerSocket(0);
+		deadAgents.add(deadAgent);
+
+		AgentRouter router = new AgentRouter(config(
+				"<agent>localhost</agent><agentPort>" + deadAgent.getLocalPort() + "</agentPort>"
+				+ "<healthCheckTimeout>1</healthCheckTimeout>"), logger, false, null);
+
+		List<Future<?>> checks = router.checkHealth();
+
+		assertEquals(1, checks.size());
+		assertTrue(router.checkHealth().isEmpty());
+
+		checks.get(0).get();
+
+		assertFalse(router.selectEndpoint(null).isHealthy());
+
+		checks = router.checkHealth();
+		assertEquals(1, checks.size());
+		checks.get(0).get();
+	}
+
+
+	@Test
+	public void healthChecksDoNotWaitForBusyAgentThreads() throws Exception {
+
+		AgentRouter router = new AgentRouter(config(
+				"<agent>localhost</agent><agentPort>" + liveAgent.getAddress().getPort() + "</agentPort>"
+				+ "<healthCheckTimeout>1</healthCheckTimeout>"), logger, false, null);
+
+		AgentEndpoint live = router.selectEndpoint(null);
+		live.setHealthy(false);
+
+		// more slow Agent calls than there are Agent threads
+		CountDownLatch release = new CountDownLatch(1);
+		List<Future<?>> agentCalls = new ArrayList<Future<?>>();
+
+		for (int i = 0; i < 256; i++) {
+			agentCalls.add(GatewayScheduler.executeAgentCall(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						release.await();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			}));
+		}
+
+		try {
+			for (Future<?> check : router.checkHealth()) {
+				check.get(5, TimeUnit.SECONDS);
+			}
+
+			assertTrue(live.isHealthy());
+		} finally {
+			release.countDown();
+			router.stop();
+		}
+
+		for (Future<?> agentCall : agentCalls) {
+			agentCall.get();
+		}
+	}
+
+
+	private XMLConfiguration config(String connector) throws ConfigurationException {
+
+		XMLConfiguration config = new XMLConfiguration();
+
+		new FileHandler(config).load(new StringReader("<ogwapi><connector><restAgentConnector>"
+				+ "<healthCheckInterval>0</healthCheckInterval>" + connector
+				+ "</restAgentConnector></connector></ogwapi>"));
+
+		return config;
+	}
+}
@@ -0,0 +1,220 @@
+package eu.bavenir.ogwapi.commons.connectors.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.configuration2.XMLConfiguration;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import eu.bavenir.ogwapi.commons.messages.NetworkMessageResponse;
+
+/**
+ * Batching of property reads in {@link RestAgentConnector RestAgentConnector} - reads that do not overlap go to the
+ * Agent right away, concurrent ones are merged.
+ */
+public class PropertyReadBatchingTest {
+
+	private static final String OBJECT = "object";
+
+	/**
+	 * How long the Agent takes to answer a read, in milliseconds.
+	 */
+	private static final long AGENT_DELAY = 300;
+
+	private static final Pattern PROPERTY_PATTERN = Pattern.compile("\"([^\"]+)\"");
+
+	private static HttpServer agent;
+
+	private static RestAgentConnector connector;
+
+	private static AtomicInteger singleReads = new AtomicInteger();
+
+	private static AtomicInteger batchReads = new AtomicInteger();
+
+
+	@BeforeClass
+	public static void startAgent() throws IOException {
+
+		agent = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		agent.setExecutor(Executors.newCachedThreadPool());
+		agent.createContext("/agent/objects/", PropertyReadBatchingTest::answer);
+		agent.start();
+
+		XMLConfiguration config = new XMLConfiguration();
+		config.addProperty("connector.restAgentConnector.agent", "localhost");
+		config.addProperty("connector.restAgentConnector.agentPort", agent.getAddress().getPort());
+		config.addProperty("connector.restAgentConnector.healthCheckInterval", 0);
+		config.addProperty("connector.restAgentConnector.batchPropertyReads", true);
+
+		Logger logger = Logger.getLogger(PropertyReadBatchingTest.class.getName());
+		logger.setLevel(Level.OFF);
+
+		connector = new RestAgentConnector(config, logger);
+	}
+
+
+	@AfterClass
+	public static void stopAgent() {
+		agent.stop(0);
+	}
+
+
+	@Before
+	public void resetCounters() {
+		singleReads.set(0);
+		batchReads.set(0);
+	}
+
+
+	@Test
+	public void readsOneAfterAnotherAreNotDelayed() {
+
+		long start = System.nanoTime();
+
+		for (int i = 0; i < 3; i++) {
+			assertEquals("{\"value\":\"p" + i + "\"}", read("p" + i).getResponseBody());
+		}
+
+		long elapsedMillis = (System.nanoTime() - start) / 1000000;
+
+		assertEquals(3, singleReads.get());
+		assertEquals(0, batchReads.get());
+		assertTrue("Reads took " + elapsedMillis + " ms.", elapsedMillis < 4 * AGENT_DELAY);
+	}
+
+
+	@Test
+	public void concurrentReadsAreMerged() throws Exception {
+
+		// the first read keeps the Agent busy, the others arrive meanwhile
+		List<Future<NetworkMessageResponse>> reads = readConcurrently("p0", "p1", "p2", "p3");
+
+		for (int i = 0; i < reads.size(); i++) {
+			assertEquals("{\"value\":\"p" + i + "\"}", reads.get(i).get().getResponseBody());
+		}
+
+		assertEquals(1, singleReads.get());
+		assertEquals(1, batchReads.get());
+	}
+
+
+	@Test
+	public void concurrentReadsOfOnePropertyGetTheirOwnResponses() throws Exception {
+
+		List<Future<NetworkMessageResponse>> reads = readConcurrently("p0", "p1", "p1", "p1");
+
+		List<NetworkMessageResponse> responses = new ArrayList<NetworkMessageResponse>();
+		for (Future<NetworkMessageResponse> read : reads) {
+			responses.add(read.get());
+		}
+
+		for (int i = 1; i < responses.size(); i++) {
+			assertEquals("{\"value\":\"p1\"}", responses.get(i).getResponseBody());
+
+			for (int j = 1; j < i; j++) {
+				assertNotSame(responses.get(i), responses.get(j));
+			}
+		}
+
+		// one property in the batch is read the usual way
+		assertEquals(2, singleReads.get());
+		assertEquals(0, batchReads.get());
+	}
+
+
+	private static NetworkMessageResponse read(String propertyId) {
+		return connector.getObjectProperty("source", OBJECT, propertyId, null, new HashMap<String, String>());
+	}
+
+
+	private static List<Future<NetworkMessageResponse>> readConcurrently(String first, String... others)
+			throws InterruptedException {
+
+		ExecutorService readers = Executors.newCachedThreadPool();
+		List<Future<NetworkMessageResponse>> reads = new ArrayList<Future<NetworkMessageResponse>>();
+
+		reads.add(readers.submit(reader(first)));
+		Thread.sleep(AGENT_DELAY / 3);
+
+		for (String propertyId : others) {
+			reads.add(readers.submit(reader(propertyId)));
+		}
+
+		readers.shutdown();
+
+		return reads;
+	}
+
+
+	private static Callable<NetworkMessageResponse> reader(String propertyId) {
+		return () -> read(propertyId);
+	}
+
+
+	private static void answer(HttpExchange exchange) throws IOException {
+
+		String path = exchange.getRequestURI().getPath();
+		String body;
+
+		try (InputStream input = exchange.getRequestBody()) {
+			body = new String(input.readAllBytes(), StandardCharsets.UTF_8);
+		}
+
+		String answer;
+
+		if (exchange.getRequestMethod().equals("POST")) {
+			batchReads.incrementAndGet();
+
+			StringBuilder results = new StringBuilder("{");
+			Matcher matcher = PROPERTY_PATTERN.matcher(body.substring(body.indexOf('[')));
+			while (matcher.find()) {
+				results.append(results.length() > 1 ? "," : "").append('"').append(matcher.group(1))
+						.append("\":{\"value\":\"").append(matcher.group(1)).append("\"}");
+			}
+			answer = results.append('}').toString();
+
+		} else {
+			singleReads.incrementAndGet();
+			answer = "{\"value\":\"" + path.substring(path.lastIndexOf('/') + 1) + "\"}";
+		}
+
+		try {
+			Thread.sleep(AGENT_DELAY);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		byte[] bytes = answer.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "application/json");
+		exchange.sendResponseHeaders(200, bytes.length);
+
+		try (OutputStream output = exchange.getResponseBody()) {
+			output.write(bytes);
+		}
+	}
+}
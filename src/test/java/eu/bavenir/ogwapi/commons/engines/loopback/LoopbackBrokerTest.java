@@ -0,0 +1,156 @@
+package eu.bavenir.ogwapi.commons.engines.loopback;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.configuration2.XMLConfiguration;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Who may connect to the {@link LoopbackBroker LoopbackBroker}, outside of the test mode and in it, and the order the
+ * messages arrive in.
+ */
+public class LoopbackBrokerTest {
+
+	private Logger logger;
+
+	private LoopbackEngine engine;
+
+
+	@Before
+	public void setUp() {
+
+		logger = Logger.getLogger(LoopbackBrokerTest.class.getName());
+		logger.setLevel(Level.OFF);
+
+		// the engine is only handed to the broker, it never connects
+		engine = new LoopbackEngine("any", "any", config(), logger, null);
+	}
+
+
+	@Test
+	public void configuredObjectConnectsWithItsPassword() {
+
+		XMLConfiguration config = config();
+		addObject(config, "thermometer", "secret");
+
+		LoopbackBroker broker = new LoopbackBroker(config, logger);
+
+		assertTrue(broker.register("thermometer", "secret", engine));
+	}
+
+
+	@Test
+	public void configuredObjectIsRejectedWithAnotherPassword() {
+
+		XMLConfiguration config = config();
+		addObject(config, "thermometer", "secret");
+
+		LoopbackBroker broker = new LoopbackBroker(config, logger);
+
+		assertFalse(broker.register("thermometer", "guess", engine));
+	}
+
+
+	@Test
+	public void objectWithoutPasswordIsRejected() {
+
+		XMLConfiguration config = config();
+		addObject(config, "thermometer", null);
+
+		LoopbackBroker broker = new LoopbackBroker(config, logger);
+
+		assertFalse(broker.register("thermometer", "guess", engine));
+	}
+
+
+	@Test
+	public void openRosterNeedsTheTestMode() {
+
+		XMLConfiguration config = config();
+		config.addProperty("loopback.roster", "open");
+
+		LoopbackBroker broker = new LoopbackBroker(config, logger);
+
+		assertFalse(broker.register("stranger", "guess", engine));
+	}
+
+
+	@Test
+	public void testModeTrustsTheFirstPassword() {
+
+		XMLConfiguration config = config();
+		config.addProperty("loopback.roster", "open");
+		config.addProperty("loopback.testMode", true);
+
+		LoopbackBroker broker = new LoopbackBroker(config, logger);
+
+		assertTrue(broker.register("stranger", "first", engine));
+		assertTrue(broker.register("stranger", "first", engine));
+		assertFalse(broker.register("stranger", "second", engine));
+	}
+
+
+	@Test
+	public void messagesOfOneSourceArriveInOrderDespiteTheJitter() throws InterruptedException {
+
+		XMLConfiguration config = config();
+		addObject(config, "thermometer", "secret");
+		addObject(config, "display", "secret");
+
+		LoopbackBroker broker = new LoopbackBroker(config, logger);
+
+		List<String> received = Collections.synchronizedList(new ArrayList<String>());
+		LoopbackEngine display = new LoopbackEngine("display", "secret", config, logger, null) {
+			@Override
+			public void processMessage(String sourceOid, String body) {
+				received.add(body);
+			}
+		};
+
+		assertTrue(broker.register("display", "secret", display));
+
+		int messages = 200;
+		for (int i = 0; i < messages; i++) {
+			assertTrue(broker.deliver("thermometer", "display", Integer.toString(i),
+					ThreadLocalRandom.current().nextLong(20)));
+		}
+
+		long deadline = System.currentTimeMillis() + 5000;
+		while (received.size() < messages && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+
+		assertEquals(messages, received.size());
+		for (int i = 0; i < messages; i++) {
+			assertEquals(Integer.toString(i), received.get(i));
+		}
+	}
+
+
+	private XMLConfiguration config() {
+
+		XMLConfiguration config = new XMLConfiguration();
+		config.addProperty("loopback.deliveryThreads", 1);
+
+		return config;
+	}
+
+
+	private void addObject(XMLConfiguration config, String objectId, String password) {
+
+		config.addProperty("loopback.objects.object(-1).oid", objectId);
+		if (password != null) {
+			config.addProperty("loopback.objects.object.password", password);
+		}
+	}
+}
@@ -0,0 +1,202 @@
+package eu.bavenir.ogwapi.commons.engines.xmpp;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Stand-in for the component port of an XMPP server (XEP-0114), for one component at a time. It answers the stream
+ * header, checks the handshake against the secret, and from then on only records what the component writes and writes
+ * whatever the test asks it to.
+ */
+public class StandInComponentServer {
+
+	private static final String STREAM_ID = "standin";
+
+	private final String domain;
+
+	private final String secret;
+
+	private final ServerSocket serverSocket;
+
+	private final StringBuffer received;
+
+	private volatile Socket client;
+
+	private volatile int handshakes;
+
+
+	public StandInComponentServer(String domain, String secret) throws IOException {
+
+		this.domain = domain;
+		this.secret = secret;
+
+		serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+		received = new StringBuffer();
+		handshakes = 0;
+
+		Thread acceptor = new Thread(() -> acceptClients(), "standin-component-server");
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+
+	public int getPort() {
+		return serverSocket.getLocalPort();
+	}
+
+
+	/**
+	 * Number of handshakes accepted so far.
+	 */
+	public int getHandshakes() {
+		return handshakes;
+	}
+
+
+	/**
+	 * Writes a stanza to the connected component.
+	 */
+	public void send(String stanza) throws IOException {
+
+		OutputStream out = client.getOutputStream();
+		synchronized (out) {
+			out.write(stanza.getBytes(StandardCharsets.UTF_8));
+			out.flush();
+		}
+	}
+
+
+	/**
+	 * Waits until the component writes a fragment, counted from the last accepted handshake.
+	 */
+	public boolean awaitReceived(String fragment, long timeoutMillis) throws InterruptedException {
+
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+
+		while (received.indexOf(fragment) < 0) {
+			if (System.currentTimeMillis() > deadline) {
+				return false;
+			}
+			Thread.sleep(10);
+		}
+
+		return true;
+	}
+
+
+	/**
+	 * Closes the connection of the component, as a server restart would.
+	 */
+	public void dropClient() throws IOException {
+		client.close();
+	}
+
+
+	public void close() throws IOException {
+
+		serverSocket.close();
+
+		if (client != null) {
+			client.close();
+		}
+	}
+
+
+	private void acceptClients() {
+
+		while (!serverSocket.isClosed()) {
+			try {
+				Socket socket = serverSocket.accept();
+				serve(socket);
+			} catch (IOException e) {
+				// closed, or the component went away
+			}
+		}
+	}
+
+
+	private void serve(Socket socket) throws IOException {
+
+		Reader reader = new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8);
+		OutputStream out = socket.getOutputStream();
+
+		StringBuilder opening = new StringBuilder();
+		readUntil(reader, opening, "<stream:stream");
+		readUntil(reader, opening, ">");
+
+		out.write(("<?xml version='1.0'?><stream:stream xmlns:stream='http://etherx.jabber.org/streams' "
+				+ "xmlns='jabber:component:accept' id='" + STREAM_ID + "' from='" + domain + "'>")
+				.getBytes(StandardCharsets.UTF_8));
+		out.flush();
+
+		StringBuilder handshake = new StringBuilder();
+		readUntil(reader, handshake, "</handshake>");
+
+		String digest = handshake.substring(handshake.indexOf("<handshake>") + "<handshake>".length(),
+				handshake.indexOf("</handshake>"));
+
+		if (!digest.equals(sha1Hex(STREAM_ID + secret))) {
+			out.write("<stream:error><not-authorized xmlns='urn:ietf:params:xml:ns:xmpp-streams'/></stream:error>"
+					.getBytes(StandardCharsets.UTF_8));
+			out.flush();
+			socket.close();
+			return;
+		}
+
+		received.setLength(0);
+		client = socket;
+
+		handshakes++;
+		out.write("<handshake/>".getBytes(StandardCharsets.UTF_8));
+		out.flush();
+
+		// record everything else in the background, the next component may connect meanwhile
+		Thread recorder = new Thread(() -> {
+			char[] buffer = new char[4096];
+			try {
+				int read;
+				while ((read = reader.read(buffer)) >= 0) {
+					received.append(buffer, 0, read);
+				}
+			} catch (IOException e) {
+				// connection closed
+			}
+		}, "standin-component-recorder");
+		recorder.setDaemon(true);
+		recorder.start();
+	}
+
+
+	private void readUntil(Reader reader, StringBuilder into, String end) throws IOException {
+
+		while (into.indexOf(end) < 0) {
+			int c = reader.read();
+			if (c < 0) {
+				throw new IOException("Stream ended.");
+			}
+			into.append((char) c);
+		}
+	}
+
+
+	private static String sha1Hex(String value) {
+
+		try {
+			StringBuilder hex = new StringBuilder();
+			for (byte b : MessageDigest.getInstance("SHA-1").digest(value.getBytes(StandardCharsets.UTF_8))) {
+				hex.append(String.format("%02x", b));
+			}
+			return hex.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,277 @@
+package eu.bavenir.ogwapi.commons.engines.xmpp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.configuration2.XMLConfiguration;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * The {@link XmppComponentConnection XmppComponentConnection} and its {@link XmppComponentEngine engines} against a
+ * {@link StandInComponentServer stand-in} of the XMPP server.
+ */
+public class XmppComponentConnectionTest {
+
+	private static final String COMPONENT_DOMAIN = "gateway1.example";
+
+	private static final String USER_DOMAIN = "users.example";
+
+	private static final String SECRET = "secret";
+
+	private static final long TIMEOUT = 5000;
+
+	private Logger logger;
+
+	private StandInComponentServer server;
+
+
+	@Before
+	public void setUp() throws IOException {
+
+		logger = Logger.getLogger(XmppComponentConnectionTest.class.getName());
+		logger.setLevel(Level.OFF);
+
+		server = new StandInComponentServer(COMPONENT_DOMAIN, SECRET);
+	}
+
+
+	@After
+	public void tearDown() throws IOException {
+		server.close();
+	}
+
+
+	@Test
+	public void handshakeOpensTheStreamAndMessagesAreSent() throws InterruptedException {
+
+		XmppComponentConnection connection = new XmppComponentConnection(config(SECRET), logger);
+
+		assertTrue(connection.connect());
+		assertTrue(connection.isConnected());
+		assertEquals(1, server.getHandshakes());
+
+		assertTrue(connection.sendMessage("a", "b@" + USER_DOMAIN, "<1 & 2>"));
+		assertTrue(server.awaitReceived("<message type='chat' from='a@" + COMPONENT_DOMAIN + "' to='b@"
+				+ USER_DOMAIN + "'><body>&lt;1 &amp; 2&gt;</body></message>", TIMEOUT));
+
+		connection.disconnect();
+	}
+
+
+	@Test
+	public void wrongSecretIsRejected() {
+
+		XmppComponentConnection connection = new XmppComponentConnection(config("wrong"), logger);
+
+		assertFalse(connection.connect());
+		assertFalse(connection.isConnected());
+		assertEquals(0, server.getHandshakes());
+	}
+
+
+	@Test
+	public void messagesAreReceivedOnlyFromTheRosterJids() throws Exception {
+
+		XmppComponentConnection connection = new XmppComponentConnection(config(SECRET), logger);
+		RecordingEngine engine = new RecordingEngine("a", config(SECRET), logger, connection, null);
+
+		assertTrue(engine.connect());
+		assertTrue(server.awaitReceived("to='a@" + USER_DOMAIN + "'><query xmlns='jabber:iq:roster'/>", TIMEOUT));
+
+		pushRoster(engine, "a", "b@" + USER_DOMAIN);
+		assertEquals(1, engine.getRoster().size());
+
+		server.send(message("b@" + USER_DOMAIN + "/res", "a", "from the roster"));
+		server.send(message("b@evil.example", "a", "spoofed"));
+		server.send(message("c@" + COMPONENT_DOMAIN, "a", "from a component"));
+
+		assertEquals("b@" + USER_DOMAIN + " from the roster", engine.received.poll(TIMEOUT, TimeUnit.MILLISECONDS));
+		assertEquals("c@" + COMPONENT_DOMAIN + " from a component",
+				engine.received.poll(TIMEOUT, TimeUnit.MILLISECONDS));
+		assertNull(engine.received.poll(200, TimeUnit.MILLISECONDS));
+
+		// replies go to the roster JID
+		assertTrue(engine.sendMessage("b", "reply"));
+		assertTrue(server.awaitReceived("to='b@" + USER_DOMAIN + "'><body>reply</body>", TIMEOUT));
+
+		connection.disconnect();
+	}
+
+
+	@Test
+	public void slowObjectDoesNotHoldUpTheOthers() throws Exception {
+
+		XmppComponentConnection connection = new XmppComponentConnection(config(SECRET), logger);
+		CountDownLatch release = new CountDownLatch(1);
+		RecordingEngine slow = new RecordingEngine("slow", config(SECRET), logger, connection, release);
+		RecordingEngine fast = new RecordingEngine("fast", config(SECRET), logger, connection, null);
+
+		assertTrue(slow.connect());
+		assertTrue(fast.connect());
+
+		server.send(message("x@" + USER_DOMAIN, "slow", "1"));
+		server.send(message("x@" + USER_DOMAIN, "slow", "2"));
+		server.send(message("x@" + USER_DOMAIN, "fast", "3"));
+
+		assertEquals("x@" + USER_DOMAIN + " 3", fast.received.poll(TIMEOUT, TimeUnit.MILLISECONDS));
+		assertNull(slow.received.poll(100, TimeUnit.MILLISECONDS));
+
+		release.countDown();
+
+		// in order
+		assertEquals("x@" + USER_DOMAIN + " 1", slow.received.poll(TIMEOUT, TimeUnit.MILLISECONDS));
+		assertEquals("x@" + USER_DOMAIN + " 2", slow.received.poll(TIMEOUT, TimeUnit.MILLISECONDS));
+
+		connection.disconnect();
+	}
+
+
+	@Test
+	public void messagesOverTheInboxLimitAreRefused() throws Exception {
+
+		XMLConfiguration config = config(SECRET);
+		config.addProperty("xmpp.component.inboxLimit", 1);
+
+		XmppComponentConnection connection = new XmppComponentConnection(config, logger);
+		CountDownLatch release = new CountDownLatch(1);
+		RecordingEngine engine = new RecordingEngine("a", config, logger, connection, release);
+
+		assertTrue(engine.connect());
+
+		// the first message is being processed, the second one waits and the third one is over the limit
+		server.send(message("x@" + USER_DOMAIN, "a", "1"));
+		assertTrue(engine.processing.await(TIMEOUT, TimeUnit.MILLISECONDS));
+		server.send(message("x@" + USER_DOMAIN, "a", "2"));
+		server.send(message("x@" + USER_DOMAIN, "a", "3"));
+
+		assertEquals("x@" + USER_DOMAIN + " 3", engine.refused.poll(TIMEOUT, TimeUnit.MILLISECONDS));
+
+		release.countDown();
+
+		assertEquals("x@" + USER_DOMAIN + " 1", engine.received.poll(TIMEOUT, TimeUnit.MILLISECONDS));
+		assertEquals("x@" + USER_DOMAIN + " 2", engine.received.poll(TIMEOUT, TimeUnit.MILLISECONDS));
+		assertNull(engine.refused.poll(100, TimeUnit.MILLISECONDS));
+
+		connection.disconnect();
+	}
+
+
+	@Test
+	public void lostStreamCanBeReopened() throws Exception {
+
+		XmppComponentConnection connection = new XmppComponentConnection(config(SECRET), logger);
+		RecordingEngine engine = new RecordingEngine("a", config(SECRET), logger, connection, null);
+
+		assertTrue(engine.connect());
+
+		server.dropClient();
+
+		long deadline = System.currentTimeMillis() + TIMEOUT;
+		while (connection.isConnected() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertFalse(engine.isConnected());
+
+		// what the communication manager does for a disconnected object
+		assertTrue(engine.connect());
+		assertEquals(2, server.getHandshakes());
+
+		// the engine stayed registered
+		server.send(message("x@" + USER_DOMAIN, "a", "after reconnect"));
+		assertEquals("x@" + USER_DOMAIN + " after reconnect", engine.received.poll(TIMEOUT, TimeUnit.MILLISECONDS));
+
+		connection.disconnect();
+	}
+
+
+	private void pushRoster(XmppComponentEngine engine, String objectId, String contactJid) 
+			throws IOException, InterruptedException {
+
+		server.send("<iq type='result' id='r1' from='" + objectId + "@" + USER_DOMAIN + "' to='" + COMPONENT_DOMAIN
+				+ "'><query xmlns='jabber:iq:roster'><item jid='" + contactJid + "' subscription='both'/></query></iq>");
+
+		long deadline = System.currentTimeMillis() + TIMEOUT;
+		while (engine.getRoster().isEmpty() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+	}
+
+
+	private String message(String from, String toObject, String body) {
+
+		return "<message type='chat' from='" + from + "' to='" + toObject + "@" + COMPONENT_DOMAIN + "'><body>" + body
+				+ "</body></message>";
+	}
+
+
+	private XMLConfiguration config(String secret) {
+
+		XMLConfiguration config = new XMLConfiguration();
+		config.addProperty("general.server", "localhost");
+		config.addProperty("xmpp.domain", USER_DOMAIN);
+		config.addProperty("xmpp.component.domain", COMPONENT_DOMAIN);
+		config.addProperty("xmpp.component.secret", secret);
+		config.addProperty("xmpp.component.port", server.getPort());
+		config.addProperty("xmpp.component.timeout", 5);
+		config.addProperty("xmpp.component.verifyCredentials", false);
+
+		return config;
+	}
+
+
+	/**
+	 * Engine that records the messages it processes or refuses instead of handing them to a connection descriptor.
+	 */
+	private static class RecordingEngine extends XmppComponentEngine {
+
+		private final BlockingQueue<String> received = new LinkedBlockingQueue<String>();
+
+		private final BlockingQueue<String> refused = new LinkedBlockingQueue<String>();
+
+		private final CountDownLatch processing = new CountDownLatch(1);
+
+		private final CountDownLatch release;
+
+
+		RecordingEngine(String objectId, XMLConfiguration config, Logger logger, XmppComponentConnection connection,
+				CountDownLatch release) {
+			super(objectId, "password", config, logger, null, connection);
+			this.release = release;
+		}
+
+
+		@Override
+		protected void processMessage(String from, String body) {
+
+			processing.countDown();
+
+			try {
+				if (release != null) {
+					release.await();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+
+			received.add(from + " " + body);
+		}
+
+
+		@Override
+		protected void refuseMessage(String from, String body, String reason) {
+			refused.add(from + " " + body);
+		}
+	}
+}
@@ -0,0 +1,113 @@
+package eu.bavenir.ogwapi.commons.logging;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+import org.apache.commons.configuration2.XMLConfiguration;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Records of {@link MessageLog MessageLog} - their text, their source and the sampling of categories.
+ */
+public class MessageLogTest {
+
+	private Logger logger;
+
+	private List<LogRecord> records;
+
+	private Handler handler;
+
+
+	@Before
+	public void setUp() {
+
+		records = new ArrayList<LogRecord>();
+
+		handler = new Handler() {
+
+			@Override
+			public void publish(LogRecord record) {
+				records.add(record);
+			}
+
+			@Override
+			public void flush() {
+			}
+
+			@Override
+			public void close() {
+			}
+		};
+
+		logger = Logger.getLogger(MessageLogTest.class.getName());
+		logger.setUseParentHandlers(false);
+		logger.setLevel(Level.INFO);
+		logger.addHandler(handler);
+	}
+
+
+	@After
+	public void tearDown() {
+		logger.removeHandler(handler);
+	}
+
+
+	@Test
+	public void recordsCarryTheCallerAsTheirSource() {
+
+		MessageLog messageLog = new MessageLog(new XMLConfiguration(), logger);
+
+		messageLog.log(Level.INFO, MessageLog.CATEGORY_SEND, "a", "message sent", "destination", "b", "size", 317);
+		messageLog.log(Level.INFO, MessageLog.CATEGORY_SEND, "a", () -> "text");
+
+		assertEquals(2, records.size());
+		assertEquals("a: message sent destination=b size=317", records.get(0).getMessage());
+		assertEquals("a: text", records.get(1).getMessage());
+
+		for (LogRecord record : records) {
+			assertEquals(MessageLogTest.class.getName(), record.getSourceClassName());
+			assertEquals("recordsCarryTheCallerAsTheirSource", record.getSourceMethodName());
+		}
+	}
+
+
+	@Test
+	public void recordsBelowTheLevelAreNotBuilt() {
+
+		MessageLog messageLog = new MessageLog(new XMLConfiguration(), logger);
+
+		messageLog.log(Level.FINE, MessageLog.CATEGORY_SEND, "a", () -> {
+			throw new AssertionError("Supplier called.");
+		});
+
+		assertTrue(records.isEmpty());
+	}
+
+
+	@Test
+	public void categoriesAreSampledButWarningsAreNot() {
+
+		XMLConfiguration config = new XMLConfiguration();
+		config.addProperty("logging.messageLogSampling", 3);
+		MessageLog messageLog = new MessageLog(config, logger);
+
+		for (int i = 0; i < 4; i++) {
+			messageLog.log(Level.INFO, MessageLog.CATEGORY_RECEIVE, "a", "message received", "n", i);
+		}
+		messageLog.log(Level.WARNING, MessageLog.CATEGORY_RECEIVE, "a", "message rejected");
+
+		assertEquals(3, records.size());
+		assertEquals("a: message received n=0", records.get(0).getMessage());
+		assertEquals("a: message received n=3 skipped=2", records.get(1).getMessage());
+		assertEquals("a: message rejected", records.get(2).getMessage());
+	}
+}
@@ -0,0 +1,251 @@
+package eu.bavenir.ogwapi.commons.messages;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.configuration2.XMLConfiguration;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Round trips of {@link BinaryEnvelopeCodec BinaryEnvelopeCodec} and its handling of damaged and forged envelopes.
+ */
+public class BinaryEnvelopeCodecTest {
+
+	private static final String PREFIX = "~binary:";
+
+	private static final String SOURCE_OID = "0b5a3c1e-7d2f-4a11-9c3e-5f6a7b8c9d0e";
+
+	private static final String DESTINATION_OID = "not-a-uuid";
+
+	private XMLConfiguration config;
+
+	private Logger logger;
+
+	private BinaryEnvelopeCodec codec;
+
+
+	@Before
+	public void setUp() {
+
+		config = new XMLConfiguration();
+
+		logger = Logger.getLogger(BinaryEnvelopeCodecTest.class.getName());
+		logger.setLevel(Level.OFF);
+
+		codec = new BinaryEnvelopeCodec(config, logger, new PayloadCompression(config, logger));
+	}
+
+
+	@Test
+	public void sendingIsOffByDefault() {
+
+		assertEquals(false, codec.isEnabled());
+
+		config.addProperty("general.binaryEnvelope", true);
+		assertTrue(new BinaryEnvelopeCodec(config, logger, new PayloadCompression(config, logger)).isEnabled());
+	}
+
+
+	@Test
+	public void requestRoundTrip() {
+
+		NetworkMessageRequest request = request();
+
+		String encoded = codec.encode(request);
+		assertEquals(1, envelope(encoded)[0]);
+
+		NetworkMessageRequest decoded = (NetworkMessageRequest) codec.decode(SOURCE_OID, encoded);
+
+		assertEquals(request.getRequestId(), decoded.getRequestId());
+		assertEquals(SOURCE_OID, decoded.getSourceOid());
+		assertEquals(DESTINATION_OID, decoded.getDestinationOid());
+		assertEquals(NetworkMessageRequest.OPERATION_GETPROPERTYVALUE, decoded.getRequestOperation());
+		assertEquals("{\"value\":\"\u017elu\u0165ou\u010dk\u00fd\"}", decoded.getRequestBody());
+		assertEquals(request.getAttributes(), decoded.getAttributes());
+		assertEquals(request.getParameters(), decoded.getParameters());
+		assertEquals("deflate,binary", decoded.getAcceptEncoding());
+		assertNull(decoded.getTrace());
+	}
+
+
+	@Test
+	public void tracedRequestUsesVersionTwo() {
+
+		NetworkMessageRequest request = request();
+		TraceContext trace = new TraceContext("trace-1");
+		trace.record(TraceContext.STAGE_RESTENTRY, 1000);
+		trace.record(TraceContext.STAGE_SEND, 1005);
+		request.setTrace(trace);
+
+		String encoded = codec.encode(request);
+		assertEquals(2, envelope(encoded)[0]);
+
+		NetworkMessageRequest decoded = (NetworkMessageRequest) codec.decode(SOURCE_OID, encoded);
+
+		assertEquals("trace-1", decoded.getTrace().getTraceId());
+		assertEquals(1000, decoded.getTrace().getStamp(TraceContext.STAGE_RESTENTRY));
+		assertEquals(1005, decoded.getTrace().getStamp(TraceContext.STAGE_SEND));
+		assertEquals(0, decoded.getTrace().getStamp(TraceContext.STAGE_RECEIVE));
+	}
+
+
+	@Test
+	public void largeResponseIsDeflatedAndRoundTrips() {
+
+		char[] filler = new char[100000];
+		Arrays.fill(filler, 'x');
+		String body = "{\"value\":\"" + new String(filler) + "\"}";
+
+		NetworkMessageResponse response = new NetworkMessageResponse(config, logger);
+		response.setRequestId(42);
+		response.setSourceOid(SOURCE_OID);
+		response.setDestinationOid(DESTINATION_OID);
+		response.setError(true);
+		response.setResponseCode(503);
+		response.setResponseCodeReason("Service Unavailable");
+		response.setContentType("application/json");
+		response.setResponseBody(body);
+		response.setResponseBodySupplement(null);
+
+		String encoded = codec.encode(response);
+		assertTrue((envelope(encoded)[0] & 0x80) != 0);
+		assertTrue(encoded.length() < body.length() / 10);
+
+		NetworkMessageResponse decoded = (NetworkMessageResponse) codec.decode(SOURCE_OID, encoded);
+
+		assertEquals(42, decoded.getRequestId());
+		assertTrue(decoded.isError());
+		assertEquals(503, decoded.getResponseCode());
+		assertEquals("Service Unavailable", decoded.getResponseCodeReason());
+		assertEquals("application/json", decoded.getContentType());
+		assertEquals(body, decoded.getResponseBody());
+		assertNull(decoded.getResponseBodySupplement());
+	}
+
+
+	@Test
+	public void eventRoundTrip() {
+
+		Map<String, String> parameters = new LinkedHashMap<String, String>();
+		parameters.put("unit", "\u00b0C");
+
+		NetworkMessageEvent event = new NetworkMessageEvent(config, SOURCE_OID, "temperature", "21.5", parameters,
+				logger);
+		event.setRequestId(7);
+		event.setDestinationOid(DESTINATION_OID);
+
+		NetworkMessageEvent decoded = (NetworkMessageEvent) codec.decode(SOURCE_OID, codec.encode(event));
+
+		assertEquals(7, decoded.getRequestId());
+		assertEquals(SOURCE_OID, decoded.getSourceOid());
+		assertEquals("temperature", decoded.getEventId());
+		assertEquals("21.5", decoded.getEventBody());
+		assertEquals(parameters, decoded.getParameters());
+	}
+
+
+	@Test
+	public void truncatedEnvelopesAreRejected() {
+
+		NetworkMessageRequest request = request();
+		TraceContext trace = new TraceContext("trace-1");
+		trace.record(TraceContext.STAGE_SEND, 1005);
+		request.setTrace(trace);
+
+		for (NetworkMessage message : new NetworkMessage[] {request(), request}) {
+
+			byte[] envelope = envelope(codec.encode(message));
+
+			for (int length = 0; length < envelope.length; length++) {
+				assertNull("Truncated to " + length, codec.decode(SOURCE_OID, encode(Arrays.copyOf(envelope, length))));
+			}
+		}
+	}
+
+
+	@Test
+	public void forgedEnvelopesAreRejected() {
+
+		// unknown version
+		assertNull(codec.decode(SOURCE_OID, encode(new byte[] {0x03, 0x01, 0, 0, 0, 1, 0, 0})));
+
+		// not base64
+		assertNull(codec.decode(SOURCE_OID, PREFIX + "%%%"));
+
+		// length of the body string far beyond the envelope
+		assertNull(codec.decode(SOURCE_OID, encode(new byte[] {0x01, 0x01, 0, 0, 0, 1, 0, 0, 0x01, 0x02,
+				(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x07, 'a'})));
+
+		// length that does not end
+		assertNull(codec.decode(SOURCE_OID, encode(new byte[] {0x01, 0x01, 0, 0, 0, 1, 0, 0, 0x01, 0x02,
+				(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x01})));
+
+		// map with a billion entries
+		assertNull(codec.decode(SOURCE_OID, encode(new byte[] {0x01, 0x01, 0, 0, 0, 1, 0, 0, 0x01, 0x00,
+				(byte) 0x80, (byte) 0x94, (byte) 0xEB, (byte) 0xDC, 0x03})));
+
+		// unknown string tag
+		assertNull(codec.decode(SOURCE_OID, encode(new byte[] {0x01, 0x01, 0, 0, 0, 1, 0x09})));
+
+		// deflated flag on data that are not deflated
+		assertNull(codec.decode(SOURCE_OID, encode(new byte[] {(byte) 0x81, 0x01, 1, 2, 3, 4, 5, 6, 7, 8})));
+
+		// unknown message type
+		assertNull(codec.decode(SOURCE_OID, encode(new byte[] {0x01, 0x7F, 0, 0, 0, 1, 0, 0})));
+	}
+
+
+	@Test
+	public void randomEnvelopesDoNotThrow() {
+
+		Random random = new Random(2024);
+		byte[] valid = envelope(codec.encode(request()));
+
+		for (int i = 0; i < 20000; i++) {
+
+			// flip a few bytes of a valid envelope, keeping the header most of the time
+			byte[] forged = valid.clone();
+			for (int flips = 1 + random.nextInt(4); flips > 0; flips--) {
+				forged[2 + random.nextInt(forged.length - 2)] = (byte) random.nextInt(256);
+			}
+
+			codec.decode(SOURCE_OID, encode(forged));
+		}
+	}
+
+
+	private NetworkMessageRequest request() {
+
+		NetworkMessageRequest request = new NetworkMessageRequest(config, logger);
+		request.setRequestId(123456);
+		request.setSourceOid(SOURCE_OID);
+		request.setDestinationOid(DESTINATION_OID);
+		request.setRequestOperation(NetworkMessageRequest.OPERATION_GETPROPERTYVALUE);
+		request.setRequestBody("{\"value\":\"\u017elu\u0165ou\u010dk\u00fd\"}");
+		request.getAttributes().put("pid", "temperature");
+		request.getParameters().put("unit", "celsius");
+		request.setAcceptEncoding("deflate,binary");
+
+		return request;
+	}
+
+
+	private byte[] envelope(String encoded) {
+		return Base64.getDecoder().decode(encoded.substring(PREFIX.length()));
+	}
+
+
+	private String encode(byte[] envelope) {
+		return PREFIX + Base64.getEncoder().encodeToString(envelope);
+	}
+}
@@ -0,0 +1,226 @@
+package eu.bavenir.ogwapi.commons.messages;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.json.JsonObject;
+import javax.json.JsonValue;
+
+import org.apache.commons.configuration2.XMLConfiguration;
+import org.junit.Before;
+import org.junit.Test;
+
+import eu.bavenir.ogwapi.commons.JsonCodec;
+
+/**
+ * The {@link TraceContext TraceContext} - how the time of a request is broken down and how the trace travels in JSON.
+ */
+public class TraceContextTest {
+
+	/**
+	 * The clock of the remote gateway is an hour ahead, only stamps of the same gateway may be subtracted.
+	 */
+	private static final long REMOTE_CLOCK_SKEW = 3600000;
+
+	private XMLConfiguration config;
+
+	private Logger logger;
+
+
+	@Before
+	public void setUp() {
+
+		logger = Logger.getLogger(TraceContextTest.class.getName());
+		logger.setLevel(Level.OFF);
+
+		config = new XMLConfiguration();
+	}
+
+
+	@Test
+	public void breakdownDoesNotDependOnTheRemoteClock() {
+
+		Map<String, Long> breakdown = completeTrace().getBreakdown();
+
+		assertEquals(Arrays.asList(TraceContext.BREAKDOWN_REST, TraceContext.BREAKDOWN_NETWORK,
+				TraceContext.BREAKDOWN_REMOTEQUEUE, TraceContext.BREAKDOWN_AGENT, TraceContext.BREAKDOWN_REMOTERESPONSE,
+				TraceContext.BREAKDOWN_RESPONSEMATCH, TraceContext.BREAKDOWN_TOTAL),
+				new ArrayList<String>(breakdown.keySet()));
+
+		assertEquals(5, breakdown.get(TraceContext.BREAKDOWN_REST).longValue());
+		// round trip of 100 ms, of which 70 ms at the remote gateway
+		assertEquals(30, breakdown.get(TraceContext.BREAKDOWN_NETWORK).longValue());
+		assertEquals(10, breakdown.get(TraceContext.BREAKDOWN_REMOTEQUEUE).longValue());
+		assertEquals(50, breakdown.get(TraceContext.BREAKDOWN_AGENT).longValue());
+		assertEquals(10, breakdown.get(TraceContext.BREAKDOWN_REMOTERESPONSE).longValue());
+		assertEquals(2, breakdown.get(TraceContext.BREAKDOWN_RESPONSEMATCH).longValue());
+		assertEquals(107, breakdown.get(TraceContext.BREAKDOWN_TOTAL).longValue());
+	}
+
+
+	@Test
+	public void olderRemoteGatewayLeavesOutItsParts() {
+
+		// the remote gateway returned no stamps, the call did not come through the REST API
+		TraceContext trace = new TraceContext("trace-1");
+		trace.record(TraceContext.STAGE_SEND, 1000);
+		trace.record(TraceContext.STAGE_RESPONSERECEIVE, 1100);
+		trace.record(TraceContext.STAGE_RESPONSEMATCH, 1102);
+
+		Map<String, Long> breakdown = trace.getBreakdown();
+
+		assertEquals(Arrays.asList(TraceContext.BREAKDOWN_RESPONSEMATCH, TraceContext.BREAKDOWN_TOTAL),
+				new ArrayList<String>(breakdown.keySet()));
+		assertEquals(102, breakdown.get(TraceContext.BREAKDOWN_TOTAL).longValue());
+	}
+
+
+	@Test
+	public void returnedStampsAreMerged() {
+
+		TraceContext local = new TraceContext("trace-1");
+		local.record(TraceContext.STAGE_SEND, 1000);
+
+		TraceContext returned = new TraceContext("trace-1");
+		returned.record(TraceContext.STAGE_SEND, 5);
+		returned.record(TraceContext.STAGE_RECEIVE, 2000);
+
+		local.merge(returned);
+
+		// own stamps win
+		assertEquals(1000, local.getStamp(TraceContext.STAGE_SEND));
+		assertEquals(2000, local.getStamp(TraceContext.STAGE_RECEIVE));
+
+		// a trace of another request is ignored
+		TraceContext other = new TraceContext("trace-2");
+		other.record(TraceContext.STAGE_AGENTSTART, 3000);
+		local.merge(other);
+		local.merge(null);
+
+		assertEquals(0, local.getStamp(TraceContext.STAGE_AGENTSTART));
+	}
+
+
+	@Test
+	public void unknownStagesAreIgnored() {
+
+		TraceContext trace = new TraceContext("trace-1");
+		trace.record(TraceContext.STAGES, 1000);
+		trace.record(-1, 1000);
+
+		assertTrue(trace.getBreakdown().isEmpty());
+	}
+
+
+	@Test
+	public void jsonRoundTrip() {
+
+		TraceContext trace = completeTrace();
+
+		JsonObject json = JsonCodec.readObject(trace.toJson().toString());
+
+		assertEquals("trace-1", json.getString("traceId"));
+		assertFalse(json.containsKey("breakdown"));
+
+		TraceContext read = TraceContext.fromJson(json);
+
+		assertEquals(trace.getTraceId(), read.getTraceId());
+		for (int stage = 0; stage < TraceContext.STAGES; stage++) {
+			assertEquals(trace.getStamp(stage), read.getStamp(stage));
+		}
+	}
+
+
+	@Test
+	public void unrecordedStagesAreLeftOutOfTheJson() {
+
+		TraceContext trace = new TraceContext("trace-1");
+		trace.record(TraceContext.STAGE_SEND, 1000);
+
+		JsonObject stages = trace.toJson().getJsonObject("stages");
+
+		assertEquals(1, stages.size());
+		assertEquals(1000, stages.getJsonNumber("send").longValue());
+	}
+
+
+	@Test
+	public void breakdownJsonAddsTheParts() {
+
+		JsonObject json = completeTrace().toBreakdownJson();
+
+		assertEquals(30, json.getJsonObject("breakdown").getInt(TraceContext.BREAKDOWN_NETWORK));
+		assertEquals(107, json.getJsonObject("breakdown").getInt(TraceContext.BREAKDOWN_TOTAL));
+		assertNotNull(json.getJsonObject("stages"));
+	}
+
+
+	@Test
+	public void traceFromNewerGatewayIsRead() {
+
+		TraceContext read = TraceContext.fromJson(JsonCodec.readObject(
+				"{\"traceId\":\"trace-1\",\"stages\":{\"send\":1000,\"teleport\":1001,\"receive\":\"soon\"}}"));
+
+		assertEquals(1000, read.getStamp(TraceContext.STAGE_SEND));
+		assertEquals(0, read.getStamp(TraceContext.STAGE_RECEIVE));
+	}
+
+
+	@Test
+	public void somethingElseIsNotATrace() {
+
+		assertNull(TraceContext.fromJson(null));
+		assertNull(TraceContext.fromJson(JsonValue.NULL));
+		assertNull(TraceContext.fromJson(JsonCodec.readObject("{\"stages\":{}}")));
+		assertNull(TraceContext.fromJson(JsonCodec.readObject("{\"traceId\":null}")));
+		assertNull(TraceContext.fromJson(JsonCodec.readObject("{\"traceId\":42}")));
+	}
+
+
+	@Test
+	public void traceTravelsWithTheRequest() {
+
+		NetworkMessageRequest request = new NetworkMessageRequest(config, logger);
+		request.setRequestId(7);
+		request.setSourceOid("source");
+		request.setDestinationOid("destination");
+		request.setRequestOperation(NetworkMessageRequest.OPERATION_GETPROPERTYVALUE);
+		request.setTrace(completeTrace());
+
+		NetworkMessage resolved = new MessageResolver(config, logger).resolveNetworkMessage(
+				request.buildMessageString());
+
+		assertEquals("trace-1", resolved.getTrace().getTraceId());
+		assertEquals(completeTrace().getBreakdown(), resolved.getTrace().getBreakdown());
+	}
+
+
+	/**
+	 * A request that spent 5 ms in the REST API, 30 ms in the network, 70 ms at the remote gateway and 2 ms waiting
+	 * to be matched.
+	 */
+	private TraceContext completeTrace() {
+
+		TraceContext trace = new TraceContext("trace-1");
+
+		trace.record(TraceContext.STAGE_RESTENTRY, 1000);
+		trace.record(TraceContext.STAGE_SEND, 1005);
+		trace.record(TraceContext.STAGE_RECEIVE, REMOTE_CLOCK_SKEW + 1020);
+		trace.record(TraceContext.STAGE_AGENTSTART, REMOTE_CLOCK_SKEW + 1030);
+		trace.record(TraceContext.STAGE_AGENTEND, REMOTE_CLOCK_SKEW + 1080);
+		trace.record(TraceContext.STAGE_RESPONSESEND, REMOTE_CLOCK_SKEW + 1090);
+		trace.record(TraceContext.STAGE_RESPONSERECEIVE, 1105);
+		trace.record(TraceContext.STAGE_RESPONSEMATCH, 1107);
+
+		return trace;
+	}
+}
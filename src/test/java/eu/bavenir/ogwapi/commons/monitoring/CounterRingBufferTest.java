@@ -0,0 +1,184 @@
+package eu.bavenir.ogwapi.commons.monitoring;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+/**
+ * The {@link CounterRingBuffer CounterRingBuffer} - order of the records, a full buffer and many writers at once.
+ */
+public class CounterRingBufferTest {
+
+	private static final String[] OIDS = { "producer-0", "producer-1", "producer-2", "producer-3" };
+
+	private static final String[] MESSAGE_TYPES = { "GETPROPERTYVALUE", "STARTACTION", "EVENT" };
+
+
+	@Test
+	public void capacityIsRoundedUpToAPowerOfTwo() {
+
+		assertEquals(8, new CounterRingBuffer(5).getCapacity());
+		assertEquals(8, new CounterRingBuffer(8).getCapacity());
+		assertEquals(2, new CounterRingBuffer(0).getCapacity());
+	}
+
+
+	@Test
+	public void fullBufferRefusesTheRecord() {
+
+		CounterRingBuffer buffer = new CounterRingBuffer(4);
+
+		for (int i = 0; i < 4; i++) {
+			assertTrue(offer(buffer, 0, i));
+		}
+
+		assertFalse(offer(buffer, 0, 4));
+		assertEquals(4, buffer.size());
+
+		// one taken, one more fits
+		List<Integer> taken = new ArrayList<Integer>();
+		assertEquals(1, buffer.drain(collect(taken), 1));
+		assertTrue(offer(buffer, 0, 4));
+		assertFalse(offer(buffer, 0, 5));
+	}
+
+
+	@Test
+	public void recordsComeOutInOrderAcrossTheWrapAround() {
+
+		CounterRingBuffer buffer = new CounterRingBuffer(4);
+		List<Integer> taken = new ArrayList<Integer>();
+
+		// ten times around the ring, three records at a time
+		for (int round = 0; round < 10; round++) {
+			for (int i = 0; i < 3; i++) {
+				assertTrue(offer(buffer, 0, round * 3 + i));
+			}
+			assertEquals(3, buffer.drain(collect(taken), Integer.MAX_VALUE));
+		}
+
+		assertEquals(30, taken.size());
+		for (int i = 0; i < taken.size(); i++) {
+			assertEquals(i, taken.get(i).intValue());
+		}
+
+		assertEquals(0, buffer.size());
+	}
+
+
+	@Test
+	public void drainedSlotsDoNotKeepTheStrings() {
+
+		CounterRingBuffer buffer = new CounterRingBuffer(2);
+
+		assertTrue(offer(buffer, 1, 0));
+		buffer.drain(collect(new ArrayList<Integer>()), Integer.MAX_VALUE);
+
+		// a record with nulls in the same slot, after going around the ring
+		assertTrue(buffer.offer(1, 0, null, null, false, null, 0, 0, 0));
+		assertTrue(buffer.offer(2, 0, null, null, false, null, 0, 0, 0));
+
+		List<String> sources = new ArrayList<String>();
+		buffer.drain((requestId, recordType, sourceOid, destinationOid, reqInitiator, messageType, messageSize,
+				timestamp, latency) -> sources.add(sourceOid), Integer.MAX_VALUE);
+
+		assertEquals(2, sources.size());
+		assertNull(sources.get(0));
+		assertNull(sources.get(1));
+	}
+
+
+	@Test
+	public void concurrentWritersLoseAndTearNoRecord() throws InterruptedException {
+
+		int producers = OIDS.length;
+		int recordsPerProducer = 200000;
+
+		CounterRingBuffer buffer = new CounterRingBuffer(1024);
+
+		int[] nextExpected = new int[producers];
+		AtomicBoolean torn = new AtomicBoolean(false);
+
+		CounterRingBuffer.RecordVisitor check = (requestId, recordType, sourceOid, destinationOid, reqInitiator,
+				messageType, messageSize, timestamp, latency) -> {
+
+			int producer = recordType;
+			int sequence = requestId;
+
+			// every field is derived from the producer and the sequence, a torn record has a mix of two
+			if (producer < 0 || producer >= producers || !OIDS[producer].equals(sourceOid)
+					|| !OIDS[(producer + 1) % producers].equals(destinationOid)
+					|| reqInitiator != (sequence % 2 == 0) || !MESSAGE_TYPES[sequence % 3].equals(messageType)
+					|| messageSize != sequence * 7 || timestamp != sequence * 31L + producer
+					|| latency != sequence + producer) {
+				torn.set(true);
+				return;
+			}
+
+			// records of one writer keep their order
+			if (nextExpected[producer] != sequence) {
+				torn.set(true);
+			}
+			nextExpected[producer] = sequence + 1;
+		};
+
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int p = 0; p < producers; p++) {
+			int producer = p;
+			threads.add(new Thread(() -> {
+				for (int sequence = 0; sequence < recordsPerProducer; sequence++) {
+					while (!offer(buffer, producer, sequence)) {
+						Thread.yield();
+					}
+				}
+			}));
+		}
+
+		threads.forEach(Thread::start);
+
+		long total = 0;
+		while (total < (long) producers * recordsPerProducer) {
+			int taken = buffer.drain(check, Integer.MAX_VALUE);
+			if (taken == 0) {
+				Thread.yield();
+			}
+			total += taken;
+		}
+
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		assertFalse(torn.get());
+		assertEquals((long) producers * recordsPerProducer, total);
+		for (int p = 0; p < producers; p++) {
+			assertEquals(recordsPerProducer, nextExpected[p]);
+		}
+		assertEquals(0, buffer.size());
+	}
+
+
+	/**
+	 * Writes a record whose fields are all derived from the producer and the sequence.
+	 */
+	private boolean offer(CounterRingBuffer buffer, int producer, int sequence) {
+
+		return buffer.offer(sequence, producer, OIDS[producer], OIDS[(producer + 1) % OIDS.length],
+				sequence % 2 == 0, MESSAGE_TYPES[sequence % 3], sequence * 7, sequence * 31L + producer,
+				sequence + producer);
+	}
+
+
+	private CounterRingBuffer.RecordVisitor collect(List<Integer> sequences) {
+
+		return (requestId, recordType, sourceOid, destinationOid, reqInitiator, messageType, messageSize, timestamp,
+				latency) -> sequences.add(requestId);
+	}
+}
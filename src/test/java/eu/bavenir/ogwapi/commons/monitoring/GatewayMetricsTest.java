@@ -0,0 +1,138 @@
+package eu.bavenir.ogwapi.commons.monitoring;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+/**
+ * The exposition of the {@link GatewayMetrics GatewayMetrics} in the Prometheus text format. The metrics are static,
+ * so every test uses label values of its own.
+ */
+public class GatewayMetricsTest {
+
+	/**
+	 * A sample line - name, optional labels and a value.
+	 */
+	private static final Pattern SAMPLE = Pattern.compile(
+			"[a-zA-Z_:][a-zA-Z0-9_:]*(\\{([a-zA-Z_][a-zA-Z0-9_]*=\"([^\"\\\\\\n]|\\\\.)*\",?)*\\})? -?[0-9.E+-]+");
+
+	/**
+	 * A HELP or TYPE line.
+	 */
+	private static final Pattern COMMENT = Pattern.compile(
+			"# HELP [a-zA-Z_:][a-zA-Z0-9_:]* .*|# TYPE [a-zA-Z_:][a-zA-Z0-9_:]* (counter|gauge|histogram)");
+
+
+	@Test
+	public void everyLineIsValid() {
+
+		GatewayMetrics.recordRequest("VALIDLINES", GatewayMetrics.SIDE_REQUESTER, System.nanoTime());
+		GatewayMetrics.countMessage(GatewayMetrics.DIRECTION_INBOUND);
+		GatewayMetrics.countDroppedMessage("validLines");
+		GatewayMetrics.registerQueue("validLines", () -> 3);
+
+		for (String line : scrape()) {
+			assertTrue(line, SAMPLE.matcher(line).matches() || COMMENT.matcher(line).matches());
+		}
+	}
+
+
+	@Test
+	public void everyMetricIsDescribedOnce() {
+
+		GatewayMetrics.countTimeout("DESCRIBED");
+		GatewayMetrics.registerQueue("describedFirst", () -> 1);
+		GatewayMetrics.registerQueue("describedSecond", () -> 2);
+
+		List<String> lines = scrape();
+
+		assertEquals(1, lines.stream().filter(line -> line.equals("# TYPE ogwapi_request_timeouts_total counter"))
+				.count());
+		assertEquals(1, lines.stream().filter(line -> line.startsWith("# HELP ogwapi_request_timeouts_total "))
+				.count());
+		assertEquals(1, lines.stream().filter(line -> line.equals("# TYPE ogwapi_queue_depth gauge")).count());
+	}
+
+
+	@Test
+	public void requestIsRecordedAsHistogram() {
+
+		GatewayMetrics.recordRequest("HISTOGRAMTEST", GatewayMetrics.SIDE_RESPONDER, System.nanoTime());
+
+		List<String> lines = scrape();
+
+		assertTrue(lines.contains("# TYPE ogwapi_request_duration_seconds histogram"));
+		assertTrue(lines.contains("ogwapi_request_duration_seconds_bucket{operation=\"HISTOGRAMTEST\","
+				+ "side=\"responder\",le=\"+Inf\"} 1"));
+		assertTrue(lines.contains("ogwapi_request_duration_seconds_count{operation=\"HISTOGRAMTEST\","
+				+ "side=\"responder\"} 1"));
+	}
+
+
+	@Test
+	public void stageIsRecordedInSeconds() {
+
+		GatewayMetrics.recordStage("STAGETEST", "network", 40);
+
+		List<String> lines = scrape();
+
+		assertTrue(lines.contains("ogwapi_request_stage_duration_seconds_bucket{operation=\"STAGETEST\","
+				+ "stage=\"network\",le=\"0.025\"} 0"));
+		assertTrue(lines.contains("ogwapi_request_stage_duration_seconds_bucket{operation=\"STAGETEST\","
+				+ "stage=\"network\",le=\"0.05\"} 1"));
+		assertTrue(lines.contains("ogwapi_request_stage_duration_seconds_sum{operation=\"STAGETEST\","
+				+ "stage=\"network\"} 0.04"));
+	}
+
+
+	@Test
+	public void countersAreSummedUp() {
+
+		GatewayMetrics.countTimeout("COUNTERTEST");
+		GatewayMetrics.countTimeout("COUNTERTEST");
+		GatewayMetrics.countDroppedMessage("counterTest");
+
+		List<String> lines = scrape();
+
+		assertTrue(lines.contains("ogwapi_request_timeouts_total{operation=\"COUNTERTEST\"} 2"));
+		assertTrue(lines.contains("ogwapi_messages_dropped_total{reason=\"counterTest\"} 1"));
+	}
+
+
+	@Test
+	public void gaugesAreReadWhenScraped() {
+
+		long[] depth = { 5 };
+		GatewayMetrics.registerQueue("gaugeTest", () -> depth[0]);
+		GatewayMetrics.registerGauge("gauge_test_objects", "Objects of the gauge test.", () -> 7);
+
+		assertTrue(scrape().contains("ogwapi_queue_depth{queue=\"gaugeTest\"} 5"));
+
+		depth[0] = 6;
+
+		List<String> lines = scrape();
+
+		assertTrue(lines.contains("ogwapi_queue_depth{queue=\"gaugeTest\"} 6"));
+		assertTrue(lines.contains("# HELP ogwapi_gauge_test_objects Objects of the gauge test."));
+		assertTrue(lines.contains("ogwapi_gauge_test_objects 7"));
+	}
+
+
+	@Test
+	public void labelValuesAreEscaped() {
+
+		GatewayMetrics.countTimeout("a\"b\\c\nd");
+
+		assertTrue(scrape().contains("ogwapi_request_timeouts_total{operation=\"a\\\"b\\\\c\\nd\"} 1"));
+	}
+
+
+	private List<String> scrape() {
+		return Arrays.asList(GatewayMetrics.scrape().split("\n"));
+	}
+}
@@ -0,0 +1,106 @@
+package eu.bavenir.ogwapi.commons.monitoring;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * The {@link LatencyHistogram LatencyHistogram} classes and the Prometheus text format it is written in.
+ */
+public class LatencyHistogramTest {
+
+	@Test
+	public void classesAreWrittenCumulative() {
+
+		LatencyHistogram histogram = new LatencyHistogram();
+
+		histogram.record(TimeUnit.MILLISECONDS.toNanos(3));
+		histogram.record(TimeUnit.MILLISECONDS.toNanos(5));
+		histogram.record(TimeUnit.MILLISECONDS.toNanos(7));
+		histogram.record(TimeUnit.MILLISECONDS.toNanos(300));
+		histogram.record(TimeUnit.SECONDS.toNanos(90));
+
+		List<String> lines = write(histogram, "test_seconds", "operation=\"GET\"");
+
+		// 13 bounds and +Inf, the sum and the count
+		assertEquals(16, lines.size());
+
+		// the bounds are inclusive
+		assertEquals("test_seconds_bucket{operation=\"GET\",le=\"0.005\"} 2", lines.get(0));
+		assertEquals("test_seconds_bucket{operation=\"GET\",le=\"0.01\"} 3", lines.get(1));
+		assertEquals("test_seconds_bucket{operation=\"GET\",le=\"0.25\"} 3", lines.get(5));
+		assertEquals("test_seconds_bucket{operation=\"GET\",le=\"0.5\"} 4", lines.get(6));
+		assertEquals("test_seconds_bucket{operation=\"GET\",le=\"60\"} 4", lines.get(12));
+		assertEquals("test_seconds_bucket{operation=\"GET\",le=\"+Inf\"} 5", lines.get(13));
+
+		assertEquals("test_seconds_sum{operation=\"GET\"} 90.315", lines.get(14));
+		assertEquals("test_seconds_count{operation=\"GET\"} 5", lines.get(15));
+	}
+
+
+	@Test
+	public void seriesWithoutLabels() {
+
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record(TimeUnit.MILLISECONDS.toNanos(20));
+
+		List<String> lines = write(histogram, "test_seconds", "");
+
+		assertEquals("test_seconds_bucket{le=\"0.005\"} 0", lines.get(0));
+		assertEquals("test_seconds_bucket{le=\"0.025\"} 1", lines.get(2));
+		assertEquals("test_seconds_sum 0.02", lines.get(14));
+		assertEquals("test_seconds_count 1", lines.get(15));
+	}
+
+
+	@Test
+	public void negativeDurationIsRecordedAsZero() {
+
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record(-1);
+
+		List<String> lines = write(histogram, "test_seconds", "");
+
+		assertEquals("test_seconds_bucket{le=\"0.005\"} 1", lines.get(0));
+		assertEquals("test_seconds_sum 0.0", lines.get(14));
+	}
+
+
+	@Test
+	public void concurrentRecordsAreAllCounted() throws InterruptedException {
+
+		LatencyHistogram histogram = new LatencyHistogram();
+
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			threads[t] = new Thread(() -> {
+				for (int i = 0; i < 100000; i++) {
+					histogram.record(TimeUnit.MILLISECONDS.toNanos(i % 100));
+				}
+			});
+			threads[t].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		List<String> lines = write(histogram, "test_seconds", "");
+
+		assertTrue(lines.get(13), lines.get(13).endsWith("} 400000"));
+		assertEquals("test_seconds_count 400000", lines.get(15));
+	}
+
+
+	private List<String> write(LatencyHistogram histogram, String name, String labels) {
+
+		StringBuilder out = new StringBuilder();
+		histogram.write(out, name, labels);
+
+		return Arrays.asList(out.toString().split("\n"));
+	}
+}
@@ -0,0 +1,176 @@
+package eu.bavenir.ogwapi.commons.monitoring;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StringWriter;
+
+import javax.json.JsonArray;
+import javax.json.JsonObject;
+import javax.json.stream.JsonGenerator;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import eu.bavenir.ogwapi.commons.JsonCodec;
+
+/**
+ * The buckets of the {@link TrafficAggregator TrafficAggregator} and the JSON they are written out as.
+ */
+public class TrafficAggregatorTest {
+
+	private static final long BUCKET_LENGTH = 60000;
+
+	private static final long START = 1200000;
+
+	private TrafficAggregator aggregator;
+
+
+	@Before
+	public void setUp() {
+		aggregator = new TrafficAggregator(BUCKET_LENGTH);
+	}
+
+
+	@Test
+	public void messagesOfOneKeyAreSummedUp() {
+
+		add("a", "b", "GETPROPERTYVALUE", 100, START + 10, 3);
+		add("a", "b", "GETPROPERTYVALUE", 200, START + 20, 40);
+		add("a", "b", "GETPROPERTYVALUE", 300, START + 30, MessageCounter.LATENCY_UNKNOWN);
+
+		JsonArray buckets = writeClosedBuckets(START + BUCKET_LENGTH);
+
+		assertEquals(1, buckets.size());
+
+		JsonObject bucket = buckets.getJsonObject(0);
+		assertEquals(START, bucket.getJsonNumber("start").longValue());
+		assertEquals(BUCKET_LENGTH, bucket.getJsonNumber("length").longValue());
+		assertEquals(12, bucket.getJsonArray("latencyBounds").size());
+
+		JsonArray traffic = bucket.getJsonArray("traffic");
+		assertEquals(1, traffic.size());
+
+		JsonObject entry = traffic.getJsonObject(0);
+		assertEquals("a", entry.getString("sourceOid"));
+		assertEquals("b", entry.getString("destinationOid"));
+		assertEquals("GETPROPERTYVALUE", entry.getString("messageType"));
+		assertEquals(MessageCounter.RECORDTYPE_INT_OK, entry.getInt("messageStatusCode"));
+		assertTrue(entry.getBoolean("reqInitiator"));
+		assertEquals(3, entry.getInt("count"));
+		assertEquals(600, entry.getInt("bytes"));
+
+		// only the two known latencies
+		JsonObject latency = entry.getJsonObject("latency");
+		assertEquals(2, latency.getInt("count"));
+		assertEquals(43, latency.getInt("sum"));
+		assertEquals(40, latency.getInt("max"));
+
+		// 3 ms falls into the first class (up to 5), 40 ms into the fourth (up to 50)
+		JsonArray histogram = latency.getJsonArray("histogram");
+		assertEquals(13, histogram.size());
+		assertEquals(1, histogram.getInt(0));
+		assertEquals(1, histogram.getInt(3));
+		assertEquals(2, histogram.stream().mapToInt(value -> Integer.parseInt(value.toString())).sum());
+	}
+
+
+	@Test
+	public void differentKeysAreSeparateEntries() {
+
+		add("a", "b", "GETPROPERTYVALUE", 100, START, 1);
+		add("b", "a", "GETPROPERTYVALUE", 100, START, 1);
+		add("a", "b", "STARTACTION", 100, START, 1);
+		aggregator.add(MessageCounter.RECORDTYPE_INT_NO_RESPONSE_MESSAGE_RECEIVED, "a", "b", true,
+				"GETPROPERTYVALUE", 100, START, MessageCounter.LATENCY_UNKNOWN);
+		aggregator.add(MessageCounter.RECORDTYPE_INT_OK, "a", "b", false, "GETPROPERTYVALUE", 100, START, 1);
+
+		JsonArray buckets = writeClosedBuckets(START + BUCKET_LENGTH);
+
+		assertEquals(5, buckets.getJsonObject(0).getJsonArray("traffic").size());
+	}
+
+
+	@Test
+	public void entryWithoutLatencyHasNoHistogram() {
+
+		aggregator.add(MessageCounter.RECORDTYPE_INT_OK, null, "b", false, null, 10, START,
+				MessageCounter.LATENCY_UNKNOWN);
+
+		JsonObject entry = writeClosedBuckets(START + BUCKET_LENGTH).getJsonObject(0).getJsonArray("traffic")
+				.getJsonObject(0);
+
+		assertTrue(entry.isNull("sourceOid"));
+		assertTrue(entry.isNull("messageType"));
+		assertFalse(entry.containsKey("latency"));
+	}
+
+
+	@Test
+	public void onlyBucketsWhoseTimeIsOverAreWritten() {
+
+		add("a", "b", "GETPROPERTYVALUE", 100, START + 5, 1);
+		add("a", "b", "GETPROPERTYVALUE", 100, START + BUCKET_LENGTH + 5, 1);
+
+		assertFalse(aggregator.hasClosedBuckets(START + BUCKET_LENGTH - 1));
+		assertTrue(aggregator.hasClosedBuckets(START + BUCKET_LENGTH));
+
+		JsonArray buckets = writeClosedBuckets(START + BUCKET_LENGTH + 10);
+
+		assertEquals(1, buckets.size());
+		assertEquals(START, buckets.getJsonObject(0).getJsonNumber("start").longValue());
+
+		// the open bucket stays
+		assertFalse(aggregator.isEmpty());
+		assertFalse(aggregator.hasClosedBuckets(START + BUCKET_LENGTH + 10));
+
+		// unless everything is written out
+		buckets = writeClosedBuckets(Long.MAX_VALUE);
+
+		assertEquals(1, buckets.size());
+		assertEquals(START + BUCKET_LENGTH, buckets.getJsonObject(0).getJsonNumber("start").longValue());
+		assertTrue(aggregator.isEmpty());
+	}
+
+
+	@Test
+	public void lateRecordOpensItsBucketAgain() {
+
+		add("a", "b", "GETPROPERTYVALUE", 100, START + 5, 1);
+		assertEquals(1, writeClosedBuckets(START + BUCKET_LENGTH).size());
+
+		// arrives after its bucket was written out
+		add("a", "b", "GETPROPERTYVALUE", 100, START + 50, 1);
+
+		JsonArray buckets = writeClosedBuckets(START + 2 * BUCKET_LENGTH);
+
+		assertEquals(1, buckets.size());
+		assertEquals(START, buckets.getJsonObject(0).getJsonNumber("start").longValue());
+		assertEquals(1, buckets.getJsonObject(0).getJsonArray("traffic").getJsonObject(0).getInt("count"));
+	}
+
+
+	private void add(String sourceOid, String destinationOid, String messageType, int messageSize, long timestamp,
+			long latency) {
+
+		aggregator.add(MessageCounter.RECORDTYPE_INT_OK, sourceOid, destinationOid, true, messageType, messageSize,
+				timestamp, latency);
+	}
+
+
+	/**
+	 * Writes the closed buckets the way the message counter does and reads them back.
+	 */
+	private JsonArray writeClosedBuckets(long now) {
+
+		StringWriter writer = new StringWriter();
+		JsonGenerator generator = JsonCodec.createGenerator(writer);
+
+		generator.writeStartArray();
+		aggregator.writeClosedBuckets(generator, now);
+		generator.writeEnd().close();
+
+		return JsonCodec.createReader(writer.toString()).readArray();
+	}
+}
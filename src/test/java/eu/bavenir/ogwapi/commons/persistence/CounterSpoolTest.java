@@ -0,0 +1,145 @@
+package eu.bavenir.ogwapi.commons.persistence;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * {@link CounterSpool CounterSpool} across restarts of the gateway - the cursor, the numbering of the segments and
+ * lines torn by a crash.
+ */
+public class CounterSpoolTest {
+
+	private static final long SEGMENT_SIZE = 1048576;
+
+	private Logger logger;
+
+	private File directory;
+
+
+	@Before
+	public void setUp() throws IOException {
+
+		logger = Logger.getLogger(CounterSpoolTest.class.getName());
+		logger.setLevel(Level.OFF);
+
+		directory = Files.createTempDirectory("ogwapi-spool-test").toFile();
+	}
+
+
+	@After
+	public void tearDown() throws IOException {
+
+		try (Stream<Path> paths = Files.walk(directory.toPath())) {
+			paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+		}
+	}
+
+
+	@Test
+	public void uploadResumesAfterRestart() {
+
+		CounterSpool spool = new CounterSpool(directory, SEGMENT_SIZE, logger);
+		spool.append(lines(1, 2, 3));
+
+		assertEquals(lines(1, 2), spool.peek(2));
+		spool.commit();
+		spool.close();
+
+		spool = new CounterSpool(directory, SEGMENT_SIZE, logger);
+		spool.append(lines(4));
+
+		assertEquals(lines(3, 4), spool.peek(10));
+	}
+
+
+	@Test
+	public void linesAfterRestartAreUploadedWhenEverythingWasUploadedBefore() {
+
+		// a run that uploads everything, the segments are deleted and the cursor stays past them
+		CounterSpool spool = new CounterSpool(directory, 1, logger);
+		spool.append(lines(1));
+		spool.append(lines(2));
+
+		assertEquals(lines(1, 2), spool.peek(10));
+		spool.commit();
+		spool.close();
+
+		assertEquals(0, segmentCount());
+
+		for (int restart = 0; restart < 2; restart++) {
+
+			spool = new CounterSpool(directory, SEGMENT_SIZE, logger);
+			spool.append(lines(3 + restart));
+
+			assertEquals(lines(3 + restart), spool.peek(10));
+			spool.commit();
+			spool.close();
+		}
+	}
+
+
+	@Test
+	public void nothingIsUploadedTwiceAfterRestart() {
+
+		CounterSpool spool = new CounterSpool(directory, SEGMENT_SIZE, logger);
+		spool.append(lines(1, 2));
+
+		assertEquals(lines(1, 2), spool.peek(10));
+		spool.commit();
+		spool.close();
+
+		spool = new CounterSpool(directory, SEGMENT_SIZE, logger);
+
+		assertTrue(spool.peek(10).isEmpty());
+	}
+
+
+	@Test
+	public void tornLineIsSkippedAfterRestart() throws IOException {
+
+		CounterSpool spool = new CounterSpool(directory, SEGMENT_SIZE, logger);
+		spool.append(lines(1));
+		spool.close();
+
+		// a crash in the middle of a line
+		File segment = directory.listFiles((dir, name) -> name.startsWith("segment-"))[0];
+		Files.write(segment.toPath(), "{\"n\":".getBytes(), StandardOpenOption.APPEND);
+
+		spool = new CounterSpool(directory, SEGMENT_SIZE, logger);
+		spool.append(lines(2));
+
+		assertEquals(lines(1, 2), spool.peek(10));
+	}
+
+
+	private List<String> lines(int... numbers) {
+
+		String[] lines = new String[numbers.length];
+		for (int i = 0; i < numbers.length; i++) {
+			lines[i] = "{\"n\":" + numbers[i] + "}";
+		}
+
+		return Arrays.asList(lines);
+	}
+
+
+	private int segmentCount() {
+		return directory.listFiles((dir, name) -> name.startsWith("segment-")).length;
+	}
+}